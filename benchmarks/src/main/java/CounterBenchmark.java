@@ -0,0 +1,98 @@
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Benchmark de contadores: INCR sobre --keys claves con el almacén anterior (valor en
+ * texto: parsear, sumar y formatear un String cada vez) frente a Keyspace.incrBy, que
+ * guarda el contador como entero. Muestra operaciones por segundo y bytes asignados por
+ * operación en el hilo que mide.
+ *
+ * Uso: mvn -q compile exec:java -Dexec.mainClass=CounterBenchmark \
+ *        -Dexec.args="--keys 10000 --ops 20000000"
+ */
+public class CounterBenchmark {
+
+    private static final int KEY_DIGITS = 8;
+
+    public static void main(String[] args) {
+        int keys = 10_000;
+        int ops = 20_000_000;
+        for (int i = 0; i < args.length - 1; i += 2) {
+            switch (args[i]) {
+                case "--keys":
+                    keys = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--ops":
+                    ops = Integer.parseInt(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Argumento desconocido: " + args[i]);
+            }
+        }
+
+        System.out.printf("%-12s %14s %12s%n", "store", "ops/s", "B/op");
+        for (int round = 0; round < 2; round++) {
+            // la primera vuelta es calentamiento del JIT
+            measure("chm", ops, round == 1, incrementMap(keys));
+            measure("keyspace", ops, round == 1, incrementKeyspace(keys));
+        }
+        System.exit(0);
+    }
+
+    private static Counter incrementMap(int keys) {
+        Map<String, byte[]> map = new ConcurrentHashMap<>();
+        return i -> {
+            String key = key(i % keys);
+            map.compute(key, (k, value) -> {
+                long current = value == null ? 0 : Long.parseLong(new String(value, StandardCharsets.UTF_8));
+                return Long.toString(current + 1).getBytes(StandardCharsets.UTF_8);
+            });
+        };
+    }
+
+    /**
+     * Reescribe los dígitos de la clave en el buffer de "INCR key:NNNNNNNN", como lo
+     * dejaría el parser de RESP
+     */
+    private static Counter incrementKeyspace(int keys) {
+        Keyspace keyspace = new Keyspace();
+        byte[] buffer = ("INCR" + key(0)).getBytes(StandardCharsets.US_ASCII);
+        CommandArgs args = new CommandArgs();
+        args.bind(buffer, 0);
+        args.add(0, 4);
+        args.add(4, 4 + KEY_DIGITS);
+        return i -> {
+            int key = i % keys;
+            for (int d = buffer.length - 1; d >= 8; d--) {
+                buffer[d] = (byte) ('0' + key % 10);
+                key /= 10;
+            }
+            keyspace.incrBy(args, 1, 1);
+        };
+    }
+
+    private static String key(int i) {
+        return String.format("key:%0" + KEY_DIGITS + "d", i);
+    }
+
+    private static void measure(String name, int ops, boolean print, Counter counter) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().threadId();
+        long allocated = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < ops; i++) {
+            counter.increment(i);
+        }
+        long nanos = System.nanoTime() - start;
+        allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+        if (print) {
+            System.out.printf("%-12s %,14.0f %12.1f%n", name, ops * 1e9 / nanos, (double) allocated / ops);
+        }
+    }
+
+    private interface Counter {
+        void increment(int i);
+    }
+}
@@ -0,0 +1,98 @@
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Benchmark de memoria de hashes pequeños: --hashes claves con --fields campos cada una,
+ * guardadas como un HashMap por clave (lo que haría un almacén de objetos) frente a
+ * Keyspace.hset, que las deja en un listpack dentro de la propia entrada. Muestra los
+ * bytes de heap por hash tras un GC.
+ *
+ * Uso: mvn -q compile exec:java -Dexec.mainClass=HashMemoryBenchmark \
+ *        -Dexec.args="--hashes 1000000 --fields 10"
+ */
+public class HashMemoryBenchmark {
+
+    public static void main(String[] args) {
+        int hashes = 1_000_000;
+        int fields = 10;
+        for (int i = 0; i < args.length - 1; i += 2) {
+            switch (args[i]) {
+                case "--hashes":
+                    hashes = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--fields":
+                    fields = Integer.parseInt(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Argumento desconocido: " + args[i]);
+            }
+        }
+
+        System.out.printf("%-12s %12s%n", "store", "B/hash");
+        long base = usedHeap();
+        Map<String, Map<String, byte[]>> map = fillMap(hashes, fields);
+        System.out.printf("%-12s %12.1f%n", "hashmap", (double) (usedHeap() - base) / map.size());
+        map = null;
+
+        base = usedHeap();
+        Keyspace keyspace = fillKeyspace(hashes, fields);
+        System.out.printf("%-12s %12.1f%n", "listpack", (double) (usedHeap() - base) / keyspace.size());
+        System.exit(0);
+    }
+
+    private static Map<String, Map<String, byte[]>> fillMap(int hashes, int fields) {
+        Map<String, Map<String, byte[]>> map = new ConcurrentHashMap<>();
+        for (int i = 0; i < hashes; i++) {
+            Map<String, byte[]> hash = new HashMap<>();
+            for (int f = 0; f < fields; f++) {
+                hash.put("field:" + f, value(i, f).getBytes(StandardCharsets.UTF_8));
+            }
+            map.put("user:" + i, hash);
+        }
+        return map;
+    }
+
+    /**
+     * Un HSET por hash con todos sus campos, como lo dejaría el parser de RESP
+     */
+    private static Keyspace fillKeyspace(int hashes, int fields) {
+        Keyspace keyspace = new Keyspace();
+        for (int i = 0; i < hashes; i++) {
+            StringBuilder command = new StringBuilder("HSET");
+            int[] bounds = new int[2 + fields * 2];
+            bounds[0] = command.length();
+            command.append("user:").append(i);
+            bounds[1] = command.length();
+            for (int f = 0; f < fields; f++) {
+                command.append("field:").append(f);
+                bounds[2 + f * 2] = command.length();
+                command.append(value(i, f));
+                bounds[3 + f * 2] = command.length();
+            }
+            byte[] buffer = command.toString().getBytes(StandardCharsets.UTF_8);
+            CommandArgs args = new CommandArgs();
+            args.bind(buffer, 0);
+            int start = 0;
+            for (int end : bounds) {
+                args.add(start, end - start);
+                start = end;
+            }
+            keyspace.hset(args, 1, 2);
+        }
+        return keyspace;
+    }
+
+    private static String value(int i, int f) {
+        return f % 2 == 0 ? Integer.toString(i * 31 + f) : "value-" + f;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
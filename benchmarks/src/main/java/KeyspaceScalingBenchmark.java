@@ -0,0 +1,127 @@
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Benchmark de escalado del Keyspace: 1, 2, 4... hasta --max-threads hilos ejecutan SET
+ * y GET sobre claves aleatorias directamente contra el Keyspace (sin red), primero con un
+ * solo shard (equivale al lock global de antes) y después con --shards. Muestra las
+ * operaciones por segundo y la aceleración respecto a un hilo.
+ *
+ * Uso: mvn -q compile exec:java -Dexec.mainClass=KeyspaceScalingBenchmark \
+ *        -Dexec.args="--max-threads 32 --keys 1000000 --writes 50 --seconds 3"
+ * (--writes es el porcentaje de SET; la aceleración solo tiene sentido hasta el
+ * número de núcleos de la máquina)
+ */
+public class KeyspaceScalingBenchmark {
+
+    private static final int KEY_DIGITS = 10;
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = 32;
+        int keys = 1_000_000;
+        int writes = 50;
+        int seconds = 3;
+        int shards = Keyspace.DEFAULT_SHARDS;
+        for (int i = 0; i < args.length - 1; i += 2) {
+            switch (args[i]) {
+                case "--max-threads":
+                    maxThreads = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--keys":
+                    keys = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--writes":
+                    writes = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--seconds":
+                    seconds = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--shards":
+                    shards = Integer.parseInt(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Argumento desconocido: " + args[i]);
+            }
+        }
+        System.out.printf("%d núcleos, %,d claves, %d%% escrituras, %d s por medida%n",
+                Runtime.getRuntime().availableProcessors(), keys, writes, seconds);
+
+        for (int shardCount : new int[]{1, shards}) {
+            Keyspace keyspace = new Keyspace(shardCount);
+            populate(keyspace, keys);
+            // calentamiento del JIT
+            run(keyspace, 1, keys, writes, 1);
+
+            System.out.printf("%n%d shard(s)%n%-8s %14s %10s%n", keyspace.shardCount(), "threads", "ops/s", "speedup");
+            double single = 0;
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                double opsPerSecond = run(keyspace, threads, keys, writes, seconds);
+                if (threads == 1) {
+                    single = opsPerSecond;
+                }
+                System.out.printf("%-8d %,14.0f %9.2fx%n", threads, opsPerSecond, opsPerSecond / single);
+            }
+        }
+        System.exit(0);
+    }
+
+    private static void populate(Keyspace keyspace, int keys) {
+        byte[] value = "initial".getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i < keys; i++) {
+            keyspace.load(String.format("key:%0" + KEY_DIGITS + "d", i).getBytes(StandardCharsets.US_ASCII), value, -1);
+        }
+    }
+
+    /**
+     * @return operaciones por segundo de todos los hilos juntos
+     */
+    private static double run(Keyspace keyspace, int threads, int keys, int writes, int seconds) throws InterruptedException {
+        LongAdder ops = new LongAdder();
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> ops.add(work(keyspace, keys, writes, end)));
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return ops.sum() / (double) seconds;
+    }
+
+    /**
+     * Bucle de un hilo: reescribe los dígitos de la clave en su propio buffer
+     * "SET key:NNNNNNNNNN value", como lo dejaría el parser de RESP
+     */
+    private static long work(Keyspace keyspace, int keys, int writes, long end) {
+        byte[] buffer = ("SET" + String.format("key:%0" + KEY_DIGITS + "d", 0) + "value")
+                .getBytes(StandardCharsets.US_ASCII);
+        int digitsEnd = 3 + 4 + KEY_DIGITS;
+        CommandArgs args = new CommandArgs();
+        args.bind(buffer, 0);
+        args.add(0, 3);
+        args.add(3, 4 + KEY_DIGITS);
+        args.add(digitsEnd, 5);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long done = 0;
+        while (true) {
+            for (int batch = 0; batch < 1024; batch++) {
+                int key = random.nextInt(keys);
+                for (int i = digitsEnd - 1; i >= 7; i--) {
+                    buffer[i] = (byte) ('0' + key % 10);
+                    key /= 10;
+                }
+                if (random.nextInt(100) < writes) {
+                    keyspace.set(args, 1, 2, -1, false);
+                } else {
+                    keyspace.get(args, 1);
+                }
+            }
+            done += 1024;
+            if (System.nanoTime() >= end) {
+                return done;
+            }
+        }
+    }
+}
@@ -0,0 +1,236 @@
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Generador de carga al estilo de redis-benchmark: --clients conexiones en bucle cerrado,
+ * cada una con --pipeline peticiones en vuelo, que mezclan GET y SET (--get-ratio) sobre
+ * claves al azar de un espacio de --keys con valores de --value-size bytes. Tras un segundo
+ * de calentamiento mide durante --seconds y muestra el throughput y las latencias p50, p99
+ * y p99.9 de cada tipo de petición. La latencia de una petición va desde que se envía su
+ * lote hasta que llega su respuesta, así que incluye la espera tras las anteriores del lote.
+ *
+ * Sin --port arranca un servidor embebido en un puerto libre con el --io-mode indicado.
+ *
+ * Uso: mvn -q compile exec:java -Dexec.mainClass=LoadGenerator \
+ *        -Dexec.args="--clients 50 --pipeline 16 --keys 100000 --value-size 64 --get-ratio 0.9"
+ */
+public class LoadGenerator {
+
+    private static final int WARMUP_MILLIS = 1000;
+    private static final int KEY_DIGITS = 12;
+    private static final byte[] KEY_PREFIX = "key:".getBytes(StandardCharsets.US_ASCII);
+
+    private final LatencyHistogram getLatency = new LatencyHistogram();
+    private final LatencyHistogram setLatency = new LatencyHistogram();
+    private final AtomicBoolean stop = new AtomicBoolean();
+
+    private String host = "127.0.0.1";
+    private int port;
+    private int clients = 50;
+    private int pipeline = 1;
+    private int keys = 100_000;
+    private int valueSize = 3;
+    private double getRatio = 0.5;
+    private int seconds = 10;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        String ioMode = "nio";
+        for (int i = 0; i < args.length - 1; i += 2) {
+            switch (args[i]) {
+                case "--host" -> generator.host = args[i + 1];
+                case "--port" -> generator.port = Integer.parseInt(args[i + 1]);
+                case "--clients" -> generator.clients = Integer.parseInt(args[i + 1]);
+                case "--pipeline" -> generator.pipeline = Integer.parseInt(args[i + 1]);
+                case "--keys" -> generator.keys = Integer.parseInt(args[i + 1]);
+                case "--value-size" -> generator.valueSize = Integer.parseInt(args[i + 1]);
+                case "--get-ratio" -> generator.getRatio = Double.parseDouble(args[i + 1]);
+                case "--seconds" -> generator.seconds = Integer.parseInt(args[i + 1]);
+                case "--io-mode" -> ioMode = args[i + 1];
+                default -> throw new IllegalArgumentException("Argumento desconocido: " + args[i]);
+            }
+        }
+        if (generator.port == 0) {
+            generator.port = startEmbeddedServer(ioMode);
+            System.out.println("Servidor embebido en puerto " + generator.port + " (" + ioMode + ")");
+        }
+        generator.run();
+        System.exit(0);
+    }
+
+    private void run() throws InterruptedException {
+        System.out.printf("%d clientes, pipeline %d, %,d claves, valores de %d bytes, %.0f%% GET, %d s%n",
+                clients, pipeline, keys, valueSize, getRatio * 100, seconds);
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            SplittableRandom random = new SplittableRandom(c);
+            Thread thread = new Thread(() -> runClient(random), "load-client-" + c);
+            thread.start();
+            threads.add(thread);
+        }
+
+        Thread.sleep(WARMUP_MILLIS);
+        getLatency.reset();
+        setLatency.reset();
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        long[] gets = getLatency.snapshot();
+        long[] sets = setLatency.snapshot();
+        long elapsed = System.nanoTime() - start;
+
+        stop.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        long[] all = new long[LatencyHistogram.BUCKETS];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = gets[i] + sets[i];
+        }
+        System.out.printf("%-6s %14s %14s %10s %10s %10s%n", "op", "requests", "ops/s",
+                "p50 ms", "p99 ms", "p99.9 ms");
+        report("GET", gets, elapsed);
+        report("SET", sets, elapsed);
+        report("total", all, elapsed);
+    }
+
+    private static void report(String name, long[] histogram, long elapsed) {
+        long requests = CommandStats.calls(histogram);
+        System.out.printf("%-6s %,14d %,14.0f %10.3f %10.3f %10.3f%n", name, requests,
+                requests * 1e9 / elapsed,
+                LatencyHistogram.percentile(histogram, 50) / 1e6,
+                LatencyHistogram.percentile(histogram, 99) / 1e6,
+                LatencyHistogram.percentile(histogram, 99.9) / 1e6);
+    }
+
+    /**
+     * Bucle cerrado: envía un lote de peticiones y espera todas sus respuestas antes de
+     * preparar el siguiente
+     */
+    private void runClient(SplittableRandom random) {
+        byte[] value = new byte[valueSize];
+        Arrays.fill(value, (byte) 'x');
+        byte[] getHeader = "*2\r\n$3\r\nGET\r\n".getBytes(StandardCharsets.US_ASCII);
+        byte[] setHeader = "*3\r\n$3\r\nSET\r\n".getBytes(StandardCharsets.US_ASCII);
+        byte[] valueHeader = ("$" + valueSize + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        int keyLength = KEY_PREFIX.length + KEY_DIGITS;
+        byte[] keyHeader = ("$" + keyLength + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        byte[] batch = new byte[pipeline * (setHeader.length + keyHeader.length + keyLength
+                + valueHeader.length + valueSize + 4)];
+        boolean[] isGet = new boolean[pipeline];
+
+        try (Socket socket = new Socket(host, port)) {
+            socket.setTcpNoDelay(true);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+            while (!stop.get()) {
+                int length = 0;
+                for (int i = 0; i < pipeline; i++) {
+                    isGet[i] = random.nextDouble() < getRatio;
+                    length = put(batch, length, isGet[i] ? getHeader : setHeader);
+                    length = put(batch, length, keyHeader);
+                    length = putKey(batch, length, random.nextInt(keys));
+                    if (!isGet[i]) {
+                        length = put(batch, length, valueHeader);
+                        length = put(batch, length, value);
+                        batch[length++] = '\r';
+                        batch[length++] = '\n';
+                    }
+                }
+                long sent = System.nanoTime();
+                out.write(batch, 0, length);
+                for (int i = 0; i < pipeline; i++) {
+                    skipReply(in);
+                    (isGet[i] ? getLatency : setLatency).record(System.nanoTime() - sent);
+                }
+            }
+        } catch (IOException e) {
+            if (!stop.get()) {
+                System.err.println("Error en el cliente: " + e.getMessage());
+            }
+        }
+    }
+
+    private static int put(byte[] batch, int offset, byte[] bytes) {
+        System.arraycopy(bytes, 0, batch, offset, bytes.length);
+        return offset + bytes.length;
+    }
+
+    /**
+     * Clave key:NNNNNNNNNNNN de ancho fijo, como __rand_int__ en redis-benchmark
+     */
+    private static int putKey(byte[] batch, int offset, int key) {
+        offset = put(batch, offset, KEY_PREFIX);
+        for (int i = offset + KEY_DIGITS - 1; i >= offset; i--) {
+            batch[i] = (byte) ('0' + key % 10);
+            key /= 10;
+        }
+        offset += KEY_DIGITS;
+        batch[offset++] = '\r';
+        batch[offset++] = '\n';
+        return offset;
+    }
+
+    /**
+     * Consume una respuesta: una línea (+OK, -ERR, :n) o un bulk string ($n y sus datos)
+     */
+    private static void skipReply(InputStream in) throws IOException {
+        int type = in.read();
+        long length = 0;
+        boolean negative = false;
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new EOFException("El servidor cerró la conexión");
+            }
+            if (b == '-') {
+                negative = true;
+            } else if (b >= '0' && b <= '9') {
+                length = length * 10 + (b - '0');
+            }
+        }
+        if (type == '-') {
+            throw new IOException("Error del servidor");
+        }
+        if (type == '$' && !negative) {
+            in.skipNBytes(length + 2);
+        }
+    }
+
+    /**
+     * Arranca un RedisServer en un hilo aparte y espera a que acepte conexiones.
+     * Su log se limita a los avisos para no medir la escritura de mensajes
+     */
+    private static int startEmbeddedServer(String ioMode) throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        Log.setLevel(LogLevel.WARNING);
+        String[] serverArgs = {"--port", String.valueOf(port), "--io-mode", ioMode};
+        RedisServer server = new RedisServer(new CommandLineArgs(serverArgs));
+        Thread serverThread = new Thread(server::start, "embedded-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try (Socket ignored = new Socket("127.0.0.1", port)) {
+                return port;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IOException("El servidor embebido no arrancó en el puerto " + port);
+    }
+}
@@ -0,0 +1,132 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Benchmark de memoria: llena con --keys claves de tipo string el almacén anterior
+ * (ConcurrentHashMap<String, byte[]>) y el Keyspace de entradas byte[], y compara el
+ * heap ocupado tras un GC completo, los bytes por clave y el trabajo del GC durante
+ * el llenado. La mitad de los valores son enteros (usan la codificación int) y un 10%
+ * de las claves tiene TTL.
+ *
+ * Uso: mvn -q compile exec:java -Dexec.mainClass=MemoryFootprintBenchmark \
+ *        -Dexec.args="--keys 5000000"
+ * (con 50M claves conviene MAVEN_OPTS="-Xmx16g")
+ */
+public class MemoryFootprintBenchmark {
+
+    public static void main(String[] args) {
+        int keys = 5_000_000;
+        String only = null;
+        for (int i = 0; i < args.length - 1; i += 2) {
+            switch (args[i]) {
+                case "--keys":
+                    keys = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--only":
+                    only = args[i + 1];
+                    break;
+                default:
+                    throw new IllegalArgumentException("Argumento desconocido: " + args[i]);
+            }
+        }
+
+        System.out.printf("%-12s %12s %10s %10s %10s %10s%n",
+                "store", "heap MB", "B/clave", "ms", "GCs", "GC ms");
+        Result baseline = null;
+        Result keyspace = null;
+        if (only == null || only.equals("map")) {
+            baseline = measure("chm", keys, MemoryFootprintBenchmark::fillMap);
+        }
+        if (only == null || only.equals("keyspace")) {
+            keyspace = measure("keyspace", keys, MemoryFootprintBenchmark::fillKeyspace);
+        }
+        if (baseline != null && keyspace != null) {
+            System.out.printf("Reducción de memoria: %.1f%%, GC: %d -> %d ms%n",
+                    100.0 * (baseline.heapBytes - keyspace.heapBytes) / baseline.heapBytes,
+                    baseline.gcMillis, keyspace.gcMillis);
+        }
+        System.exit(0);
+    }
+
+    private static Object fillMap(int keys) {
+        Map<String, byte[]> map = new ConcurrentHashMap<>();
+        for (int i = 0; i < keys; i++) {
+            map.put(key(i), value(i));
+        }
+        return map;
+    }
+
+    private static Object fillKeyspace(int keys) {
+        Keyspace keyspace = new Keyspace();
+        long expireAt = System.currentTimeMillis() + 3_600_000;
+        for (int i = 0; i < keys; i++) {
+            keyspace.load(key(i).getBytes(StandardCharsets.UTF_8), value(i), i % 10 == 0 ? expireAt : -1);
+        }
+        return keyspace;
+    }
+
+    private static String key(int i) {
+        return "user:session:" + i;
+    }
+
+    private static byte[] value(int i) {
+        String value = i % 2 == 0 ? Integer.toString(i) : "payload-" + i;
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Result measure(String name, int keys, Filler filler) {
+        long before = usedAfterGc();
+        long gcCount = gcCount();
+        long gcMillis = gcMillis();
+        long start = System.nanoTime();
+        Object store = filler.fill(keys);
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        Result result = new Result();
+        result.gcCount = gcCount() - gcCount;
+        result.gcMillis = gcMillis() - gcMillis;
+        result.heapBytes = usedAfterGc() - before;
+        System.out.printf("%-12s %12d %10.1f %10d %10d %10d%n", name, result.heapBytes >> 20,
+                (double) result.heapBytes / keys, millis, result.gcCount, result.gcMillis);
+        // mantiene vivo el almacén hasta después de medir
+        Reference.reachabilityFence(store);
+        return result;
+    }
+
+    private static long usedAfterGc() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+
+    private interface Filler {
+        Object fill(int keys);
+    }
+
+    private static class Result {
+        long heapBytes;
+        long gcCount;
+        long gcMillis;
+    }
+}
@@ -0,0 +1,167 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Benchmark de pipelining: mide las ops/s de SET para distintas profundidades
+ * de pipeline (por defecto 1, 16 y 128). Sin --port arranca un servidor embebido
+ * en un puerto libre con el --io-mode indicado.
+ *
+ * Uso: mvn -q compile exec:java -Dexec.mainClass=PipelineBenchmark \
+ *        -Dexec.args="--clients 4 --seconds 5 --io-mode nio"
+ */
+public class PipelineBenchmark {
+
+    private static final int WARMUP_MILLIS = 1000;
+    private static final int KEY_SPACE = 10_000;
+
+    public static void main(String[] args) throws Exception {
+        String host = "127.0.0.1";
+        int port = 0;
+        int clients = 4;
+        int seconds = 5;
+        String ioMode = "nio";
+        int[] depths = {1, 16, 128};
+        for (int i = 0; i < args.length - 1; i += 2) {
+            switch (args[i]) {
+                case "--host" -> host = args[i + 1];
+                case "--port" -> port = Integer.parseInt(args[i + 1]);
+                case "--clients" -> clients = Integer.parseInt(args[i + 1]);
+                case "--seconds" -> seconds = Integer.parseInt(args[i + 1]);
+                case "--io-mode" -> ioMode = args[i + 1];
+                case "--depths" -> depths = parseDepths(args[i + 1]);
+                default -> throw new IllegalArgumentException("Argumento desconocido: " + args[i]);
+            }
+        }
+
+        PrintStream console = System.out;
+        if (port == 0) {
+            port = startEmbeddedServer(ioMode);
+            console.println("Servidor embebido en puerto " + port + " (" + ioMode + ")");
+        }
+
+        console.printf("%-8s %-8s %14s%n", "depth", "clients", "ops/s");
+        for (int depth : depths) {
+            double opsPerSecond = run(host, port, clients, depth, seconds);
+            console.printf("%-8d %-8d %,14.0f%n", depth, clients, opsPerSecond);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Lanza los clientes, descarta el calentamiento y devuelve las ops/s medidas
+     */
+    private static double run(String host, int port, int clients, int depth, int seconds) throws Exception {
+        AtomicBoolean stop = new AtomicBoolean();
+        LongAdder completed = new LongAdder();
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            byte[] batch = buildSetBatch(c, depth);
+            Thread thread = new Thread(() -> runClient(host, port, batch, depth, stop, completed));
+            thread.start();
+            threads.add(thread);
+        }
+
+        Thread.sleep(WARMUP_MILLIS);
+        completed.reset();
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        long ops = completed.sum();
+        long elapsed = System.nanoTime() - start;
+
+        stop.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return ops * 1e9 / elapsed;
+    }
+
+    /**
+     * Bucle cerrado: envía el lote completo y espera todas sus respuestas antes del siguiente
+     */
+    private static void runClient(String host, int port, byte[] batch, int depth,
+                                  AtomicBoolean stop, LongAdder completed) {
+        try (Socket socket = new Socket(host, port)) {
+            socket.setTcpNoDelay(true);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            byte[] readBuffer = new byte[64 * 1024];
+            while (!stop.get()) {
+                out.write(batch);
+                int replies = 0;
+                while (replies < depth) {
+                    int read = in.read(readBuffer);
+                    if (read < 0) {
+                        throw new IOException("El servidor cerró la conexión");
+                    }
+                    // cada respuesta de SET es una línea +OK\r\n
+                    for (int i = 0; i < read; i++) {
+                        if (readBuffer[i] == '\n') {
+                            replies++;
+                        }
+                    }
+                }
+                completed.add(depth);
+            }
+        } catch (IOException e) {
+            System.err.println("Error en el cliente: " + e.getMessage());
+        }
+    }
+
+    private static byte[] buildSetBatch(int client, int depth) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            String key = "key:" + ((client * 7919 + i) % KEY_SPACE);
+            String value = "value-" + i;
+            sb.append("*3\r\n$3\r\nSET\r\n")
+              .append('$').append(key.length()).append("\r\n").append(key).append("\r\n")
+              .append('$').append(value.length()).append("\r\n").append(value).append("\r\n");
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Arranca un RedisServer en un hilo aparte y espera a que acepte conexiones.
+     * Su salida por consola se descarta para no medir los println del servidor
+     */
+    private static int startEmbeddedServer(String ioMode) throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        String[] serverArgs = {"--port", String.valueOf(port), "--io-mode", ioMode};
+        RedisServer server = new RedisServer(new CommandLineArgs(serverArgs));
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        Thread serverThread = new Thread(server::start, "embedded-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try (Socket ignored = new Socket("127.0.0.1", port)) {
+                return port;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        console.println("El servidor embebido no arrancó");
+        throw new IOException("El servidor embebido no arrancó en el puerto " + port);
+    }
+
+    private static int[] parseDepths(String list) {
+        String[] parts = list.split(",");
+        int[] depths = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            depths[i] = Integer.parseInt(parts[i].trim());
+        }
+        return depths;
+    }
+}
@@ -0,0 +1,76 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Benchmark de carga del RDB: genera con RdbWriter (o reutiliza) un dump con --keys claves
+ * de tipo string de --value-size bytes, un 10% de ellas con TTL, y lo carga en un
+ * RedisCommands vacío con la carga paralela (índice + ForkJoinPool) con 1, 2, 4... hilos
+ * hasta --max-threads, mostrando el tiempo y la aceleración respecto a esa misma carga con
+ * un hilo. La carga secuencial de una pasada, la que usa el servidor con --load-threads 1,
+ * sale aparte como referencia: es otro algoritmo y no sirve de base para la aceleración.
+ *
+ * Uso: mvn -q compile exec:java -Dexec.mainClass=RdbLoadBenchmark \
+ *        -Dexec.args="--keys 10000000 --file /tmp/bench.rdb"
+ * (con 10M claves conviene MAVEN_OPTS="-Xmx6g")
+ */
+public class RdbLoadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int keys = 10_000_000;
+        Path file = Paths.get(System.getProperty("java.io.tmpdir"), "rdb-load-benchmark.rdb");
+        int valueSize = 16;
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+        for (int i = 0; i < args.length - 1; i += 2) {
+            switch (args[i]) {
+                case "--keys":
+                    keys = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--file":
+                    file = Paths.get(args[i + 1]);
+                    break;
+                case "--value-size":
+                    valueSize = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--max-threads":
+                    maxThreads = Integer.parseInt(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Argumento desconocido: " + args[i]);
+            }
+        }
+
+        ServerHarness harness = new ServerHarness();
+        if (!Files.exists(file)) {
+            long start = System.nanoTime();
+            harness.writeRdb(file, keys, valueSize);
+            System.out.printf("Generado %s (%,d claves, %,d MB) en %d ms%n", file, keys,
+                    Files.size(file) >> 20, (System.nanoTime() - start) / 1_000_000);
+        }
+
+        // una carga de calentamiento para que el JIT y la caché de páginas no cuenten
+        harness.loadStats(file, 1, true);
+
+        RDBParser.LoadStats sequential = harness.loadStats(file, 1, false);
+        System.gc();
+        System.out.printf("%-8s %12s %14s %10s%n", "threads", "ms", "keys/s", "speedup");
+        System.out.printf("%-8s %12d %,14.0f %10s%n", "1 (seq)", sequential.millis,
+                sequential.keys * 1000.0 / Math.max(1, sequential.millis), "-");
+        long singleThreadMillis = 0;
+        for (int threads = 1; threads <= maxThreads; threads = nextThreads(threads, maxThreads)) {
+            RDBParser.LoadStats stats = harness.loadStats(file, threads, true);
+            System.gc();
+            if (threads == 1) {
+                singleThreadMillis = stats.millis;
+            }
+            System.out.printf("%-8d %12d %,14.0f %9.2fx%n", threads, stats.millis,
+                    stats.keys * 1000.0 / Math.max(1, stats.millis),
+                    (double) singleThreadMillis / Math.max(1, stats.millis));
+        }
+        System.exit(0);
+    }
+
+    private static int nextThreads(int threads, int maxThreads) {
+        return threads < maxThreads && threads * 2 > maxThreads ? maxThreads : threads * 2;
+    }
+}
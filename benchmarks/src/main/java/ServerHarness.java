@@ -0,0 +1,211 @@
+import bench.Harness;
+import bench.Leaderboard;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Harness sobre las clases del servidor: RespParser y RespWriter para el protocolo,
+ * RdbWriter y RDBParser para los dumps, los comandos de RedisCommands para el keyspace y
+ * los Leaderboard de SortedSetBenchmark.
+ * Las peticiones del keyspace se decodifican una vez en fill(), así que solo se mide la
+ * ejecución del comando y su respuesta.
+ */
+public class ServerHarness implements Harness {
+
+    private final RespParser parser = new RespParser();
+    private final CommandArgs args = new CommandArgs();
+    private final RespWriter out = new RespWriter();
+
+    // se crean en fill(); solo los usa KeyspaceBenchmark
+    private RedisCommands commands;
+    private RedisCommand getCommand;
+    private RedisCommand setCommand;
+    private RedisCommand incrCommand;
+    private RedisCommand mgetCommand;
+
+    private CommandArgs[] gets;
+    private CommandArgs[] missing;
+    private CommandArgs[] sets;
+    private CommandArgs[] incrs;
+    private CommandArgs[] mgets;
+
+    @Override
+    public int parse(byte[] frames) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(frames);
+        int parsed = 0;
+        while (parser.parse(buffer, args)) {
+            parsed += args.count();
+        }
+        return parsed;
+    }
+
+    @Override
+    public int encodeBulks(byte[][] values) {
+        out.clear();
+        for (byte[] value : values) {
+            out.writeBulk(value);
+        }
+        return out.pending();
+    }
+
+    @Override
+    public int encodeIntegers(long[] values) {
+        out.clear();
+        for (long value : values) {
+            out.writeInteger(value);
+        }
+        return out.pending();
+    }
+
+    @Override
+    public int encodeArray(byte[][] values) {
+        out.clear();
+        out.writeArrayHeader(values.length);
+        for (byte[] value : values) {
+            out.writeBulk(value);
+        }
+        return out.pending();
+    }
+
+    @Override
+    public void writeRdb(Path file, int keys, int valueSize) throws IOException {
+        long expireAt = System.currentTimeMillis() + 24 * 3600 * 1000L;
+        byte[] value = new byte[valueSize];
+        Arrays.fill(value, (byte) 'x');
+        try (RdbWriter rdb = new RdbWriter(FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))) {
+            rdb.writeHeader();
+            rdb.writeAux("redis-ver", "7.2.0");
+            rdb.writeSelectDb(0);
+            rdb.writeResizeDb(keys, keys / 10);
+            for (int i = 0; i < keys; i++) {
+                rdb.writeEntry(("key:" + i).getBytes(StandardCharsets.US_ASCII), value,
+                        i % 10 == 0 ? expireAt : -1);
+            }
+            rdb.finish();
+        }
+    }
+
+    @Override
+    public int parseRdb(Path file) throws IOException {
+        return RDBParser.parseRDB(file.getParent().toString(), file.getFileName().toString()).size();
+    }
+
+    @Override
+    public long loadRdb(Path file, int threads) throws IOException {
+        return loadStats(file, threads, false).keys;
+    }
+
+    /**
+     * Carga en un almacén nuevo, igual que hace RedisServer al arrancar
+     *
+     * @param indexed true para usar las dos pasadas de la carga paralela también con un
+     *                hilo (RDBParser.loadIndexed) en vez de la lectura secuencial
+     */
+    public RDBParser.LoadStats loadStats(Path file, int threads, boolean indexed) throws IOException {
+        RedisCommands commands = new RedisCommands(null, null);
+        try {
+            RDBParser.Handler loader = commands.createRdbLoader();
+            return indexed ? RDBParser.loadIndexed(file, loader, threads) : RDBParser.loadParallel(file, loader, threads);
+        } finally {
+            commands.shutdown();
+        }
+    }
+
+    @Override
+    public void fill(int keys, int valueSize) throws IOException {
+        commands = new RedisCommands(null, null);
+        getCommand = commands.createGetCommand();
+        setCommand = commands.createSetCommand();
+        incrCommand = commands.createIncrCommand(1, false);
+        mgetCommand = commands.createMgetCommand();
+        String value = "x".repeat(valueSize);
+        gets = new CommandArgs[keys];
+        missing = new CommandArgs[keys];
+        sets = new CommandArgs[keys];
+        incrs = new CommandArgs[keys];
+        mgets = new CommandArgs[(keys + MGET_KEYS - 1) / MGET_KEYS];
+        for (int i = 0; i < keys; i++) {
+            sets[i] = request("SET", "key:" + i, value);
+            gets[i] = request("GET", "key:" + i);
+            missing[i] = request("GET", "missing:" + i);
+            incrs[i] = request("INCR", "counter:" + i);
+            execute(setCommand, sets[i]);
+            execute(incrCommand, incrs[i]);
+        }
+        for (int block = 0; block < mgets.length; block++) {
+            String[] request = new String[MGET_KEYS + 1];
+            request[0] = "MGET";
+            for (int i = 0; i < MGET_KEYS; i++) {
+                request[i + 1] = "key:" + (block * MGET_KEYS + i);
+            }
+            mgets[block] = request(request);
+        }
+    }
+
+    @Override
+    public int get(int key) throws IOException {
+        return execute(getCommand, gets[key]);
+    }
+
+    @Override
+    public int getMissing(int key) throws IOException {
+        return execute(getCommand, missing[key]);
+    }
+
+    @Override
+    public int set(int key) throws IOException {
+        return execute(setCommand, sets[key]);
+    }
+
+    @Override
+    public int incr(int key) throws IOException {
+        return execute(incrCommand, incrs[key]);
+    }
+
+    @Override
+    public int mget(int key) throws IOException {
+        return execute(mgetCommand, mgets[key / MGET_KEYS]);
+    }
+
+    @Override
+    public void close() {
+        if (commands != null) {
+            commands.shutdown();
+        }
+    }
+
+    @Override
+    public Leaderboard leaderboard(String impl) {
+        switch (impl) {
+            case "skiplist":
+                return new ZSetLeaderboard();
+            case "treemap":
+                return new TreeMapLeaderboard();
+            default:
+                throw new IllegalArgumentException("Implementación desconocida: " + impl);
+        }
+    }
+
+    private int execute(RedisCommand command, CommandArgs args) throws IOException {
+        out.clear();
+        command.execute(args, out);
+        return out.pending();
+    }
+
+    private static CommandArgs request(String... request) throws IOException {
+        StringBuilder frame = new StringBuilder().append('*').append(request.length).append("\r\n");
+        for (String arg : request) {
+            frame.append('$').append(arg.length()).append("\r\n").append(arg).append("\r\n");
+        }
+        CommandArgs args = new CommandArgs();
+        new RespParser().parse(ByteBuffer.wrap(frame.toString().getBytes(StandardCharsets.US_ASCII)), args);
+        return args;
+    }
+}
@@ -0,0 +1,72 @@
+import bench.Leaderboard;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Leaderboard de referencia: TreeMap ordenado por (score, miembro) más un HashMap de
+ * miembro a score. Insertar y buscar es O(log n), pero la posición y los rangos por
+ * posición hay que contarlos recorriendo el árbol
+ */
+public class TreeMapLeaderboard implements Leaderboard {
+
+    private static final Comparator<Scored> ORDER = Comparator.<Scored>comparingDouble(s -> s.score)
+            .thenComparing((a, b) -> Arrays.compareUnsigned(a.member.data(), b.member.data()));
+
+    private final TreeMap<Scored, Boolean> sorted = new TreeMap<>(ORDER);
+    private final Map<Bytes, Double> scores = new HashMap<>();
+    private final RespWriter out = new RespWriter();
+
+    @Override
+    public void put(byte[] member, double score) {
+        Bytes key = new Bytes(member);
+        Double previous = scores.put(key, score);
+        if (previous != null) {
+            sorted.remove(new Scored(key, previous));
+        }
+        sorted.put(new Scored(key, score), Boolean.TRUE);
+    }
+
+    @Override
+    public double score(byte[] member) {
+        Double score = scores.get(new Bytes(member));
+        return score == null ? Double.NaN : score;
+    }
+
+    @Override
+    public long rank(byte[] member) {
+        Bytes key = new Bytes(member);
+        Double score = scores.get(key);
+        return score == null ? -1 : sorted.headMap(new Scored(key, score)).size();
+    }
+
+    @Override
+    public int range(int start, int count) {
+        out.clear();
+        out.writeArrayHeader(count * 2);
+        Iterator<Scored> it = sorted.keySet().iterator();
+        for (int i = 0; i < start; i++) {
+            it.next();
+        }
+        for (int i = 0; i < count; i++) {
+            Scored scored = it.next();
+            out.writeBulk(scored.member.data());
+            SortedSets.writeScore(scored.score, out);
+        }
+        return out.pending();
+    }
+
+    private static final class Scored {
+        final Bytes member;
+        final double score;
+
+        Scored(Bytes member, double score) {
+            this.member = member;
+            this.score = score;
+        }
+    }
+}
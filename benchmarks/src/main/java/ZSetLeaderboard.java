@@ -0,0 +1,33 @@
+import bench.Leaderboard;
+
+/**
+ * Leaderboard sobre ZSet, la skiplist del servidor
+ */
+public class ZSetLeaderboard implements Leaderboard {
+
+    private final ZSet zset = new ZSet();
+    private final RespWriter out = new RespWriter();
+
+    @Override
+    public void put(byte[] member, double score) {
+        zset.put(new Bytes(member), score);
+    }
+
+    @Override
+    public double score(byte[] member) {
+        return zset.score(new Bytes(member));
+    }
+
+    @Override
+    public long rank(byte[] member) {
+        return zset.rank(new Bytes(member), false);
+    }
+
+    @Override
+    public int range(int start, int count) {
+        out.clear();
+        out.writeArrayHeader(count * 2);
+        zset.writeRange(start, start + count - 1, false, true, out);
+        return out.pending();
+    }
+}
@@ -0,0 +1,104 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Acceso de los benchmarks JMH a las clases del servidor, que están en el paquete por
+ * defecto y no se pueden importar desde aquí. La implementación (ServerHarness) se carga
+ * por nombre en create(), el único sitio que lo hace: los adaptadores de Leaderboard
+ * también salen de ella. Los benchmarks con main() del paquete por defecto la usan
+ * directamente. Cada benchmark crea la suya, así que el estado (keyspace, parser y
+ * buffer de respuesta) no se comparte.
+ */
+public interface Harness {
+
+    int MGET_KEYS = 10;
+
+    static Harness create() throws ReflectiveOperationException {
+        return (Harness) Class.forName("ServerHarness").getDeclaredConstructor().newInstance();
+    }
+
+    // --- RESP: RespParser y RespWriter, como en cada conexión ---
+
+    /**
+     * Decodifica todas las tramas del buffer, como llegan de una lectura del socket
+     *
+     * @return argumentos decodificados en total
+     */
+    int parse(byte[] frames) throws IOException;
+
+    /**
+     * Codifica una respuesta bulk por valor, como una tanda de GET en pipeline
+     *
+     * @return bytes codificados
+     */
+    int encodeBulks(byte[][] values);
+
+    /**
+     * Codifica una respuesta entera por valor, como una tanda de INCR en pipeline
+     *
+     * @return bytes codificados
+     */
+    int encodeIntegers(long[] values);
+
+    /**
+     * Codifica un único array con todos los valores, como la respuesta de un MGET
+     *
+     * @return bytes codificados
+     */
+    int encodeArray(byte[][] values);
+
+    // --- RDB: RdbWriter y RDBParser, como SAVE y el arranque ---
+
+    /**
+     * Escribe un RDB con keys claves de tipo string de valueSize bytes, un 10% con TTL
+     */
+    void writeRdb(Path file, int keys, int valueSize) throws IOException;
+
+    /**
+     * Lee el fichero con RDBParser.parseRDB
+     *
+     * @return claves leídas
+     */
+    int parseRdb(Path file) throws IOException;
+
+    /**
+     * Carga el fichero en un RedisCommands vacío, como al arrancar el servidor
+     *
+     * @return claves cargadas
+     */
+    long loadRdb(Path file, int threads) throws IOException;
+
+    // --- keyspace: los comandos de RedisCommands; las claves se identifican por su número ---
+
+    /**
+     * Crea keys claves string con valores de valueSize bytes y un contador por clave
+     */
+    void fill(int keys, int valueSize) throws IOException;
+
+    /**
+     * @return bytes de la respuesta
+     */
+    int get(int key) throws IOException;
+
+    int getMissing(int key) throws IOException;
+
+    int set(int key) throws IOException;
+
+    int incr(int key) throws IOException;
+
+    /**
+     * MGET de las MGET_KEYS claves consecutivas del bloque al que pertenece key
+     */
+    int mget(int key) throws IOException;
+
+    void close();
+
+    // --- sorted sets: ZSet del servidor frente a un TreeMap de referencia ---
+
+    /**
+     * @param impl "skiplist" (ZSet) o "treemap"
+     */
+    Leaderboard leaderboard(String impl);
+}
@@ -0,0 +1,83 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Comandos de RedisCommands sobre un keyspace de --keys claves con valores de --valueSize
+ * bytes, sobre una clave al azar: GET que acierta y que falla, SET que sobrescribe, INCR
+ * y un MGET de 10 claves. Incluye bloquear la clave y escribir la respuesta, pero no la
+ * decodificación, que se hace al preparar.
+ *
+ * Uso: mvn -q compile exec:exec -Dexec.executable=java \
+ *        -Dexec.args="-cp %classpath org.openjdk.jmh.Main Keyspace -p keys=1000000"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+public class KeyspaceBenchmark {
+
+    @Param({"100000"})
+    public int keys;
+
+    @Param({"16"})
+    public int valueSize;
+
+    private Harness store;
+    private SplittableRandom random;
+
+    @Setup(Level.Trial)
+    public void setup() throws ReflectiveOperationException, IOException {
+        store = Harness.create();
+        store.fill(keys, valueSize);
+        random = new SplittableRandom(42);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        store.close();
+    }
+
+    @Benchmark
+    public int get() throws IOException {
+        return store.get(random.nextInt(keys));
+    }
+
+    @Benchmark
+    public int getMissing() throws IOException {
+        return store.getMissing(random.nextInt(keys));
+    }
+
+    @Benchmark
+    public int set() throws IOException {
+        return store.set(random.nextInt(keys));
+    }
+
+    @Benchmark
+    public int incr() throws IOException {
+        return store.incr(random.nextInt(keys));
+    }
+
+    @Benchmark
+    public int mget() throws IOException {
+        return store.mget(random.nextInt(keys));
+    }
+}
@@ -0,0 +1,28 @@
+package bench;
+
+/**
+ * Operaciones de un sorted set que compara SortedSetBenchmark. Las implementaciones están
+ * en el paquete por defecto, junto a las clases del servidor, y se obtienen con
+ * Harness.leaderboard
+ */
+public interface Leaderboard {
+
+    /**
+     * Añade el miembro o le cambia el score
+     */
+    void put(byte[] member, double score);
+
+    double score(byte[] member);
+
+    /**
+     * @return posición del miembro por score ascendente
+     */
+    long rank(byte[] member);
+
+    /**
+     * Escribe como respuesta RESP los count miembros (con score) desde la posición start
+     *
+     * @return bytes escritos
+     */
+    int range(int start, int count);
+}
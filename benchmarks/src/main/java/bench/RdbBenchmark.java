@@ -0,0 +1,74 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lectura de un RDB generado con --keys claves string de --valueSize bytes: con
+ * RDBParser.parseRDB (a un Map de Strings) y cargándolo en un RedisCommands como al
+ * arrancar, con un hilo y con todos. Para cargas de decenas de millones de claves y la
+ * escalabilidad por hilos está RdbLoadBenchmark.
+ *
+ * Uso: mvn -q compile exec:exec -Dexec.executable=java \
+ *        -Dexec.args="-cp %classpath org.openjdk.jmh.Main Rdb -p keys=1000000"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+public class RdbBenchmark {
+
+    @Param({"100000"})
+    public int keys;
+
+    @Param({"16", "256"})
+    public int valueSize;
+
+    private Harness dump;
+    private Path file;
+
+    @Setup(Level.Trial)
+    public void setup() throws ReflectiveOperationException, IOException {
+        dump = Harness.create();
+        file = Files.createTempFile("rdb-benchmark", ".rdb");
+        dump.writeRdb(file, keys, valueSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public int parseRDB() throws IOException {
+        return dump.parseRdb(file);
+    }
+
+    @Benchmark
+    public long load() throws IOException {
+        return dump.loadRdb(file, 1);
+    }
+
+    @Benchmark
+    public long loadParallel() throws IOException {
+        return dump.loadRdb(file, Runtime.getRuntime().availableProcessors());
+    }
+}
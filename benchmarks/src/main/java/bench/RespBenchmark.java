@@ -0,0 +1,87 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Protocolo RESP por tandas de --depth comandos, como llegan en pipeline: decodificar
+ * SET key value con valores de --valueSize bytes, y codificar las respuestas de GET
+ * (bulk), de INCR (enteros) y de un MGET (un array con todos los valores).
+ * Los tiempos son por tanda completa.
+ *
+ * Uso: mvn -q compile exec:exec -Dexec.executable=java \
+ *        -Dexec.args="-cp %classpath org.openjdk.jmh.Main Resp -p depth=16"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RespBenchmark {
+
+    @Param({"1", "16", "128"})
+    public int depth;
+
+    @Param({"16", "1024"})
+    public int valueSize;
+
+    private Harness codec;
+    private byte[] frames;
+    private byte[][] values;
+    private long[] integers;
+
+    @Setup(Level.Trial)
+    public void setup() throws ReflectiveOperationException {
+        codec = Harness.create();
+        byte[] value = new byte[valueSize];
+        Arrays.fill(value, (byte) 'x');
+        StringBuilder sb = new StringBuilder();
+        values = new byte[depth][];
+        integers = new long[depth];
+        for (int i = 0; i < depth; i++) {
+            String key = "key:" + i;
+            sb.append("*3\r\n$3\r\nSET\r\n")
+              .append('$').append(key.length()).append("\r\n").append(key).append("\r\n")
+              .append('$').append(valueSize).append("\r\n").append("x".repeat(valueSize)).append("\r\n");
+            values[i] = value;
+            integers[i] = 1_000_000L * i;
+        }
+        frames = sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Benchmark
+    public int parse() throws IOException {
+        return codec.parse(frames);
+    }
+
+    @Benchmark
+    public int encodeBulks() {
+        return codec.encodeBulks(values);
+    }
+
+    @Benchmark
+    public int encodeIntegers() {
+        return codec.encodeIntegers(integers);
+    }
+
+    @Benchmark
+    public int encodeArray() {
+        return codec.encodeArray(values);
+    }
+}
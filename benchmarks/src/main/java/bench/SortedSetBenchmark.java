@@ -0,0 +1,79 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sorted set del servidor (ZSet: skiplist con spans más índice por miembro) frente a un
+ * TreeMap con un HashMap al lado, con un leaderboard de --members miembros: actualizar un
+ * score (ZADD / ZINCRBY), ZSCORE, ZRANK y una página de 10 con scores (ZRANGE WITHSCORES)
+ * desde una posición al azar.
+ *
+ * Uso: mvn -q compile exec:exec -Dexec.executable=java \
+ *        -Dexec.args="-cp %classpath org.openjdk.jmh.Main SortedSet -p members=1000000"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+public class SortedSetBenchmark {
+
+    private static final int PAGE = 10;
+
+    @Param({"skiplist", "treemap"})
+    public String impl;
+
+    @Param({"1000000"})
+    public int members;
+
+    private Leaderboard leaderboard;
+    private byte[][] names;
+    private SplittableRandom random;
+
+    @Setup(Level.Trial)
+    public void setup() throws ReflectiveOperationException {
+        leaderboard = Harness.create().leaderboard(impl);
+        random = new SplittableRandom(42);
+        names = new byte[members][];
+        for (int i = 0; i < members; i++) {
+            names[i] = ("player:" + i).getBytes(StandardCharsets.US_ASCII);
+            leaderboard.put(names[i], random.nextInt(1_000_000));
+        }
+    }
+
+    @Benchmark
+    public void updateScore() {
+        leaderboard.put(names[random.nextInt(members)], random.nextInt(1_000_000));
+    }
+
+    @Benchmark
+    public double score() {
+        return leaderboard.score(names[random.nextInt(members)]);
+    }
+
+    @Benchmark
+    public long rank() {
+        return leaderboard.rank(names[random.nextInt(members)]);
+    }
+
+    @Benchmark
+    public int rangePage() {
+        return leaderboard.range(random.nextInt(members - PAGE), PAGE);
+    }
+}
@@ -0,0 +1,25 @@
+/**
+ * Cuándo se fuerza a disco el AOF (appendfsync de Redis)
+ */
+public enum AppendFsync {
+    ALWAYS("always"),       // fsync antes de responder a cada escritura (agrupando las concurrentes)
+    EVERYSEC("everysec"),   // fsync como mucho una vez por segundo en el hilo del AOF
+    NO("no");               // nunca; lo decide el sistema operativo
+
+    private final String name;
+
+    AppendFsync(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public static AppendFsync fromName(String name) {
+        for (AppendFsync policy : values()) {
+            if (policy.name.equalsIgnoreCase(name)) return policy;
+        }
+        throw new IllegalArgumentException("appendfsync inválido: " + name);
+    }
+}
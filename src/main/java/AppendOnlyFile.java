@@ -0,0 +1,520 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fichero de solo añadido (AOF): las escrituras se guardan como comandos RESP y se
+ * vuelven a ejecutar al arrancar.
+ *
+ * Los registros llegan ya codificados desde CommandLog y solo se copian a un buffer en
+ * memoria; un hilo dedicado lo intercambia por otro vacío, lo escribe entero con una sola
+ * llamada y hace el fsync según appendfsync (group commit). Con always cada cliente espera a que el fsync cubra
+ * su registro, pero todos los que llegaron mientras tanto comparten el mismo; con
+ * everysec el fsync se hace en el hilo del AOF y nunca bloquea a los clientes.
+ *
+ * La posición en el flujo (bytes añadidos desde que se abrió) identifica cada registro:
+ * sirve para esperar al fsync y para saber qué hay que copiar al final de una
+ * reescritura. BGREWRITEAOF escribe una foto del almacén en un fichero nuevo; lo que se
+ * añade mientras tanto se va guardando también en memoria, se copia al final del nuevo
+ * y este sustituye al antiguo con un rename atómico
+ */
+public class AppendOnlyFile implements Closeable {
+
+    private static final long EVERYSEC_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int READ_BUFFER_SIZE = 256 * 1024;
+    // elementos por comando al reescribir una colección (AOF_REWRITE_ITEMS_PER_CMD)
+    private static final int REWRITE_ITEMS_PER_COMMAND = 64;
+    // comando con el que se recrea cada tipo de colección, por Entries.TYPE_*
+    private static final String[] REWRITE_COMMANDS = {null, "RPUSH", "SADD", "HSET", "ZADD"};
+    // hilos que esperan el fsync por lotes (ver deferSyncs): mayor posición pendiente
+    private static final ThreadLocal<long[]> DEFERRED_SYNC = new ThreadLocal<>();
+
+    private final Path path;
+    private final AppendFsync fsync;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition dataAvailable = lock.newCondition();
+    private final Condition progress = lock.newCondition();
+    private final Thread writer;
+
+    // protegidos por lock
+    private RespWriter pending = new RespWriter();
+    private long appendedOffset;
+    private long swappedOffset;         // posición en la que empieza pending
+    private long syncedOffset;
+    private long rewriteFrom = -1;      // posición donde empezó la reescritura en curso
+    private Path rewriteTemp;           // reescritura lista para sustituir al fichero
+    private IOException rewriteError;
+    private boolean closed;
+
+    // solo los toca el hilo del AOF
+    private FileChannel channel;
+    private RespWriter writing = new RespWriter();
+    private long writtenOffset;
+    private long lastFsyncNanos = System.nanoTime();
+    private final ByteArrayOutputStream rewriteBuffer = new ByteArrayOutputStream();
+    private long teeFrom = -1;          // reescritura a la que pertenece rewriteBuffer
+
+    public AppendOnlyFile(Path path, AppendFsync fsync) throws IOException {
+        this.path = path;
+        this.fsync = fsync;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        this.writer = new Thread(this::runWriter, "aof-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public AppendFsync getFsync() {
+        return fsync;
+    }
+
+    /**
+     * Añade un registro ya codificado (ver CommandLog)
+     *
+     * @return posición del final del registro, para awaitSync
+     */
+    public long appendRecord(ByteBuffer record) {
+        lock.lock();
+        try {
+            pending.writeRaw(record);
+            return endRecord();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * El hilo que llama no espera al fsync en cada awaitSync: solo anota la posición y
+     * espera una vez con awaitDeferred antes de enviar las respuestas del lote. Lo usan
+     * los bucles de eventos, que si no bloquearían a todas sus conexiones por cada escritura
+     */
+    public static void deferSyncs() {
+        DEFERRED_SYNC.set(new long[1]);
+    }
+
+    /**
+     * Con appendfsync always espera a que el registro que acaba en offset esté en disco;
+     * con las otras políticas vuelve enseguida. Debe llamarse sin locks del Keyspace
+     * para que otras escrituras se sumen al mismo fsync
+     */
+    public void awaitSync(long offset) throws IOException {
+        if (fsync != AppendFsync.ALWAYS) {
+            return;
+        }
+        long[] deferred = DEFERRED_SYNC.get();
+        if (deferred != null) {
+            deferred[0] = Math.max(deferred[0], offset);
+            return;
+        }
+        waitSynced(offset);
+    }
+
+    /**
+     * Espera al fsync de todo lo anotado por este hilo desde deferSyncs
+     */
+    public void awaitDeferred() throws IOException {
+        long[] deferred = DEFERRED_SYNC.get();
+        if (deferred != null && deferred[0] > 0) {
+            long offset = deferred[0];
+            deferred[0] = 0;
+            waitSynced(offset);
+        }
+    }
+
+    private void waitSynced(long offset) throws IOException {
+        lock.lock();
+        try {
+            while (syncedOffset < offset) {
+                if (closed) {
+                    throw new IOException("AOF cerrado");
+                }
+                progress.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Empieza a guardar aparte lo que se añade desde ahora. Se llama con todo el
+     * Keyspace bloqueado, en el mismo instante en que empieza la foto de la reescritura
+     */
+    public void startRewrite() {
+        lock.lock();
+        try {
+            rewriteFrom = appendedOffset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * BGREWRITEAOF: escribe la foto como comandos en un fichero nuevo y lo pone en lugar
+     * del actual, con lo añadido durante la reescritura al final
+     *
+     * @return comandos escritos desde la foto
+     */
+    public long rewrite(Snapshot snapshot) throws IOException {
+        Path temp = path.resolveSibling("temp-rewriteaof-" + ProcessHandle.current().pid() + ".aof");
+        long count;
+        try {
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                RespWriter buffer = new RespWriter();
+                count = snapshot.visit((entry, access) -> {
+                    writeEntryCommands(entry, null, buffer);
+                    if (buffer.isFull()) {
+                        drain(buffer, out);
+                    }
+                });
+                drain(buffer, out);
+                out.force(true);
+            }
+        } catch (IOException | RuntimeException e) {
+            cancelRewrite();
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+
+        // el hilo del AOF copia lo acumulado y hace el cambio entre dos escrituras
+        lock.lock();
+        try {
+            rewriteTemp = temp;
+            dataAvailable.signal();
+            while (rewriteTemp != null && !closed) {
+                progress.awaitUninterruptibly();
+            }
+            if (rewriteError != null) {
+                IOException error = rewriteError;
+                rewriteError = null;
+                throw error;
+            }
+        } finally {
+            lock.unlock();
+        }
+        return count;
+    }
+
+    /**
+     * Reejecuta los comandos del fichero. Si el final está truncado (caída a mitad de
+     * una escritura) lo recorta hasta el último comando completo, como aof-load-truncated
+     *
+     * @return comandos ejecutados
+     */
+    public static long replay(Path path, CommandSink sink) throws IOException {
+        long commands = 0;
+        long validEnd = 0;
+        long fileSize;
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            fileSize = in.size();
+            RespParser parser = new RespParser();
+            CommandArgs args = new CommandArgs();
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            long bufferStart = 0;   // posición en el fichero del byte 0 del buffer
+            while (in.read(buffer) >= 0) {
+                buffer.flip();
+                while (parser.parse(buffer, args)) {
+                    validEnd = bufferStart + buffer.position();
+                    sink.accept(args);
+                    commands++;
+                }
+                bufferStart += buffer.position();
+                buffer = parser.compact(buffer);
+            }
+        }
+        if (validEnd < fileSize) {
+            Log.warning("AOF truncado: se descartan " + (fileSize - validEnd) + " bytes finales de " + path);
+            try (FileChannel out = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                out.truncate(validEnd);
+            }
+        }
+        return commands;
+    }
+
+    /**
+     * Vacía lo pendiente a disco y para el hilo del AOF
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            dataAvailable.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    private long endRecord() {
+        appendedOffset = swappedOffset + pending.pending();
+        dataAvailable.signal();
+        return appendedOffset;
+    }
+
+    private void cancelRewrite() {
+        lock.lock();
+        try {
+            rewriteFrom = -1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void runWriter() {
+        while (true) {
+            Path switchTo;
+            long batchEnd;
+            long teeFrom;
+            boolean finished;
+            lock.lock();
+            try {
+                while (pending.pending() == 0 && rewriteTemp == null && !closed) {
+                    if (fsync == AppendFsync.EVERYSEC && writtenOffset > syncedOffset) {
+                        long wait = EVERYSEC_NANOS - (System.nanoTime() - lastFsyncNanos);
+                        if (wait <= 0 || dataAvailable.awaitNanos(wait) <= 0) {
+                            break;
+                        }
+                    } else {
+                        dataAvailable.awaitUninterruptibly();
+                    }
+                }
+                RespWriter full = pending;
+                pending = writing;
+                writing = full;
+                swappedOffset = appendedOffset;
+                batchEnd = appendedOffset;
+                teeFrom = rewriteFrom;
+                switchTo = rewriteTemp;
+                finished = closed && writing.pending() == 0;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                writeBatch(batchEnd, teeFrom);
+                syncIfDue(finished);
+                if (switchTo != null) {
+                    switchFile(switchTo);
+                }
+            } catch (IOException e) {
+                Log.warning("Error escribiendo el AOF: " + e.getMessage());
+                if (switchTo != null) {
+                    finishSwitch(e);
+                }
+            }
+            if (finished) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Escribe el lote intercambiado y, si hay una reescritura en curso, guarda
+     * también en memoria la parte posterior a su inicio
+     */
+    private void writeBatch(long batchEnd, long teeFrom) throws IOException {
+        ByteBuffer batch = writing.pendingBuffer();
+        long batchStart = batchEnd - batch.remaining();
+        if (teeFrom != this.teeFrom) {
+            // empezó otra reescritura (o se canceló la anterior)
+            rewriteBuffer.reset();
+            this.teeFrom = teeFrom;
+        }
+        if (teeFrom >= 0 && batchEnd > teeFrom) {
+            int skip = (int) Math.max(0, teeFrom - batchStart);
+            ByteBuffer tee = batch.duplicate();
+            tee.position(tee.position() + skip);
+            byte[] copy = new byte[tee.remaining()];
+            tee.get(copy);
+            rewriteBuffer.write(copy, 0, copy.length);
+        }
+        while (batch.hasRemaining()) {
+            channel.write(batch);
+        }
+        writing.clear();
+        writtenOffset = batchEnd;
+    }
+
+    private void syncIfDue(boolean finished) throws IOException {
+        long now = System.nanoTime();
+        boolean due;
+        switch (fsync) {
+            case ALWAYS:
+                due = writtenOffset > syncedOffset();
+                break;
+            case EVERYSEC:
+                due = writtenOffset > syncedOffset() && (finished || now - lastFsyncNanos >= EVERYSEC_NANOS);
+                break;
+            default:
+                due = false;
+                break;
+        }
+        if (due) {
+            channel.force(false);
+            lastFsyncNanos = now;
+        }
+        if (due || fsync == AppendFsync.NO) {
+            lock.lock();
+            try {
+                syncedOffset = writtenOffset;
+                progress.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private long syncedOffset() {
+        lock.lock();
+        try {
+            return syncedOffset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Termina la reescritura: añade lo acumulado al fichero nuevo y lo pone en lugar
+     * del antiguo. Todo lo añadido hasta aquí ya está en uno de los dos
+     */
+    private void switchFile(Path temp) throws IOException {
+        FileChannel rewritten = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        try {
+            ByteBuffer tail = ByteBuffer.wrap(rewriteBuffer.toByteArray());
+            while (tail.hasRemaining()) {
+                rewritten.write(tail);
+            }
+            rewritten.force(true);
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            rewritten.close();
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        channel.close();
+        channel = rewritten;
+        finishSwitch(null);
+    }
+
+    private void finishSwitch(IOException error) {
+        rewriteBuffer.reset();
+        lock.lock();
+        try {
+            rewriteFrom = -1;
+            rewriteTemp = null;
+            rewriteError = error;
+            progress.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Comandos que recrean una entrada de la foto: SET con su plazo absoluto para los
+     * strings; RPUSH, SADD, HSET o ZADD de hasta REWRITE_ITEMS_PER_COMMAND elementos para
+     * las colecciones, seguidos de PEXPIREAT si tienen TTL. También los usa MIGRATE para
+     * llevar las claves a otro nodo
+     *
+     * @param prefix comando ya codificado que va delante de cada uno (ASKING) o null
+     * @return comandos escritos, sin contar los prefijos
+     */
+    static int writeEntryCommands(byte[] entry, byte[] prefix, RespWriter out) {
+        long expireAt = Entries.expireAt(entry);
+        int type = Entries.type(entry);
+        if (type == Entries.TYPE_STRING) {
+            writePrefix(prefix, out);
+            out.writeArrayHeader(expireAt >= 0 ? 5 : 3);
+            out.writeBulk("SET");
+            writeKey(entry, out);
+            Entries.writeValue(entry, out);
+            if (expireAt >= 0) {
+                out.writeBulk("PXAT");
+                out.writeBulk(expireAt);
+            }
+            return 1;
+        }
+        String command = REWRITE_COMMANDS[type];
+        int perItem = type == Entries.TYPE_HASH || type == Entries.TYPE_ZSET ? 2 : 1;
+        int base = Entries.valueOffset(entry);
+        int remaining = Listpack.count(entry, base);
+        int p = Listpack.first(base);
+        int commands = 0;
+        while (remaining > 0) {
+            int elements = Math.min(remaining, REWRITE_ITEMS_PER_COMMAND * perItem);
+            writePrefix(prefix, out);
+            out.writeArrayHeader(2 + elements);
+            out.writeBulk(command);
+            writeKey(entry, out);
+            if (type == Entries.TYPE_ZSET) {
+                // en el listpack va miembro-score y ZADD los quiere al revés
+                for (int i = 0; i < elements; i += 2) {
+                    int score = Listpack.next(entry, p);
+                    Listpack.write(entry, score, out);
+                    Listpack.write(entry, p, out);
+                    p = Listpack.next(entry, score);
+                }
+            } else {
+                for (int i = 0; i < elements; i++, p = Listpack.next(entry, p)) {
+                    Listpack.write(entry, p, out);
+                }
+            }
+            remaining -= elements;
+            commands++;
+        }
+        if (expireAt >= 0) {
+            writePrefix(prefix, out);
+            out.writeArrayHeader(3);
+            out.writeBulk("PEXPIREAT");
+            writeKey(entry, out);
+            out.writeBulk(expireAt);
+            commands++;
+        }
+        return commands;
+    }
+
+    private static void writePrefix(byte[] prefix, RespWriter out) {
+        if (prefix != null) {
+            out.writeRaw(prefix);
+        }
+    }
+
+    private static void writeKey(byte[] entry, RespWriter out) {
+        out.writeBulk(entry, Entries.keyOffset(entry), Entries.keyLength(entry));
+    }
+
+    private static void drain(RespWriter buffer, FileChannel out) throws IOException {
+        while (!buffer.writeTo(out)) {
+            // FileChannel escribe todo de una vez salvo error; se insiste por si acaso
+        }
+    }
+
+    /**
+     * Destino de los comandos al reejecutar el fichero
+     */
+    @FunctionalInterface
+    public interface CommandSink {
+        void accept(CommandArgs args) throws IOException;
+    }
+}
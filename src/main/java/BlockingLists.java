@@ -0,0 +1,406 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Comandos bloqueantes de listas: BLPOP, BRPOP y BLMOVE.
+ *
+ * Si las listas están vacías el comando no ocupa ningún hilo: deja una espera (Waiter)
+ * apuntada en cada una de sus claves y la conexión se queda sin procesar más comandos
+ * hasta que la espera tiene respuesta (ver Client.block). Los comandos que añaden a una
+ * lista (envueltos en servingWaiters) atienden después las esperas de esa clave, por orden
+ * de llegada y sin mirar las de otras claves; dentro de EXEC, cuando termina la
+ * transacción (ver Transaction). El plazo de todas lo vigila un único hilo
+ * temporizador. La respuesta llega a la conexión por el aviso de su Client: en NIO el
+ * bucle de eventos la retoma y en los modos bloqueantes se despierta su hilo. Ese hilo
+ * no lee del socket mientras duerme, así que allí un cierre del cliente solo se nota al
+ * responderle; en NIO la espera se cancela en cuanto se cierra.
+ *
+ * Lo que se saca para una espera se registra como LPOP / RPOP / LMOVE, igual que en Redis,
+ * así que las réplicas y el AOF nunca ven un comando bloqueante.
+ *
+ * Orden de locks: primero los shards de las claves (lockKeys) y después el de las esperas;
+ * el temporizador y los cierres de conexión solo toman el segundo
+ */
+public class BlockingLists {
+
+    private static final byte[] LPOP = "LPOP".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] RPOP = "RPOP".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LMOVE = "LMOVE".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LEFT = "LEFT".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] RIGHT = "RIGHT".getBytes(StandardCharsets.US_ASCII);
+
+    private final Keyspace keyspace;
+    private final CommandLog log;
+    private final ReentrantLock lock = new ReentrantLock();
+    // esperas de cada clave en orden de llegada; protegido por lock
+    private final Map<Bytes, LinkedHashSet<Waiter>> waiters = new HashMap<>();
+    // esperas apuntadas; se lee sin lock para no tocar nada cuando no hay ninguna
+    private volatile int blocked;
+    private final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "blocking-timeouts");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public BlockingLists(Keyspace keyspace, CommandLog log) {
+        this.keyspace = keyspace;
+        this.log = log;
+        // los plazos cancelados (la espera se atendió antes) salen de la cola enseguida
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Espera de una conexión bloqueada en una o varias claves
+     */
+    public static final class Waiter {
+        private final BlockingLists owner;
+        private final Client client;
+        private final Bytes[] keys;
+        private final boolean fromHead;
+        // lista en la que se deja el elemento (BLMOVE) o null
+        private final byte[] destination;
+        private final boolean toHead;
+        // protegidos por el lock de owner
+        private boolean done;
+        private ScheduledFuture<?> timeout;
+        // respuesta ya codificada; null mientras espera
+        private volatile byte[] reply;
+
+        private Waiter(BlockingLists owner, Client client, Bytes[] keys, boolean fromHead, byte[] destination,
+                       boolean toHead) {
+            this.owner = owner;
+            this.client = client;
+            this.keys = keys;
+            this.fromHead = fromHead;
+            this.destination = destination;
+            this.toHead = toHead;
+        }
+
+        /**
+         * @return la respuesta o null si aún no la tiene
+         */
+        public byte[] getReply() {
+            return reply;
+        }
+
+        /**
+         * La conexión se ha cerrado: deja de esperar sin responder
+         */
+        public void cancel() {
+            owner.take(this);
+        }
+
+        private void complete(byte[] reply) {
+            this.reply = reply;
+            client.wake();
+        }
+    }
+
+    /**
+     * Comandos BLPOP / BRPOP - BLPOP key [key ...] timeout. Responde con la clave y el
+     * elemento, o con un array nulo si vence el plazo (0 espera indefinidamente)
+     *
+     * @param head true para BLPOP
+     */
+    public ClientCommand createBlockingPopCommand(boolean head) {
+        return (client, args, out) -> {
+            int last = args.count() - 2;
+            long timeoutMillis = parseTimeout(args, args.count() - 1);
+            byte[] key = null;
+            byte[] element = null;
+            long offset = 0;
+            try (Keyspace.KeyLock lock = keyspace.lockKeys(args, 1, last, 1)) {
+                for (int i = 1; i <= last && element == null; i++) {
+                    List<byte[]> popped = keyspace.pop(args, i, 1, head);
+                    if (popped != null && !popped.isEmpty()) {
+                        key = args.toBytes(i);
+                        element = popped.get(0);
+                        offset = log.append(CommandArgs.of(head ? LPOP : RPOP, key));
+                    }
+                }
+                if (element == null && canBlock(client)) {
+                    Bytes[] keys = new Bytes[last];
+                    for (int i = 1; i <= last; i++) {
+                        keys[i - 1] = new Bytes(args.toBytes(i));
+                    }
+                    register(new Waiter(this, client, keys, head, null, false), timeoutMillis);
+                    return;
+                }
+            }
+            log.awaitSync(offset);
+            if (element == null) {
+                out.writeRaw(RespWriter.NULL_ARRAY);
+            } else {
+                writePopReply(out, key, element);
+            }
+        };
+    }
+
+    /**
+     * Comando BLMOVE source destination LEFT|RIGHT LEFT|RIGHT timeout - LMOVE que espera
+     * a que haya algo en source; responde con el elemento o null si vence el plazo
+     */
+    public ClientCommand createBlmoveCommand() {
+        return (client, args, out) -> {
+            boolean fromHead = RedisCommands.parseSide(args, 3);
+            boolean toHead = RedisCommands.parseSide(args, 4);
+            long timeoutMillis = parseTimeout(args, 5);
+            byte[] element;
+            long offset = 0;
+            try (Keyspace.KeyLock lock = keyspace.lockKeys(args, 1, 2, 1)) {
+                element = keyspace.move(args, 1, 2, fromHead, toHead);
+                if (element != null) {
+                    offset = log.append(CommandArgs.of(LMOVE, args.toBytes(1), args.toBytes(2),
+                            side(fromHead), side(toHead)));
+                } else if (canBlock(client)) {
+                    Bytes[] keys = {new Bytes(args.toBytes(1))};
+                    register(new Waiter(this, client, keys, fromHead, args.toBytes(2), toHead), timeoutMillis);
+                    return;
+                }
+            }
+            log.awaitSync(offset);
+            if (element == null) {
+                out.writeNullBulk();
+            } else {
+                out.writeBulk(element);
+                if (blocked > 0) {
+                    serveAfter(client, args.toBytes(2));
+                }
+            }
+        };
+    }
+
+    /**
+     * Envuelve un comando que añade elementos a la lista del argumento keyIndex para que,
+     * después, atienda a quien espera en ella
+     */
+    public ClientCommand servingWaiters(ClientCommand command, int keyIndex) {
+        return (client, args, out) -> {
+            command.execute(client, args, out);
+            if (blocked > 0) {
+                serveAfter(client, args.toBytes(keyIndex));
+            }
+        };
+    }
+
+    /**
+     * Atiende las esperas de las listas a las que añadió elementos una transacción
+     */
+    public void serve(List<byte[]> keys) throws IOException {
+        for (byte[] key : keys) {
+            serve(key);
+        }
+    }
+
+    /**
+     * Conexiones bloqueadas ahora mismo (blocked_clients en INFO)
+     */
+    public int blockedCount() {
+        return blocked;
+    }
+
+    /**
+     * Apunta la espera en sus claves y programa su plazo. Se llama con los shards de las
+     * claves bloqueados, así que nadie puede añadir a esas listas entre la comprobación
+     * de que están vacías y el registro
+     */
+    private void register(Waiter waiter, long timeoutMillis) {
+        lock.lock();
+        try {
+            for (Bytes key : waiter.keys) {
+                waiters.computeIfAbsent(key, k -> new LinkedHashSet<>()).add(waiter);
+            }
+            blocked++;
+            if (timeoutMillis > 0) {
+                waiter.timeout = timer.schedule(() -> expire(waiter), timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+        waiter.client.block(waiter);
+    }
+
+    /**
+     * Tras un comando que añade a la lista: dentro de EXEC solo se anota la clave, para
+     * atenderla cuando termine la transacción
+     */
+    private void serveAfter(Client client, byte[] key) throws IOException {
+        Transaction.State transaction = client.peekTransaction();
+        if (transaction != null && transaction.isExecuting()) {
+            transaction.addReadyKey(key);
+        } else {
+            serve(key);
+        }
+    }
+
+    /**
+     * Atiende por orden a quien espera en la clave mientras la lista tenga elementos.
+     * Un BLMOVE atendido añade a otra lista, cuyas esperas se atienden a continuación
+     */
+    private void serve(byte[] key) throws IOException {
+        Deque<byte[]> ready = new ArrayDeque<>();
+        ready.add(key);
+        byte[] next;
+        while ((next = ready.poll()) != null) {
+            serveKey(next, ready);
+        }
+    }
+
+    private void serveKey(byte[] key, Deque<byte[]> ready) throws IOException {
+        Bytes name = new Bytes(key);
+        while (true) {
+            Waiter waiter = first(name);
+            if (waiter == null) {
+                return;
+            }
+            CommandArgs keys = waiter.destination == null
+                    ? CommandArgs.of(key) : CommandArgs.of(key, waiter.destination);
+            byte[] reply;
+            long offset = 0;
+            try (Keyspace.KeyLock lock = keyspace.lockKeys(keys, 0, keys.count() - 1, 1)) {
+                try {
+                    if (keyspace.llen(keys, 0) == 0) {
+                        return;
+                    }
+                } catch (CommandException e) {
+                    // la clave ya no es una lista: las esperas siguen hasta su plazo, como en Redis
+                    return;
+                }
+                if (!take(waiter)) {
+                    // venció o se cerró mientras tanto: se pasa a la siguiente
+                    continue;
+                }
+                RespWriter encoded = new RespWriter();
+                try {
+                    if (waiter.destination == null) {
+                        byte[] element = keyspace.pop(keys, 0, 1, waiter.fromHead).get(0);
+                        offset = log.append(CommandArgs.of(waiter.fromHead ? LPOP : RPOP, key));
+                        writePopReply(encoded, key, element);
+                    } else {
+                        byte[] element = keyspace.move(keys, 0, 1, waiter.fromHead, waiter.toHead);
+                        offset = log.append(CommandArgs.of(LMOVE, key, waiter.destination,
+                                side(waiter.fromHead), side(waiter.toHead)));
+                        encoded.writeBulk(element);
+                        ready.add(waiter.destination);
+                    }
+                } catch (CommandException e) {
+                    // BLMOVE con un destino que no es una lista
+                    encoded.writeError(e);
+                }
+                reply = encoded.toByteArray();
+            }
+            log.awaitSync(offset);
+            waiter.complete(reply);
+        }
+    }
+
+    /**
+     * @return la espera más antigua de la clave o null si no hay ninguna
+     */
+    private Waiter first(Bytes key) {
+        if (blocked == 0) {
+            return null;
+        }
+        lock.lock();
+        try {
+            LinkedHashSet<Waiter> queue = waiters.get(key);
+            return queue == null ? null : queue.iterator().next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Vence el plazo de una espera (hilo temporizador)
+     */
+    private void expire(Waiter waiter) {
+        if (take(waiter)) {
+            waiter.complete(waiter.destination == null ? RespWriter.NULL_ARRAY : RespWriter.NULL_BULK);
+        }
+    }
+
+    /**
+     * Se queda con la espera para atenderla, vencerla o cancelarla
+     *
+     * @return false si otro ya la había terminado
+     */
+    private boolean take(Waiter waiter) {
+        lock.lock();
+        try {
+            if (waiter.done) {
+                return false;
+            }
+            unregister(waiter);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Quita la espera de todas sus claves; con lock tomado
+     */
+    private void unregister(Waiter waiter) {
+        waiter.done = true;
+        for (Bytes key : waiter.keys) {
+            LinkedHashSet<Waiter> queue = waiters.get(key);
+            if (queue != null && queue.remove(waiter) && queue.isEmpty()) {
+                waiters.remove(key);
+            }
+        }
+        blocked--;
+        if (waiter.timeout != null) {
+            waiter.timeout.cancel(false);
+        }
+    }
+
+    /**
+     * Dentro de EXEC, o en las conexiones internas, los comandos bloqueantes responden
+     * enseguida como si hubiera vencido el plazo
+     */
+    private static boolean canBlock(Client client) {
+        Transaction.State transaction = client.peekTransaction();
+        return !client.isInternal() && (transaction == null || !transaction.isExecuting());
+    }
+
+    /**
+     * Plazo en segundos, con decimales; 0 sin límite
+     *
+     * @return milisegundos, 0 sin límite
+     */
+    private static long parseTimeout(CommandArgs args, int i) {
+        double seconds;
+        try {
+            seconds = Double.parseDouble(args.toString(i));
+        } catch (NumberFormatException e) {
+            throw new CommandException("timeout is not a float or out of range");
+        }
+        if (Double.isNaN(seconds) || Double.isInfinite(seconds)) {
+            throw new CommandException("timeout is not a float or out of range");
+        }
+        if (seconds < 0) {
+            throw new CommandException("timeout is negative");
+        }
+        return seconds == 0 ? 0 : Math.max(1, (long) Math.ceil(seconds * 1000));
+    }
+
+    private static void writePopReply(RespWriter out, byte[] key, byte[] element) {
+        out.writeArrayHeader(2);
+        out.writeBulk(key);
+        out.writeBulk(element);
+    }
+
+    private static byte[] side(boolean head) {
+        return head ? LEFT : RIGHT;
+    }
+}
@@ -0,0 +1,33 @@
+import java.util.Arrays;
+
+/**
+ * byte[] con igualdad y hash por contenido, para usarlo de clave en las colecciones grandes
+ */
+public final class Bytes {
+
+    private final byte[] data;
+    private final int hash;
+
+    public Bytes(byte[] data) {
+        this.data = data;
+        this.hash = KeyTable.hash(data, 0, data.length);
+    }
+
+    public static Bytes copyOf(byte[] buffer, int offset, int length) {
+        return new Bytes(Arrays.copyOfRange(buffer, offset, offset + length));
+    }
+
+    public byte[] data() {
+        return data;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof Bytes && Arrays.equals(data, ((Bytes) other).data);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
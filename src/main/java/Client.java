@@ -0,0 +1,251 @@
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Estado de una conexión que algunos comandos necesitan además de sus argumentos
+ * (ver ClientCommand): de dónde viene, si es interna, lo que anunció con REPLCONF, el
+ * traspaso de su socket cuando PSYNC la convierte en el enlace con una réplica, sus
+ * suscripciones de pub/sub, su transacción, la espera de un comando bloqueante y el
+ * ASKING de cluster.
+ *
+ * El servidor crea uno por conexión y solo lo toca el hilo que la atiende; la excepción
+ * es la cola de salida, en la que PUBLISH encola desde cualquier hilo (ver Outbox), y la
+ * respuesta de una espera, que llega desde quien la atiende (ver BlockingLists)
+ */
+public class Client {
+
+    private final String ip;
+    private final int port;
+    private final boolean internal;
+    // puerto en el que escucha la réplica (REPLCONF listening-port), 0 si no lo dijo
+    private int listeningPort;
+    private Consumer<Socket> handoff;
+    // canales y patrones suscritos, null hasta la primera suscripción
+    private Set<Bytes> channels;
+    private Set<Bytes> patterns;
+    private volatile Outbox outbox;
+    private volatile Runnable wakeup;
+    private Runnable onClose;
+    // null hasta el primer MULTI o WATCH
+    private Transaction.State transaction;
+    // espera de BLPOP / BRPOP / BLMOVE en curso o null
+    private BlockingLists.Waiter blocked;
+    // ASKING: el siguiente comando puede usar un slot que se está importando
+    private boolean asking;
+
+    public Client(SocketAddress remote) {
+        InetSocketAddress address = (InetSocketAddress) remote;
+        this.ip = address.getAddress().getHostAddress();
+        this.port = address.getPort();
+        this.internal = false;
+    }
+
+    private Client(String name) {
+        this.ip = name;
+        this.port = 0;
+        this.internal = true;
+    }
+
+    /**
+     * Conexión interna: el maestro en una réplica o la carga del AOF. Sus escrituras
+     * se aplican siempre, sin maxmemory ni el modo de solo lectura de las réplicas
+     */
+    public static Client internal(String name) {
+        return new Client(name);
+    }
+
+    public String getIp() {
+        return ip;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public boolean isInternal() {
+        return internal;
+    }
+
+    public int getListeningPort() {
+        return listeningPort;
+    }
+
+    public void setListeningPort(int listeningPort) {
+        this.listeningPort = listeningPort;
+    }
+
+    /**
+     * Pide que, al acabar el comando en curso, la conexión deje de atenderse como
+     * cliente: se envían las respuestas pendientes y el socket pasa a target, que
+     * se encarga ya de él (y de cerrarlo)
+     */
+    public void handOff(Consumer<Socket> target) {
+        this.handoff = target;
+    }
+
+    public boolean isHandedOff() {
+        return handoff != null;
+    }
+
+    public Consumer<Socket> getHandoff() {
+        return handoff;
+    }
+
+    public Set<Bytes> getChannels() {
+        if (channels == null) {
+            channels = new HashSet<>();
+        }
+        return channels;
+    }
+
+    public Set<Bytes> getPatterns() {
+        if (patterns == null) {
+            patterns = new HashSet<>();
+        }
+        return patterns;
+    }
+
+    /**
+     * Canales más patrones suscritos, el número que devuelven SUBSCRIBE y UNSUBSCRIBE
+     */
+    public int subscriptionCount() {
+        return (channels != null ? channels.size() : 0) + (patterns != null ? patterns.size() : 0);
+    }
+
+    public boolean isSubscribed() {
+        return subscriptionCount() > 0;
+    }
+
+    /**
+     * Estado de MULTI / WATCH de la conexión; se crea la primera vez que se pide
+     */
+    public Transaction.State getTransaction() {
+        if (transaction == null) {
+            transaction = new Transaction.State();
+        }
+        return transaction;
+    }
+
+    /**
+     * @return el estado de la transacción o null si la conexión nunca la ha usado
+     */
+    public Transaction.State peekTransaction() {
+        return transaction;
+    }
+
+    public void setAsking() {
+        this.asking = true;
+    }
+
+    /**
+     * ASKING solo vale para el comando siguiente: lo consulta y lo borra (ver Cluster.redirect)
+     */
+    public boolean takeAsking() {
+        boolean value = asking;
+        asking = false;
+        return value;
+    }
+
+    /**
+     * Cómo despertar al hilo que atiende la conexión cuando alguien le encola salida o
+     * responde a su espera. El bucle de eventos lo fija al registrar la conexión; en los
+     * modos bloqueantes lo pone el hilo del cliente
+     */
+    public void setWakeup(Runnable wakeup) {
+        this.wakeup = wakeup;
+    }
+
+    /**
+     * Avisa al hilo que atiende la conexión (ver setWakeup)
+     */
+    public void wake() {
+        Runnable target = wakeup;
+        if (target != null) {
+            target.run();
+        }
+    }
+
+    /**
+     * El comando en curso se queda esperando: hasta que la espera tenga respuesta no se
+     * ejecutan más comandos de la conexión
+     */
+    public void block(BlockingLists.Waiter waiter) {
+        this.blocked = waiter;
+    }
+
+    public boolean isBlocked() {
+        return blocked != null;
+    }
+
+    /**
+     * @return true si la espera en curso ya tiene respuesta (sin consumirla)
+     */
+    public boolean hasReply() {
+        return blocked.getReply() != null;
+    }
+
+    /**
+     * Si la espera ya tiene respuesta la escribe en out y la conexión sigue con sus comandos
+     *
+     * @return false si sigue bloqueada
+     */
+    public boolean unblock(RespWriter out) {
+        byte[] reply = blocked.getReply();
+        if (reply == null) {
+            return false;
+        }
+        out.writeRaw(reply);
+        blocked = null;
+        return true;
+    }
+
+    /**
+     * Cola de salida; una vez creada, todas las respuestas de la conexión pasan por ella
+     * para que lleguen en orden con los mensajes publicados
+     *
+     * @return la cola o null si la conexión nunca se ha suscrito
+     */
+    public Outbox getOutbox() {
+        return outbox;
+    }
+
+    public Outbox openOutbox(long hardLimit, long softLimit, long softSeconds) {
+        if (outbox == null) {
+            Outbox created = new Outbox(hardLimit, softLimit, softSeconds);
+            created.setWakeup(wakeup);
+            outbox = created;
+        }
+        return outbox;
+    }
+
+    /**
+     * Acción al cerrar la conexión (quitar sus suscripciones)
+     */
+    public void onClose(Runnable action) {
+        this.onClose = action;
+    }
+
+    /**
+     * Lo llama quien atiende la conexión cuando esta se cierra
+     */
+    public void close() {
+        if (blocked != null) {
+            blocked.cancel();
+        }
+        if (onClose != null) {
+            onClose.run();
+        }
+        if (outbox != null) {
+            outbox.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return internal ? ip : ip + ":" + port;
+    }
+}
@@ -0,0 +1,18 @@
+import java.io.IOException;
+
+/**
+ * Comando que necesita el estado de la conexión que lo envía (ver Client). Es lo que
+ * ejecuta el servidor: los RedisCommand se registran adaptados con of
+ */
+@FunctionalInterface
+public interface ClientCommand {
+
+    void execute(Client client, CommandArgs args, RespWriter out) throws IOException;
+
+    /**
+     * Adapta un comando que no usa la conexión
+     */
+    static ClientCommand of(RedisCommand command) {
+        return (client, args, out) -> command.execute(args, out);
+    }
+}
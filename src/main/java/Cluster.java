@@ -0,0 +1,952 @@
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Modo cluster (opcional, --cluster-enabled): el espacio de claves se reparte en 16384
+ * hash slots por el CRC16 de la clave o de su hash tag ({...}), y cada slot es de un nodo.
+ *
+ * Antes de ejecutar un comando con claves el servidor pregunta a redirect(): si el slot es
+ * de otro nodo responde MOVED; si es nuestro pero se está migrando y faltan las claves,
+ * ASK hacia el destino, que solo lo atiende tras ASKING. Dónde lleva cada comando sus
+ * claves está en KEY_SPECS.
+ *
+ * La configuración se propaga con un gossip mínimo: cada segundo cada nodo envía a los que
+ * conoce, por su puerto normal, CLUSTER GOSSIP con sus slots, su época de configuración y
+ * las direcciones de los nodos que conoce (así basta un CLUSTER MEET para entrar).
+ * Un slot cambia de dueño si quien lo reclama trae una época mayor que la del dueño que
+ * teníamos, así que el nodo que termina de importar un slot sube la suya (SETSLOT NODE).
+ * Los nodos se identifican por su dirección (el id es su SHA-1), de modo que todos los que
+ * arrancan con la misma --cluster-nodes parten del mismo reparto sin negociar nada.
+ * Cada cambio se guarda en el fichero de configuración (nodes.conf, con el formato de
+ * CLUSTER NODES), que manda sobre --cluster-nodes al volver a arrancar.
+ *
+ * La tabla de slots se lee sin lock en cada comando; los cambios van bajo configLock
+ */
+public class Cluster {
+
+    public static final int SLOTS = 16384;
+    private static final long GOSSIP_PERIOD_MILLIS = 1000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    private static final int READ_TIMEOUT_MILLIS = 2000;
+    // sin noticias de un nodo en este tiempo se le da por caído (cluster-node-timeout)
+    private static final long NODE_TIMEOUT_MILLIS = 15_000;
+    private static final String DISABLED = "This instance has cluster support disabled";
+    private static final String CROSSSLOT = "Keys in request don't hash to the same slot";
+    private static final String TRYAGAIN = "Multiple keys request during rehashing of slot";
+    private static final CommandTable<KeySpec> KEY_SPECS = new CommandTable<>(keySpecs());
+
+    private final Keyspace keyspace;
+    private final boolean enabled;
+    private final Node myself;
+    private final List<Node> nodes = new CopyOnWriteArrayList<>();
+    private final AtomicReferenceArray<Node> owners = new AtomicReferenceArray<>(SLOTS);
+    private final AtomicReferenceArray<Node> migrating = new AtomicReferenceArray<>(SLOTS);
+    private final AtomicReferenceArray<Node> importing = new AtomicReferenceArray<>(SLOTS);
+    private final ReentrantLock configLock = new ReentrantLock();
+    // época con la que se asignó cada slot y la mayor vista en el cluster, bajo configLock
+    private final long[] slotEpochs = new long[SLOTS];
+    private long currentEpoch;
+    private final Path configFile;
+    // hay cambios sin guardar en configFile, bajo configLock
+    private boolean configChanged;
+    private volatile boolean running = true;
+    private Thread gossip;
+
+    /**
+     * Posiciones de las claves de un comando, como los key specs de Redis: de first a last
+     * (negativo: contando desde el final) saltando de step en step
+     */
+    static final class KeySpec {
+        final int first;
+        final int last;
+        final int step;
+
+        KeySpec(int first, int last, int step) {
+            this.first = first;
+            this.last = last;
+            this.step = step;
+        }
+    }
+
+    /**
+     * Un nodo del cluster. El enlace solo lo toca el hilo de gossip
+     */
+    static final class Node {
+        final String id;
+        final String host;
+        final int port;
+        volatile long configEpoch;
+        // último gossip recibido de él o que aceptó, 0 si nunca
+        volatile long lastSeenMillis;
+        private Socket socket;
+        private InputStream in;
+        private OutputStream out;
+
+        Node(String host, int port) {
+            this.host = host;
+            this.port = port;
+            this.id = nodeId(host, port);
+        }
+
+        String address() {
+            return host + ":" + port;
+        }
+
+        boolean isConnected() {
+            return socket != null;
+        }
+    }
+
+    /**
+     * @param announceIp dirección con la que este nodo se presenta a los demás
+     * @param nodeAddresses host:puerto de todos los nodos, este incluido; los slots se
+     *                      reparten entre ellos a partes iguales y en ese orden. Vacía: el
+     *                      nodo empieza solo y sin slots (CLUSTER ADDSLOTS / MEET)
+     * @param configFile configuración guardada; si existe se usa en lugar de nodeAddresses
+     */
+    public Cluster(Keyspace keyspace, boolean enabled, String announceIp, int port, List<String> nodeAddresses,
+                   Path configFile) {
+        this.keyspace = keyspace;
+        this.enabled = enabled;
+        this.myself = new Node(announceIp, port);
+        this.configFile = configFile;
+        if (!enabled) {
+            return;
+        }
+        keyspace.enableSlotIndex();
+        if (Files.exists(configFile)) {
+            try {
+                loadConfig();
+                return;
+            } catch (IOException | RuntimeException e) {
+                throw new IllegalStateException("No se pudo leer la configuración del cluster " + configFile
+                        + ": " + e.getMessage(), e);
+            }
+        }
+        List<Node> initial = new ArrayList<>();
+        for (String address : nodeAddresses) {
+            int colon = address.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Nodo de cluster inválido (se espera host:puerto): " + address);
+            }
+            Node node = new Node(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+            initial.add(node.id.equals(myself.id) ? myself : node);
+        }
+        nodes.addAll(initial);
+        if (!nodes.contains(myself)) {
+            nodes.add(myself);
+        }
+        for (int i = 0; i < initial.size(); i++) {
+            int start = (int) ((long) SLOTS * i / initial.size());
+            int end = (int) ((long) SLOTS * (i + 1) / initial.size());
+            for (int slot = start; slot < end; slot++) {
+                owners.set(slot, initial.get(i));
+            }
+        }
+        configChanged = true;
+        saveConfig();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        myself.lastSeenMillis = System.currentTimeMillis();
+        gossip = new Thread(this::gossipLoop, "cluster-gossip");
+        gossip.setDaemon(true);
+        gossip.start();
+        Log.notice("Modo cluster: nodo " + myself.id + " (" + myself.address() + "), "
+                + nodes.size() + " nodos conocidos, " + countSlots(myself) + " slots propios");
+    }
+
+    public void shutdown() {
+        running = false;
+        if (gossip != null) {
+            gossip.interrupt();
+        }
+    }
+
+    /**
+     * Hash slot de una clave: CRC16 de la clave o, si tiene un hash tag no vacío (lo que
+     * hay entre la primera '{' y la primera '}' que la sigue), solo del tag
+     */
+    public static int keySlot(byte[] key, int offset, int length) {
+        int end = offset + length;
+        for (int open = offset; open < end; open++) {
+            if (key[open] == '{') {
+                for (int close = open + 1; close < end; close++) {
+                    if (key[close] == '}') {
+                        if (close > open + 1) {
+                            return Crc16.crc16(key, open + 1, close - open - 1) & (SLOTS - 1);
+                        }
+                        break;
+                    }
+                }
+                break;
+            }
+        }
+        return Crc16.crc16(key, offset, length) & (SLOTS - 1);
+    }
+
+    /**
+     * Comprueba que las claves del comando son de este nodo. Lo llama el servidor antes de
+     * ejecutar o encolar cada comando; las conexiones internas (AOF, maestro) no se
+     * redirigen. Consume el ASKING de la conexión
+     *
+     * @return true si ya se ha respondido con una redirección o un error
+     */
+    public boolean redirect(Client client, CommandArgs args, RespWriter out) {
+        if (!enabled || client.isInternal()) {
+            return false;
+        }
+        boolean asking = client.takeAsking();
+        KeySpec spec = KEY_SPECS.get(args);
+        if (spec == null) {
+            return false;
+        }
+        int last = spec.last >= 0 ? Math.min(spec.last, args.count() - 1) : args.count() + spec.last;
+        int slot = -1;
+        for (int i = spec.first; i <= last; i += spec.step) {
+            int keySlot = keySlot(args.buffer(), args.offset(i), args.length(i));
+            if (slot >= 0 && keySlot != slot) {
+                out.writeError("CROSSSLOT", CROSSSLOT);
+                return true;
+            }
+            slot = keySlot;
+        }
+        if (slot < 0) {
+            // sin claves que redirigir: el servidor ya comprobó cuántos argumentos trae
+            return false;
+        }
+        Node owner = owners.get(slot);
+        if (owner == myself) {
+            Node target = migrating.get(slot);
+            if (target == null) {
+                return false;
+            }
+            // migrando: lo que ya no está aquí se ha ido (o se creará) en el destino
+            int keys = 0;
+            int missing = 0;
+            for (int i = spec.first; i <= last; i += spec.step) {
+                keys++;
+                if (keyspace.get(args, i) == null) {
+                    missing++;
+                }
+            }
+            if (missing == 0) {
+                return false;
+            }
+            if (missing < keys) {
+                out.writeError("TRYAGAIN", TRYAGAIN);
+            } else {
+                out.writeError("ASK", slot + " " + target.address());
+            }
+            return true;
+        }
+        if (asking && importing.get(slot) != null) {
+            return false;
+        }
+        if (owner == null) {
+            out.writeError("CLUSTERDOWN", "Hash slot not served");
+            return true;
+        }
+        out.writeError("MOVED", slot + " " + owner.address());
+        return true;
+    }
+
+    /**
+     * Comando ASKING
+     */
+    public ClientCommand createAskingCommand() {
+        return (client, args, out) -> {
+            if (!enabled) {
+                throw new CommandException(DISABLED);
+            }
+            client.setAsking();
+            out.writeOk();
+        };
+    }
+
+    /**
+     * Comando CLUSTER con sus subcomandos KEYSLOT, SLOTS, SHARDS, NODES, INFO, MYID, MEET,
+     * ADDSLOTS, DELSLOTS, SETSLOT, COUNTKEYSINSLOT, GETKEYSINSLOT y GOSSIP (entre nodos)
+     */
+    public RedisCommand createClusterCommand() {
+        return (args, out) -> {
+            if (!enabled) {
+                throw new CommandException(DISABLED);
+            }
+            String subcommand = args.toString(1).toUpperCase();
+            switch (subcommand) {
+                case "KEYSLOT":
+                    CommandTable.checkArity(args, 3, 3, "cluster|keyslot");
+                    out.writeInteger(keySlot(args.buffer(), args.offset(2), args.length(2)));
+                    break;
+                case "SLOTS":
+                    CommandTable.checkArity(args, 2, 2, "cluster|slots");
+                    writeSlots(out);
+                    break;
+                case "SHARDS":
+                    CommandTable.checkArity(args, 2, 2, "cluster|shards");
+                    writeShards(out);
+                    break;
+                case "NODES":
+                    CommandTable.checkArity(args, 2, 2, "cluster|nodes");
+                    out.writeBulk(describeNodes());
+                    break;
+                case "INFO":
+                    CommandTable.checkArity(args, 2, 2, "cluster|info");
+                    out.writeBulk(describeInfo());
+                    break;
+                case "MYID":
+                    CommandTable.checkArity(args, 2, 2, "cluster|myid");
+                    out.writeBulk(myself.id);
+                    break;
+                case "MEET":
+                    CommandTable.checkArity(args, 4, 4, "cluster|meet");
+                    meet(args.toString(2), parsePort(args, 3));
+                    out.writeOk();
+                    break;
+                case "ADDSLOTS":
+                case "DELSLOTS":
+                    CommandTable.checkArity(args, 3, CommandTable.VARIADIC, "cluster|" + subcommand.toLowerCase());
+                    assignSlots(args, subcommand.equals("ADDSLOTS"));
+                    out.writeOk();
+                    break;
+                case "SETSLOT":
+                    CommandTable.checkArity(args, 4, 5, "cluster|setslot");
+                    setSlot(args);
+                    out.writeOk();
+                    break;
+                case "COUNTKEYSINSLOT":
+                    CommandTable.checkArity(args, 3, 3, "cluster|countkeysinslot");
+                    out.writeInteger(keyspace.countKeysInSlot(parseSlot(args, 2)));
+                    break;
+                case "GETKEYSINSLOT":
+                    CommandTable.checkArity(args, 4, 4, "cluster|getkeysinslot");
+                    int slot = parseSlot(args, 2);
+                    long count = args.parseLong(3);
+                    if (count < 0) {
+                        throw new CommandException("Invalid number of keys");
+                    }
+                    List<byte[]> keys = keyspace.getKeysInSlot(slot, (int) Math.min(count, Integer.MAX_VALUE));
+                    out.writeArrayHeader(keys.size());
+                    for (byte[] key : keys) {
+                        out.writeBulk(key);
+                    }
+                    break;
+                case "GOSSIP":
+                    CommandTable.checkArity(args, 7, CommandTable.VARIADIC, "cluster|gossip");
+                    receiveGossip(args);
+                    out.writeOk();
+                    break;
+                default:
+                    throw new CommandException("unknown subcommand '" + args.toString(1) + "' for 'cluster'");
+            }
+        };
+    }
+
+    /**
+     * CLUSTER SETSLOT slot IMPORTING|MIGRATING|NODE node-id, o STABLE
+     */
+    private void setSlot(CommandArgs args) {
+        int slot = parseSlot(args, 2);
+        String action = args.toString(3).toUpperCase();
+        configLock.lock();
+        try {
+            if (action.equals("STABLE")) {
+                migrating.set(slot, null);
+                importing.set(slot, null);
+                configChanged = true;
+                saveConfig();
+                return;
+            }
+            if (args.count() != 5) {
+                throw new CommandException("Invalid CLUSTER SETSLOT action or number of arguments");
+            }
+            Node node = nodeById(args.toString(4));
+            switch (action) {
+                case "MIGRATING":
+                    if (owners.get(slot) != myself) {
+                        throw new CommandException("I'm not the owner of hash slot " + slot);
+                    }
+                    if (node == myself) {
+                        throw new CommandException("I can't migrate a slot to myself");
+                    }
+                    migrating.set(slot, node);
+                    break;
+                case "IMPORTING":
+                    if (owners.get(slot) == myself) {
+                        throw new CommandException("I'm already the owner of hash slot " + slot);
+                    }
+                    importing.set(slot, node);
+                    break;
+                case "NODE":
+                    migrating.set(slot, null);
+                    importing.set(slot, null);
+                    owners.set(slot, node);
+                    if (node == myself) {
+                        // la época nueva hace que el resto acepte el cambio por gossip
+                        myself.configEpoch = ++currentEpoch;
+                        slotEpochs[slot] = myself.configEpoch;
+                        Log.notice("Slot " + slot + " importado, época de configuración " + myself.configEpoch);
+                    } else {
+                        slotEpochs[slot] = node.configEpoch;
+                    }
+                    break;
+                default:
+                    throw new CommandException("Invalid CLUSTER SETSLOT action or number of arguments");
+            }
+            configChanged = true;
+            saveConfig();
+        } finally {
+            configLock.unlock();
+        }
+    }
+
+    /**
+     * CLUSTER ADDSLOTS / DELSLOTS slot [slot ...]
+     */
+    private void assignSlots(CommandArgs args, boolean add) {
+        int[] slots = new int[args.count() - 2];
+        for (int i = 2; i < args.count(); i++) {
+            slots[i - 2] = parseSlot(args, i);
+        }
+        configLock.lock();
+        try {
+            for (int slot : slots) {
+                Node owner = owners.get(slot);
+                if (add ? owner != null : owner == null) {
+                    throw new CommandException("Slot " + slot + (add ? " is already busy" : " is already unassigned"));
+                }
+            }
+            for (int slot : slots) {
+                owners.set(slot, add ? myself : null);
+                slotEpochs[slot] = add ? myself.configEpoch : 0;
+            }
+            configChanged = true;
+            saveConfig();
+        } finally {
+            configLock.unlock();
+        }
+    }
+
+    /**
+     * CLUSTER MEET: el nodo se añade a los conocidos y se le empieza a enviar gossip, con lo
+     * que él también nos conocerá
+     */
+    private void meet(String host, int port) {
+        configLock.lock();
+        try {
+            nodeFor(nodeId(host, port), host, port);
+            saveConfig();
+        } finally {
+            configLock.unlock();
+        }
+    }
+
+    /**
+     * CLUSTER GOSSIP id host puerto época-config época-actual [inicio-fin ...] [NODES host:puerto ...]:
+     * el emisor anuncia los slots que cree suyos y los nodos que conoce
+     */
+    private void receiveGossip(CommandArgs args) {
+        String id = args.toString(2);
+        String host = args.toString(3);
+        int port = parsePort(args, 4);
+        long configEpoch = args.parseLong(5);
+        long senderCurrentEpoch = args.parseLong(6);
+        configLock.lock();
+        try {
+            Node sender = nodeFor(id, host, port);
+            if (sender == myself) {
+                return;
+            }
+            if (configEpoch > sender.configEpoch) {
+                sender.configEpoch = configEpoch;
+                configChanged = true;
+            }
+            sender.lastSeenMillis = System.currentTimeMillis();
+            if (Math.max(configEpoch, senderCurrentEpoch) > currentEpoch) {
+                currentEpoch = Math.max(configEpoch, senderCurrentEpoch);
+                configChanged = true;
+            }
+            int i = 7;
+            for (; i < args.count() && !args.equalsIgnoreCase(i, "NODES"); i++) {
+                String range = args.toString(i);
+                int dash = range.indexOf('-');
+                int start = Integer.parseInt(dash < 0 ? range : range.substring(0, dash));
+                int end = dash < 0 ? start : Integer.parseInt(range.substring(dash + 1));
+                for (int slot = Math.max(0, start); slot <= Math.min(end, SLOTS - 1); slot++) {
+                    claim(slot, sender, configEpoch);
+                }
+            }
+            for (i++; i < args.count(); i++) {
+                String address = args.toString(i);
+                int colon = address.lastIndexOf(':');
+                if (colon > 0) {
+                    String nodeHost = address.substring(0, colon);
+                    int nodePort = Integer.parseInt(address.substring(colon + 1));
+                    nodeFor(nodeId(nodeHost, nodePort), nodeHost, nodePort);
+                }
+            }
+            saveConfig();
+        } finally {
+            configLock.unlock();
+        }
+    }
+
+    /**
+     * Acepta que el slot es de node si estaba sin dueño o si trae una época mayor
+     */
+    private void claim(int slot, Node node, long epoch) {
+        Node owner = owners.get(slot);
+        if (owner == node || (owner != null && epoch <= slotEpochs[slot])) {
+            return;
+        }
+        if (owner == myself) {
+            Log.warning("El slot " + slot + " pasa a " + node.address() + " (época " + epoch + ")");
+            migrating.set(slot, null);
+        }
+        owners.set(slot, node);
+        slotEpochs[slot] = epoch;
+        configChanged = true;
+    }
+
+    /**
+     * Escribe la configuración si ha cambiado: CLUSTER NODES más las épocas, en un
+     * temporal que luego sustituye al fichero. Con configLock tomado
+     */
+    private void saveConfig() {
+        if (!configChanged) {
+            return;
+        }
+        configChanged = false;
+        Path temp = configFile.resolveSibling(configFile.getFileName() + ".tmp");
+        try {
+            Files.writeString(temp, describeNodes() + "vars currentEpoch " + currentEpoch + "\n");
+            Files.move(temp, configFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Log.warning("No se pudo guardar la configuración del cluster en " + configFile + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Lee el fichero de saveConfig: nodos, épocas y dueños de los slots. Las migraciones a
+     * medias no se recuperan
+     */
+    private void loadConfig() throws IOException {
+        for (String line : Files.readAllLines(configFile)) {
+            String[] parts = line.trim().split(" ");
+            if (parts[0].isEmpty()) {
+                continue;
+            }
+            if (parts[0].equals("vars")) {
+                currentEpoch = Long.parseLong(parts[2]);
+                continue;
+            }
+            String address = parts[1].substring(0, parts[1].indexOf('@'));
+            int colon = address.lastIndexOf(':');
+            Node node = parts[2].contains("myself")
+                    ? myself
+                    : nodeFor(parts[0], address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+            if (!nodes.contains(node)) {
+                nodes.add(node);
+            }
+            node.configEpoch = Long.parseLong(parts[6]);
+            for (int i = 8; i < parts.length && !parts[i].startsWith("["); i++) {
+                int dash = parts[i].indexOf('-');
+                int start = Integer.parseInt(dash < 0 ? parts[i] : parts[i].substring(0, dash));
+                int end = dash < 0 ? start : Integer.parseInt(parts[i].substring(dash + 1));
+                for (int slot = start; slot <= end; slot++) {
+                    owners.set(slot, node);
+                    slotEpochs[slot] = node.configEpoch;
+                }
+            }
+        }
+        configChanged = false;
+    }
+
+    /**
+     * Nodo con ese id, creándolo si no se conocía. Con configLock tomado
+     */
+    private Node nodeFor(String id, String host, int port) {
+        for (Node node : nodes) {
+            if (node.id.equals(id)) {
+                return node;
+            }
+        }
+        Node node = new Node(host, port);
+        if (!node.id.equals(id)) {
+            throw new CommandException("Id de nodo " + id + " que no corresponde a " + node.address());
+        }
+        nodes.add(node);
+        configChanged = true;
+        Log.notice("Nuevo nodo del cluster: " + node.id + " (" + node.address() + ")");
+        return node;
+    }
+
+    private Node nodeById(String id) {
+        for (Node node : nodes) {
+            if (node.id.equals(id)) {
+                return node;
+            }
+        }
+        throw new CommandException("I don't know about node " + id);
+    }
+
+    /**
+     * Hilo de gossip: cada GOSSIP_PERIOD_MILLIS anuncia a los demás nodos los slots propios
+     */
+    private void gossipLoop() {
+        while (running) {
+            String[] message = gossipMessage();
+            for (Node node : nodes) {
+                if (node != myself && running) {
+                    sendGossip(node, message);
+                }
+            }
+            try {
+                Thread.sleep(GOSSIP_PERIOD_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private String[] gossipMessage() {
+        List<String> message = new ArrayList<>();
+        configLock.lock();
+        try {
+            message.add("CLUSTER");
+            message.add("GOSSIP");
+            message.add(myself.id);
+            message.add(myself.host);
+            message.add(String.valueOf(myself.port));
+            message.add(String.valueOf(myself.configEpoch));
+            message.add(String.valueOf(currentEpoch));
+        } finally {
+            configLock.unlock();
+        }
+        for (int[] range : ranges(myself)) {
+            message.add(range[0] == range[1] ? String.valueOf(range[0]) : range[0] + "-" + range[1]);
+        }
+        message.add("NODES");
+        for (Node node : nodes) {
+            if (node != myself) {
+                message.add(node.address());
+            }
+        }
+        return message.toArray(new String[0]);
+    }
+
+    private void sendGossip(Node node, String[] message) {
+        try {
+            if (node.socket == null) {
+                Socket socket = new Socket();
+                socket.connect(new InetSocketAddress(node.host, node.port), CONNECT_TIMEOUT_MILLIS);
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+                node.socket = socket;
+                node.in = new BufferedInputStream(socket.getInputStream());
+                node.out = socket.getOutputStream();
+            }
+            RespWriter command = new RespWriter();
+            command.writeArrayHeader(message.length);
+            for (String part : message) {
+                command.writeBulk(part);
+            }
+            command.writeTo(node.out);
+            String reply = readLine(node.in);
+            if (!reply.startsWith("+")) {
+                throw new IOException(reply);
+            }
+            node.lastSeenMillis = System.currentTimeMillis();
+        } catch (IOException e) {
+            if (node.socket != null && Log.isEnabled(LogLevel.DEBUG)) {
+                Log.debug("Gossip con " + node.address() + " fallido: " + e.getMessage());
+            }
+            closeLink(node);
+        }
+    }
+
+    private static void closeLink(Node node) {
+        if (node.socket != null) {
+            try {
+                node.socket.close();
+            } catch (IOException e) {
+                // Ignorar errores al cerrar
+            }
+        }
+        node.socket = null;
+        node.in = null;
+        node.out = null;
+    }
+
+    static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new EOFException("Conexión cerrada");
+            }
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return line.toString();
+    }
+
+    /**
+     * CLUSTER SLOTS: un elemento por tramo contiguo de slots con el mismo dueño
+     */
+    private void writeSlots(RespWriter out) {
+        List<int[]> ranges = new ArrayList<>();
+        List<Node> rangeOwners = new ArrayList<>();
+        for (Node node : nodes) {
+            for (int[] range : ranges(node)) {
+                ranges.add(range);
+                rangeOwners.add(node);
+            }
+        }
+        out.writeArrayHeader(ranges.size());
+        for (int i = 0; i < ranges.size(); i++) {
+            Node node = rangeOwners.get(i);
+            out.writeArrayHeader(3);
+            out.writeInteger(ranges.get(i)[0]);
+            out.writeInteger(ranges.get(i)[1]);
+            out.writeArrayHeader(3);
+            out.writeBulk(node.host);
+            out.writeInteger(node.port);
+            out.writeBulk(node.id);
+        }
+    }
+
+    /**
+     * CLUSTER SHARDS: un shard por nodo (no hay réplicas), con sus tramos y su estado
+     */
+    private void writeShards(RespWriter out) {
+        out.writeArrayHeader(nodes.size());
+        for (Node node : nodes) {
+            List<int[]> ranges = ranges(node);
+            out.writeArrayHeader(4);
+            out.writeBulk("slots");
+            out.writeArrayHeader(ranges.size() * 2);
+            for (int[] range : ranges) {
+                out.writeInteger(range[0]);
+                out.writeInteger(range[1]);
+            }
+            out.writeBulk("nodes");
+            out.writeArrayHeader(1);
+            out.writeArrayHeader(14);
+            out.writeBulk("id");
+            out.writeBulk(node.id);
+            out.writeBulk("port");
+            out.writeInteger(node.port);
+            out.writeBulk("ip");
+            out.writeBulk(node.host);
+            out.writeBulk("endpoint");
+            out.writeBulk(node.host);
+            out.writeBulk("role");
+            out.writeBulk("master");
+            out.writeBulk("replication-offset");
+            out.writeInteger(0);
+            out.writeBulk("health");
+            out.writeBulk(isFailing(node) ? "fail" : "online");
+        }
+    }
+
+    /**
+     * CLUSTER NODES, en el formato de Redis; el puerto del bus es el normal porque el gossip
+     * va por él
+     */
+    private String describeNodes() {
+        StringBuilder sb = new StringBuilder();
+        for (Node node : nodes) {
+            sb.append(node.id).append(' ').append(node.address()).append('@').append(node.port).append(' ');
+            sb.append(node == myself ? "myself,master" : isFailing(node) ? "master,fail?" : "master");
+            sb.append(" - 0 ").append(node.lastSeenMillis).append(' ').append(node.configEpoch);
+            sb.append(node == myself || node.isConnected() ? " connected" : " disconnected");
+            for (int[] range : ranges(node)) {
+                sb.append(' ').append(range[0]);
+                if (range[1] != range[0]) {
+                    sb.append('-').append(range[1]);
+                }
+            }
+            if (node == myself) {
+                for (int slot = 0; slot < SLOTS; slot++) {
+                    Node target = migrating.get(slot);
+                    Node source = importing.get(slot);
+                    if (target != null) {
+                        sb.append(" [").append(slot).append("->-").append(target.id).append(']');
+                    }
+                    if (source != null) {
+                        sb.append(" [").append(slot).append("-<-").append(source.id).append(']');
+                    }
+                }
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * CLUSTER INFO: el cluster está bien si todos los slots tienen un dueño que responde
+     */
+    private String describeInfo() {
+        int assigned = 0;
+        int failing = 0;
+        for (int slot = 0; slot < SLOTS; slot++) {
+            Node owner = owners.get(slot);
+            if (owner != null) {
+                assigned++;
+                if (isFailing(owner)) {
+                    failing++;
+                }
+            }
+        }
+        int size = 0;
+        for (Node node : nodes) {
+            if (countSlots(node) > 0) {
+                size++;
+            }
+        }
+        long epoch;
+        configLock.lock();
+        try {
+            epoch = currentEpoch;
+        } finally {
+            configLock.unlock();
+        }
+        return "cluster_enabled:1\r\n"
+                + "cluster_state:" + (assigned == SLOTS && failing == 0 ? "ok" : "fail") + "\r\n"
+                + "cluster_slots_assigned:" + assigned + "\r\n"
+                + "cluster_slots_ok:" + (assigned - failing) + "\r\n"
+                + "cluster_slots_pfail:0\r\n"
+                + "cluster_slots_fail:" + failing + "\r\n"
+                + "cluster_known_nodes:" + nodes.size() + "\r\n"
+                + "cluster_size:" + size + "\r\n"
+                + "cluster_current_epoch:" + epoch + "\r\n"
+                + "cluster_my_epoch:" + myself.configEpoch + "\r\n";
+    }
+
+    private boolean isFailing(Node node) {
+        return node != myself && System.currentTimeMillis() - node.lastSeenMillis > NODE_TIMEOUT_MILLIS;
+    }
+
+    /**
+     * Tramos [inicio, fin] de slots contiguos del nodo
+     */
+    private List<int[]> ranges(Node node) {
+        List<int[]> ranges = new ArrayList<>();
+        int start = -1;
+        for (int slot = 0; slot <= SLOTS; slot++) {
+            boolean owned = slot < SLOTS && owners.get(slot) == node;
+            if (owned && start < 0) {
+                start = slot;
+            } else if (!owned && start >= 0) {
+                ranges.add(new int[] {start, slot - 1});
+                start = -1;
+            }
+        }
+        return ranges;
+    }
+
+    private int countSlots(Node node) {
+        int count = 0;
+        for (int slot = 0; slot < SLOTS; slot++) {
+            if (owners.get(slot) == node) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static int parseSlot(CommandArgs args, int i) {
+        long slot;
+        try {
+            slot = args.parseLong(i);
+        } catch (CommandException e) {
+            slot = -1;
+        }
+        if (slot < 0 || slot >= SLOTS) {
+            throw new CommandException("Invalid or out of range slot");
+        }
+        return (int) slot;
+    }
+
+    private static int parsePort(CommandArgs args, int i) {
+        long port = args.parseLong(i);
+        if (port <= 0 || port > 65535) {
+            throw new CommandException("Invalid port " + args.toString(i));
+        }
+        return (int) port;
+    }
+
+    /**
+     * Id de 40 caracteres hexadecimales, como en Redis, pero derivado de la dirección
+     */
+    static String nodeId(String host, int port) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1")
+                    .digest((host + ":" + port).getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(40);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Dónde lleva las claves cada comando. Un comando con claves que no esté aquí se
+     * ejecuta sin comprobar su slot
+     */
+    private static Map<String, KeySpec> keySpecs() {
+        Map<String, KeySpec> specs = new HashMap<>();
+        KeySpec single = new KeySpec(1, 1, 1);
+        String[] singleKey = {
+                "SET", "GET", "SETNX", "GETDEL", "INCR", "DECR", "INCRBY", "DECRBY", "INCRBYFLOAT",
+                "APPEND", "STRLEN", "TYPE", "HSET", "HGET", "HGETALL", "HDEL", "LPUSH", "RPUSH",
+                "LPOP", "RPOP", "LLEN", "LRANGE", "SADD", "SMEMBERS", "SISMEMBER", "ZADD", "ZINCRBY",
+                "ZREM", "ZSCORE", "ZCARD", "ZRANK", "ZREVRANK", "ZRANGE", "ZREVRANGE", "ZRANGEBYSCORE",
+                "TTL", "PTTL", "PERSIST", "EXPIRE", "PEXPIRE", "EXPIREAT", "PEXPIREAT"};
+        for (String name : singleKey) {
+            specs.put(name, single);
+        }
+        KeySpec all = new KeySpec(1, -1, 1);
+        specs.put("DEL", all);
+        specs.put("MGET", all);
+        specs.put("WATCH", all);
+        specs.put("MSET", new KeySpec(1, -1, 2));
+        specs.put("LMOVE", new KeySpec(1, 2, 1));
+        specs.put("BLMOVE", new KeySpec(1, 2, 1));
+        // la última es el timeout
+        specs.put("BLPOP", new KeySpec(1, -2, 1));
+        specs.put("BRPOP", new KeySpec(1, -2, 1));
+        return specs;
+    }
+}
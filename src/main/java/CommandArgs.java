@@ -0,0 +1,182 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Argumentos de un comando como trozos (offset, longitud) del buffer de lectura,
+ * sin copiar los bytes ni crear Strings.
+ * Los trozos solo son válidos mientras se ejecuta el comando: el buffer se
+ * reutiliza en la siguiente lectura, así que quien quiera guardar un argumento
+ * debe copiarlo (toBytes / toString)
+ */
+public class CommandArgs {
+
+    private static final int INITIAL_CAPACITY = 8;
+    private static final String NOT_AN_INTEGER = "value is not an integer or out of range";
+
+    private byte[] buffer;
+    private int base;
+    private int[] offsets = new int[INITIAL_CAPACITY];
+    private int[] lengths = new int[INITIAL_CAPACITY];
+    private int count;
+
+    /**
+     * Vacía los argumentos antes de decodificar una nueva trama
+     */
+    void reset() {
+        count = 0;
+    }
+
+    /**
+     * Añade un argumento con offset relativo al inicio de la trama
+     */
+    void add(int relativeOffset, int length) {
+        if (count == offsets.length) {
+            offsets = Arrays.copyOf(offsets, count * 2);
+            lengths = Arrays.copyOf(lengths, count * 2);
+        }
+        offsets[count] = relativeOffset;
+        lengths[count] = length;
+        count++;
+    }
+
+    /**
+     * Fija el array y la posición donde empieza la trama ya completa
+     */
+    void bind(byte[] buffer, int base) {
+        this.buffer = buffer;
+        this.base = base;
+    }
+
+    public int count() {
+        return count;
+    }
+
+    public byte[] buffer() {
+        return buffer;
+    }
+
+    /**
+     * Posición del argumento i en buffer(); falla con IndexOutOfBoundsException si no existe
+     */
+    public int offset(int i) {
+        return base + offsets[Objects.checkIndex(i, count)];
+    }
+
+    public int length(int i) {
+        return lengths[Objects.checkIndex(i, count)];
+    }
+
+    /**
+     * Compara el argumento con una palabra ASCII sin distinguir mayúsculas
+     */
+    public boolean equalsIgnoreCase(int i, String word) {
+        int length = length(i);
+        if (length != word.length()) {
+            return false;
+        }
+        int offset = offset(i);
+        for (int j = 0; j < length; j++) {
+            if (toUpper(buffer[offset + j]) != toUpper((byte) word.charAt(j))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String toString(int i) {
+        return new String(buffer, offset(i), length(i), StandardCharsets.UTF_8);
+    }
+
+    public byte[] toBytes(int i) {
+        int offset = offset(i);
+        return Arrays.copyOfRange(buffer, offset, offset + length(i));
+    }
+
+    /**
+     * Interpreta el argumento como entero decimal con signo
+     */
+    public long parseLong(int i) {
+        int length = length(i);
+        int offset = offset(i);
+        if (length == 0 || length > 20) {
+            throw new CommandException(NOT_AN_INTEGER);
+        }
+        boolean negative = buffer[offset] == '-';
+        int j = negative ? 1 : 0;
+        if (j == length) {
+            throw new CommandException(NOT_AN_INTEGER);
+        }
+        long value = 0;
+        for (; j < length; j++) {
+            int digit = buffer[offset + j] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new CommandException(NOT_AN_INTEGER);
+            }
+            // se acumula en negativo para poder representar Long.MIN_VALUE
+            if (value < (Long.MIN_VALUE + digit) / 10) {
+                throw new CommandException(NOT_AN_INTEGER);
+            }
+            value = value * 10 - digit;
+        }
+        if (!negative && value == Long.MIN_VALUE) {
+            throw new CommandException(NOT_AN_INTEGER);
+        }
+        return negative ? value : -value;
+    }
+
+    /**
+     * Argumentos construidos por el servidor (registros en CommandLog, claves que hay que
+     * bloquear), todos en un buffer propio
+     */
+    public static CommandArgs of(byte[]... parts) {
+        CommandArgs args = new CommandArgs();
+        int total = 0;
+        for (byte[] part : parts) {
+            total += part.length;
+        }
+        byte[] buffer = new byte[total];
+        int position = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, buffer, position, part.length);
+            args.add(position, part.length);
+            position += part.length;
+        }
+        args.bind(buffer, 0);
+        return args;
+    }
+
+    /**
+     * Copia con sus propios bytes, que sigue siendo válida después de la siguiente
+     * lectura (comandos encolados en MULTI)
+     */
+    public CommandArgs copy() {
+        CommandArgs copy = new CommandArgs();
+        if (count > 0) {
+            int start = offsets[0];
+            int end = offsets[count - 1] + lengths[count - 1];
+            copy.buffer = Arrays.copyOfRange(buffer, base + start, base + end);
+            copy.base = -start;
+            copy.offsets = Arrays.copyOf(offsets, count);
+            copy.lengths = Arrays.copyOf(lengths, count);
+            copy.count = count;
+        }
+        return copy;
+    }
+
+    static byte toUpper(byte b) {
+        return (b >= 'a' && b <= 'z') ? (byte) (b - 32) : b;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(toString(i));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,34 @@
+/**
+ * Error de un comando que se responde al cliente y no cierra la conexión. El código
+ * RESP (ERR, WRONGTYPE, READONLY...) va aparte del mensaje, que nunca lo incluye.
+ * No guarda la traza: es una respuesta más, no un fallo del servidor
+ */
+public class CommandException extends RuntimeException {
+
+    public static final String ERR = "ERR";
+
+    private final String code;
+
+    /**
+     * Error genérico, con el código ERR
+     */
+    public CommandException(String message) {
+        this(ERR, message);
+    }
+
+    public CommandException(String code, String message) {
+        super(message, null, false, false);
+        this.code = code;
+    }
+
+    /**
+     * Número de argumentos fuera de lo que admite el comando (ver CommandTable.checkArity)
+     */
+    public static CommandException wrongArity(String command) {
+        return new CommandException("wrong number of arguments for '" + command + "' command");
+    }
+
+    public String getCode() {
+        return code;
+    }
+}
@@ -1,3 +1,5 @@
+import java.util.List;
+
 /**
  * Clase para manejar los argumentos de línea de comandos
  */
@@ -7,6 +9,32 @@ public class CommandLineArgs {
     private String dbfilename;
     private static final int DEFAULT_PORT = 6379;
     private int port = DEFAULT_PORT;
+    private IoMode ioMode = IoMode.NIO;
+    private int ioThreads = Runtime.getRuntime().availableProcessors();
+    private static final int DEFAULT_POOL_SIZE = 256;
+    private int poolSize = DEFAULT_POOL_SIZE;
+    private int loadThreads = Runtime.getRuntime().availableProcessors();
+    private int shards = Keyspace.DEFAULT_SHARDS;
+    private static final String DEFAULT_APPENDFILENAME = "appendonly.aof";
+    private boolean appendOnly;
+    private AppendFsync appendFsync = AppendFsync.EVERYSEC;
+    private String appendFilename = DEFAULT_APPENDFILENAME;
+    private long maxmemory;
+    private EvictionPolicy maxmemoryPolicy = EvictionPolicy.NOEVICTION;
+    private int maxmemorySamples = Eviction.DEFAULT_SAMPLES;
+    private String replicaofHost;
+    private int replicaofPort;
+    private int replBacklogSize = Replication.DEFAULT_BACKLOG_SIZE;
+    private LogLevel logLevel = LogLevel.NOTICE;
+    private int metricsPort;
+    private long pubsubHardLimit = PubSub.DEFAULT_HARD_LIMIT;
+    private long pubsubSoftLimit = PubSub.DEFAULT_SOFT_LIMIT;
+    private long pubsubSoftSeconds = PubSub.DEFAULT_SOFT_SECONDS;
+    private boolean clusterEnabled;
+    private List<String> clusterNodes = List.of();
+    private String clusterAnnounceIp = "127.0.0.1";
+    private static final String DEFAULT_CLUSTER_CONFIG_FILE = "nodes.conf";
+    private String clusterConfigFile = DEFAULT_CLUSTER_CONFIG_FILE;
     
     public CommandLineArgs(String[] args) {
         parseArgs(args);
@@ -15,6 +43,17 @@ public class CommandLineArgs {
     /**
      * Parsea los argumentos de línea de comandos
      * Formato esperado: --dir <directorio> --dbfilename <archivo>
+     * Opcionales: --port <puerto> --io-mode <blocking|pool|virtual|nio> --io-threads <n> --pool-size <n>
+     *            --load-threads <n> --shards <n>
+     *            --appendonly <yes|no> --appendfsync <always|everysec|no> --appendfilename <archivo>
+     *            --maxmemory <bytes, p. ej. 100mb> --maxmemory-samples <n>
+     *            --maxmemory-policy <noeviction|allkeys-lru|volatile-lru|allkeys-lfu|volatile-ttl>
+     *            --replicaof "<host> <puerto>" (o --replicaof <host> <puerto>) --repl-backlog-size <bytes>
+     *            --loglevel <debug|verbose|notice|warning> --metrics-port <puerto HTTP de Prometheus>
+     *            --client-output-buffer-limit "pubsub <límite duro> <límite blando> <segundos>"
+     *            --cluster-enabled <yes|no> --cluster-nodes "<host:puerto> <host:puerto> ..."
+     *            --cluster-announce-ip <ip con la que se presenta a los demás nodos>
+     *            --cluster-config-file <archivo>
      */
     private void parseArgs(String[] args) {
        // if (args.length >= 4) {
@@ -29,11 +68,113 @@ public class CommandLineArgs {
                     case "--port":
                         this.port = Integer.parseInt(args[i + 1]);
                         break;
+                    case "--io-mode":
+                        this.ioMode = IoMode.fromName(args[i + 1]);
+                        break;
+                    case "--io-threads":
+                        this.ioThreads = Math.max(1, Integer.parseInt(args[i + 1]));
+                        break;
+                    case "--pool-size":
+                        this.poolSize = Math.max(1, Integer.parseInt(args[i + 1]));
+                        break;
+                    case "--load-threads":
+                        this.loadThreads = Math.max(1, Integer.parseInt(args[i + 1]));
+                        break;
+                    case "--shards":
+                        this.shards = Math.max(1, Integer.parseInt(args[i + 1]));
+                        break;
+                    case "--appendonly":
+                        this.appendOnly = args[i + 1].equalsIgnoreCase("yes");
+                        break;
+                    case "--appendfsync":
+                        this.appendFsync = AppendFsync.fromName(args[i + 1]);
+                        break;
+                    case "--appendfilename":
+                        this.appendFilename = args[i + 1];
+                        break;
+                    case "--maxmemory":
+                        this.maxmemory = parseMemory(args[i + 1]);
+                        break;
+                    case "--maxmemory-policy":
+                        this.maxmemoryPolicy = EvictionPolicy.fromName(args[i + 1]);
+                        break;
+                    case "--maxmemory-samples":
+                        this.maxmemorySamples = Math.max(1, Integer.parseInt(args[i + 1]));
+                        break;
+                    case "--replicaof":
+                        String[] master = args[i + 1].trim().split("\\s+");
+                        if (master.length == 1 && i + 2 < args.length) {
+                            master = new String[] {master[0], args[i + 2]};
+                        }
+                        if (master.length != 2) {
+                            throw new IllegalArgumentException("--replicaof necesita host y puerto");
+                        }
+                        this.replicaofHost = master[0];
+                        this.replicaofPort = Integer.parseInt(master[1]);
+                        break;
+                    case "--loglevel":
+                        this.logLevel = LogLevel.fromName(args[i + 1]);
+                        break;
+                    case "--metrics-port":
+                        this.metricsPort = Integer.parseInt(args[i + 1]);
+                        break;
+                    case "--client-output-buffer-limit":
+                        String[] limit = args[i + 1].trim().split("\\s+");
+                        int first = limit[0].equalsIgnoreCase("pubsub") ? 1 : 0;
+                        if (limit.length - first != 3) {
+                            throw new IllegalArgumentException("--client-output-buffer-limit necesita \"pubsub <duro> <blando> <segundos>\"");
+                        }
+                        this.pubsubHardLimit = parseMemory(limit[first]);
+                        this.pubsubSoftLimit = parseMemory(limit[first + 1]);
+                        this.pubsubSoftSeconds = Long.parseLong(limit[first + 2]);
+                        break;
+                    case "--cluster-enabled":
+                        this.clusterEnabled = args[i + 1].equalsIgnoreCase("yes");
+                        break;
+                    case "--cluster-nodes":
+                        this.clusterNodes = List.of(args[i + 1].trim().split("[\\s,]+"));
+                        break;
+                    case "--cluster-announce-ip":
+                        this.clusterAnnounceIp = args[i + 1];
+                        break;
+                    case "--cluster-config-file":
+                        this.clusterConfigFile = args[i + 1];
+                        break;
+                    case "--repl-backlog-size":
+                        this.replBacklogSize = (int) Math.max(16 * 1024, Math.min(Integer.MAX_VALUE - 8, parseMemory(args[i + 1])));
+                        break;
                 }
             }
        // }
     }
     
+    /**
+     * Cantidad de memoria como en redis.conf: bytes o con unidad k/kb, m/mb, g/gb
+     * (k = 1000, kb = 1024), sin distinguir mayúsculas
+     */
+    public static long parseMemory(String value) {
+        String text = value.trim().toLowerCase();
+        long unit = 1;
+        String[] suffixes = {"kb", "mb", "gb", "k", "m", "g", "b"};
+        long[] units = {1024L, 1024L * 1024, 1024L * 1024 * 1024, 1000L, 1000L * 1000, 1000L * 1000 * 1000, 1};
+        for (int i = 0; i < suffixes.length; i++) {
+            if (text.endsWith(suffixes[i])) {
+                unit = units[i];
+                text = text.substring(0, text.length() - suffixes[i].length());
+                break;
+            }
+        }
+        try {
+            long amount = Long.parseLong(text);
+            if (amount < 0) {
+                throw new IllegalArgumentException("Cantidad de memoria inválida: " + value);
+            }
+            return Math.multiplyExact(amount, unit);
+        } catch (NumberFormatException | ArithmeticException e) {
+            throw new IllegalArgumentException("Cantidad de memoria inválida: " + value);
+        }
+    }
+
     /**
      * Valida que los argumentos requeridos estén presentes
      */
@@ -52,9 +193,118 @@ public class CommandLineArgs {
     public int getPort() {
         return port;
     }
+
+    public IoMode getIoMode() {
+        return ioMode;
+    }
+
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    public int getLoadThreads() {
+        return loadThreads;
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    public boolean isAppendOnly() {
+        return appendOnly;
+    }
+
+    public AppendFsync getAppendFsync() {
+        return appendFsync;
+    }
+
+    public String getAppendFilename() {
+        return appendFilename;
+    }
+
+    public long getMaxmemory() {
+        return maxmemory;
+    }
+
+    public EvictionPolicy getMaxmemoryPolicy() {
+        return maxmemoryPolicy;
+    }
+
+    public int getMaxmemorySamples() {
+        return maxmemorySamples;
+    }
+
+    /**
+     * @return host del maestro o null si el servidor arranca como maestro
+     */
+    public String getReplicaofHost() {
+        return replicaofHost;
+    }
+
+    public int getReplicaofPort() {
+        return replicaofPort;
+    }
+
+    public int getReplBacklogSize() {
+        return replBacklogSize;
+    }
+
+    public LogLevel getLogLevel() {
+        return logLevel;
+    }
+
+    /**
+     * @return puerto del endpoint de Prometheus o 0 si está desactivado
+     */
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    /**
+     * Límites de client-output-buffer-limit para las conexiones con suscripciones (0 sin límite)
+     */
+    public long getPubsubHardLimit() {
+        return pubsubHardLimit;
+    }
+
+    public long getPubsubSoftLimit() {
+        return pubsubSoftLimit;
+    }
+
+    public long getPubsubSoftSeconds() {
+        return pubsubSoftSeconds;
+    }
+
+    public boolean isClusterEnabled() {
+        return clusterEnabled;
+    }
+
+    /**
+     * Nodos del cluster (host:puerto, este incluido) entre los que se reparten los slots
+     * al arrancar; vacía si el nodo empieza solo
+     */
+    public List<String> getClusterNodes() {
+        return clusterNodes;
+    }
+
+    public String getClusterAnnounceIp() {
+        return clusterAnnounceIp;
+    }
+
+    public String getClusterConfigFile() {
+        return clusterConfigFile;
+    }
     
     @Override
     public String toString() {
-        return String.format("CommandLineArgs{dir='%s', dbfilename='%s'}", dir, dbfilename);
+        return String.format("CommandLineArgs{dir='%s', dbfilename='%s', port=%d, ioMode=%s, ioThreads=%d, poolSize=%d, loadThreads=%d, shards=%d, appendOnly=%s, appendFsync=%s, maxmemory=%d, maxmemoryPolicy=%s, replicaof=%s, loglevel=%s, cluster=%s}",
+                dir, dbfilename, port, ioMode.getName(), ioThreads, poolSize, loadThreads, shards,
+                appendOnly, appendFsync.getName(), maxmemory, maxmemoryPolicy.getName(),
+                replicaofHost != null ? replicaofHost + ":" + replicaofPort : "no", logLevel.getName(),
+                clusterEnabled ? "yes" : "no");
     }
 }
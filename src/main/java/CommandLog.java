@@ -0,0 +1,241 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Propagación de las escrituras, como propagate() en Redis: cada comando que modifica el
+ * almacén registra aquí la forma en que hay que reejecutarlo (plazos absolutos, SET con
+ * el resultado de INCRBYFLOAT, DEL de las claves desalojadas...). El registro se codifica
+ * una sola vez y se copia al AOF y al backlog de replicación, los que estén activos; si no
+ * hay ninguno no se codifica nada.
+ *
+ * Los comandos lo llaman con los shards de sus claves bloqueados, así que los registros
+ * de una clave van en el mismo orden en que se aplicaron. Como el AOF y el backlog se
+ * activan con todo el almacén bloqueado (junto con la foto que los acompaña), cada
+ * escritura queda o en la foto o en el registro, nunca en los dos ni en ninguno.
+ *
+ * Las escrituras de un EXEC se registran entre MULTI y EXEC (ver beginTransaction), para
+ * que las réplicas y la carga del AOF también las apliquen de una vez
+ */
+public class CommandLog {
+
+    private static final byte[] MULTI = "*1\r\n$5\r\nMULTI\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] EXEC = "*1\r\n$4\r\nEXEC\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // registro en curso; protegido por lock
+    private final RespWriter record = new RespWriter();
+    // transacción en curso (ver beginTransaction): falta escribir su MULTI / ya se escribió
+    private boolean multiPending;
+    private boolean multiWritten;
+    private volatile AppendOnlyFile aof;
+    // null salvo en un maestro con réplicas (ver Replication)
+    private volatile ReplicationBacklog backlog;
+
+    public AppendOnlyFile getAppendOnlyFile() {
+        return aof;
+    }
+
+    /**
+     * Se llama con todo el Keyspace bloqueado
+     */
+    public void setAppendOnlyFile(AppendOnlyFile aof) {
+        this.aof = aof;
+    }
+
+    /**
+     * Empieza (o deja, con null) a copiar los registros al backlog. Se llama con todo el
+     * Keyspace bloqueado
+     */
+    public void setBacklog(ReplicationBacklog backlog) {
+        this.backlog = backlog;
+    }
+
+    /**
+     * Registra el comando tal cual
+     *
+     * @return posición del registro en el AOF para awaitSync, o 0 si no hay AOF
+     */
+    public long append(CommandArgs args) {
+        if (!isActive()) {
+            return 0;
+        }
+        lock.lock();
+        try {
+            record.writeArrayHeader(args.count());
+            for (int i = 0; i < args.count(); i++) {
+                record.writeBulk(args.buffer(), args.offset(i), args.length(i));
+            }
+            return publish();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Registra un SET con el plazo ya resuelto a absoluto (PXAT), para que al
+     * reejecutarlo no se alargue el TTL
+     */
+    public long appendSet(CommandArgs args, int keyIndex, int valueIndex, long expireAt, boolean keepTtl) {
+        if (!isActive()) {
+            return 0;
+        }
+        lock.lock();
+        try {
+            record.writeArrayHeader(expireAt >= 0 ? 5 : keepTtl ? 4 : 3);
+            record.writeBulk("SET");
+            record.writeBulk(args.buffer(), args.offset(keyIndex), args.length(keyIndex));
+            record.writeBulk(args.buffer(), args.offset(valueIndex), args.length(valueIndex));
+            if (expireAt >= 0) {
+                record.writeBulk("PXAT");
+                record.writeBulk(expireAt);
+            } else if (keepTtl) {
+                record.writeBulk("KEEPTTL");
+            }
+            return publish();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Registra SET key value KEEPTTL con un valor calculado (INCRBYFLOAT)
+     */
+    public long appendSetKeepTtl(CommandArgs args, int keyIndex, byte[] value) {
+        if (!isActive()) {
+            return 0;
+        }
+        lock.lock();
+        try {
+            record.writeArrayHeader(4);
+            record.writeBulk("SET");
+            record.writeBulk(args.buffer(), args.offset(keyIndex), args.length(keyIndex));
+            record.writeBulk(value);
+            record.writeBulk("KEEPTTL");
+            return publish();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Registra EXPIRE y familia como PEXPIREAT con el instante absoluto
+     */
+    public long appendPexpireat(CommandArgs args, int keyIndex, long expireAt) {
+        if (!isActive()) {
+            return 0;
+        }
+        lock.lock();
+        try {
+            record.writeArrayHeader(3);
+            record.writeBulk("PEXPIREAT");
+            record.writeBulk(args.buffer(), args.offset(keyIndex), args.length(keyIndex));
+            record.writeBulk(expireAt);
+            return publish();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Registra DEL de una clave que el servidor borró por su cuenta (desalojo por maxmemory),
+     * para que no vuelva a aparecer al reejecutar el AOF ni siga en las réplicas
+     */
+    public long appendDel(byte[] key) {
+        if (!isActive()) {
+            return 0;
+        }
+        lock.lock();
+        try {
+            record.writeArrayHeader(2);
+            record.writeBulk("DEL");
+            record.writeBulk(key);
+            return publish();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Empieza un EXEC: hasta endTransaction los registros de este hilo van seguidos, entre
+     * MULTI y EXEC. El MULTI se escribe con el primer registro, así que una transacción
+     * que no escribe nada no deja rastro. Se llama con todo el Keyspace bloqueado
+     */
+    public void beginTransaction() {
+        lock.lock();
+        multiPending = true;
+        multiWritten = false;
+    }
+
+    /**
+     * Cierra la transacción con EXEC si llegó a registrar algo
+     *
+     * @return posición del EXEC en el AOF para awaitSync, o 0
+     */
+    public long endTransaction() {
+        try {
+            if (!multiWritten || !isActive()) {
+                return 0;
+            }
+            record.writeRaw(EXEC);
+            return publish();
+        } finally {
+            multiPending = false;
+            multiWritten = false;
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Con appendfsync always espera a que el registro esté en disco (ver
+     * AppendOnlyFile.awaitSync). Se llama ya sin locks del Keyspace. Dentro de una
+     * transacción no espera: EXEC espera una sola vez, al final, a su último registro
+     */
+    public void awaitSync(long offset) throws IOException {
+        AppendOnlyFile current = aof;
+        if (current != null && offset > 0 && !lock.isHeldByCurrentThread()) {
+            current.awaitSync(offset);
+        }
+    }
+
+    /**
+     * Espera el fsync de las escrituras que el hilo actual ha dejado pendientes
+     * (bucles de eventos con appendfsync always)
+     */
+    public void awaitDeferred() throws IOException {
+        AppendOnlyFile current = aof;
+        if (current != null) {
+            current.awaitDeferred();
+        }
+    }
+
+    private boolean isActive() {
+        return aof != null || backlog != null;
+    }
+
+    /**
+     * Copia el registro codificado a sus destinos y lo descarta
+     */
+    private long publish() {
+        if (multiPending) {
+            // primer registro de la transacción: va detrás de su MULTI
+            byte[] command = record.toByteArray();
+            record.clear();
+            record.writeRaw(MULTI);
+            record.writeRaw(command);
+            multiPending = false;
+            multiWritten = true;
+        }
+        long offset = 0;
+        AppendOnlyFile currentAof = aof;
+        if (currentAof != null) {
+            offset = currentAof.appendRecord(record.pendingBuffer());
+        }
+        ReplicationBacklog currentBacklog = backlog;
+        if (currentBacklog != null) {
+            currentBacklog.feed(record.pendingBuffer());
+        }
+        record.clear();
+        return offset;
+    }
+}
@@ -0,0 +1,59 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Contadores de un comando: llamadas, fallos, tiempo total y su histograma de latencias.
+ * Las llamadas se cuentan en el propio histograma, así que registrar una ejecución son dos
+ * incrementos (tres si falla)
+ */
+public class CommandStats {
+
+    private final String name;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAdder failedCalls = new LongAdder();
+
+    public CommandStats(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void record(long nanos, boolean failed) {
+        latency.record(nanos);
+        totalNanos.add(nanos);
+        if (failed) {
+            failedCalls.increment();
+        }
+    }
+
+    /**
+     * Histograma sumado (ver LatencyHistogram.snapshot)
+     */
+    public long[] histogram() {
+        return latency.snapshot();
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.sum();
+    }
+
+    public long getFailedCalls() {
+        return failedCalls.sum();
+    }
+
+    public void reset() {
+        latency.reset();
+        totalNanos.reset();
+        failedCalls.reset();
+    }
+
+    public static long calls(long[] histogram) {
+        long calls = 0;
+        for (long count : histogram) {
+            calls += count;
+        }
+        return calls;
+    }
+}
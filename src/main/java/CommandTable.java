@@ -0,0 +1,90 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Tabla de comandos con búsqueda sin asignaciones: compara el nombre del
+ * comando directamente sobre los bytes del primer argumento, sin distinguir
+ * mayúsculas, en lugar de crear un String por petición.
+ * Guarda lo que haga falta por comando: su implementación con los argumentos que
+ * admite (ver RedisServer) o, en Cluster, dónde lleva las claves
+ */
+public class CommandTable<T> {
+
+    /** Máximo de argumentos de un comando que admite cualquier número */
+    public static final int VARIADIC = Integer.MAX_VALUE;
+
+    private final byte[][] names;
+    private final Object[] commands;
+    private final int mask;
+
+    public CommandTable(Map<String, ? extends T> commandMap) {
+        int capacity = Integer.highestOneBit(Math.max(4, commandMap.size() * 4) - 1) << 1;
+        this.names = new byte[capacity][];
+        this.commands = new Object[capacity];
+        this.mask = capacity - 1;
+        for (Map.Entry<String, ? extends T> entry : commandMap.entrySet()) {
+            byte[] name = entry.getKey().toUpperCase().getBytes(StandardCharsets.US_ASCII);
+            int slot = hash(name, 0, name.length) & mask;
+            while (names[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            names[slot] = name;
+            commands[slot] = entry.getValue();
+        }
+    }
+
+    /**
+     * Busca el comando cuyo nombre es el argumento 0
+     *
+     * @return el comando o null si no existe
+     */
+    @SuppressWarnings("unchecked")
+    public T get(CommandArgs args) {
+        byte[] buffer = args.buffer();
+        int offset = args.offset(0);
+        int length = args.length(0);
+        int slot = hash(buffer, offset, length) & mask;
+        byte[] name;
+        while ((name = names[slot]) != null) {
+            if (matches(name, buffer, offset, length)) {
+                return (T) commands[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Comprueba el número de argumentos de un comando o subcomando, contando su nombre.
+     * El servidor lo hace antes de ejecutar cada comando con los de su tabla; los
+     * subcomandos, que no están en ella, lo hacen al empezar
+     *
+     * @param name nombre para el error, en minúsculas como en Redis ("get", "config|get")
+     * @throws CommandException si el número no está entre minArgs y maxArgs
+     */
+    public static void checkArity(CommandArgs args, int minArgs, int maxArgs, String name) {
+        if (args.count() < minArgs || args.count() > maxArgs) {
+            throw CommandException.wrongArity(name);
+        }
+    }
+
+    private static boolean matches(byte[] name, byte[] buffer, int offset, int length) {
+        if (name.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (name[i] != CommandArgs.toUpper(buffer[offset + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(byte[] buffer, int offset, int length) {
+        int h = length;
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + CommandArgs.toUpper(buffer[offset + i]);
+        }
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,32 @@
+/**
+ * CRC16 de Redis Cluster (CCITT / XMODEM: polinomio 0x1021, sin reflejar, valor inicial 0)
+ * con el que se reparte cada clave en uno de los 16384 hash slots (ver Cluster.keySlot).
+ * Las claves son cortas, así que basta una tabla de 256 entradas
+ */
+public class Crc16 {
+
+    private static final int POLY = 0x1021;
+    private static final int[] TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ POLY : crc << 1;
+            }
+            TABLE[i] = crc & 0xFFFF;
+        }
+    }
+
+    private Crc16() {
+    }
+
+    public static int crc16(byte[] data, int offset, int length) {
+        int crc = 0;
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            crc = ((crc << 8) ^ TABLE[((crc >>> 8) ^ data[i]) & 0xFF]) & 0xFFFF;
+        }
+        return crc;
+    }
+}
@@ -0,0 +1,344 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Codificación compacta de una clave y su valor en un único byte[]:
+ *
+ *   [flags][longitud de la clave (varint)][clave][expiración ms LE, si FLAG_EXPIRE][valor]
+ *
+ * Los bits de tipo de flags dicen qué es el valor. En un string va en crudo hasta el
+ * final del array o, si es un entero decimal canónico, como entero binario LE de 1 a 8
+ * bytes con signo (FLAG_INT), como la codificación int de Redis. Las listas, sets y
+ * hashes pequeños guardan un listpack (ver Listpack); los grandes y los sorted sets llevan
+ * FLAG_OBJECT, no tienen valor en la entrada y su estructura está en la KeyTable junto a ella.
+ *
+ * Las entradas son inmutables una vez publicadas en la tabla (salvo el bit de paridad,
+ * que solo usa KeyTable para las fotos): cambiar el valor o el TTL crea una entrada nueva,
+ * así que quien tenga una referencia puede leerla sin lock
+ */
+public final class Entries {
+
+    static final int FLAG_EXPIRE = 1;
+    static final int FLAG_INT = 2;
+    static final int FLAG_PARITY = 4;
+    static final int FLAG_OBJECT = 8;
+    private static final int TYPE_SHIFT = 4;
+    private static final int TYPE_MASK = 7 << TYPE_SHIFT;
+    // flags que describen el valor y se conservan al cambiar el TTL
+    private static final int VALUE_FLAGS = FLAG_INT | FLAG_OBJECT | TYPE_MASK;
+
+    public static final int TYPE_STRING = 0;
+    public static final int TYPE_LIST = 1;
+    public static final int TYPE_SET = 2;
+    public static final int TYPE_HASH = 3;
+    public static final int TYPE_ZSET = 4;
+    private static final String[] TYPE_NAMES = {"string", "list", "set", "hash", "zset"};
+
+    // "-9223372036854775808"
+    private static final int MAX_INT_DIGITS = 20;
+    private static final byte[] LONG_MAX_DIGITS = "9223372036854775807".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LONG_MIN_DIGITS = "9223372036854775808".getBytes(StandardCharsets.US_ASCII);
+    private static final VarHandle LONG_LE =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private Entries() {
+    }
+
+    /**
+     * Crea la entrada de un string; si el valor es un entero canónico lo guarda como long
+     *
+     * @param expireAt instante absoluto de expiración (ms) o -1 si no tiene
+     */
+    public static byte[] create(byte[] key, int keyOffset, int keyLength,
+                                byte[] value, int valueOffset, int valueLength, long expireAt) {
+        if (isCanonicalInteger(value, valueOffset, valueLength)) {
+            return createInt(key, keyOffset, keyLength, parseDigits(value, valueOffset, valueLength), expireAt);
+        }
+        int header = headerLength(keyLength, expireAt);
+        byte[] entry = new byte[header + valueLength];
+        writeHeader(entry, key, keyOffset, keyLength, expireAt, 0);
+        System.arraycopy(value, valueOffset, entry, header, valueLength);
+        return entry;
+    }
+
+    public static byte[] createInt(byte[] key, int keyOffset, int keyLength, long value, long expireAt) {
+        int header = headerLength(keyLength, expireAt);
+        // bytes mínimos para representar el valor con su bit de signo
+        int significantBits = 65 - Long.numberOfLeadingZeros(value ^ (value >> 63));
+        int size = (significantBits + 7) / 8;
+        byte[] entry = new byte[header + size];
+        writeHeader(entry, key, keyOffset, keyLength, expireAt, FLAG_INT);
+        for (int i = 0; i < size; i++) {
+            entry[header + i] = (byte) (value >>> (8 * i));
+        }
+        return entry;
+    }
+
+    /**
+     * Crea la entrada de una colección pequeña con su listpack
+     */
+    public static byte[] createListpack(byte[] key, int keyOffset, int keyLength, int type,
+                                        byte[] listpack, long expireAt) {
+        int header = headerLength(keyLength, expireAt);
+        byte[] entry = new byte[header + listpack.length];
+        writeHeader(entry, key, keyOffset, keyLength, expireAt, type << TYPE_SHIFT);
+        System.arraycopy(listpack, 0, entry, header, listpack.length);
+        return entry;
+    }
+
+    /**
+     * Crea la entrada de una colección grande: solo clave y TTL, la estructura va aparte
+     */
+    public static byte[] createObject(byte[] key, int keyOffset, int keyLength, int type, long expireAt) {
+        byte[] entry = new byte[headerLength(keyLength, expireAt)];
+        writeHeader(entry, key, keyOffset, keyLength, expireAt, (type << TYPE_SHIFT) | FLAG_OBJECT);
+        return entry;
+    }
+
+    /**
+     * Copia de una colección con otro listpack, conservando clave, tipo y expiración
+     */
+    public static byte[] withListpack(byte[] entry, byte[] listpack) {
+        return createListpack(entry, keyOffset(entry), keyLength(entry), type(entry), listpack, expireAt(entry));
+    }
+
+    /**
+     * Copia de la entrada con otro instante de expiración (-1 para quitarlo)
+     */
+    public static byte[] withExpire(byte[] entry, long expireAt) {
+        int keyOffset = keyOffset(entry);
+        int keyLength = keyLength(entry);
+        int valueOffset = valueOffset(entry);
+        int valueLength = entry.length - valueOffset;
+        int header = headerLength(keyLength, expireAt);
+        byte[] copy = new byte[header + valueLength];
+        writeHeader(copy, entry, keyOffset, keyLength, expireAt, entry[0] & VALUE_FLAGS);
+        System.arraycopy(entry, valueOffset, copy, header, valueLength);
+        return copy;
+    }
+
+    /**
+     * Copia con otro valor entero, conservando la clave y la expiración (INCR y familia)
+     */
+    public static byte[] withIntValue(byte[] entry, long value) {
+        return createInt(entry, keyOffset(entry), keyLength(entry), value, expireAt(entry));
+    }
+
+    /**
+     * Copia con otro valor, conservando la clave y la expiración
+     */
+    public static byte[] withValue(byte[] entry, byte[] value, int valueOffset, int valueLength) {
+        return create(entry, keyOffset(entry), keyLength(entry), value, valueOffset, valueLength, expireAt(entry));
+    }
+
+    public static int keyLength(byte[] entry) {
+        int length = 0;
+        int shift = 0;
+        int i = 1;
+        int b;
+        do {
+            b = entry[i++];
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return length;
+    }
+
+    public static int keyOffset(byte[] entry) {
+        int i = 1;
+        while ((entry[i] & 0x80) != 0) {
+            i++;
+        }
+        return i + 1;
+    }
+
+    public static boolean keyEquals(byte[] entry, byte[] key, int offset, int length) {
+        if (keyLength(entry) != length) {
+            return false;
+        }
+        int keyOffset = keyOffset(entry);
+        return Arrays.equals(entry, keyOffset, keyOffset + length, key, offset, offset + length);
+    }
+
+    public static byte[] key(byte[] entry) {
+        int keyOffset = keyOffset(entry);
+        return Arrays.copyOfRange(entry, keyOffset, keyOffset + keyLength(entry));
+    }
+
+    public static boolean hasExpire(byte[] entry) {
+        return (entry[0] & FLAG_EXPIRE) != 0;
+    }
+
+    /**
+     * @return instante absoluto de expiración o -1 si no tiene
+     */
+    public static long expireAt(byte[] entry) {
+        if (!hasExpire(entry)) {
+            return -1;
+        }
+        return (long) LONG_LE.get(entry, keyOffset(entry) + keyLength(entry));
+    }
+
+    public static boolean isExpired(byte[] entry, long now) {
+        return hasExpire(entry) && expireAt(entry) <= now;
+    }
+
+    /**
+     * @return TYPE_STRING, TYPE_LIST, TYPE_SET, TYPE_HASH o TYPE_ZSET
+     */
+    public static int type(byte[] entry) {
+        return (entry[0] & TYPE_MASK) >>> TYPE_SHIFT;
+    }
+
+    /**
+     * Nombre del tipo como lo devuelve TYPE
+     */
+    public static String typeName(byte[] entry) {
+        return TYPE_NAMES[type(entry)];
+    }
+
+    /**
+     * true si es una colección grande cuyo valor está fuera de la entrada
+     */
+    public static boolean isObject(byte[] entry) {
+        return (entry[0] & FLAG_OBJECT) != 0;
+    }
+
+    public static boolean isInt(byte[] entry) {
+        return (entry[0] & FLAG_INT) != 0;
+    }
+
+    public static long intValue(byte[] entry) {
+        int valueOffset = valueOffset(entry);
+        int size = entry.length - valueOffset;
+        long value = entry[entry.length - 1];    // el byte más alto extiende el signo
+        for (int i = size - 2; i >= 0; i--) {
+            value = (value << 8) | (entry[valueOffset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    public static int valueOffset(byte[] entry) {
+        int offset = keyOffset(entry) + keyLength(entry);
+        return hasExpire(entry) ? offset + 8 : offset;
+    }
+
+    /**
+     * Longitud del valor en crudo; no vale para entradas FLAG_INT
+     */
+    public static int valueLength(byte[] entry) {
+        return entry.length - valueOffset(entry);
+    }
+
+    /**
+     * Longitud del valor tal como lo ve el cliente (STRLEN): los enteros en decimal
+     */
+    public static int stringLength(byte[] entry) {
+        if (!isInt(entry)) {
+            return valueLength(entry);
+        }
+        long value = intValue(entry);
+        if (value == Long.MIN_VALUE) {
+            return LONG_MIN_DIGITS.length + 1;
+        }
+        int length = value < 0 ? 2 : 1;
+        for (long remaining = Math.abs(value); remaining >= 10; remaining /= 10) {
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Valor como bytes (los enteros se pasan a decimal)
+     */
+    public static byte[] value(byte[] entry) {
+        if (isInt(entry)) {
+            return Long.toString(intValue(entry)).getBytes(StandardCharsets.US_ASCII);
+        }
+        return Arrays.copyOfRange(entry, valueOffset(entry), entry.length);
+    }
+
+    /**
+     * Escribe el valor como bulk string de RESP
+     */
+    public static void writeValue(byte[] entry, RespWriter out) {
+        if (isInt(entry)) {
+            out.writeBulk(intValue(entry));
+        } else {
+            int valueOffset = valueOffset(entry);
+            out.writeBulk(entry, valueOffset, entry.length - valueOffset);
+        }
+    }
+
+    /**
+     * Entero decimal sin signo '+', sin ceros a la izquierda ni "-0" y dentro de long,
+     * de modo que volver a formatearlo da exactamente los mismos bytes
+     */
+    static boolean isCanonicalInteger(byte[] b, int offset, int length) {
+        if (length == 0 || length > MAX_INT_DIGITS) {
+            return false;
+        }
+        boolean negative = b[offset] == '-';
+        int start = negative ? offset + 1 : offset;
+        int digits = offset + length - start;
+        if (digits == 0 || (b[start] == '0' && (digits > 1 || negative))) {
+            return false;
+        }
+        for (int i = start; i < offset + length; i++) {
+            if (b[i] < '0' || b[i] > '9') {
+                return false;
+            }
+        }
+        if (digits < 19) {
+            return true;
+        }
+        if (digits > 19) {
+            return false;
+        }
+        byte[] limit = negative ? LONG_MIN_DIGITS : LONG_MAX_DIGITS;
+        return Arrays.compare(b, start, start + digits, limit, 0, limit.length) <= 0;
+    }
+
+    static long parseDigits(byte[] b, int offset, int length) {
+        boolean negative = b[offset] == '-';
+        long value = 0;
+        // se acumula en negativo para poder representar Long.MIN_VALUE
+        for (int i = negative ? offset + 1 : offset; i < offset + length; i++) {
+            value = value * 10 - (b[i] - '0');
+        }
+        return negative ? value : -value;
+    }
+
+    private static int headerLength(int keyLength, long expireAt) {
+        return 1 + varintLength(keyLength) + keyLength + (expireAt >= 0 ? 8 : 0);
+    }
+
+    private static void writeHeader(byte[] entry, byte[] key, int keyOffset, int keyLength, long expireAt, int flags) {
+        int i = 1;
+        int remaining = keyLength;
+        while (remaining >= 0x80) {
+            entry[i++] = (byte) (remaining | 0x80);
+            remaining >>>= 7;
+        }
+        entry[i++] = (byte) remaining;
+        System.arraycopy(key, keyOffset, entry, i, keyLength);
+        i += keyLength;
+        if (expireAt >= 0) {
+            flags |= FLAG_EXPIRE;
+            LONG_LE.set(entry, i, expireAt);
+        }
+        entry[0] = (byte) flags;
+    }
+
+    private static int varintLength(int value) {
+        int length = 1;
+        while (value >= 0x80) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+}
@@ -0,0 +1,273 @@
+import java.io.IOException;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Bucle de eventos no bloqueante: un único hilo atiende con un Selector
+ * todas las conexiones que le asigna el servidor.
+ *
+ * En cada vuelta ejecuta primero los comandos de todas las conexiones listas y
+ * después pasa por la barrera antes de enviar las respuestas: con appendfsync always
+ * es donde se espera al fsync, una vez para todas (ver AppendOnlyFile). Las conexiones
+ * que un comando traspasa (PSYNC) salen del Selector y, tras enviar sus respuestas en
+ * modo bloqueante, pasan a quien las pidió. Las conexiones a las que otro hilo encola
+ * salida (PUBLISH) o responde una espera (BLPOP) avisan al bucle, que las añade a las
+ * que tiene que vaciar en la vuelta
+ */
+public class EventLoop implements Runnable {
+
+    private final Selector selector;
+    private final ClientCommand dispatcher;
+    private final FlushBarrier barrier;
+    private final Metrics metrics;
+    private final List<SelectionKey> ready = new ArrayList<>();
+    private final List<NioConnection> handoffs = new ArrayList<>();
+    private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+    private final Queue<SelectionKey> pushes = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    public EventLoop(String name, ClientCommand dispatcher, FlushBarrier barrier, Metrics metrics) throws IOException {
+        this.selector = Selector.open();
+        this.dispatcher = dispatcher;
+        this.barrier = barrier;
+        this.metrics = metrics;
+        this.thread = new Thread(this, name);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Asigna un nuevo cliente a este bucle; el registro se hace en su propio hilo
+     */
+    public void register(SocketChannel channel) {
+        pendingChannels.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * Detiene el bucle y cierra todas sus conexiones
+     */
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            AppendOnlyFile.deferSyncs();
+            while (running) {
+                selector.select();
+                registerPendingChannels();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (readInput(key)) {
+                        ready.add(key);
+                    }
+                }
+                collectPushes();
+                barrier.await();
+                for (SelectionKey key : ready) {
+                    flushOutput(key);
+                }
+                ready.clear();
+                handOffConnections();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            Log.warning("Error en el bucle de eventos " + thread.getName() + ": " + e.getMessage());
+        } finally {
+            closeAll();
+        }
+    }
+
+    private void registerPendingChannels() {
+        SocketChannel channel;
+        while ((channel = pendingChannels.poll()) != null) {
+            try {
+                channel.configureBlocking(false);
+                NioConnection connection = new NioConnection(channel, metrics);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connection.getClient().setWakeup(() -> push(key));
+                metrics.clientConnected();
+            } catch (IOException e) {
+                Log.warning("Error registrando cliente: " + e.getMessage());
+                closeQuietly(channel);
+            }
+        }
+    }
+
+    /**
+     * Aviso desde otro hilo de que la conexión tiene salida encolada o su espera respuesta
+     */
+    private void push(SelectionKey key) {
+        pushes.add(key);
+        selector.wakeup();
+    }
+
+    /**
+     * Añade a las conexiones que se vacían en esta vuelta las que tienen salida encolada
+     * (si su socket no admite más, esperan a OP_WRITE). Si ya estaba por haber leído,
+     * el segundo flush no encuentra nada que enviar. Las que han desbordado su cola se
+     * cierran aquí, sin esperar a que un consumidor lento vuelva a aceptar datos, y las
+     * bloqueadas cuya espera ya tiene respuesta siguen con sus comandos
+     */
+    private void collectPushes() {
+        SelectionKey key;
+        while ((key = pushes.poll()) != null) {
+            if (!key.isValid()) {
+                continue;
+            }
+            NioConnection connection = (NioConnection) key.attachment();
+            Client client = connection.getClient();
+            Outbox outbox = client.getOutbox();
+            if (outbox != null && outbox.isOverflowed()) {
+                close(key);
+                continue;
+            }
+            if (client.isBlocked()) {
+                try {
+                    connection.processInput(dispatcher);
+                } catch (IOException | RuntimeException e) {
+                    Log.warning("Error manejando cliente: " + e.getMessage());
+                    close(key);
+                    continue;
+                }
+            }
+            if ((key.interestOps() & SelectionKey.OP_WRITE) == 0) {
+                ready.add(key);
+            }
+        }
+    }
+
+    /**
+     * Lee y ejecuta los comandos de una conexión lista, sin enviar las respuestas
+     *
+     * @return true si hay que pasar por flushOutput
+     */
+    private boolean readInput(SelectionKey key) {
+        NioConnection connection = (NioConnection) key.attachment();
+        try {
+            if (key.isValid() && key.isReadable()) {
+                if (connection.read() < 0) {
+                    close(key);
+                    return false;
+                }
+                connection.processInput(dispatcher);
+                if (connection.getClient().isHandedOff()) {
+                    key.cancel();
+                    metrics.clientDisconnected();
+                    handoffs.add(connection);
+                    return false;
+                }
+            }
+            return key.isValid();
+        } catch (IOException | RuntimeException e) {
+            Log.warning("Error manejando cliente: " + e.getMessage());
+            close(key);
+            return false;
+        }
+    }
+
+    private void flushOutput(SelectionKey key) {
+        NioConnection connection = (NioConnection) key.attachment();
+        try {
+            if (key.isValid()) {
+                // una escritura por lote de comandos; si el lote se cortó por tamaño
+                // se sigue con el resto en cuanto el socket acepta la salida
+                boolean drained = connection.flush();
+                while (drained && connection.hasPendingInput()) {
+                    connection.processInput(dispatcher);
+                    barrier.await();
+                    drained = connection.flush();
+                }
+                if (drained && connection.isClosing()) {
+                    // error de protocolo ya enviado
+                    close(key);
+                    return;
+                }
+                // mientras quede salida pendiente dejamos de leer: contrapresión natural
+                key.interestOps(drained ? SelectionKey.OP_READ : SelectionKey.OP_WRITE);
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.warning("Error manejando cliente: " + e.getMessage());
+            close(key);
+        }
+    }
+
+    /**
+     * Entrega los canales traspasados en esta vuelta: hay que dar de baja la clave
+     * cancelada (selectNow) antes de poder pasarlos a modo bloqueante
+     */
+    private void handOffConnections() throws IOException {
+        if (handoffs.isEmpty()) {
+            return;
+        }
+        selector.selectNow();
+        for (NioConnection connection : handoffs) {
+            SocketChannel channel = connection.getChannel();
+            try {
+                channel.configureBlocking(true);
+                connection.flush();
+                connection.getClient().getHandoff().accept(channel.socket());
+            } catch (IOException | RuntimeException e) {
+                Log.warning("Error traspasando cliente: " + e.getMessage());
+                closeQuietly(channel);
+            }
+        }
+        handoffs.clear();
+    }
+
+    private void close(SelectionKey key) {
+        if (key.isValid()) {
+            metrics.clientDisconnected();
+            ((NioConnection) key.attachment()).getClient().close();
+        }
+        key.cancel();
+        closeQuietly(key.channel());
+    }
+
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            closeQuietly(key.channel());
+        }
+        SocketChannel channel;
+        while ((channel = pendingChannels.poll()) != null) {
+            closeQuietly(channel);
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // Ignorar errores al cerrar
+        }
+    }
+
+    /**
+     * Punto por el que pasa el bucle antes de enviar las respuestas de una vuelta
+     */
+    @FunctionalInterface
+    public interface FlushBarrier {
+        void await() throws IOException;
+    }
+
+    private static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Ignorar errores al cerrar
+        }
+    }
+}
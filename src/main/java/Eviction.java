@@ -0,0 +1,299 @@
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Límite de memoria (maxmemory) y desalojo de claves al superarlo, como en Redis.
+ *
+ * Cada ranura de la KeyTable guarda 24 bits de acceso de su clave: con las políticas LRU
+ * el reloj en segundos del último acceso y con LFU los minutos del último decremento
+ * (16 bits) más un contador logarítmico de accesos (8 bits). Las lecturas lo actualizan
+ * sin locks (una escritura de int que puede perderse si dos coinciden), así que no hay
+ * ninguna lista global de accesos que mantener en GET.
+ *
+ * Antes de cada escritura, si la memoria estimada del Keyspace pasa de maxmemory, se
+ * toman muestras de maxmemory-samples claves de un shard y las mejores candidatas entran
+ * en un pool de POOL_SIZE que se conserva entre llamadas; se desaloja la mejor y se repite
+ * hasta bajar del límite. Es un LRU/LFU aproximado: con 5 muestras se parece mucho al
+ * exacto sin su coste.
+ *
+ * La memoria es la que estima cada KeyTable de forma incremental (entradas, estructuras de
+ * las colecciones grandes y ranuras), no el heap de la JVM
+ */
+public class Eviction {
+
+    /** Acceso desconocido (entradas guardadas por la foto) */
+    public static final int NO_ACCESS = -1;
+    public static final int DEFAULT_SAMPLES = 5;
+    private static final int LRU_CLOCK_MAX = (1 << 24) - 1;
+    private static final long LRU_CLOCK_RESOLUTION = 1000;
+    private static final int LFU_COUNTER_MAX = 255;
+    // contador de una clave nueva, para que no sea la primera en salir (LFU_INIT_VAL)
+    private static final int LFU_INIT_VAL = 5;
+    // lfu-log-factor y lfu-decay-time (minutos) por defecto de Redis
+    private static final int LFU_LOG_FACTOR = 10;
+    private static final int LFU_DECAY_MINUTES = 1;
+    private static final int POOL_SIZE = 16;
+
+    private final Keyspace keyspace;
+    private volatile long maxmemory;
+    private volatile EvictionPolicy policy = EvictionPolicy.NOEVICTION;
+    private volatile int samples = DEFAULT_SAMPLES;
+    private final LongAdder evictedKeys = new LongAdder();
+
+    // pool de candidatas, ordenado de menor a mayor score (la mejor al final); protegido por lock
+    private final ReentrantLock lock = new ReentrantLock();
+    private final byte[][] poolKeys = new byte[POOL_SIZE][];
+    private final long[] poolScores = new long[POOL_SIZE];
+    private int poolSize;
+    private int nextShard;
+
+    public Eviction(Keyspace keyspace) {
+        this.keyspace = keyspace;
+    }
+
+    public long getMaxmemory() {
+        return maxmemory;
+    }
+
+    /**
+     * @param bytes límite o 0 para no tener
+     */
+    public void setMaxmemory(long bytes) {
+        this.maxmemory = Math.max(0, bytes);
+    }
+
+    public EvictionPolicy getPolicy() {
+        return policy;
+    }
+
+    public void setPolicy(EvictionPolicy policy) {
+        lock.lock();
+        try {
+            this.policy = policy;
+            // los scores del pool eran de la política anterior
+            clearPool();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getSamples() {
+        return samples;
+    }
+
+    public void setSamples(int samples) {
+        this.samples = Math.max(1, samples);
+    }
+
+    public long getEvictedKeys() {
+        return evictedKeys.sum();
+    }
+
+    /**
+     * Se llama antes de ejecutar una escritura: si hay límite y se ha pasado, desaloja
+     * claves según la política hasta volver a estar por debajo
+     *
+     * @return false si sigue por encima (noeviction o no queda nada que desalojar)
+     */
+    public boolean freeMemoryIfNeeded() {
+        long limit = maxmemory;
+        if (limit == 0 || keyspace.usedMemory() <= limit) {
+            return true;
+        }
+        if (policy == EvictionPolicy.NOEVICTION) {
+            return false;
+        }
+        lock.lock();
+        try {
+            // vueltas seguidas sin candidata: al recorrer todos los shards no queda ninguna
+            int emptyRounds = 0;
+            while (keyspace.usedMemory() > limit) {
+                byte[] victim = nextCandidate();
+                if (victim == null) {
+                    if (++emptyRounds > keyspace.shardCount()) {
+                        return false;
+                    }
+                    continue;
+                }
+                emptyRounds = 0;
+                if (keyspace.evict(victim)) {
+                    evictedKeys.increment();
+                }
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // ---- reloj de acceso de cada ranura (ver KeyTable) ----
+
+    /**
+     * Acceso de una clave recién creada
+     */
+    int initialAccess() {
+        return policy.isLfu() ? (lfuMinutes() << 8) | LFU_INIT_VAL : lruClock();
+    }
+
+    /**
+     * Acceso tras leer o escribir la clave: el reloj actual con LRU, o el contador
+     * decrementado por el tiempo pasado e incrementado con probabilidad 1 / (n * factor + 1)
+     */
+    int touch(int access) {
+        if (!policy.isLfu()) {
+            return lruClock();
+        }
+        return (lfuMinutes() << 8) | lfuIncrement(lfuDecay(access));
+    }
+
+    /**
+     * Segundos sin acceso para el opcode IDLE del RDB, o -1 si la política no es LRU
+     */
+    long idleSeconds(int access) {
+        if (access == NO_ACCESS || policy.isLfu() || policy == EvictionPolicy.VOLATILE_TTL
+                || policy == EvictionPolicy.NOEVICTION) {
+            return -1;
+        }
+        return idleMillis(access) / 1000;
+    }
+
+    /**
+     * Contador para el opcode FREQ del RDB, o -1 si la política no es LFU
+     */
+    int frequency(int access) {
+        return access == NO_ACCESS || !policy.isLfu() ? -1 : lfuDecay(access);
+    }
+
+    /**
+     * Acceso de una clave cargada del RDB con sus opcodes IDLE / FREQ (-1 si no venían)
+     *
+     * @return el acceso o NO_ACCESS si no aplica a la política actual
+     */
+    int accessFromRdb(long idleSeconds, int frequency) {
+        if (policy.isLfu()) {
+            return frequency < 0 ? NO_ACCESS : (lfuMinutes() << 8) | Math.min(frequency, LFU_COUNTER_MAX);
+        }
+        if (idleSeconds < 0) {
+            return NO_ACCESS;
+        }
+        long ticks = Math.min(idleSeconds * 1000 / LRU_CLOCK_RESOLUTION, LRU_CLOCK_MAX);
+        return (int) ((lruClock() - ticks + LRU_CLOCK_MAX + 1) & LRU_CLOCK_MAX);
+    }
+
+    /**
+     * Muestrea un shard, actualiza el pool y saca de él la mejor candidata
+     *
+     * @return la clave a desalojar o null si la muestra no dio ninguna
+     */
+    private byte[] nextCandidate() {
+        EvictionPolicy current = policy;
+        int shard = nextShard;
+        nextShard = (shard + 1) % keyspace.shardCount();
+        keyspace.sample(shard, samples, current.isVolatile(), (entry, access) -> {
+            if (current.isVolatile() && !Entries.hasExpire(entry)) {
+                return;
+            }
+            offer(entry, score(current, entry, access));
+        });
+        if (poolSize == 0) {
+            return null;
+        }
+        byte[] best = poolKeys[--poolSize];
+        poolKeys[poolSize] = null;
+        return best;
+    }
+
+    /**
+     * Cuánto conviene desalojar la clave: mayor cuanto más tiempo sin uso, menos
+     * frecuencia o antes caduque
+     */
+    private long score(EvictionPolicy current, byte[] entry, int access) {
+        switch (current) {
+            case VOLATILE_TTL:
+                return Long.MAX_VALUE - Entries.expireAt(entry);
+            case ALLKEYS_LFU:
+                return LFU_COUNTER_MAX - lfuDecay(access);
+            default:
+                return idleMillis(access);
+        }
+    }
+
+    /**
+     * Inserta la candidata en su sitio del pool; si está lleno y es peor que todas se descarta
+     */
+    private void offer(byte[] entry, long score) {
+        int keyOffset = Entries.keyOffset(entry);
+        int keyLength = Entries.keyLength(entry);
+        for (int i = 0; i < poolSize; i++) {
+            if (Arrays.equals(poolKeys[i], 0, poolKeys[i].length, entry, keyOffset, keyOffset + keyLength)) {
+                removeFromPool(i);
+                break;
+            }
+        }
+        int position = 0;
+        while (position < poolSize && poolScores[position] < score) {
+            position++;
+        }
+        if (poolSize == POOL_SIZE) {
+            if (position == 0) {
+                return;
+            }
+            // se cae la peor para hacer sitio
+            removeFromPool(0);
+            position--;
+        }
+        System.arraycopy(poolKeys, position, poolKeys, position + 1, poolSize - position);
+        System.arraycopy(poolScores, position, poolScores, position + 1, poolSize - position);
+        poolKeys[position] = Entries.key(entry);
+        poolScores[position] = score;
+        poolSize++;
+    }
+
+    private void removeFromPool(int index) {
+        System.arraycopy(poolKeys, index + 1, poolKeys, index, poolSize - index - 1);
+        System.arraycopy(poolScores, index + 1, poolScores, index, poolSize - index - 1);
+        poolKeys[--poolSize] = null;
+    }
+
+    private void clearPool() {
+        Arrays.fill(poolKeys, null);
+        poolSize = 0;
+    }
+
+    private static int lruClock() {
+        return (int) (System.currentTimeMillis() / LRU_CLOCK_RESOLUTION) & LRU_CLOCK_MAX;
+    }
+
+    private static long idleMillis(int access) {
+        int clock = lruClock();
+        long ticks = clock >= access ? clock - access : clock + (LRU_CLOCK_MAX - access);
+        return ticks * LRU_CLOCK_RESOLUTION;
+    }
+
+    private static int lfuMinutes() {
+        return (int) (System.currentTimeMillis() / 60_000) & 0xFFFF;
+    }
+
+    /**
+     * Contador LFU restando un punto por cada periodo de decaimiento desde el último decremento
+     */
+    private static int lfuDecay(int access) {
+        int lastDecrement = (access >>> 8) & 0xFFFF;
+        int counter = access & LFU_COUNTER_MAX;
+        int now = lfuMinutes();
+        long elapsed = now >= lastDecrement ? now - lastDecrement : 0xFFFF - lastDecrement + now;
+        long periods = elapsed / LFU_DECAY_MINUTES;
+        return periods > counter ? 0 : (int) (counter - periods);
+    }
+
+    private static int lfuIncrement(int counter) {
+        if (counter == LFU_COUNTER_MAX) {
+            return counter;
+        }
+        int base = Math.max(0, counter - LFU_INIT_VAL);
+        double probability = 1.0 / (base * LFU_LOG_FACTOR + 1);
+        return ThreadLocalRandom.current().nextDouble() < probability ? counter + 1 : counter;
+    }
+}
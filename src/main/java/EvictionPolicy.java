@@ -0,0 +1,41 @@
+/**
+ * Qué claves se desalojan al pasar de maxmemory (maxmemory-policy de Redis)
+ */
+public enum EvictionPolicy {
+    NOEVICTION("noeviction"),       // ninguna: las escrituras fallan con OOM
+    ALLKEYS_LRU("allkeys-lru"),     // la usada hace más tiempo, entre todas
+    VOLATILE_LRU("volatile-lru"),   // la usada hace más tiempo, entre las que tienen TTL
+    ALLKEYS_LFU("allkeys-lfu"),     // la menos usada, entre todas
+    VOLATILE_TTL("volatile-ttl");   // la que caduca antes
+
+    private final String name;
+
+    EvictionPolicy(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * true si la ranura guarda el contador LFU en lugar del reloj LRU
+     */
+    public boolean isLfu() {
+        return this == ALLKEYS_LFU;
+    }
+
+    /**
+     * true si solo se desalojan claves con TTL
+     */
+    public boolean isVolatile() {
+        return this == VOLATILE_LRU || this == VOLATILE_TTL;
+    }
+
+    public static EvictionPolicy fromName(String name) {
+        for (EvictionPolicy policy : values()) {
+            if (policy.name.equalsIgnoreCase(name)) return policy;
+        }
+        throw new IllegalArgumentException("maxmemory-policy inválido: " + name);
+    }
+}
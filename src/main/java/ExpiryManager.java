@@ -0,0 +1,153 @@
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Expiración activa de claves.
+ *
+ * El instante de expiración de cada clave vive en su entrada del Keyspace, que también
+ * aplica la expiración perezosa en cada acceso. Aquí solo está la rueda de temporización
+ * (hashed timer wheel) que cada TICK_MS revisa las claves cuyo plazo cae en la ranura
+ * actual, con un presupuesto de tiempo acotado por tick, como el active expire cycle de Redis.
+ *
+ * Sobrescribir o persistir una clave solo cambia su plazo en la entrada; las entradas
+ * antiguas de la rueda se descartan al comprobar que ya no coinciden, así que nunca
+ * borran un valor nuevo
+ */
+public class ExpiryManager {
+
+    private static final long TICK_MS = 10;
+    private static final int WHEEL_SIZE = 1024;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    // como Redis, la expiración activa no usa más del 25% de cada tick
+    private static final long TICK_BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(TICK_MS) / 4;
+    private static final int BUDGET_CHECK_INTERVAL = 64;
+
+    private final Keyspace keyspace;
+    private final Slot[] wheel = new Slot[WHEEL_SIZE];
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "expire-cycle");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // estado del ciclo activo, solo lo toca el hilo del ticker
+    private long nextTick = System.currentTimeMillis() / TICK_MS;
+    private ArrayList<WheelEntry> draining;
+    private int drainIndex;
+
+    public ExpiryManager(Keyspace keyspace) {
+        this.keyspace = keyspace;
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel[i] = new Slot();
+        }
+    }
+
+    public void start() {
+        ticker.scheduleAtFixedRate(this::runActiveCycle, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        ticker.shutdown();
+    }
+
+    /**
+     * Programa la revisión de la clave en su instante de expiración
+     *
+     * @param key copia de la clave (la rueda la conserva)
+     */
+    public void schedule(byte[] key, long deadlineMillis) {
+        schedule(new WheelEntry(key, deadlineMillis));
+    }
+
+    private void schedule(WheelEntry entry) {
+        Slot slot = wheel[(int) ((entry.deadline / TICK_MS) & WHEEL_MASK)];
+        slot.lock.lock();
+        try {
+            slot.entries.add(entry);
+        } finally {
+            slot.lock.unlock();
+        }
+    }
+
+    /**
+     * Recorre las ranuras vencidas desde el último tick. Si se agota el presupuesto
+     * deja la ranura a medias y continúa en el siguiente tick.
+     * La ranura del tick en curso no se toca hasta que termine: sus claves aún no han
+     * vencido todas y, reprogramadas en ella misma, no se volverían a ver hasta la
+     * siguiente vuelta de la rueda
+     */
+    private void runActiveCycle() {
+        try {
+            long now = System.currentTimeMillis();
+            long currentTick = now / TICK_MS;
+            long budgetEnd = System.nanoTime() + TICK_BUDGET_NANOS;
+            // tras una pausa larga basta con dar una vuelta completa a la rueda
+            if (draining == null && currentTick - nextTick > WHEEL_SIZE) {
+                nextTick = currentTick - WHEEL_SIZE;
+            }
+            while (nextTick < currentTick) {
+                if (!drainSlot(nextTick, now, budgetEnd)) {
+                    return;
+                }
+                nextTick++;
+            }
+        } catch (RuntimeException e) {
+            Log.warning("Error en el ciclo de expiración: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return true si la ranura quedó procesada entera
+     */
+    private boolean drainSlot(long tick, long now, long budgetEnd) {
+        if (draining == null) {
+            Slot slot = wheel[(int) (tick & WHEEL_MASK)];
+            slot.lock.lock();
+            try {
+                draining = slot.entries;
+                slot.entries = new ArrayList<>();
+            } finally {
+                slot.lock.unlock();
+            }
+            drainIndex = 0;
+        }
+
+        while (drainIndex < draining.size()) {
+            WheelEntry entry = draining.get(drainIndex++);
+            if (entry.deadline > now) {
+                // la ranura ya pasó: vence en una vuelta posterior, si la clave no ha cambiado
+                if (keyspace.hasDeadline(entry.key, entry.deadline)) {
+                    schedule(entry);
+                }
+            } else {
+                keyspace.expireIfDue(entry.key, entry.deadline);
+            }
+            if (drainIndex % BUDGET_CHECK_INTERVAL == 0 && System.nanoTime() > budgetEnd) {
+                return false;
+            }
+        }
+        draining = null;
+        return true;
+    }
+
+    /**
+     * Ranura de la rueda: claves cuyo plazo cae en ella, en cualquier vuelta
+     */
+    private static class Slot {
+        final ReentrantLock lock = new ReentrantLock();
+        ArrayList<WheelEntry> entries = new ArrayList<>();
+    }
+
+    private static class WheelEntry {
+        final byte[] key;
+        final long deadline;
+
+        WheelEntry(byte[] key, long deadline) {
+            this.key = key;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Patrón glob de KEYS/SCAN compilado una vez: '*', '?', clases '[abc]', '[^a-z]'
+ * y '\' para escapar. Compara bytes, como stringmatchlen de Redis.
+ *
+ * Cada elemento salvo '*' consume exactamente un byte, así que basta con recordar el
+ * último '*' para retroceder: el coste es O(patrón × clave) en el peor caso, sin la
+ * explosión exponencial del backtracking recursivo
+ */
+public class GlobPattern {
+
+    private static final int LITERAL = 0;
+    private static final int ANY_ONE = 1;
+    private static final int ANY_SEQUENCE = 2;
+    private static final int CLASS = 3;
+
+    private final int[] types;
+    private final byte[] literals;
+    private final boolean[][] classes;
+    private final boolean matchAll;
+    private final byte[] exact;     // patrón sin comodines, o null
+
+    private GlobPattern(int[] types, byte[] literals, boolean[][] classes) {
+        this.types = types;
+        this.literals = literals;
+        this.classes = classes;
+        boolean onlyStars = true;
+        boolean onlyLiterals = true;
+        for (int type : types) {
+            onlyStars &= type == ANY_SEQUENCE;
+            onlyLiterals &= type == LITERAL;
+        }
+        this.matchAll = onlyStars && types.length > 0;
+        this.exact = onlyLiterals ? literals : null;
+    }
+
+    public static GlobPattern compile(byte[] pattern) {
+        List<Integer> types = new ArrayList<>();
+        List<Byte> literals = new ArrayList<>();
+        List<boolean[]> classes = new ArrayList<>();
+        int i = 0;
+        while (i < pattern.length) {
+            byte c = pattern[i];
+            switch (c) {
+                case '*':
+                    // varios '*' seguidos equivalen a uno
+                    if (types.isEmpty() || types.get(types.size() - 1) != ANY_SEQUENCE) {
+                        add(types, literals, classes, ANY_SEQUENCE, (byte) 0, null);
+                    }
+                    i++;
+                    break;
+                case '?':
+                    add(types, literals, classes, ANY_ONE, (byte) 0, null);
+                    i++;
+                    break;
+                case '[':
+                    boolean[] set = new boolean[256];
+                    i = parseClass(pattern, i + 1, set);
+                    add(types, literals, classes, CLASS, (byte) 0, set);
+                    break;
+                case '\\':
+                    if (i + 1 < pattern.length) {
+                        i++;
+                    }
+                    add(types, literals, classes, LITERAL, pattern[i], null);
+                    i++;
+                    break;
+                default:
+                    add(types, literals, classes, LITERAL, c, null);
+                    i++;
+                    break;
+            }
+        }
+        int[] typeArray = new int[types.size()];
+        byte[] literalArray = new byte[types.size()];
+        for (int j = 0; j < typeArray.length; j++) {
+            typeArray[j] = types.get(j);
+            literalArray[j] = literals.get(j);
+        }
+        return new GlobPattern(typeArray, literalArray, classes.toArray(new boolean[0][]));
+    }
+
+    public static GlobPattern compile(String pattern) {
+        return compile(pattern.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * true si el patrón acepta cualquier clave ("*")
+     */
+    public boolean matchesAll() {
+        return matchAll;
+    }
+
+    /**
+     * Si el patrón no tiene comodines devuelve la única clave que acepta, si no null
+     */
+    public byte[] exactKey() {
+        return exact;
+    }
+
+    public boolean matches(String key) {
+        return matchAll || matches(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public boolean matches(byte[] key) {
+        return matches(key, 0, key.length);
+    }
+
+    public boolean matches(byte[] key, int offset, int length) {
+        if (matchAll) {
+            return true;
+        }
+        int p = 0;
+        int s = 0;
+        int starP = -1;     // posición tras el último '*' visto
+        int starS = 0;      // byte de la clave donde se probó ese '*'
+        while (s < length) {
+            if (p < types.length && types[p] != ANY_SEQUENCE && matchesOne(p, key[offset + s])) {
+                p++;
+                s++;
+            } else if (p < types.length && types[p] == ANY_SEQUENCE) {
+                starP = ++p;
+                starS = s;
+            } else if (starP >= 0) {
+                // el '*' absorbe un byte más y se reintenta
+                p = starP;
+                s = ++starS;
+            } else {
+                return false;
+            }
+        }
+        while (p < types.length && types[p] == ANY_SEQUENCE) {
+            p++;
+        }
+        return p == types.length;
+    }
+
+    private boolean matchesOne(int p, byte b) {
+        switch (types[p]) {
+            case LITERAL:
+                return literals[p] == b;
+            case ANY_ONE:
+                return true;
+            case CLASS:
+                return classes[p][b & 0xFF];
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Lee una clase [...] a partir de start (tras el '[') y marca en set los bytes que acepta
+     *
+     * @return posición tras el ']' de cierre
+     */
+    private static int parseClass(byte[] pattern, int start, boolean[] set) {
+        int i = start;
+        boolean negate = i < pattern.length && pattern[i] == '^';
+        if (negate) {
+            i++;
+        }
+        while (i < pattern.length && pattern[i] != ']') {
+            if (pattern[i] == '\\' && i + 1 < pattern.length) {
+                set[pattern[i + 1] & 0xFF] = true;
+                i += 2;
+            } else if (i + 2 < pattern.length && pattern[i + 1] == '-' && pattern[i + 2] != ']') {
+                int from = pattern[i] & 0xFF;
+                int to = pattern[i + 2] & 0xFF;
+                if (from > to) {
+                    int swap = from;
+                    from = to;
+                    to = swap;
+                }
+                for (int b = from; b <= to; b++) {
+                    set[b] = true;
+                }
+                i += 3;
+            } else {
+                set[pattern[i] & 0xFF] = true;
+                i++;
+            }
+        }
+        if (negate) {
+            for (int b = 0; b < set.length; b++) {
+                set[b] = !set[b];
+            }
+        }
+        // como Redis, una clase sin cerrar llega hasta el final del patrón
+        return i < pattern.length ? i + 1 : i;
+    }
+
+    private static void add(List<Integer> types, List<Byte> literals, List<boolean[]> classes,
+                            int type, byte literal, boolean[] set) {
+        types.add(type);
+        literals.add(literal);
+        classes.add(set);
+    }
+}
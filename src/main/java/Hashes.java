@@ -0,0 +1,173 @@
+import java.util.Map;
+
+/**
+ * Operaciones de los hashes sobre la ranura de su clave, con el lock del shard ya
+ * tomado (ver Keyspace). Un hash pequeño es un listpack de campos y valores alternos
+ * dentro de la propia entrada; al pasar de MAX_LISTPACK_ENTRIES campos o de
+ * MAX_LISTPACK_VALUE bytes en un campo o valor se convierte en un LargeHash, como
+ * hash-max-listpack-entries / hash-max-listpack-value de Redis
+ */
+public final class Hashes {
+
+    static final int MAX_LISTPACK_ENTRIES = 128;
+    static final int MAX_LISTPACK_VALUE = 64;
+
+    private Hashes() {
+    }
+
+    /**
+     * HSET key field value [field value ...]
+     *
+     * @param slot ranura de la clave o -1 si no existe
+     * @return campos nuevos
+     */
+    static long set(KeyTable table, int slot, int hash, CommandArgs args, int keyIndex, int first) {
+        byte[] entry = slot < 0 ? null : table.entryAt(slot);
+        if (entry != null && Entries.isObject(entry)) {
+            table.beforeMutate(slot);
+            return putAll((LargeHash) table.valueAt(slot), args, first);
+        }
+        byte[] lp = entry == null ? Listpack.EMPTY : entry;
+        int base = entry == null ? 0 : Entries.valueOffset(entry);
+        long added = 0;
+        if (argumentsFit(args, first)) {
+            byte[] buffer = args.buffer();
+            for (int i = first; i < args.count(); i += 2) {
+                int field = Listpack.find(lp, base, buffer, args.offset(i), args.length(i), 2);
+                Listpack.Builder insert = new Listpack.Builder();
+                if (field < 0) {
+                    insert.add(buffer, args.offset(i), args.length(i)).add(buffer, args.offset(i + 1), args.length(i + 1));
+                    int end = Listpack.end(lp, base);
+                    lp = Listpack.splice(lp, base, end, end, 0, insert.build());
+                    added++;
+                } else {
+                    insert.add(buffer, args.offset(i + 1), args.length(i + 1));
+                    int value = Listpack.next(lp, field);
+                    lp = Listpack.splice(lp, base, value, Listpack.next(lp, value), 1, insert.build());
+                }
+                base = 0;
+            }
+            if (Listpack.count(lp, 0) / 2 <= MAX_LISTPACK_ENTRIES) {
+                Keyspace.storeListpack(table, slot, hash, args, keyIndex, Entries.TYPE_HASH, lp);
+                return added;
+            }
+            Keyspace.storeObject(table, slot, hash, args, keyIndex, Entries.TYPE_HASH, LargeHash.fromListpack(lp, 0));
+            return added;
+        }
+        LargeHash large = LargeHash.fromListpack(lp, base);
+        added = putAll(large, args, first);
+        Keyspace.storeObject(table, slot, hash, args, keyIndex, Entries.TYPE_HASH, large);
+        return added;
+    }
+
+    /**
+     * HGET: escribe el valor del campo o null
+     */
+    static void get(byte[] entry, LargeValue value, CommandArgs args, int fieldIndex, RespWriter out) {
+        if (entry == null) {
+            out.writeNullBulk();
+        } else if (value != null) {
+            byte[] found = ((LargeHash) value).get(args.buffer(), args.offset(fieldIndex), args.length(fieldIndex));
+            if (found == null) {
+                out.writeNullBulk();
+            } else {
+                out.writeBulk(found);
+            }
+        } else {
+            int base = Entries.valueOffset(entry);
+            int field = Listpack.find(entry, base, args.buffer(), args.offset(fieldIndex), args.length(fieldIndex), 2);
+            if (field < 0) {
+                out.writeNullBulk();
+            } else {
+                Listpack.write(entry, Listpack.next(entry, field), out);
+            }
+        }
+    }
+
+    /**
+     * HGETALL: campos y valores alternos
+     */
+    static void getAll(byte[] entry, LargeValue value, RespWriter out) {
+        if (entry == null) {
+            out.writeRaw(RespWriter.EMPTY_ARRAY);
+        } else if (value != null) {
+            out.writeArrayHeader(value.size() * 2);
+            for (Map.Entry<Bytes, byte[]> field : ((LargeHash) value).entries()) {
+                out.writeBulk(field.getKey().data());
+                out.writeBulk(field.getValue());
+            }
+        } else {
+            Listpack.writeAll(entry, Entries.valueOffset(entry), out);
+        }
+    }
+
+    /**
+     * HDEL key field [field ...]; borra la clave si se queda vacío
+     *
+     * @return campos borrados
+     */
+    static long delete(KeyTable table, int slot, CommandArgs args, int first) {
+        if (slot < 0) {
+            return 0;
+        }
+        byte[] entry = table.entryAt(slot);
+        long removed = 0;
+        if (Entries.isObject(entry)) {
+            LargeHash large = (LargeHash) table.valueAt(slot);
+            table.beforeMutate(slot);
+            for (int i = first; i < args.count(); i++) {
+                if (large.remove(args.buffer(), args.offset(i), args.length(i))) {
+                    removed++;
+                }
+            }
+            if (large.size() == 0) {
+                table.removeAt(slot);
+            }
+            return removed;
+        }
+        byte[] lp = entry;
+        int base = Entries.valueOffset(entry);
+        for (int i = first; i < args.count(); i++) {
+            int field = Listpack.find(lp, base, args.buffer(), args.offset(i), args.length(i), 2);
+            if (field >= 0) {
+                lp = Listpack.splice(lp, base, field, Listpack.next(lp, Listpack.next(lp, field)), 2, null);
+                base = 0;
+                removed++;
+            }
+        }
+        if (removed > 0) {
+            if (Listpack.count(lp, 0) == 0) {
+                table.removeAt(slot);
+            } else {
+                table.replaceAt(slot, Entries.withListpack(entry, lp));
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * true si un listpack de campos y valores puede quedarse como hash pequeño
+     */
+    static boolean fitsListpack(byte[] lp, int base) {
+        return Listpack.count(lp, base) / 2 <= MAX_LISTPACK_ENTRIES && Keyspace.elementsFit(lp, base, MAX_LISTPACK_VALUE);
+    }
+
+    private static boolean argumentsFit(CommandArgs args, int first) {
+        for (int i = first; i < args.count(); i++) {
+            if (args.length(i) > MAX_LISTPACK_VALUE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long putAll(LargeHash large, CommandArgs args, int first) {
+        long added = 0;
+        for (int i = first; i < args.count(); i += 2) {
+            if (large.put(Bytes.copyOf(args.buffer(), args.offset(i), args.length(i)), args.toBytes(i + 1))) {
+                added++;
+            }
+        }
+        return added;
+    }
+}
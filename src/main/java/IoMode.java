@@ -0,0 +1,26 @@
+/**
+ * Modos de entrada/salida soportados por el servidor
+ */
+public enum IoMode {
+    BLOCKING("blocking"),   // un hilo de plataforma por cliente
+    POOL("pool"),           // pool acotado de hilos de plataforma, un cliente por hilo
+    VIRTUAL("virtual"),     // un hilo virtual por cliente
+    NIO("nio");             // bucles de eventos con Selector
+
+    private final String name;
+
+    IoMode(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public static IoMode fromName(String name) {
+        for (IoMode mode : values()) {
+            if (mode.name.equalsIgnoreCase(name)) return mode;
+        }
+        throw new IllegalArgumentException("Modo de I/O inválido: " + name);
+    }
+}
@@ -0,0 +1,597 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+/**
+ * Tabla hash de direccionamiento abierto (sondeo lineal) con claves y valores en
+ * entradas byte[] (ver Entries). Guarda el hash de cada ranura en un int[] paralelo
+ * para comparar claves sin tocar la entrada, y borra desplazando hacia atrás en lugar
+ * de dejar lápidas.
+ *
+ * Frente a un ConcurrentHashMap<String, byte[]> ahorra el nodo, el String y su array
+ * por clave: cada clave cuesta su entrada más unos 8 bytes de ranura.
+ *
+ * Las colecciones grandes (FLAG_OBJECT) guardan su estructura en un array de valores
+ * paralelo, que solo se crea cuando aparece la primera.
+ *
+ * Otro int[] paralelo guarda el acceso de cada clave para el desalojo (reloj LRU o
+ * contador LFU, ver Eviction), y la tabla lleva la cuenta de su memoria estimada
+ * según cambian las entradas y las estructuras (memoryUsage).
+ *
+ * Para WATCH cada escritura sube un contador de versión elegido por el hash de la clave
+ * (ver version); se suben en los mismos puntos por los que pasa la foto: inserción,
+ * sustitución, borrado, modificación en sitio y clear.
+ *
+ * En modo cluster lleva además las claves de cada hash slot (ver SlotIndex), que se
+ * actualizan en la inserción, el borrado y clear.
+ *
+ * No es thread-safe: Keyspace la protege con un lock
+ */
+public class KeyTable {
+
+    private static final int MIN_CAPACITY = 16;
+    private static final int MAX_CAPACITY = 1 << 30;
+    // por ranura: hash, referencia a la entrada (comprimida) y acceso
+    private static final long SLOT_BYTES = 4 + 4 + 4;
+    // la muestra para el desalojo mira como mucho estas ranuras por clave pedida
+    private static final int SAMPLE_STEPS_PER_KEY = 10;
+    // franjas de versiones por tabla; con 64 shards son 16384 en total
+    private static final int VERSION_STRIPES = 256;
+    private static final VarHandle LONG_LE =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private int[] hashes;
+    private byte[][] entries;
+    private LargeValue[] values;
+    private int[] access;
+    private int mask;
+    private int size;
+    private long expires;   // entradas con TTL
+    private long memory;    // entradas y estructuras, sin las ranuras
+    private final Eviction eviction;
+    private final long[] versions = new long[VERSION_STRIPES];
+    // null salvo en modo cluster
+    private SlotIndex slotIndex;
+
+    // estado de la foto en curso (ver beginSnapshot)
+    private int parity;
+    private boolean snapshotActive;
+    private long unvisited;
+    private List<byte[]> preserved;
+
+    public KeyTable(Eviction eviction) {
+        this.eviction = eviction;
+        allocate(MIN_CAPACITY);
+    }
+
+    /**
+     * Hash de los bytes de una clave: lee de 8 en 8 y mezcla al final
+     */
+    public static int hash(byte[] key, int offset, int length) {
+        long h = 0x9E3779B97F4A7C15L ^ length;
+        int i = offset;
+        int end = offset + length;
+        for (; i + 8 <= end; i += 8) {
+            h = (h ^ (long) LONG_LE.get(key, i)) * 0xBF58476D1CE4E5B9L;
+            h ^= h >>> 31;
+        }
+        for (; i < end; i++) {
+            h = (h ^ (key[i] & 0xFF)) * 0x94D049BB133111EBL;
+        }
+        h ^= h >>> 29;
+        h *= 0xBF58476D1CE4E5B9L;
+        h ^= h >>> 32;
+        return (int) h;
+    }
+
+    public static int hash(byte[] entry) {
+        return hash(entry, Entries.keyOffset(entry), Entries.keyLength(entry));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long expires() {
+        return expires;
+    }
+
+    public int capacity() {
+        return entries.length;
+    }
+
+    /**
+     * Memoria estimada de la tabla: entradas, estructuras de las colecciones grandes
+     * (tal como se contaron en su último account) y arrays de ranuras
+     */
+    public long memoryUsage() {
+        return memory + entries.length * (SLOT_BYTES + (values != null ? 4 : 0));
+    }
+
+    /**
+     * Empieza a llevar las claves de cada hash slot, con las que ya tenga la tabla
+     */
+    public void enableSlotIndex() {
+        if (slotIndex == null) {
+            slotIndex = new SlotIndex();
+            forEach(slotIndex::add);
+        }
+    }
+
+    /**
+     * @return las claves por hash slot o null fuera de modo cluster
+     */
+    public SlotIndex slotIndex() {
+        return slotIndex;
+    }
+
+    /**
+     * Versión de las claves con este hash para WATCH. Va por franjas, no por clave, para
+     * no gastar memoria en cada entrada: escribir otra clave de la misma franja también la
+     * cambia, así que un EXEC puede abortar de más pero nunca deja pasar una escritura
+     */
+    public long version(int hash) {
+        return versions[hash & (VERSION_STRIPES - 1)];
+    }
+
+    /**
+     * @return la ranura de la clave o -1 si no está
+     */
+    public int find(byte[] key, int offset, int length, int hash) {
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            byte[] entry = entries[slot];
+            if (entry == null) {
+                return -1;
+            }
+            if (hashes[slot] == hash && Entries.keyEquals(entry, key, offset, length)) {
+                return slot;
+            }
+        }
+    }
+
+    public byte[] get(byte[] key, int offset, int length, int hash) {
+        int slot = find(key, offset, length, hash);
+        return slot < 0 ? null : entries[slot];
+    }
+
+    public byte[] entryAt(int slot) {
+        return entries[slot];
+    }
+
+    /**
+     * Marca un acceso a la clave de la ranura. Se llama también con el lock de lectura:
+     * solo escribe si el valor cambia, y si dos hilos coinciden se pierde uno de los dos
+     * accesos, que para un LRU/LFU aproximado no importa
+     */
+    public void touch(int slot) {
+        int current = access[slot];
+        int next = eviction.touch(current);
+        if (next != current) {
+            access[slot] = next;
+        }
+    }
+
+    public int accessAt(int slot) {
+        return access[slot];
+    }
+
+    public void setAccess(int slot, int value) {
+        access[slot] = value;
+    }
+
+    /**
+     * Vuelve a contar la memoria de la colección grande de la ranura tras modificarla en sitio
+     */
+    public void account(int slot) {
+        LargeValue value = valueAt(slot);
+        if (value != null) {
+            long usage = value.memoryUsage();
+            memory += usage - value.accountedBytes;
+            value.accountedBytes = usage;
+        }
+    }
+
+    /**
+     * Estructura de la colección grande de la ranura, o null
+     */
+    public LargeValue valueAt(int slot) {
+        return values == null ? null : values[slot];
+    }
+
+    /**
+     * Inserta la entrada o sustituye la de la misma clave
+     *
+     * @return la entrada anterior o null
+     */
+    public byte[] put(byte[] entry, int hash) {
+        return put(entry, null, hash);
+    }
+
+    /**
+     * Inserta una entrada con la estructura de su colección grande (o null)
+     *
+     * @return la entrada anterior o null
+     */
+    public byte[] put(byte[] entry, LargeValue value, int hash) {
+        int keyOffset = Entries.keyOffset(entry);
+        int keyLength = Entries.keyLength(entry);
+        int slot = hash & mask;
+        for (; entries[slot] != null; slot = (slot + 1) & mask) {
+            if (hashes[slot] == hash && Entries.keyEquals(entries[slot], entry, keyOffset, keyLength)) {
+                return replaceAt(slot, entry, value);
+            }
+        }
+        stamp(entry);
+        bumpVersion(hash);
+        if (slotIndex != null) {
+            slotIndex.add(entry);
+        }
+        entries[slot] = entry;
+        hashes[slot] = hash;
+        access[slot] = eviction.initialAccess();
+        memory += LargeValue.arrayBytes(entry.length);
+        setValue(slot, value);
+        size++;
+        if (Entries.hasExpire(entry)) {
+            expires++;
+        }
+        if (size * 4L >= entries.length * 3L) {
+            resize(entries.length * 2);
+        }
+        return null;
+    }
+
+    /**
+     * Sustituye la entrada de una ranura ocupada por otra de la misma clave. Si la nueva
+     * es también de una colección grande (p. ej. con otro TTL) conserva su estructura
+     *
+     * @return la entrada anterior
+     */
+    public byte[] replaceAt(int slot, byte[] entry) {
+        return replaceAt(slot, entry, Entries.isObject(entry) ? valueAt(slot) : null);
+    }
+
+    public byte[] replaceAt(int slot, byte[] entry, LargeValue value) {
+        byte[] old = entries[slot];
+        beforeOverwrite(slot);
+        bumpVersion(hashes[slot]);
+        stamp(entry);
+        entries[slot] = entry;
+        memory += LargeValue.arrayBytes(entry.length) - LargeValue.arrayBytes(old.length);
+        setValue(slot, value);
+        touch(slot);
+        expires += (Entries.hasExpire(entry) ? 1 : 0) - (Entries.hasExpire(old) ? 1 : 0);
+        return old;
+    }
+
+    public byte[] remove(byte[] key, int offset, int length, int hash) {
+        int slot = find(key, offset, length, hash);
+        return slot < 0 ? null : removeAt(slot);
+    }
+
+    /**
+     * Borra la ranura y desplaza hacia atrás las entradas siguientes del mismo
+     * grupo para que ninguna búsqueda se corte en el hueco
+     *
+     * @return la entrada borrada
+     */
+    public byte[] removeAt(int slot) {
+        byte[] old = entries[slot];
+        beforeOverwrite(slot);
+        bumpVersion(hashes[slot]);
+        if (slotIndex != null) {
+            slotIndex.remove(old);
+        }
+        memory -= LargeValue.arrayBytes(old.length);
+        LargeValue removed = valueAt(slot);
+        if (removed != null) {
+            memory -= removed.accountedBytes;
+        }
+        size--;
+        if (Entries.hasExpire(old)) {
+            expires--;
+        }
+        int hole = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            if (entries[next] == null) {
+                break;
+            }
+            int home = hashes[next] & mask;
+            // la entrada puede ocupar el hueco si su posición ideal no está entre el hueco y ella
+            boolean movable = hole <= next ? (home <= hole || home > next) : (home <= hole && home > next);
+            if (movable) {
+                entries[hole] = entries[next];
+                hashes[hole] = hashes[next];
+                access[hole] = access[next];
+                if (values != null) {
+                    values[hole] = values[next];
+                }
+                hole = next;
+            }
+        }
+        entries[hole] = null;
+        hashes[hole] = 0;
+        access[hole] = 0;
+        if (values != null) {
+            values[hole] = null;
+        }
+        return old;
+    }
+
+    /**
+     * Reserva sitio para n claves sin tener que crecer
+     */
+    public void ensureCapacity(long n) {
+        long needed = Math.min(MAX_CAPACITY, n * 4 / 3 + 1);
+        if (needed > entries.length) {
+            resize((int) Math.min(MAX_CAPACITY, Long.highestOneBit(needed - 1) << 1));
+        }
+    }
+
+    /**
+     * Receptor de la muestra de sample()
+     */
+    @FunctionalInterface
+    public interface SampleSink {
+        void accept(byte[] entry, int access);
+    }
+
+    /**
+     * Muestra para el desalojo: pasa a sink hasta count entradas empezando en una ranura al
+     * azar y siguiendo en orden, como dictGetSomeKeys de Redis. Mira un número acotado de
+     * ranuras, proporcional a lo vacía que esté la tabla (o de claves con TTL si volatileOnly)
+     */
+    public void sample(int count, boolean volatileOnly, SampleSink sink) {
+        long candidates = volatileOnly ? expires : size;
+        if (candidates == 0) {
+            return;
+        }
+        long steps = Math.min(entries.length, count * SAMPLE_STEPS_PER_KEY * Math.max(1, entries.length / candidates));
+        int slot = ThreadLocalRandom.current().nextInt(entries.length);
+        int found = 0;
+        for (long i = 0; i < steps && found < count; i++, slot = (slot + 1) & mask) {
+            byte[] entry = entries[slot];
+            if (entry != null && (!volatileOnly || Entries.hasExpire(entry))) {
+                sink.accept(entry, access[slot]);
+                found++;
+            }
+        }
+    }
+
+    /**
+     * Vacía la tabla y vuelve a la capacidad mínima. Si hay una foto en curso se queda con
+     * las entradas que aún no ha recorrido, como si se hubieran borrado una a una
+     */
+    public void clear() {
+        if (snapshotActive) {
+            for (int slot = 0; slot < entries.length; slot++) {
+                if (entries[slot] != null) {
+                    beforeOverwrite(slot);
+                }
+            }
+        }
+        for (int stripe = 0; stripe < VERSION_STRIPES; stripe++) {
+            versions[stripe]++;
+        }
+        if (slotIndex != null) {
+            slotIndex.clear();
+        }
+        allocate(MIN_CAPACITY);
+        values = null;
+        size = 0;
+        expires = 0;
+        memory = 0;
+    }
+
+    public void forEach(Consumer<byte[]> action) {
+        for (byte[] entry : entries) {
+            if (entry != null) {
+                action.accept(entry);
+            }
+        }
+    }
+
+    /**
+     * Un paso de SCAN: visita los buckets (posición ideal hash & mask) desde el cursor
+     * y devuelve el siguiente. El cursor avanza con los bits invertidos, como en Redis,
+     * para que un cambio de tamaño entre llamadas no haga saltarse claves.
+     * Con sondeo lineal las entradas de un bucket están en el grupo que empieza en él
+     *
+     * @param maxBuckets buckets a visitar como mucho
+     * @return siguiente cursor, 0 al terminar
+     */
+    public long scan(long cursor, int maxBuckets, Consumer<byte[]> action) {
+        long v = cursor & mask;
+        for (int visited = 0; visited < maxBuckets; visited++) {
+            int bucket = (int) v;
+            for (int slot = bucket; entries[slot] != null; slot = (slot + 1) & mask) {
+                if ((hashes[slot] & mask) == bucket) {
+                    action.accept(entries[slot]);
+                }
+            }
+            v |= ~(long) mask;
+            v = Long.reverse(v);
+            v++;
+            v = Long.reverse(v);
+            if (v == 0) {
+                return 0;
+            }
+        }
+        return v;
+    }
+
+    // ---- fotos (SAVE/BGSAVE) ----
+    //
+    // Al empezar una foto se invierte la paridad de la tabla. Las entradas con la paridad
+    // antigua son las que aún no se han escrito: la foto las recorre marcándolas, y quien
+    // vaya a sustituir o borrar una de ellas la guarda antes en preserved (las entradas son
+    // inmutables, así que basta con la referencia). Las entradas nuevas nacen con la
+    // paridad actual y no forman parte de la foto. Cada entrada se escribe una sola vez
+    // aunque el borrado o un resize la cambie de ranura.
+    //
+    // Las colecciones grandes sí se modifican en sitio: la foto recibe una copia en listpack
+    // de su estado, hecha al recorrerla o, si alguien va a modificarla antes, en
+    // beforeMutate()
+
+    /**
+     * Empieza una foto de la tabla tal como está ahora
+     */
+    public void beginSnapshot() {
+        parity ^= Entries.FLAG_PARITY;
+        snapshotActive = true;
+        unvisited = size;
+        preserved = new ArrayList<>();
+    }
+
+    /**
+     * Entradas de la foto que quedan por recorrer en la tabla
+     */
+    public long snapshotRemaining() {
+        return unvisited;
+    }
+
+    /**
+     * Marca y devuelve en out las entradas pendientes de la foto en [start, start + count),
+     * y en outAccess (de al menos count posiciones) el acceso de cada una
+     *
+     * @return la siguiente ranura o -1 si se llegó al final de la tabla
+     */
+    public int snapshotChunk(int start, int count, List<byte[]> out, int[] outAccess) {
+        int end = Math.min(entries.length, start + count);
+        for (int slot = start; slot < end; slot++) {
+            byte[] entry = entries[slot];
+            if (entry != null && (entry[0] & Entries.FLAG_PARITY) != parity) {
+                entry[0] ^= Entries.FLAG_PARITY;
+                unvisited--;
+                outAccess[out.size()] = access[slot];
+                out.add(Entries.isObject(entry) ? materialize(slot) : entry);
+            }
+        }
+        return end < entries.length ? end : -1;
+    }
+
+    /**
+     * Termina la foto
+     *
+     * @return las entradas originales de la foto que se sustituyeron o borraron mientras duraba
+     */
+    public List<byte[]> endSnapshot() {
+        List<byte[]> result = preserved;
+        snapshotActive = false;
+        preserved = null;
+        return result;
+    }
+
+    /**
+     * Se llama antes de modificar en sitio la colección grande de una ranura: si la foto
+     * aún no la ha recorrido se queda con una copia de cómo está ahora. Cuenta también
+     * como escritura para WATCH
+     */
+    public void beforeMutate(int slot) {
+        byte[] entry = entries[slot];
+        bumpVersion(hashes[slot]);
+        if (snapshotActive && (entry[0] & Entries.FLAG_PARITY) != parity) {
+            preserved.add(materialize(slot));
+            entry[0] ^= Entries.FLAG_PARITY;
+            unvisited--;
+        }
+    }
+
+    private void bumpVersion(int hash) {
+        versions[hash & (VERSION_STRIPES - 1)]++;
+    }
+
+    private void beforeOverwrite(int slot) {
+        byte[] old = entries[slot];
+        if (snapshotActive && (old[0] & Entries.FLAG_PARITY) != parity) {
+            preserved.add(Entries.isObject(old) ? materialize(slot) : old);
+            unvisited--;
+        }
+    }
+
+    /**
+     * Entrada de la ranura con su colección, si es grande, copiada a un listpack, como
+     * la recibe la foto
+     */
+    public byte[] listpackEntryAt(int slot) {
+        return Entries.isObject(entries[slot]) ? materialize(slot) : entries[slot];
+    }
+
+    /**
+     * Entrada equivalente con la colección grande de la ranura copiada a un listpack
+     */
+    private byte[] materialize(int slot) {
+        return Entries.withListpack(entries[slot], values[slot].toListpack());
+    }
+
+    /**
+     * Pone la estructura de la ranura y pasa su memoria de la anterior a la nueva
+     */
+    private void setValue(int slot, LargeValue value) {
+        if (values == null && value != null) {
+            values = new LargeValue[entries.length];
+        }
+        if (values != null) {
+            LargeValue old = values[slot];
+            if (old != value) {
+                if (old != null) {
+                    memory -= old.accountedBytes;
+                }
+                if (value != null) {
+                    value.accountedBytes = value.memoryUsage();
+                    memory += value.accountedBytes;
+                }
+            }
+            values[slot] = value;
+        }
+    }
+
+    /**
+     * Pone a la entrada que se publica la paridad actual
+     */
+    private void stamp(byte[] entry) {
+        entry[0] = (byte) ((entry[0] & ~Entries.FLAG_PARITY) | parity);
+    }
+
+    private void resize(int capacity) {
+        if (capacity > MAX_CAPACITY || capacity <= entries.length) {
+            return;
+        }
+        int[] oldHashes = hashes;
+        byte[][] oldEntries = entries;
+        int[] oldAccess = access;
+        LargeValue[] oldValues = values;
+        allocate(capacity);
+        if (oldValues != null) {
+            values = new LargeValue[capacity];
+        }
+        for (int i = 0; i < oldEntries.length; i++) {
+            byte[] entry = oldEntries[i];
+            if (entry != null) {
+                int slot = oldHashes[i] & mask;
+                while (entries[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                entries[slot] = entry;
+                hashes[slot] = oldHashes[i];
+                access[slot] = oldAccess[i];
+                if (oldValues != null) {
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        hashes = new int[capacity];
+        entries = new byte[capacity][];
+        access = new int[capacity];
+        mask = capacity - 1;
+    }
+}
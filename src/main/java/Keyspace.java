@@ -0,0 +1,1360 @@
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Espacio de claves del servidor, repartido en shards independientes: cada uno es una
+ * KeyTable con su propio lock de lectura/escritura, y la clave va al shard que indican
+ * los bits altos de su hash (la tabla usa los bajos). Así las escrituras de claves
+ * distintas no compiten por un único lock. La expiración es perezosa en cada acceso y
+ * activa a través del ExpiryManager. El límite de memoria y el desalojo de claves están en
+ * Eviction, que muestrea las tablas de los shards.
+ *
+ * Los comandos de varias claves bloquean antes sus shards con lockKeys(), siempre en
+ * orden creciente para que dos comandos no se bloqueen mutuamente; como los locks son
+ * reentrantes, las operaciones de una clave se pueden seguir usando dentro. Las
+ * escrituras también, para registrarse en CommandLog en el orden en que se aplican.
+ *
+ * Las operaciones reciben la clave como trozo de un buffer (normalmente el de
+ * CommandArgs) para no crear arrays ni Strings en las búsquedas. Las entradas
+ * devueltas son inmutables y se pueden leer después de soltar el lock; las colecciones
+ * grandes no, así que los comandos de hashes, listas y sets escriben su respuesta con
+ * el lock tomado (ver Hashes, Lists y Sets)
+ */
+public class Keyspace {
+
+    /** getExpire(): la clave no existe */
+    public static final long NO_KEY = -2;
+    /** getExpire(): la clave existe pero no tiene TTL */
+    public static final long NO_EXPIRE = -1;
+    public static final int DEFAULT_SHARDS = 64;
+    /** set(): condiciones de escritura (NX / XX) */
+    public static final int SET_ALWAYS = 0;
+    public static final int SET_IF_ABSENT = 1;
+    public static final int SET_IF_PRESENT = 2;
+    // tamaño máximo de un string, como proto-max-bulk-len
+    private static final long MAX_STRING_LENGTH = 512L * 1024 * 1024;
+    // error de un comando sobre una clave de otro tipo
+    private static final String WRONG_TYPE = "Operation against a key holding the wrong kind of value";
+    private static final String NOT_AN_INTEGER = "value is not an integer or out of range";
+    private static final String NOT_A_FLOAT = "value is not a valid float";
+    private static final MathContext FLOAT_PRECISION = new MathContext(17);
+
+    private final Shard[] shards;
+    private final int shardBits;
+    private final ExpiryManager expiry = new ExpiryManager(this);
+    private final Eviction eviction = new Eviction(this);
+    private final LongAdder expiredKeys = new LongAdder();
+    // recibe cada clave desalojada con el lock de su shard tomado (para registrarla en CommandLog)
+    private volatile Consumer<byte[]> evictionListener = key -> { };
+
+    public Keyspace() {
+        this(DEFAULT_SHARDS);
+    }
+
+    /**
+     * @param shardCount número de shards, se redondea a potencia de 2
+     */
+    public Keyspace(int shardCount) {
+        int count = Integer.highestOneBit(Math.max(1, Math.min(shardCount, 1 << 16)) * 2 - 1);
+        this.shardBits = Integer.numberOfTrailingZeros(count);
+        this.shards = new Shard[count];
+        for (int i = 0; i < count; i++) {
+            shards[i] = new Shard(eviction);
+        }
+    }
+
+    public void start() {
+        expiry.start();
+    }
+
+    public void shutdown() {
+        expiry.shutdown();
+    }
+
+    public int shardCount() {
+        return shards.length;
+    }
+
+    public Eviction getEviction() {
+        return eviction;
+    }
+
+    /**
+     * Fija quién recibe las claves desalojadas por Eviction
+     */
+    public void setEvictionListener(Consumer<byte[]> listener) {
+        this.evictionListener = listener;
+    }
+
+    /**
+     * Reserva sitio para n claves (pista RESIZEDB del RDB), repartidas entre los shards
+     */
+    public void presize(long keys) {
+        long perShard = keys / shards.length + 1;
+        for (Shard shard : shards) {
+            shard.lock.writeLock().lock();
+            try {
+                shard.table.ensureCapacity(perShard);
+            } finally {
+                shard.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Inserta una entrada leída del RDB
+     *
+     * @param expireAt instante absoluto de expiración o -1
+     */
+    public void load(byte[] key, byte[] value, long expireAt) {
+        byte[] entry = Entries.create(key, 0, key.length, value, 0, value.length, expireAt);
+        int hash = KeyTable.hash(key, 0, key.length);
+        Shard shard = shardFor(hash);
+        shard.lock.writeLock().lock();
+        try {
+            shard.table.put(entry, hash);
+        } finally {
+            shard.lock.writeLock().unlock();
+        }
+        if (expireAt >= 0) {
+            expiry.schedule(key, expireAt);
+        }
+    }
+
+    /**
+     * Inserta una colección leída del RDB, con la codificación que le corresponde por tamaño
+     *
+     * @param type Entries.TYPE_LIST, TYPE_SET, TYPE_HASH o TYPE_ZSET
+     * @param elements elementos en orden (en un hash, campo y valor alternos; en un sorted
+     *                 set, miembro y score)
+     */
+    public void loadCollection(byte[] key, int type, List<byte[]> elements, long expireAt) {
+        Listpack.Builder builder = new Listpack.Builder();
+        for (byte[] element : elements) {
+            builder.add(element);
+        }
+        byte[] lp = builder.build();
+        byte[] entry;
+        LargeValue value = null;
+        // los sorted sets siempre van en su ZSet, sea cual sea su tamaño
+        if (type != Entries.TYPE_ZSET && fitsListpack(type, lp, 0)) {
+            entry = Entries.createListpack(key, 0, key.length, type, lp, expireAt);
+        } else {
+            entry = Entries.createObject(key, 0, key.length, type, expireAt);
+            value = toLarge(type, lp);
+        }
+        int hash = KeyTable.hash(key, 0, key.length);
+        Shard shard = shardFor(hash);
+        shard.lock.writeLock().lock();
+        try {
+            shard.table.put(entry, value, hash);
+        } finally {
+            shard.lock.writeLock().unlock();
+        }
+        if (expireAt >= 0) {
+            expiry.schedule(key, expireAt);
+        }
+    }
+
+    /**
+     * Aplica a una clave recién cargada los metadatos de acceso del RDB (opcodes IDLE y FREQ)
+     *
+     * @param idleSeconds segundos sin acceso o -1
+     * @param frequency contador LFU o -1
+     */
+    public void loadAccess(byte[] key, long idleSeconds, int frequency) {
+        int access = eviction.accessFromRdb(idleSeconds, frequency);
+        if (access == Eviction.NO_ACCESS) {
+            return;
+        }
+        int hash = KeyTable.hash(key, 0, key.length);
+        Shard shard = shardFor(hash);
+        shard.lock.writeLock().lock();
+        try {
+            int slot = shard.table.find(key, 0, key.length, hash);
+            if (slot >= 0) {
+                shard.table.setAccess(slot, access);
+            }
+        } finally {
+            shard.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return la entrada viva de la clave (de cualquier tipo) o null si no existe o ya caducó
+     */
+    public byte[] get(CommandArgs args, int i) {
+        return get(args.buffer(), args.offset(i), args.length(i));
+    }
+
+    public byte[] get(byte[] key, int offset, int length) {
+        int hash = KeyTable.hash(key, offset, length);
+        Shard shard = shardFor(hash);
+        byte[] entry;
+        shard.lock.readLock().lock();
+        try {
+            int slot = shard.table.find(key, offset, length, hash);
+            if (slot < 0) {
+                entry = null;
+            } else {
+                entry = shard.table.entryAt(slot);
+                shard.table.touch(slot);
+            }
+        } finally {
+            shard.lock.readLock().unlock();
+        }
+        if (entry != null && Entries.isExpired(entry, System.currentTimeMillis())) {
+            expireNow(shard, key, offset, length, hash);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Versión de la clave para WATCH: cambia cada vez que se escribe, se borra, caduca o
+     * se desaloja (ver KeyTable.version)
+     */
+    public long version(byte[] key) {
+        int hash = KeyTable.hash(key, 0, key.length);
+        Shard shard = shardFor(hash);
+        shard.lock.readLock().lock();
+        try {
+            return shard.table.version(hash);
+        } finally {
+            shard.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Como get(), pero una colección grande se devuelve copiada a un listpack, como en la
+     * foto, para poder recorrerla sin el lock (MIGRATE)
+     */
+    public byte[] getAsListpack(CommandArgs args, int i) {
+        byte[] key = args.buffer();
+        int offset = args.offset(i);
+        int length = args.length(i);
+        int hash = KeyTable.hash(key, offset, length);
+        Shard shard = shardFor(hash);
+        byte[] entry;
+        shard.lock.readLock().lock();
+        try {
+            int slot = shard.table.find(key, offset, length, hash);
+            entry = slot < 0 ? null : shard.table.listpackEntryAt(slot);
+        } finally {
+            shard.lock.readLock().unlock();
+        }
+        if (entry != null && Entries.isExpired(entry, System.currentTimeMillis())) {
+            expireNow(shard, key, offset, length, hash);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Como get(), pero la clave, si existe, tiene que ser un string
+     */
+    public byte[] getString(CommandArgs args, int i) {
+        byte[] entry = get(args, i);
+        if (entry != null && Entries.type(entry) != Entries.TYPE_STRING) {
+            throw new CommandException("WRONGTYPE", WRONG_TYPE);
+        }
+        return entry;
+    }
+
+    /**
+     * SET: guarda el valor con el TTL indicado, o conservando el anterior si keepTtl
+     *
+     * @param expireAt instante absoluto de expiración o -1 para quitarlo
+     */
+    public void set(CommandArgs args, int keyIndex, int valueIndex, long expireAt, boolean keepTtl) {
+        set(args, keyIndex, valueIndex, expireAt, keepTtl, SET_ALWAYS);
+    }
+
+    /**
+     * SET con condición (SET_IF_ABSENT para NX, SET_IF_PRESENT para XX)
+     *
+     * @return true si se escribió
+     */
+    public boolean set(CommandArgs args, int keyIndex, int valueIndex, long expireAt, boolean keepTtl, int condition) {
+        byte[] buffer = args.buffer();
+        int keyOffset = args.offset(keyIndex);
+        int keyLength = args.length(keyIndex);
+        int hash = KeyTable.hash(buffer, keyOffset, keyLength);
+        Shard shard = shardFor(hash);
+        long deadline = expireAt;
+        shard.lock.writeLock().lock();
+        try {
+            KeyTable table = shard.table;
+            int slot = liveSlot(table, buffer, keyOffset, keyLength, hash);
+            if (condition == SET_IF_ABSENT ? slot >= 0 : condition == SET_IF_PRESENT && slot < 0) {
+                return false;
+            }
+            if (keepTtl && slot >= 0) {
+                deadline = Entries.expireAt(table.entryAt(slot));
+            }
+            byte[] entry = Entries.create(buffer, keyOffset, keyLength,
+                    buffer, args.offset(valueIndex), args.length(valueIndex), deadline);
+            if (slot >= 0) {
+                table.replaceAt(slot, entry);
+            } else {
+                table.put(entry, hash);
+            }
+        } finally {
+            shard.lock.writeLock().unlock();
+        }
+        if (expireAt >= 0) {
+            expiry.schedule(args.toBytes(keyIndex), expireAt);
+        }
+        return true;
+    }
+
+    /**
+     * INCRBY y familia: suma delta al entero guardado (0 si no existe), conservando el TTL.
+     * El valor ya está en binario, así que no se parsea ni se formatea ningún String
+     *
+     * @return el nuevo valor
+     */
+    public long incrBy(CommandArgs args, int i, long delta) {
+        byte[] buffer = args.buffer();
+        int offset = args.offset(i);
+        int length = args.length(i);
+        int hash = KeyTable.hash(buffer, offset, length);
+        Shard shard = shardFor(hash);
+        shard.lock.writeLock().lock();
+        try {
+            KeyTable table = shard.table;
+            int slot = liveSlot(table, buffer, offset, length, hash);
+            if (slot < 0) {
+                table.put(Entries.createInt(buffer, offset, length, delta, -1), hash);
+                return delta;
+            }
+            byte[] entry = stringAt(table, slot);
+            // un valor en crudo nunca es un entero canónico: Entries.create lo habría codificado
+            if (!Entries.isInt(entry)) {
+                throw new CommandException(NOT_AN_INTEGER);
+            }
+            long value;
+            try {
+                value = Math.addExact(Entries.intValue(entry), delta);
+            } catch (ArithmeticException e) {
+                throw new CommandException("increment or decrement would overflow");
+            }
+            table.replaceAt(slot, Entries.withIntValue(entry, value));
+            return value;
+        } finally {
+            shard.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * INCRBYFLOAT: suma delta al valor como número decimal, conservando el TTL
+     *
+     * @return el nuevo valor tal como queda guardado
+     */
+    public byte[] incrByFloat(CommandArgs args, int i, double delta) {
+        byte[] buffer = args.buffer();
+        int offset = args.offset(i);
+        int length = args.length(i);
+        int hash = KeyTable.hash(buffer, offset, length);
+        Shard shard = shardFor(hash);
+        shard.lock.writeLock().lock();
+        try {
+            KeyTable table = shard.table;
+            int slot = liveSlot(table, buffer, offset, length, hash);
+            byte[] entry = slot < 0 ? null : stringAt(table, slot);
+            double current = entry == null ? 0 : parseDouble(Entries.value(entry));
+            double result = current + delta;
+            if (Double.isNaN(result) || Double.isInfinite(result)) {
+                throw new CommandException("increment would produce NaN or Infinity");
+            }
+            byte[] value = formatSum(current, delta);
+            if (entry == null) {
+                table.put(Entries.create(buffer, offset, length, value, 0, value.length, -1), hash);
+            } else {
+                table.replaceAt(slot, Entries.withValue(entry, value, 0, value.length));
+            }
+            return value;
+        } finally {
+            shard.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * APPEND: añade al final del valor (lo crea si no existe), conservando el TTL
+     *
+     * @return la nueva longitud
+     */
+    public long append(CommandArgs args, int keyIndex, int valueIndex) {
+        byte[] buffer = args.buffer();
+        int offset = args.offset(keyIndex);
+        int length = args.length(keyIndex);
+        int hash = KeyTable.hash(buffer, offset, length);
+        Shard shard = shardFor(hash);
+        shard.lock.writeLock().lock();
+        try {
+            KeyTable table = shard.table;
+            int slot = liveSlot(table, buffer, offset, length, hash);
+            if (slot < 0) {
+                byte[] entry = Entries.create(buffer, offset, length,
+                        buffer, args.offset(valueIndex), args.length(valueIndex), -1);
+                table.put(entry, hash);
+                return args.length(valueIndex);
+            }
+            byte[] entry = stringAt(table, slot);
+            byte[] current = Entries.value(entry);
+            long total = (long) current.length + args.length(valueIndex);
+            if (total > MAX_STRING_LENGTH) {
+                throw new CommandException("string exceeds maximum allowed size (proto-max-bulk-len)");
+            }
+            byte[] value = Arrays.copyOf(current, (int) total);
+            System.arraycopy(buffer, args.offset(valueIndex), value, current.length, args.length(valueIndex));
+            table.replaceAt(slot, Entries.withValue(entry, value, 0, value.length));
+            return total;
+        } finally {
+            shard.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * DEL de una clave
+     *
+     * @return true si existía (y no había caducado)
+     */
+    public boolean delete(CommandArgs args, int i) {
+        byte[] buffer = args.buffer();
+        int offset = args.offset(i);
+        int length = args.length(i);
+        int hash = KeyTable.hash(buffer, offset, length);
+        Shard shard = shardFor(hash);
+        shard.lock.writeLock().lock();
+        try {
+            int slot = liveSlot(shard.table, buffer, offset, length, hash);
+            if (slot < 0) {
+                return false;
+            }
+            shard.table.removeAt(slot);
+            return true;
+        } finally {
+            shard.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * GETDEL: devuelve la entrada viva y la borra
+     *
+     * @return la entrada borrada o null si no existía
+     */
+    public byte[] getDel(CommandArgs args, int i) {
+        byte[] buffer = args.buffer();
+        int offset = args.offset(i);
+        int length = args.length(i);
+        int hash = KeyTable.hash(buffer, offset, length);
+        Shard shard = shardFor(hash);
+        shard.lock.writeLock().lock();
+        try {
+            int slot = liveSlot(shard.table, buffer, offset, length, hash);
+            if (slot < 0) {
+                return null;
+            }
+            stringAt(shard.table, slot);
+            return shard.table.removeAt(slot);
+        } finally {
+            shard.lock.writeLock().unlock();
+        }
+    }
+
+    // ---- hashes, listas y sets ----
+
+    /**
+     * HSET
+     *
+     * @return campos nuevos
+     */
+    public long hset(CommandArgs args, int keyIndex, int first) {
+        return update(args, keyIndex, Entries.TYPE_HASH,
+                (table, slot, hash) -> Hashes.set(table, slot, hash, args, keyIndex, first));
+    }
+
+    /**
+     * HGET: escribe el valor o null
+     */
+    public void hget(CommandArgs args, int keyIndex, int fieldIndex, RespWriter out) {
+        read(args, keyIndex, Entries.TYPE_HASH, (entry, value) -> {
+            Hashes.get(entry, value, args, fieldIndex, out);
+            return null;
+        });
+    }
+
+    public void hgetAll(CommandArgs args, int keyIndex, RespWriter out) {
+        read(args, keyIndex, Entries.TYPE_HASH, (entry, value) -> {
+            Hashes.getAll(entry, value, out);
+            return null;
+        });
+    }
+
+    /**
+     * HDEL
+     *
+     * @return campos borrados
+     */
+    public long hdel(CommandArgs args, int keyIndex, int first) {
+        return update(args, keyIndex, Entries.TYPE_HASH,
+                (table, slot, hash) -> Hashes.delete(table, slot, args, first));
+    }
+
+    /**
+     * LPUSH / RPUSH
+     *
+     * @return la nueva longitud
+     */
+    public long push(CommandArgs args, int keyIndex, int first, boolean head) {
+        return update(args, keyIndex, Entries.TYPE_LIST,
+                (table, slot, hash) -> Lists.push(table, slot, hash, args, keyIndex, first, head));
+    }
+
+    /**
+     * LPOP / RPOP
+     *
+     * @return los elementos quitados o null si la clave no existe
+     */
+    public List<byte[]> pop(CommandArgs args, int keyIndex, long count, boolean head) {
+        return update(args, keyIndex, Entries.TYPE_LIST,
+                (table, slot, hash) -> Lists.pop(table, slot, count, head));
+    }
+
+    /**
+     * LLEN: 0 si la clave no existe
+     */
+    public long llen(CommandArgs args, int keyIndex) {
+        return read(args, keyIndex, Entries.TYPE_LIST, (entry, value) -> entry == null ? 0L
+                : value != null ? (long) value.size() : (long) Listpack.count(entry, Entries.valueOffset(entry)));
+    }
+
+    /**
+     * LMOVE: pasa un elemento de un extremo de la lista origen a un extremo de la destino
+     * (que puede ser la misma). Se llama con los shards de las dos claves bloqueados
+     *
+     * @return el elemento movido o null si el origen no existe
+     */
+    public byte[] move(CommandArgs args, int sourceIndex, int destinationIndex, boolean fromHead, boolean toHead) {
+        // el destino se comprueba antes de sacar nada del origen
+        byte[] destination = get(args, destinationIndex);
+        if (destination != null && Entries.type(destination) != Entries.TYPE_LIST) {
+            throw new CommandException("WRONGTYPE", WRONG_TYPE);
+        }
+        List<byte[]> popped = pop(args, sourceIndex, 1, fromHead);
+        if (popped == null || popped.isEmpty()) {
+            return null;
+        }
+        byte[] element = popped.get(0);
+        push(CommandArgs.of(args.toBytes(destinationIndex), element), 0, 1, toHead);
+        return element;
+    }
+
+    public void lrange(CommandArgs args, int keyIndex, long start, long stop, RespWriter out) {
+        read(args, keyIndex, Entries.TYPE_LIST, (entry, value) -> {
+            Lists.range(entry, value, start, stop, out);
+            return null;
+        });
+    }
+
+    /**
+     * SADD
+     *
+     * @return miembros nuevos
+     */
+    public long sadd(CommandArgs args, int keyIndex, int first) {
+        return update(args, keyIndex, Entries.TYPE_SET,
+                (table, slot, hash) -> Sets.add(table, slot, hash, args, keyIndex, first));
+    }
+
+    public void smembers(CommandArgs args, int keyIndex, RespWriter out) {
+        read(args, keyIndex, Entries.TYPE_SET, (entry, value) -> {
+            Sets.members(entry, value, out);
+            return null;
+        });
+    }
+
+    public boolean sismember(CommandArgs args, int keyIndex, int memberIndex) {
+        return read(args, keyIndex, Entries.TYPE_SET,
+                (entry, value) -> Sets.isMember(entry, value, args, memberIndex));
+    }
+
+    /**
+     * ZADD
+     *
+     * @param scores scores ya validados, uno por par score-miembro desde first
+     * @param flags SortedSets.ADD_*
+     * @return miembros nuevos y cambiados; la respuesta sale de AddResult.reply(flags)
+     */
+    public SortedSets.AddResult zadd(CommandArgs args, int keyIndex, int first, double[] scores, int flags) {
+        return update(args, keyIndex, Entries.TYPE_ZSET,
+                (table, slot, hash) -> SortedSets.add(table, slot, hash, args, keyIndex, first, scores, flags));
+    }
+
+    /**
+     * ZINCRBY / ZADD INCR
+     *
+     * @return el nuevo score (NaN si las opciones impiden el cambio) y si ha cambiado algo
+     */
+    public SortedSets.AddResult zincrBy(CommandArgs args, int keyIndex, int memberIndex, double increment, int flags) {
+        return update(args, keyIndex, Entries.TYPE_ZSET, (table, slot, hash) ->
+                SortedSets.incrBy(table, slot, hash, args, keyIndex, memberIndex, increment, flags));
+    }
+
+    /**
+     * ZREM
+     *
+     * @return miembros borrados
+     */
+    public long zrem(CommandArgs args, int keyIndex, int first) {
+        return update(args, keyIndex, Entries.TYPE_ZSET,
+                (table, slot, hash) -> SortedSets.remove(table, slot, args, first));
+    }
+
+    /**
+     * @return el score del miembro o NaN si no está
+     */
+    public double zscore(CommandArgs args, int keyIndex, int memberIndex) {
+        return read(args, keyIndex, Entries.TYPE_ZSET, (entry, value) -> entry == null ? Double.NaN
+                : ((ZSet) value).score(Bytes.copyOf(args.buffer(), args.offset(memberIndex), args.length(memberIndex))));
+    }
+
+    /**
+     * ZRANK / ZREVRANK
+     *
+     * @return la posición o -1 si el miembro no está
+     */
+    public long zrank(CommandArgs args, int keyIndex, int memberIndex, boolean reverse) {
+        return read(args, keyIndex, Entries.TYPE_ZSET, (entry, value) -> entry == null ? -1
+                : ((ZSet) value).rank(Bytes.copyOf(args.buffer(), args.offset(memberIndex), args.length(memberIndex)), reverse));
+    }
+
+    public long zcard(CommandArgs args, int keyIndex) {
+        return read(args, keyIndex, Entries.TYPE_ZSET, (entry, value) -> entry == null ? 0L : (long) value.size());
+    }
+
+    /**
+     * ZRANGE / ZREVRANGE: escribe la respuesta directamente desde la skiplist
+     */
+    public void zrange(CommandArgs args, int keyIndex, long start, long stop, boolean reverse, boolean withScores,
+                       RespWriter out) {
+        read(args, keyIndex, Entries.TYPE_ZSET, (entry, value) -> {
+            SortedSets.range(value, start, stop, reverse, withScores, out);
+            return null;
+        });
+    }
+
+    /**
+     * ZRANGEBYSCORE
+     *
+     * @param limit máximo de miembros, negativo para todos
+     */
+    public void zrangeByScore(CommandArgs args, int keyIndex, double min, boolean minExclusive, double max,
+                              boolean maxExclusive, long offset, long limit, boolean withScores, RespWriter out) {
+        read(args, keyIndex, Entries.TYPE_ZSET, (entry, value) -> {
+            SortedSets.rangeByScore(value, min, minExclusive, max, maxExclusive, offset, limit, withScores, out);
+            return null;
+        });
+    }
+
+    /**
+     * Guarda el nuevo listpack de una colección: en su entrada si ya existía (conservando
+     * el TTL) o en una nueva con la clave del argumento keyIndex
+     */
+    static void storeListpack(KeyTable table, int slot, int hash, CommandArgs args, int keyIndex, int type, byte[] lp) {
+        if (slot >= 0) {
+            table.replaceAt(slot, Entries.withListpack(table.entryAt(slot), lp), null);
+        } else {
+            table.put(Entries.createListpack(args.buffer(), args.offset(keyIndex), args.length(keyIndex), type, lp, -1), hash);
+        }
+    }
+
+    /**
+     * Como storeListpack, para una colección que pasa a la codificación grande
+     */
+    static void storeObject(KeyTable table, int slot, int hash, CommandArgs args, int keyIndex, int type, LargeValue value) {
+        if (slot >= 0) {
+            byte[] entry = table.entryAt(slot);
+            table.replaceAt(slot, Entries.createObject(entry, Entries.keyOffset(entry), Entries.keyLength(entry),
+                    type, Entries.expireAt(entry)), value);
+        } else {
+            table.put(Entries.createObject(args.buffer(), args.offset(keyIndex), args.length(keyIndex), type, -1), value, hash);
+        }
+    }
+
+    /**
+     * true si ningún elemento del listpack pasa de maxLength bytes
+     */
+    static boolean elementsFit(byte[] lp, int base, int maxLength) {
+        for (int p = Listpack.first(base); !Listpack.isEnd(lp, p); p = Listpack.next(lp, p)) {
+            if (Listpack.valueLength(lp, p) > maxLength) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * true si la colección de ese tipo puede guardarse en un listpack (ver Hashes, Lists, Sets
+     * y SortedSets; un sorted set solo se guarda así en el RDB)
+     */
+    static boolean fitsListpack(int type, byte[] lp, int base) {
+        switch (type) {
+            case Entries.TYPE_HASH:
+                return Hashes.fitsListpack(lp, base);
+            case Entries.TYPE_LIST:
+                return Lists.fitsListpack(lp, base);
+            case Entries.TYPE_SET:
+                return Sets.fitsListpack(lp, base);
+            case Entries.TYPE_ZSET:
+                return SortedSets.fitsListpack(lp, base);
+            default:
+                throw new IllegalArgumentException("No es una colección: " + type);
+        }
+    }
+
+    private static LargeValue toLarge(int type, byte[] lp) {
+        switch (type) {
+            case Entries.TYPE_HASH:
+                return LargeHash.fromListpack(lp, 0);
+            case Entries.TYPE_LIST:
+                return QuickList.fromListpack(lp, 0);
+            case Entries.TYPE_SET:
+                return LargeSet.fromListpack(lp, 0);
+            case Entries.TYPE_ZSET:
+                return ZSet.fromListpack(lp, 0);
+            default:
+                throw new IllegalArgumentException("No es una colección: " + type);
+        }
+    }
+
+    /**
+     * Modificación de una clave con el lock de escritura de su shard. Recibe la tabla,
+     * la ranura de la clave (-1 si no existe o acaba de caducar) y su hash
+     */
+    @FunctionalInterface
+    interface Update<T> {
+        T apply(KeyTable table, int slot, int hash);
+    }
+
+    /**
+     * Lectura de una clave con el lock de lectura de su shard. entry es null si la clave
+     * no existe y value la estructura si es una colección grande
+     */
+    @FunctionalInterface
+    interface Read<T> {
+        T apply(byte[] entry, LargeValue value);
+    }
+
+    /**
+     * Aplica update a la clave, que si existe tiene que ser del tipo indicado. Después
+     * vuelve a contar la memoria de su estructura, que puede haber cambiado en sitio
+     */
+    private <T> T update(CommandArgs args, int keyIndex, int type, Update<T> update) {
+        byte[] buffer = args.buffer();
+        int offset = args.offset(keyIndex);
+        int length = args.length(keyIndex);
+        int hash = KeyTable.hash(buffer, offset, length);
+        Shard shard = shardFor(hash);
+        shard.lock.writeLock().lock();
+        try {
+            int slot = liveSlot(shard.table, buffer, offset, length, hash);
+            if (slot >= 0 && Entries.type(shard.table.entryAt(slot)) != type) {
+                throw new CommandException("WRONGTYPE", WRONG_TYPE);
+            }
+            T result = update.apply(shard.table, slot, hash);
+            int updated = shard.table.find(buffer, offset, length, hash);
+            if (updated >= 0 && shard.table.valueAt(updated) != null) {
+                shard.table.account(updated);
+                shard.table.touch(updated);
+            }
+            return result;
+        } finally {
+            shard.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Aplica read a la clave, que si existe tiene que ser del tipo indicado. Si había
+     * caducado se lee como inexistente y se borra después
+     */
+    private <T> T read(CommandArgs args, int keyIndex, int type, Read<T> read) {
+        byte[] buffer = args.buffer();
+        int offset = args.offset(keyIndex);
+        int length = args.length(keyIndex);
+        int hash = KeyTable.hash(buffer, offset, length);
+        Shard shard = shardFor(hash);
+        boolean expired = false;
+        T result;
+        shard.lock.readLock().lock();
+        try {
+            int slot = shard.table.find(buffer, offset, length, hash);
+            byte[] entry = slot < 0 ? null : shard.table.entryAt(slot);
+            if (entry != null && Entries.isExpired(entry, System.currentTimeMillis())) {
+                expired = true;
+                entry = null;
+            }
+            if (entry != null && Entries.type(entry) != type) {
+                throw new CommandException("WRONGTYPE", WRONG_TYPE);
+            }
+            if (entry != null) {
+                shard.table.touch(slot);
+            }
+            result = read.apply(entry, entry == null ? null : shard.table.valueAt(slot));
+        } finally {
+            shard.lock.readLock().unlock();
+        }
+        if (expired) {
+            expireNow(shard, buffer, offset, length, hash);
+        }
+        return result;
+    }
+
+    /**
+     * @return instante absoluto de expiración, NO_EXPIRE o NO_KEY
+     */
+    public long getExpire(CommandArgs args, int i) {
+        byte[] entry = get(args, i);
+        if (entry == null) {
+            return NO_KEY;
+        }
+        return Entries.hasExpire(entry) ? Entries.expireAt(entry) : NO_EXPIRE;
+    }
+
+    /**
+     * EXPIRE y familia: fija el TTL de una clave existente; un plazo ya vencido la borra
+     *
+     * @return true si la clave existía
+     */
+    public boolean setExpire(CommandArgs args, int i, long expireAt) {
+        byte[] buffer = args.buffer();
+        int offset = args.offset(i);
+        int length = args.length(i);
+        int hash = KeyTable.hash(buffer, offset, length);
+        Shard shard = shardFor(hash);
+        long now = System.currentTimeMillis();
+        shard.lock.writeLock().lock();
+        try {
+            KeyTable table = shard.table;
+            int slot = table.find(buffer, offset, length, hash);
+            if (slot < 0) {
+                return false;
+            }
+            byte[] entry = table.entryAt(slot);
+            if (Entries.isExpired(entry, now) || expireAt <= now) {
+                table.removeAt(slot);
+                if (Entries.isExpired(entry, now)) {
+                    expiredKeys.increment();
+                    return false;
+                }
+                return true;
+            }
+            table.replaceAt(slot, Entries.withExpire(entry, expireAt));
+        } finally {
+            shard.lock.writeLock().unlock();
+        }
+        expiry.schedule(args.toBytes(i), expireAt);
+        return true;
+    }
+
+    /**
+     * PERSIST: quita el TTL
+     *
+     * @return true si la clave existía y tenía TTL
+     */
+    public boolean persist(CommandArgs args, int i) {
+        byte[] buffer = args.buffer();
+        int offset = args.offset(i);
+        int length = args.length(i);
+        int hash = KeyTable.hash(buffer, offset, length);
+        Shard shard = shardFor(hash);
+        long now = System.currentTimeMillis();
+        shard.lock.writeLock().lock();
+        try {
+            KeyTable table = shard.table;
+            int slot = table.find(buffer, offset, length, hash);
+            if (slot < 0) {
+                return false;
+            }
+            byte[] entry = table.entryAt(slot);
+            if (Entries.isExpired(entry, now)) {
+                table.removeAt(slot);
+                expiredKeys.increment();
+                return false;
+            }
+            if (!Entries.hasExpire(entry)) {
+                return false;
+            }
+            table.replaceAt(slot, Entries.withExpire(entry, -1));
+            return true;
+        } finally {
+            shard.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Claves vivas que cumplen el patrón (KEYS). Recorre los shards de uno en uno,
+     * así que no es una foto atómica de todo el espacio
+     */
+    public List<byte[]> keys(GlobPattern pattern) {
+        List<byte[]> matches = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (Shard shard : shards) {
+            shard.lock.readLock().lock();
+            try {
+                shard.table.forEach(entry -> addIfMatches(entry, pattern, now, matches));
+            } finally {
+                shard.lock.readLock().unlock();
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Modo cluster: cada tabla empieza a llevar las claves de cada hash slot (ver SlotIndex)
+     */
+    public void enableSlotIndex() {
+        for (Shard shard : shards) {
+            shard.lock.writeLock().lock();
+            try {
+                shard.table.enableSlotIndex();
+            } finally {
+                shard.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Claves del hash slot (CLUSTER COUNTKEYSINSLOT), incluidas las caducadas que aún no se
+     * han borrado, como en Redis
+     */
+    public long countKeysInSlot(int slot) {
+        long count = 0;
+        for (Shard shard : shards) {
+            shard.lock.readLock().lock();
+            try {
+                SlotIndex index = shard.table.slotIndex();
+                count += index == null ? 0 : index.count(slot);
+            } finally {
+                shard.lock.readLock().unlock();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Hasta count claves del hash slot (CLUSTER GETKEYSINSLOT)
+     */
+    public List<byte[]> getKeysInSlot(int slot, int count) {
+        List<byte[]> keys = new ArrayList<>();
+        for (Shard shard : shards) {
+            if (keys.size() >= count) {
+                break;
+            }
+            shard.lock.readLock().lock();
+            try {
+                SlotIndex index = shard.table.slotIndex();
+                if (index != null) {
+                    index.collect(slot, count, keys);
+                }
+            } finally {
+                shard.lock.readLock().unlock();
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Un paso de SCAN. Los bits bajos del cursor son el shard y el resto el cursor
+     * dentro de su tabla (ver KeyTable.scan). Como dictScan en Redis, avanza bucket a
+     * bucket, pasando de un shard al siguiente, hasta tener count resultados o haber
+     * visitado 10 * count buckets; los shards vacíos no cuentan
+     *
+     * @param pattern patrón o null para todas
+     * @return siguiente cursor, 0 al terminar
+     */
+    public long scan(long cursor, int count, GlobPattern pattern, List<byte[]> out) {
+        long now = System.currentTimeMillis();
+        int index = (int) (cursor & (shards.length - 1));
+        long tableCursor = cursor >>> shardBits;
+        long buckets = (long) count * 10;
+        Consumer<byte[]> action = entry -> addIfMatches(entry, pattern, now, out);
+        while (true) {
+            Shard shard = shards[index];
+            shard.lock.readLock().lock();
+            try {
+                if (shard.table.size() == 0) {
+                    tableCursor = 0;
+                } else {
+                    do {
+                        tableCursor = shard.table.scan(tableCursor, 1, action);
+                        buckets--;
+                    } while (tableCursor != 0 && buckets > 0 && out.size() < count);
+                }
+            } finally {
+                shard.lock.readLock().unlock();
+            }
+            if (tableCursor == 0 && ++index == shards.length) {
+                return 0;
+            }
+            if (buckets <= 0 || out.size() >= count) {
+                return (tableCursor << shardBits) | index;
+            }
+        }
+    }
+
+    public long size() {
+        long size = 0;
+        for (Shard shard : shards) {
+            shard.lock.readLock().lock();
+            try {
+                size += shard.table.size();
+            } finally {
+                shard.lock.readLock().unlock();
+            }
+        }
+        return size;
+    }
+
+    public long expiresCount() {
+        long expires = 0;
+        for (Shard shard : shards) {
+            shard.lock.readLock().lock();
+            try {
+                expires += shard.table.expires();
+            } finally {
+                shard.lock.readLock().unlock();
+            }
+        }
+        return expires;
+    }
+
+    public long getExpiredKeys() {
+        return expiredKeys.sum();
+    }
+
+    /**
+     * Memoria estimada de todos los shards (ver KeyTable.memoryUsage). Se lee sin locks:
+     * es una suma aproximada que Eviction consulta antes de cada escritura
+     */
+    public long usedMemory() {
+        long used = 0;
+        for (Shard shard : shards) {
+            used += shard.table.memoryUsage();
+        }
+        return used;
+    }
+
+    /**
+     * Bloquea para escritura los shards de las claves first, first + step, ... hasta last
+     * (inclusive), en orden creciente de shard. Mientras se tiene, ningún otro hilo ve ni
+     * modifica esas claves, así que un comando de varias claves se aplica de forma atómica.
+     * Se suelta con close()
+     */
+    public KeyLock lockKeys(CommandArgs args, int first, int last, int step) {
+        if (first == last) {
+            // una sola clave, como casi todas las escrituras
+            return lock(new int[] {shardIndex(KeyTable.hash(args.buffer(), args.offset(first), args.length(first)))});
+        }
+        int[] indexes = new int[(last - first) / step + 1];
+        int n = 0;
+        for (int i = first; i <= last; i += step) {
+            indexes[n++] = shardIndex(KeyTable.hash(args.buffer(), args.offset(i), args.length(i)));
+        }
+        Arrays.sort(indexes, 0, n);
+        int distinct = 0;
+        for (int i = 0; i < n; i++) {
+            if (distinct == 0 || indexes[distinct - 1] != indexes[i]) {
+                indexes[distinct++] = indexes[i];
+            }
+        }
+        return lock(Arrays.copyOf(indexes, distinct));
+    }
+
+    /**
+     * Borra todas las claves (réplica que va a cargar la foto de su maestro)
+     */
+    public void clear() {
+        try (KeyLock ignored = lockAll()) {
+            for (Shard shard : shards) {
+                shard.table.clear();
+            }
+        }
+    }
+
+    /**
+     * Bloquea todos los shards, en orden
+     */
+    public KeyLock lockAll() {
+        int[] indexes = new int[shards.length];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = i;
+        }
+        return lock(indexes);
+    }
+
+    /**
+     * Expiración activa: borra la clave si sigue teniendo ese plazo y ya venció
+     *
+     * @return true si la borró
+     */
+    boolean expireIfDue(byte[] key, long deadline) {
+        int hash = KeyTable.hash(key, 0, key.length);
+        Shard shard = shardFor(hash);
+        shard.lock.writeLock().lock();
+        try {
+            int slot = shard.table.find(key, 0, key.length, hash);
+            if (slot < 0) {
+                return false;
+            }
+            byte[] entry = shard.table.entryAt(slot);
+            if (Entries.expireAt(entry) != deadline || deadline > System.currentTimeMillis()) {
+                return false;
+            }
+            shard.table.removeAt(slot);
+        } finally {
+            shard.lock.writeLock().unlock();
+        }
+        expiredKeys.increment();
+        return true;
+    }
+
+    /**
+     * Muestra de claves de un shard para Eviction (ver KeyTable.sample)
+     */
+    void sample(int shardIndex, int count, boolean volatileOnly, KeyTable.SampleSink sink) {
+        Shard shard = shards[shardIndex];
+        shard.lock.readLock().lock();
+        try {
+            shard.table.sample(count, volatileOnly, sink);
+        } finally {
+            shard.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Desalojo: borra la clave si sigue existiendo y se la pasa al evictionListener
+     *
+     * @return true si la borró
+     */
+    boolean evict(byte[] key) {
+        int hash = KeyTable.hash(key, 0, key.length);
+        Shard shard = shardFor(hash);
+        shard.lock.writeLock().lock();
+        try {
+            int slot = shard.table.find(key, 0, key.length, hash);
+            if (slot < 0) {
+                return false;
+            }
+            shard.table.removeAt(slot);
+            evictionListener.accept(key);
+            return true;
+        } finally {
+            shard.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * true si la clave sigue existiendo con ese plazo (para descartar entradas viejas de la rueda)
+     */
+    boolean hasDeadline(byte[] key, long deadline) {
+        int hash = KeyTable.hash(key, 0, key.length);
+        Shard shard = shardFor(hash);
+        shard.lock.readLock().lock();
+        try {
+            byte[] entry = shard.table.get(key, 0, key.length, hash);
+            return entry != null && Entries.expireAt(entry) == deadline;
+        } finally {
+            shard.lock.readLock().unlock();
+        }
+    }
+
+    // ---- fotos: ver KeyTable ----
+
+    /**
+     * Empieza la foto en todos los shards a la vez, con todos bloqueados, para que
+     * sea el mismo instante en todos
+     */
+    public void beginSnapshot() {
+        try (KeyLock ignored = lockAll()) {
+            for (Shard shard : shards) {
+                shard.table.beginSnapshot();
+            }
+        }
+    }
+
+    public long snapshotRemaining() {
+        long remaining = 0;
+        for (Shard shard : shards) {
+            shard.lock.readLock().lock();
+            try {
+                remaining += shard.table.snapshotRemaining();
+            } finally {
+                shard.lock.readLock().unlock();
+            }
+        }
+        return remaining;
+    }
+
+    /**
+     * Recoge en out las entradas de la foto aún no escritas de un tramo de ranuras de
+     * un shard, y en outAccess su acceso (ver KeyTable.snapshotChunk). Basta el lock de
+     * lectura: solo el hilo de la foto marca entradas, y quien las sustituye lo hace con
+     * el de escritura
+     *
+     * @return la siguiente ranura o -1 al final de la tabla del shard
+     */
+    public int snapshotChunk(int shardIndex, int start, int count, List<byte[]> out, int[] outAccess) {
+        Shard shard = shards[shardIndex];
+        shard.lock.readLock().lock();
+        try {
+            return shard.table.snapshotChunk(start, count, out, outAccess);
+        } finally {
+            shard.lock.readLock().unlock();
+        }
+    }
+
+    public List<byte[]> endSnapshot() {
+        List<byte[]> preserved = new ArrayList<>();
+        try (KeyLock ignored = lockAll()) {
+            for (Shard shard : shards) {
+                preserved.addAll(shard.table.endSnapshot());
+            }
+        }
+        return preserved;
+    }
+
+    private void expireNow(Shard shard, byte[] key, int offset, int length, int hash) {
+        shard.lock.writeLock().lock();
+        try {
+            int slot = shard.table.find(key, offset, length, hash);
+            if (slot >= 0 && Entries.isExpired(shard.table.entryAt(slot), System.currentTimeMillis())) {
+                shard.table.removeAt(slot);
+                expiredKeys.increment();
+            }
+        } finally {
+            shard.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Ranura de la clave si existe y no ha caducado; si caducó la borra. Con el lock de escritura
+     *
+     * @return la ranura o -1
+     */
+    private int liveSlot(KeyTable table, byte[] key, int offset, int length, int hash) {
+        int slot = table.find(key, offset, length, hash);
+        if (slot >= 0 && Entries.isExpired(table.entryAt(slot), System.currentTimeMillis())) {
+            table.removeAt(slot);
+            expiredKeys.increment();
+            return -1;
+        }
+        return slot;
+    }
+
+    /**
+     * Entrada de la ranura, que tiene que ser un string
+     */
+    private static byte[] stringAt(KeyTable table, int slot) {
+        byte[] entry = table.entryAt(slot);
+        if (Entries.type(entry) != Entries.TYPE_STRING) {
+            throw new CommandException("WRONGTYPE", WRONG_TYPE);
+        }
+        return entry;
+    }
+
+    /**
+     * Número decimal como lo acepta INCRBYFLOAT: sin espacios ni sufijos y finito
+     */
+    static double parseDouble(byte[] value) {
+        if (value.length == 0) {
+            throw new CommandException(NOT_A_FLOAT);
+        }
+        for (byte b : value) {
+            boolean valid = (b >= '0' && b <= '9') || b == '.' || b == '-' || b == '+' || b == 'e' || b == 'E';
+            if (!valid) {
+                throw new CommandException(NOT_A_FLOAT);
+            }
+        }
+        try {
+            double result = Double.parseDouble(new String(value, StandardCharsets.US_ASCII));
+            if (Double.isNaN(result) || Double.isInfinite(result)) {
+                throw new CommandException(NOT_A_FLOAT);
+            }
+            return result;
+        } catch (NumberFormatException e) {
+            throw new CommandException(NOT_A_FLOAT);
+        }
+    }
+
+    /**
+     * Formato de INCRBYFLOAT: suma en decimal de los dos operandos (Redis usa long double,
+     * así 10.6 + 5000 da 5010.6 y no el error del double), redondeada a 17 cifras
+     * significativas, sin exponente ni ceros finales
+     */
+    private static byte[] formatSum(double current, double delta) {
+        BigDecimal sum = new BigDecimal(Double.toString(current)).add(new BigDecimal(Double.toString(delta)));
+        String text = sum.round(FLOAT_PRECISION).stripTrailingZeros().toPlainString();
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private int shardIndex(int hash) {
+        // los bits altos, para no correlacionar con la ranura dentro de la tabla
+        return (int) ((hash & 0xFFFFFFFFL) >>> (32 - shardBits));
+    }
+
+    private Shard shardFor(int hash) {
+        return shards[shardIndex(hash)];
+    }
+
+    private KeyLock lock(int[] indexes) {
+        for (int i = 0; i < indexes.length; i++) {
+            shards[indexes[i]].lock.writeLock().lock();
+        }
+        return new KeyLock(indexes);
+    }
+
+    private static void addIfMatches(byte[] entry, GlobPattern pattern, long now, List<byte[]> out) {
+        if (Entries.isExpired(entry, now)) {
+            return;
+        }
+        if (pattern == null || pattern.matches(entry, Entries.keyOffset(entry), Entries.keyLength(entry))) {
+            out.add(Entries.key(entry));
+        }
+    }
+
+    private static class Shard {
+        final KeyTable table;
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        Shard(Eviction eviction) {
+            this.table = new KeyTable(eviction);
+        }
+    }
+
+    /**
+     * Shards bloqueados por lockKeys/lockAll
+     */
+    public final class KeyLock implements AutoCloseable {
+        private final int[] indexes;
+
+        private KeyLock(int[] indexes) {
+            this.indexes = indexes;
+        }
+
+        @Override
+        public void close() {
+            for (int i = indexes.length - 1; i >= 0; i--) {
+                shards[indexes[i]].lock.writeLock().unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hash grande: tabla hash de campo a valor (ver Hashes)
+ */
+public class LargeHash extends LargeValue {
+
+    // nodo del HashMap, objeto Bytes y ranura de la tabla por campo, sin contar los arrays
+    private static final long FIELD_OVERHEAD = 32 + 24 + 8;
+
+    private final HashMap<Bytes, byte[]> fields;
+    private long bytes;
+
+    public LargeHash(int expectedSize) {
+        this.fields = new HashMap<>(expectedSize * 4 / 3 + 1);
+    }
+
+    /**
+     * Copia los pares campo-valor de un listpack
+     */
+    public static LargeHash fromListpack(byte[] lp, int base) {
+        LargeHash hash = new LargeHash(Listpack.count(lp, base) / 2);
+        for (int p = Listpack.first(base); !Listpack.isEnd(lp, p); ) {
+            int value = Listpack.next(lp, p);
+            hash.put(new Bytes(Listpack.get(lp, p)), Listpack.get(lp, value));
+            p = Listpack.next(lp, value);
+        }
+        return hash;
+    }
+
+    public byte[] get(byte[] buffer, int offset, int length) {
+        return fields.get(Bytes.copyOf(buffer, offset, length));
+    }
+
+    /**
+     * @return true si el campo es nuevo
+     */
+    public boolean put(Bytes field, byte[] value) {
+        byte[] old = fields.put(field, value);
+        if (old == null) {
+            bytes += FIELD_OVERHEAD + arrayBytes(field.data().length) + arrayBytes(value.length);
+            return true;
+        }
+        bytes += arrayBytes(value.length) - arrayBytes(old.length);
+        return false;
+    }
+
+    public boolean remove(byte[] buffer, int offset, int length) {
+        byte[] old = fields.remove(Bytes.copyOf(buffer, offset, length));
+        if (old == null) {
+            return false;
+        }
+        bytes -= FIELD_OVERHEAD + arrayBytes(length) + arrayBytes(old.length);
+        return true;
+    }
+
+    public Iterable<Map.Entry<Bytes, byte[]>> entries() {
+        return fields.entrySet();
+    }
+
+    @Override
+    public int size() {
+        return fields.size();
+    }
+
+    @Override
+    public byte[] toListpack() {
+        Listpack.Builder builder = new Listpack.Builder(fields.size() * 16);
+        for (Map.Entry<Bytes, byte[]> field : fields.entrySet()) {
+            builder.add(field.getKey().data()).add(field.getValue());
+        }
+        return builder.build();
+    }
+
+    @Override
+    public long memoryUsage() {
+        return bytes;
+    }
+}
@@ -0,0 +1,66 @@
+import java.util.HashSet;
+
+/**
+ * Set grande: tabla hash de miembros (ver Sets)
+ */
+public class LargeSet extends LargeValue {
+
+    // nodo del HashMap del HashSet, objeto Bytes y ranura de la tabla por miembro
+    private static final long MEMBER_OVERHEAD = 32 + 24 + 8;
+
+    private final HashSet<Bytes> members;
+    private long bytes;
+
+    public LargeSet(int expectedSize) {
+        this.members = new HashSet<>(expectedSize * 4 / 3 + 1);
+    }
+
+    public static LargeSet fromListpack(byte[] lp, int base) {
+        LargeSet set = new LargeSet(Listpack.count(lp, base));
+        for (int p = Listpack.first(base); !Listpack.isEnd(lp, p); p = Listpack.next(lp, p)) {
+            byte[] member = Listpack.get(lp, p);
+            if (set.members.add(new Bytes(member))) {
+                set.bytes += MEMBER_OVERHEAD + arrayBytes(member.length);
+            }
+        }
+        return set;
+    }
+
+    public boolean contains(byte[] buffer, int offset, int length) {
+        return members.contains(Bytes.copyOf(buffer, offset, length));
+    }
+
+    /**
+     * @return true si no estaba
+     */
+    public boolean add(byte[] buffer, int offset, int length) {
+        if (!members.add(Bytes.copyOf(buffer, offset, length))) {
+            return false;
+        }
+        bytes += MEMBER_OVERHEAD + arrayBytes(length);
+        return true;
+    }
+
+    public Iterable<Bytes> members() {
+        return members;
+    }
+
+    @Override
+    public int size() {
+        return members.size();
+    }
+
+    @Override
+    public byte[] toListpack() {
+        Listpack.Builder builder = new Listpack.Builder(members.size() * 8);
+        for (Bytes member : members) {
+            builder.add(member.data());
+        }
+        return builder.build();
+    }
+
+    @Override
+    public long memoryUsage() {
+        return bytes;
+    }
+}
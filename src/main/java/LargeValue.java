@@ -0,0 +1,34 @@
+/**
+ * Estructura de una colección grande (entrada con FLAG_OBJECT), guardada en la KeyTable
+ * junto a su entrada. A diferencia de las entradas es mutable: solo se toca con el lock
+ * de escritura de su shard, y antes de modificarla hay que llamar a KeyTable.beforeMutate
+ */
+public abstract class LargeValue {
+
+    // bytes que la KeyTable tiene sumados por esta estructura (ver KeyTable.account)
+    long accountedBytes;
+
+    /**
+     * Elementos de la colección (en un hash, campos)
+     */
+    public abstract int size();
+
+    /**
+     * Todos los elementos como listpack, en el orden de la colección (en un hash, campo y
+     * valor alternos). Es lo que reciben las fotos y la reescritura del AOF
+     */
+    public abstract byte[] toListpack();
+
+    /**
+     * Estimación de los bytes de heap que ocupa, mantenida al modificarla para que
+     * consultarla sea O(1) (ver Eviction)
+     */
+    public abstract long memoryUsage();
+
+    /**
+     * Bytes de heap de un byte[] de esa longitud: cabecera de 16 bytes y alineado a 8
+     */
+    static long arrayBytes(int length) {
+        return (16L + length + 7) & ~7L;
+    }
+}
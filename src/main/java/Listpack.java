@@ -0,0 +1,495 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Listpack de Redis: secuencia de elementos (strings o enteros) en un único byte[]
+ * contiguo, la codificación de las listas, sets y hashes pequeños. Es el mismo formato
+ * que Redis guarda en el RDB, así que se vuelca sin conversión:
+ *
+ *   [bytes totales u32 LE][número de elementos u16 LE][elemento]...[0xFF]
+ *
+ * Cada elemento es su codificación y sus datos seguidos de su longitud hacia atrás
+ * (backlen), para poder recorrerlo también desde el final. Los strings que son enteros
+ * canónicos se guardan como entero de 7, 13, 16, 24, 32 o 64 bits.
+ *
+ * El listpack suele ir dentro de una entrada (ver Entries) a partir de un desplazamiento
+ * base, así que las posiciones que usan estos métodos son índices absolutos del array.
+ * Como las entradas son inmutables, los cambios (splice) crean un listpack nuevo
+ */
+public final class Listpack {
+
+    public static final int HEADER_SIZE = 6;
+    /** Listpack vacío, con base 0 */
+    public static final byte[] EMPTY = new Builder(0).build();
+
+    private static final int EOF = 0xFF;
+    // a partir de aquí el número de elementos de la cabecera es "desconocido"
+    private static final int UNKNOWN_COUNT = 0xFFFF;
+
+    private static final int ENC_6BIT_STR = 0x80;
+    private static final int ENC_13BIT_INT = 0xC0;
+    private static final int ENC_12BIT_STR = 0xE0;
+    private static final int ENC_32BIT_STR = 0xF0;
+    private static final int ENC_16BIT_INT = 0xF1;
+    private static final int ENC_24BIT_INT = 0xF2;
+    private static final int ENC_32BIT_INT = 0xF3;
+    private static final int ENC_64BIT_INT = 0xF4;
+
+    private Listpack() {
+    }
+
+    public static int totalBytes(byte[] lp, int base) {
+        return (lp[base] & 0xFF) | (lp[base + 1] & 0xFF) << 8 | (lp[base + 2] & 0xFF) << 16 | (lp[base + 3] & 0xFF) << 24;
+    }
+
+    /**
+     * Número de elementos; si no cabe en la cabecera los cuenta
+     */
+    public static int count(byte[] lp, int base) {
+        int count = (lp[base + 4] & 0xFF) | (lp[base + 5] & 0xFF) << 8;
+        if (count < UNKNOWN_COUNT) {
+            return count;
+        }
+        count = 0;
+        for (int p = first(base); !isEnd(lp, p); p = next(lp, p)) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Posición del primer elemento (o del fin si está vacío)
+     */
+    public static int first(int base) {
+        return base + HEADER_SIZE;
+    }
+
+    /**
+     * Posición del byte de fin, donde se añadiría un elemento al final
+     */
+    public static int end(byte[] lp, int base) {
+        return base + totalBytes(lp, base) - 1;
+    }
+
+    public static boolean isEnd(byte[] lp, int p) {
+        return (lp[p] & 0xFF) == EOF;
+    }
+
+    public static int next(byte[] lp, int p) {
+        int length = encodedLength(lp, p);
+        return p + length + backlenSize(length);
+    }
+
+    /**
+     * @return la posición del elemento anterior a p o -1 si p es el primero
+     */
+    public static int prev(byte[] lp, int base, int p) {
+        if (p == first(base)) {
+            return -1;
+        }
+        int q = p - 1;
+        int length = 0;
+        int shift = 0;
+        while (true) {
+            int b = lp[q] & 0xFF;
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            shift += 7;
+            q--;
+        }
+        return q - length;
+    }
+
+    /**
+     * @return la posición del último elemento o -1 si está vacío
+     */
+    public static int last(byte[] lp, int base) {
+        return prev(lp, base, end(lp, base));
+    }
+
+    /**
+     * Posición del elemento index (desde 0) o del fin si no hay tantos
+     */
+    public static int seek(byte[] lp, int base, int index) {
+        int p = first(base);
+        for (int i = 0; i < index && !isEnd(lp, p); i++) {
+            p = next(lp, p);
+        }
+        return p;
+    }
+
+    public static boolean isInt(byte[] lp, int p) {
+        int b = lp[p] & 0xFF;
+        return (b & 0x80) == 0 || (b & 0xE0) == ENC_13BIT_INT || (b >= ENC_16BIT_INT && b <= ENC_64BIT_INT);
+    }
+
+    public static long intValue(byte[] lp, int p) {
+        int b = lp[p] & 0xFF;
+        if ((b & 0x80) == 0) {
+            return b;
+        }
+        if ((b & 0xE0) == ENC_13BIT_INT) {
+            // 13 bits con signo
+            int value = (b & 0x1F) << 8 | (lp[p + 1] & 0xFF);
+            return value >= 1 << 12 ? value - (1 << 13) : value;
+        }
+        int size = b == ENC_16BIT_INT ? 2 : b == ENC_24BIT_INT ? 3 : b == ENC_32BIT_INT ? 4 : 8;
+        long value = lp[p + size];     // el byte más alto extiende el signo
+        for (int i = size - 1; i >= 1; i--) {
+            value = (value << 8) | (lp[p + i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Inicio de los bytes de un elemento string
+     */
+    public static int stringOffset(byte[] lp, int p) {
+        int b = lp[p] & 0xFF;
+        if ((b & 0xC0) == ENC_6BIT_STR) {
+            return p + 1;
+        }
+        return (b & 0xF0) == ENC_12BIT_STR ? p + 2 : p + 5;
+    }
+
+    public static int stringLength(byte[] lp, int p) {
+        int b = lp[p] & 0xFF;
+        if ((b & 0xC0) == ENC_6BIT_STR) {
+            return b & 0x3F;
+        }
+        if ((b & 0xF0) == ENC_12BIT_STR) {
+            return (b & 0x0F) << 8 | (lp[p + 1] & 0xFF);
+        }
+        return (lp[p + 1] & 0xFF) | (lp[p + 2] & 0xFF) << 8 | (lp[p + 3] & 0xFF) << 16 | (lp[p + 4] & 0xFF) << 24;
+    }
+
+    /**
+     * Valor del elemento como bytes (los enteros en decimal)
+     */
+    public static byte[] get(byte[] lp, int p) {
+        if (isInt(lp, p)) {
+            return Long.toString(intValue(lp, p)).getBytes(StandardCharsets.US_ASCII);
+        }
+        int offset = stringOffset(lp, p);
+        return Arrays.copyOfRange(lp, offset, offset + stringLength(lp, p));
+    }
+
+    /**
+     * Longitud del valor tal como lo ve el cliente
+     */
+    public static int valueLength(byte[] lp, int p) {
+        if (isInt(lp, p)) {
+            return Long.toString(intValue(lp, p)).length();
+        }
+        return stringLength(lp, p);
+    }
+
+    public static boolean equals(byte[] lp, int p, byte[] b, int offset, int length) {
+        if (isInt(lp, p)) {
+            return Entries.isCanonicalInteger(b, offset, length)
+                    && Entries.parseDigits(b, offset, length) == intValue(lp, p);
+        }
+        int start = stringOffset(lp, p);
+        return stringLength(lp, p) == length && Arrays.equals(lp, start, start + length, b, offset, offset + length);
+    }
+
+    /**
+     * Busca un elemento comparando uno de cada step (2 para los campos de un hash)
+     *
+     * @return su posición o -1
+     */
+    public static int find(byte[] lp, int base, byte[] b, int offset, int length, int step) {
+        for (int p = first(base); !isEnd(lp, p); ) {
+            if (equals(lp, p, b, offset, length)) {
+                return p;
+            }
+            for (int i = 0; i < step && !isEnd(lp, p); i++) {
+                p = next(lp, p);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Escribe el elemento como bulk string de RESP
+     */
+    public static void write(byte[] lp, int p, RespWriter out) {
+        if (isInt(lp, p)) {
+            out.writeBulk(intValue(lp, p));
+        } else {
+            out.writeBulk(lp, stringOffset(lp, p), stringLength(lp, p));
+        }
+    }
+
+    /**
+     * Escribe todos los elementos como array de RESP
+     */
+    public static void writeAll(byte[] lp, int base, RespWriter out) {
+        out.writeArrayHeader(count(lp, base));
+        for (int p = first(base); !isEnd(lp, p); p = next(lp, p)) {
+            write(lp, p, out);
+        }
+    }
+
+    /**
+     * Listpack nuevo (con base 0) en el que los removed elementos de [from, to) se
+     * sustituyen por los de insert (otro listpack, o null para solo borrar)
+     */
+    public static byte[] splice(byte[] lp, int base, int from, int to, int removed, byte[] insert) {
+        int insertBytes = insert == null ? 0 : totalBytes(insert, 0) - HEADER_SIZE - 1;
+        int total = totalBytes(lp, base) - (to - from) + insertBytes;
+        byte[] result = new byte[total];
+        int start = first(base);
+        System.arraycopy(lp, start, result, HEADER_SIZE, from - start);
+        int p = HEADER_SIZE + from - start;
+        if (insert != null) {
+            System.arraycopy(insert, HEADER_SIZE, result, p, insertBytes);
+            p += insertBytes;
+        }
+        System.arraycopy(lp, to, result, p, base + totalBytes(lp, base) - to);
+        int oldCount = (lp[base + 4] & 0xFF) | (lp[base + 5] & 0xFF) << 8;
+        int count = oldCount == UNKNOWN_COUNT || (insert != null && count(insert, 0) >= UNKNOWN_COUNT)
+                ? UNKNOWN_COUNT : oldCount - removed + (insert == null ? 0 : count(insert, 0));
+        writeHeader(result, 0, total, count);
+        return result;
+    }
+
+    /**
+     * Bytes que ocupa un elemento codificado, con su backlen
+     */
+    public static int elementSize(byte[] b, int offset, int length) {
+        int encoded;
+        if (Entries.isCanonicalInteger(b, offset, length)) {
+            encoded = intEncodedLength(Entries.parseDigits(b, offset, length));
+        } else {
+            encoded = stringHeaderLength(length) + length;
+        }
+        return encoded + backlenSize(encoded);
+    }
+
+    /**
+     * Escribe un elemento en p (con sitio suficiente, ver elementSize)
+     *
+     * @return la posición siguiente
+     */
+    public static int writeElement(byte[] lp, int p, byte[] b, int offset, int length) {
+        int start = p;
+        if (Entries.isCanonicalInteger(b, offset, length)) {
+            p = writeInt(lp, p, Entries.parseDigits(b, offset, length));
+        } else {
+            if (length < 64) {
+                lp[p++] = (byte) (ENC_6BIT_STR | length);
+            } else if (length < 4096) {
+                lp[p++] = (byte) (ENC_12BIT_STR | length >> 8);
+                lp[p++] = (byte) length;
+            } else {
+                lp[p++] = (byte) ENC_32BIT_STR;
+                for (int i = 0; i < 4; i++) {
+                    lp[p++] = (byte) (length >>> (8 * i));
+                }
+            }
+            System.arraycopy(b, offset, lp, p, length);
+            p += length;
+        }
+        return writeBacklen(lp, p, p - start);
+    }
+
+    /**
+     * Escribe la cabecera: bytes totales y número de elementos
+     */
+    public static void writeHeader(byte[] lp, int base, int totalBytes, int count) {
+        for (int i = 0; i < 4; i++) {
+            lp[base + i] = (byte) (totalBytes >>> (8 * i));
+        }
+        int stored = Math.min(count, UNKNOWN_COUNT);
+        lp[base + 4] = (byte) stored;
+        lp[base + 5] = (byte) (stored >>> 8);
+    }
+
+    /**
+     * Escribe el byte de fin en p
+     */
+    public static void writeEnd(byte[] lp, int p) {
+        lp[p] = (byte) EOF;
+    }
+
+    private static int writeInt(byte[] lp, int p, long value) {
+        if (value >= 0 && value <= 127) {
+            lp[p++] = (byte) value;
+        } else if (value >= -4096 && value <= 4095) {
+            long v = value < 0 ? (1 << 13) + value : value;
+            lp[p++] = (byte) (ENC_13BIT_INT | (int) (v >> 8));
+            lp[p++] = (byte) v;
+        } else {
+            int size = intEncodedLength(value) - 1;
+            lp[p++] = (byte) (size == 2 ? ENC_16BIT_INT : size == 3 ? ENC_24BIT_INT : size == 4 ? ENC_32BIT_INT : ENC_64BIT_INT);
+            for (int i = 0; i < size; i++) {
+                lp[p++] = (byte) (value >>> (8 * i));
+            }
+        }
+        return p;
+    }
+
+    /**
+     * Longitud hacia atrás: 7 bits por byte, el de más a la derecha con los bits bajos
+     * y el bit alto puesto en todos menos el primero
+     */
+    private static int writeBacklen(byte[] lp, int p, int length) {
+        int size = backlenSize(length);
+        for (int i = size - 1; i >= 0; i--) {
+            int bits = (length >>> (7 * (size - 1 - i))) & 0x7F;
+            lp[p + i] = (byte) (i == 0 ? bits : bits | 0x80);
+        }
+        return p + size;
+    }
+
+    /**
+     * Bytes de codificación y datos del elemento en p, sin el backlen
+     */
+    private static int encodedLength(byte[] lp, int p) {
+        int b = lp[p] & 0xFF;
+        if ((b & 0x80) == 0) {
+            return 1;
+        }
+        if ((b & 0xC0) == ENC_6BIT_STR) {
+            return 1 + (b & 0x3F);
+        }
+        if ((b & 0xE0) == ENC_13BIT_INT) {
+            return 2;
+        }
+        if ((b & 0xF0) == ENC_12BIT_STR) {
+            return 2 + stringLength(lp, p);
+        }
+        switch (b) {
+            case ENC_32BIT_STR:
+                return 5 + stringLength(lp, p);
+            case ENC_16BIT_INT:
+                return 3;
+            case ENC_24BIT_INT:
+                return 4;
+            case ENC_32BIT_INT:
+                return 5;
+            case ENC_64BIT_INT:
+                return 9;
+            default:
+                throw new IllegalStateException("Listpack inválido: codificación 0x" + Integer.toHexString(b));
+        }
+    }
+
+    private static int intEncodedLength(long value) {
+        if (value >= 0 && value <= 127) {
+            return 1;
+        }
+        if (value >= -4096 && value <= 4095) {
+            return 2;
+        }
+        if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            return 3;
+        }
+        if (value >= -(1 << 23) && value < 1 << 23) {
+            return 4;
+        }
+        if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+            return 5;
+        }
+        return 9;
+    }
+
+    private static int stringHeaderLength(int length) {
+        return length < 64 ? 1 : length < 4096 ? 2 : 5;
+    }
+
+    private static int backlenSize(int length) {
+        if (length <= 127) {
+            return 1;
+        }
+        if (length < 16383) {
+            return 2;
+        }
+        if (length < 2097151) {
+            return 3;
+        }
+        return length < 268435455 ? 4 : 5;
+    }
+
+    /**
+     * Construye un listpack añadiendo elementos al final
+     */
+    public static final class Builder {
+        private byte[] buffer;
+        private int position = HEADER_SIZE;
+        private int count;
+
+        public Builder() {
+            this(64);
+        }
+
+        /**
+         * @param capacity bytes de elementos previstos
+         */
+        public Builder(int capacity) {
+            buffer = new byte[HEADER_SIZE + capacity + 1];
+        }
+
+        public Builder add(byte[] b, int offset, int length) {
+            ensureCapacity(elementSize(b, offset, length));
+            position = writeElement(buffer, position, b, offset, length);
+            count++;
+            return this;
+        }
+
+        public Builder add(byte[] b) {
+            return add(b, 0, b.length);
+        }
+
+        /**
+         * Copia tal cual el elemento en p de otro listpack
+         */
+        public Builder addFrom(byte[] lp, int p) {
+            int size = next(lp, p) - p;
+            ensureCapacity(size);
+            System.arraycopy(lp, p, buffer, position, size);
+            position += size;
+            count++;
+            return this;
+        }
+
+        public int count() {
+            return count;
+        }
+
+        /**
+         * true si ya se añadió un elemento igual
+         */
+        public boolean contains(byte[] b, int offset, int length) {
+            for (int p = HEADER_SIZE; p < position; p = next(buffer, p)) {
+                if (Listpack.equals(buffer, p, b, offset, length)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Bytes que tendrá el listpack
+         */
+        public int bytes() {
+            return position + 1;
+        }
+
+        public byte[] build() {
+            byte[] lp = Arrays.copyOf(buffer, position + 1);
+            writeEnd(lp, position);
+            writeHeader(lp, 0, lp.length, count);
+            return lp;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (position + extra + 1 > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + extra + 1));
+            }
+        }
+    }
+}
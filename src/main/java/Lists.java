@@ -0,0 +1,141 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Operaciones de las listas sobre la ranura de su clave, con el lock del shard ya
+ * tomado (ver Keyspace). Una lista pequeña es un listpack dentro de la propia entrada;
+ * cuando pasa de MAX_LISTPACK_BYTES se convierte en una QuickList de nodos de ese
+ * tamaño, como list-max-listpack-size -2 de Redis
+ */
+public final class Lists {
+
+    static final int MAX_LISTPACK_BYTES = QuickList.NODE_BYTES;
+
+    private Lists() {
+    }
+
+    /**
+     * LPUSH / RPUSH key element [element ...]
+     *
+     * @param head true para añadir por la cabeza (cada elemento delante del anterior)
+     * @return la nueva longitud
+     */
+    static long push(KeyTable table, int slot, int hash, CommandArgs args, int keyIndex, int first, boolean head) {
+        byte[] buffer = args.buffer();
+        byte[] entry = slot < 0 ? null : table.entryAt(slot);
+        if (entry != null && Entries.isObject(entry)) {
+            QuickList list = (QuickList) table.valueAt(slot);
+            table.beforeMutate(slot);
+            for (int i = first; i < args.count(); i++) {
+                if (head) {
+                    list.pushHead(buffer, args.offset(i), args.length(i));
+                } else {
+                    list.pushTail(buffer, args.offset(i), args.length(i));
+                }
+            }
+            return list.size();
+        }
+        Listpack.Builder insert = new Listpack.Builder();
+        for (int i = head ? args.count() - 1 : first; head ? i >= first : i < args.count(); i += head ? -1 : 1) {
+            insert.add(buffer, args.offset(i), args.length(i));
+        }
+        byte[] lp = entry == null ? Listpack.EMPTY : entry;
+        int base = entry == null ? 0 : Entries.valueOffset(entry);
+        int at = head ? Listpack.first(base) : Listpack.end(lp, base);
+        lp = Listpack.splice(lp, base, at, at, 0, insert.build());
+        if (fitsListpack(lp, 0)) {
+            Keyspace.storeListpack(table, slot, hash, args, keyIndex, Entries.TYPE_LIST, lp);
+        } else {
+            Keyspace.storeObject(table, slot, hash, args, keyIndex, Entries.TYPE_LIST, QuickList.fromListpack(lp, 0));
+        }
+        return Listpack.count(lp, 0);
+    }
+
+    /**
+     * LPOP / RPOP: quita hasta count elementos de un extremo; borra la clave si se queda vacía
+     *
+     * @return los elementos en el orden en que salen, o null si la clave no existe
+     */
+    static List<byte[]> pop(KeyTable table, int slot, long count, boolean head) {
+        if (slot < 0) {
+            return null;
+        }
+        byte[] entry = table.entryAt(slot);
+        List<byte[]> popped = new ArrayList<>();
+        if (Entries.isObject(entry)) {
+            QuickList list = (QuickList) table.valueAt(slot);
+            table.beforeMutate(slot);
+            while (popped.size() < count && list.size() > 0) {
+                popped.add(head ? list.popHead() : list.popTail());
+            }
+            if (list.size() == 0) {
+                table.removeAt(slot);
+            }
+            return popped;
+        }
+        int base = Entries.valueOffset(entry);
+        int size = Listpack.count(entry, base);
+        int n = (int) Math.min(count, size);
+        if (n == size) {
+            collect(entry, base, head, n, popped);
+            table.removeAt(slot);
+            return popped;
+        }
+        collect(entry, base, head, n, popped);
+        int from;
+        int to;
+        if (head) {
+            from = Listpack.first(base);
+            to = Listpack.seek(entry, base, n);
+        } else {
+            from = Listpack.seek(entry, base, size - n);
+            to = Listpack.end(entry, base);
+        }
+        table.replaceAt(slot, Entries.withListpack(entry, Listpack.splice(entry, base, from, to, n, null)));
+        return popped;
+    }
+
+    /**
+     * LRANGE: elementos de start a stop (inclusive, negativos desde el final)
+     */
+    static void range(byte[] entry, LargeValue value, long start, long stop, RespWriter out) {
+        int size = entry == null ? 0 : value != null ? value.size() : Listpack.count(entry, Entries.valueOffset(entry));
+        if (start < 0) {
+            start += size;
+        }
+        if (stop < 0) {
+            stop += size;
+        }
+        start = Math.max(start, 0);
+        stop = Math.min(stop, size - 1);
+        if (start > stop) {
+            out.writeRaw(RespWriter.EMPTY_ARRAY);
+            return;
+        }
+        out.writeArrayHeader((int) (stop - start + 1));
+        if (value != null) {
+            ((QuickList) value).writeRange((int) start, (int) stop, out);
+            return;
+        }
+        int base = Entries.valueOffset(entry);
+        int p = Listpack.seek(entry, base, (int) start);
+        for (long i = start; i <= stop; i++, p = Listpack.next(entry, p)) {
+            Listpack.write(entry, p, out);
+        }
+    }
+
+    static boolean fitsListpack(byte[] lp, int base) {
+        return Listpack.totalBytes(lp, base) <= MAX_LISTPACK_BYTES;
+    }
+
+    /**
+     * Copia los n primeros (o últimos, de atrás hacia delante) elementos
+     */
+    private static void collect(byte[] lp, int base, boolean head, int n, List<byte[]> out) {
+        int p = head ? Listpack.first(base) : Listpack.last(lp, base);
+        for (int i = 0; i < n; i++) {
+            out.add(Listpack.get(lp, p));
+            p = head ? Listpack.next(lp, p) : Listpack.prev(lp, base, p);
+        }
+    }
+}
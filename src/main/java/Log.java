@@ -0,0 +1,160 @@
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registro asíncrono de mensajes del servidor, filtrado por nivel.
+ *
+ * Los hilos que atienden clientes no escriben en la consola: dejan el mensaje en una cola
+ * acotada y un hilo aparte lo formatea y lo imprime, los avisos (WARNING) por stderr y el
+ * resto por stdout. Si la cola está llena el mensaje se descarta y se cuenta, en lugar de
+ * frenar a quien lo emite. Los mensajes por debajo del nivel configurado se descartan antes
+ * de encolarse; para los de DEBUG en caminos calientes conviene comprobar isEnabled antes de
+ * construir el texto
+ */
+public final class Log {
+
+    private static final int QUEUE_CAPACITY = 16 * 1024;
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("dd MMM yyyy HH:mm:ss.SSS", Locale.ROOT);
+    private static final long PID = ProcessHandle.current().pid();
+    // lo que espera flush a que el escritor acabe lo que tiene entre manos
+    private static final long STOP_TIMEOUT_MILLIS = 1000;
+
+    private static final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private static final AtomicLong dropped = new AtomicLong();
+    private static volatile LogLevel level = LogLevel.NOTICE;
+    private static final Thread writer = new Thread(Log::drain, "logger");
+
+    static {
+        writer.setDaemon(true);
+        writer.start();
+        // lo que quede en la cola al apagar se escribe antes de salir
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "logger-flush"));
+    }
+
+    private Log() {
+    }
+
+    public static LogLevel getLevel() {
+        return level;
+    }
+
+    public static void setLevel(LogLevel newLevel) {
+        level = newLevel;
+    }
+
+    public static boolean isEnabled(LogLevel messageLevel) {
+        return messageLevel.compareTo(level) >= 0;
+    }
+
+    public static void debug(String message) {
+        log(LogLevel.DEBUG, message);
+    }
+
+    public static void verbose(String message) {
+        log(LogLevel.VERBOSE, message);
+    }
+
+    public static void notice(String message) {
+        log(LogLevel.NOTICE, message);
+    }
+
+    public static void warning(String message) {
+        log(LogLevel.WARNING, message);
+    }
+
+    /**
+     * Aviso con la traza de la excepción, para fallos del propio servidor
+     */
+    public static void warning(String message, Throwable error) {
+        if (!isEnabled(LogLevel.WARNING)) {
+            return;
+        }
+        StringWriter trace = new StringWriter();
+        error.printStackTrace(new PrintWriter(trace));
+        log(LogLevel.WARNING, message + System.lineSeparator() + trace.toString().stripTrailing());
+    }
+
+    public static void log(LogLevel messageLevel, String message) {
+        if (!isEnabled(messageLevel)) {
+            return;
+        }
+        if (!queue.offer(new Entry(messageLevel, System.currentTimeMillis(), Thread.currentThread().getName(), message))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private static void drain() {
+        try {
+            while (true) {
+                write(queue.take());
+                Entry next;
+                while ((next = queue.poll()) != null) {
+                    write(next);
+                }
+                reportDropped();
+                System.out.flush();
+                System.err.flush();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Detiene el hilo escritor y escribe lo pendiente en el hilo que llama. El escritor
+     * vacía la cola antes de volver a take(), donde la interrupción lo hace salir: al
+     * terminar join solo queda lo que se haya encolado después, y sale detrás, en orden
+     */
+    public static void flush() {
+        writer.interrupt();
+        try {
+            writer.join(STOP_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Entry next;
+        while ((next = queue.poll()) != null) {
+            write(next);
+        }
+        System.out.flush();
+        System.err.flush();
+    }
+
+    private static void reportDropped() {
+        long lost = dropped.getAndSet(0);
+        if (lost > 0) {
+            write(new Entry(LogLevel.WARNING, System.currentTimeMillis(), "logger",
+                    lost + " mensajes descartados con la cola del log llena"));
+        }
+    }
+
+    private static void write(Entry entry) {
+        PrintStream stream = entry.level == LogLevel.WARNING ? System.err : System.out;
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(entry.millis), ZoneId.systemDefault());
+        stream.println(PID + ":" + entry.thread + " " + TIME.format(time) + " " + entry.level.getSymbol() + " "
+                + entry.message);
+    }
+
+    private static final class Entry {
+        final LogLevel level;
+        final long millis;
+        final String thread;
+        final String message;
+
+        Entry(LogLevel level, long millis, String thread, String message) {
+            this.level = level;
+            this.millis = millis;
+            this.thread = thread;
+            this.message = message;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+/**
+ * Nivel de los mensajes del servidor (loglevel de Redis), de más a menos detallado
+ */
+public enum LogLevel {
+    DEBUG("debug", '.'),
+    VERBOSE("verbose", '-'),
+    NOTICE("notice", '*'),
+    WARNING("warning", '#');
+
+    private final String name;
+    // marca que Redis pone delante de cada línea según su nivel
+    private final char symbol;
+
+    LogLevel(String name, char symbol) {
+        this.name = name;
+        this.symbol = symbol;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public char getSymbol() {
+        return symbol;
+    }
+
+    public static LogLevel fromName(String name) {
+        for (LogLevel level : values()) {
+            if (level.name.equalsIgnoreCase(name)) return level;
+        }
+        throw new IllegalArgumentException("loglevel inválido: " + name);
+    }
+}
@@ -1,18 +1,16 @@
-import static java.lang.System.out;
-
 /**
  * Clase principal del servidor Redis refactorizado
  */
 public class Main {
 
   public static void main(String[] args) {
-    out.println("¡Iniciando servidor Redis refactorizado!");
-    
     // Parsear argumentos de línea de comandos
     CommandLineArgs cmdArgs = new CommandLineArgs(args);
+    Log.setLevel(cmdArgs.getLogLevel());
+    Log.notice("¡Iniciando servidor Redis refactorizado!");
     
     // Crear e iniciar el servidor Redis
-    RedisServer server = new RedisServer(cmdArgs.getDir(), cmdArgs.getDbfilename(), cmdArgs.getPort());
+    RedisServer server = new RedisServer(cmdArgs);
     server.start();
   }
 }
@@ -0,0 +1,384 @@
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Enlace de una réplica con su maestro, en un hilo propio que se reconecta si se cae.
+ *
+ * Tras el saludo (PING, REPLCONF) pide con PSYNC seguir su historial. Si el maestro manda
+ * una sincronización completa, guarda el RDB recibido como su dump (igual que Redis por
+ * defecto), vacía el almacén y lo carga con el lector paralelo. Después aplica el flujo por
+ * lotes a través de los mismos comandos que usan los clientes, como conexión interna, y
+ * copia los bytes tal cual a su propio backlog, que da el offset de la réplica
+ */
+public class MasterLink implements Runnable {
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int READ_TIMEOUT_MILLIS = 1000;
+    // como repl-timeout
+    private static final long MASTER_TIMEOUT_MILLIS = 60_000;
+    private static final long ACK_PERIOD_MILLIS = 1000;
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int MARK_LENGTH = 40;
+
+    private final Replication replication;
+    private final String host;
+    private final int port;
+    private final Thread thread;
+    private final Client client = Client.internal("master");
+    private volatile boolean running = true;
+    private volatile boolean up;
+    private volatile boolean syncInProgress;
+    private volatile long lastIoMillis = System.currentTimeMillis();
+    private volatile Socket socket;
+
+    public MasterLink(Replication replication, String host, int port) {
+        this.replication = replication;
+        this.host = host;
+        this.port = port;
+        this.thread = new Thread(this, "master-link");
+        thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Corta el enlace y no vuelve a conectar
+     */
+    public void stop() {
+        running = false;
+        closeSocket();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * true si está sincronizada y recibiendo el flujo (master_link_status:up)
+     */
+    public boolean isUp() {
+        return up;
+    }
+
+    public boolean isSyncInProgress() {
+        return syncInProgress;
+    }
+
+    public long lastIoSecondsAgo() {
+        return (System.currentTimeMillis() - lastIoMillis) / 1000;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                connectAndSync();
+            } catch (IOException | RuntimeException e) {
+                if (running) {
+                    Log.warning("Enlace con el maestro " + host + ":" + port + " caído: " + e.getMessage());
+                }
+            } finally {
+                up = false;
+                syncInProgress = false;
+                closeSocket();
+            }
+            try {
+                Thread.sleep(RECONNECT_DELAY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void connectAndSync() throws IOException {
+        Socket connection = new Socket();
+        socket = connection;
+        if (!running) {
+            return;
+        }
+        connection.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+        connection.setTcpNoDelay(true);
+        connection.setSoTimeout((int) MASTER_TIMEOUT_MILLIS);
+        InputStream in = new BufferedInputStream(connection.getInputStream(), CHUNK_SIZE);
+        OutputStream out = connection.getOutputStream();
+
+        sendCommand(out, "PING");
+        expectReply(in, "PING");
+        sendCommand(out, "REPLCONF", "listening-port", String.valueOf(replication.getPort()));
+        expectReply(in, "REPLCONF listening-port");
+        sendCommand(out, "REPLCONF", "capa", "eof", "capa", "psync2");
+        expectReply(in, "REPLCONF capa");
+
+        String[] request = replication.psyncRequest();
+        sendCommand(out, "PSYNC", request[0], request[1]);
+        String reply = readNonEmptyLine(in);
+        byte[] pending = new byte[0];
+        if (reply.startsWith("+FULLRESYNC ")) {
+            String[] parts = reply.split(" ");
+            if (parts.length < 3) {
+                throw new IOException("Respuesta a PSYNC inválida: " + reply);
+            }
+            pending = fullSync(in, parts[1], Long.parseLong(parts[2]));
+        } else if (reply.startsWith("+CONTINUE")) {
+            String[] parts = reply.split(" ");
+            replication.continueSync(parts.length > 1 ? parts[1] : null);
+            Log.notice("Resync parcial con el maestro " + host + ":" + port);
+        } else {
+            throw new IOException("PSYNC rechazado: " + reply);
+        }
+        up = true;
+        applyStream(in, out, pending);
+    }
+
+    /**
+     * Recibe la foto del maestro en el fichero RDB y la carga en lugar del almacén
+     *
+     * @return bytes del flujo que llegaron pegados al final de la foto
+     */
+    private byte[] fullSync(InputStream in, String masterReplid, long offset) throws IOException {
+        syncInProgress = true;
+        RedisCommands commands = replication.getCommands();
+        Path target = commands.getRdbPath();
+        Path temp = target.resolveSibling("temp-" + ProcessHandle.current().pid() + "-sync.rdb");
+        long start = System.nanoTime();
+        byte[] pending;
+        try (FileChannel file = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            String header = readNonEmptyLine(in);
+            if (header.startsWith("$EOF:")) {
+                pending = receiveUntilMark(in, file, header.substring(5).getBytes(StandardCharsets.US_ASCII));
+            } else if (header.startsWith("$")) {
+                receiveLength(in, file, Long.parseLong(header.substring(1)));
+                pending = new byte[0];
+            } else {
+                throw new IOException("Se esperaba el RDB del maestro: " + header);
+            }
+            file.force(true);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        ReentrantLock applyLock = replication.getApplyLock();
+        RDBParser.LoadStats stats;
+        applyLock.lock();
+        try {
+            commands.getKeyspace().clear();
+            stats = RDBParser.loadParallel(target, commands.createRdbLoader(), replication.getLoadThreads());
+            replication.completeFullSync(masterReplid, offset);
+        } finally {
+            applyLock.unlock();
+        }
+        Log.notice("Sincronización completa desde " + host + ":" + port + ": " + stats.keys + " claves, "
+                + stats.bytes + " bytes en " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        if (commands.getLog().getAppendOnlyFile() != null) {
+            // el AOF aún describe el almacén anterior
+            try {
+                commands.rewriteAppendOnlyFile();
+            } catch (CommandException e) {
+                Log.warning("No se pudo reescribir el AOF tras la sincronización: " + e.getMessage());
+            }
+        }
+        syncInProgress = false;
+        return pending;
+    }
+
+    /**
+     * Formato sin tamaño de Redis: los datos terminan con la marca de 40 bytes anunciada
+     * en la cabecera. Se retienen los últimos bytes de cada lectura por si la marca llega partida
+     */
+    private byte[] receiveUntilMark(InputStream in, FileChannel file, byte[] mark) throws IOException {
+        if (mark.length != MARK_LENGTH) {
+            throw new IOException("Marca de fin del RDB inválida");
+        }
+        byte[] chunk = new byte[CHUNK_SIZE + MARK_LENGTH];
+        int filled = 0;
+        while (true) {
+            int read = in.read(chunk, filled, chunk.length - filled);
+            if (read < 0) {
+                throw new EOFException("El maestro cerró durante la sincronización");
+            }
+            lastIoMillis = System.currentTimeMillis();
+            filled += read;
+            int found = indexOf(chunk, filled, mark);
+            if (found >= 0) {
+                file.write(ByteBuffer.wrap(chunk, 0, found));
+                return Arrays.copyOfRange(chunk, found + MARK_LENGTH, filled);
+            }
+            int keep = Math.min(filled, MARK_LENGTH - 1);
+            file.write(ByteBuffer.wrap(chunk, 0, filled - keep));
+            System.arraycopy(chunk, filled - keep, chunk, 0, keep);
+            filled = keep;
+        }
+    }
+
+    private void receiveLength(InputStream in, FileChannel file, long length) throws IOException {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        long remaining = length;
+        while (remaining > 0) {
+            int read = in.read(chunk, 0, (int) Math.min(chunk.length, remaining));
+            if (read < 0) {
+                throw new EOFException("El maestro cerró durante la sincronización");
+            }
+            lastIoMillis = System.currentTimeMillis();
+            file.write(ByteBuffer.wrap(chunk, 0, read));
+            remaining -= read;
+        }
+    }
+
+    /**
+     * Aplica el flujo del maestro hasta que se corte el enlace. Cada lote de comandos
+     * completos se ejecuta con applyLock y sus bytes pasan al backlog; los ACK salen cada
+     * segundo y cuando el maestro los pide (REPLCONF GETACK)
+     */
+    private void applyStream(InputStream in, OutputStream out, byte[] pending) throws IOException {
+        socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+        ByteBuffer buffer = ByteBuffer.allocate(Math.max(CHUNK_SIZE, pending.length * 2));
+        buffer.put(pending);
+        RespParser parser = new RespParser();
+        CommandArgs args = new CommandArgs();
+        RespWriter discarded = new RespWriter();
+        ClientCommand dispatcher = replication.getDispatcher();
+        ReentrantLock applyLock = replication.getApplyLock();
+        long lastAck = 0;
+        while (running) {
+            int read;
+            try {
+                read = in.read(buffer.array(), buffer.position(), buffer.remaining());
+            } catch (SocketTimeoutException e) {
+                read = 0;
+            }
+            long now = System.currentTimeMillis();
+            if (read < 0) {
+                throw new EOFException("El maestro cerró la conexión");
+            }
+            if (read > 0) {
+                buffer.position(buffer.position() + read);
+                lastIoMillis = now;
+            } else if (now - lastIoMillis > MASTER_TIMEOUT_MILLIS) {
+                throw new IOException("Sin noticias del maestro en " + MASTER_TIMEOUT_MILLIS / 1000 + " s");
+            }
+            buffer.flip();
+            applyLock.lock();
+            try {
+                ReplicationBacklog backlog = replication.getBacklog();
+                int start = buffer.position();
+                while (parser.parse(buffer, args)) {
+                    if (args.count() >= 2 && args.equalsIgnoreCase(0, "REPLCONF") && args.equalsIgnoreCase(1, "GETACK")) {
+                        // el ACK no incluye el propio GETACK
+                        sendAck(out, backlog.offset());
+                    } else {
+                        dispatcher.execute(client, args, discarded);
+                        discarded.clear();
+                    }
+                    backlog.feed(ByteBuffer.wrap(buffer.array(), start, buffer.position() - start));
+                    start = buffer.position();
+                }
+            } finally {
+                applyLock.unlock();
+            }
+            buffer = parser.compact(buffer);
+            if (now - lastAck >= ACK_PERIOD_MILLIS) {
+                sendAck(out, replication.offset());
+                lastAck = now;
+            }
+        }
+    }
+
+    private void sendAck(OutputStream out, long offset) throws IOException {
+        sendCommand(out, "REPLCONF", "ACK", String.valueOf(offset));
+    }
+
+    private static void sendCommand(OutputStream out, String... parts) throws IOException {
+        RespWriter command = new RespWriter();
+        command.writeArrayHeader(parts.length);
+        for (String part : parts) {
+            command.writeBulk(part);
+        }
+        command.writeTo(out);
+    }
+
+    private void expectReply(InputStream in, String command) throws IOException {
+        String reply = readNonEmptyLine(in);
+        if (!reply.startsWith("+")) {
+            throw new IOException("El maestro rechazó " + command + ": " + reply);
+        }
+    }
+
+    /**
+     * Lee una línea de respuesta saltando los saltos de línea con los que el maestro
+     * mantiene viva la conexión mientras prepara la foto
+     */
+    private String readNonEmptyLine(InputStream in) throws IOException {
+        while (true) {
+            StringBuilder line = new StringBuilder();
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) {
+                    throw new EOFException("El maestro cerró la conexión");
+                }
+                line.append((char) b);
+            }
+            lastIoMillis = System.currentTimeMillis();
+            int length = line.length();
+            if (length > 0 && line.charAt(length - 1) == '\r') {
+                line.setLength(length - 1);
+            }
+            if (line.length() > 0) {
+                return line.toString();
+            }
+        }
+    }
+
+    private static int indexOf(byte[] data, int length, byte[] pattern) {
+        outer:
+        for (int i = 0; i + pattern.length <= length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private void closeSocket() {
+        Socket current = socket;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                // Ignorar errores al cerrar
+            }
+        }
+    }
+}
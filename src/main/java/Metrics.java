@@ -0,0 +1,415 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Métricas del servidor: contadores globales (conexiones, bytes de red) y, por comando,
+ * llamadas y latencias. Se exponen con INFO, LATENCY HISTOGRAM y en formato de texto de
+ * Prometheus (ver MetricsExporter).
+ *
+ * Todo lo que se toca al atender una petición son LongAdder o el histograma por franjas,
+ * sin locks ni asignaciones; el coste de sumar y formatear lo paga quien consulta
+ */
+public class Metrics {
+
+    private static final String REDIS_VERSION = "7.2.0";
+    // límites (en µs) de los cubos del histograma de Prometheus
+    private static final long[] PROMETHEUS_BUCKETS_MICROS = {1, 2, 5, 10, 25, 50, 100, 250, 500, 1_000, 2_500,
+            5_000, 10_000, 25_000, 50_000, 100_000, 250_000, 500_000, 1_000_000};
+
+    private final RedisCommands commands;
+    private final Replication replication;
+    private final PubSub pubsub;
+    private final BlockingLists blockingLists;
+    private final int port;
+    private final long startMillis = System.currentTimeMillis();
+    // solo se añaden comandos al arrancar; después se lee sin sincronizar
+    private final Map<String, CommandStats> commandStats = new TreeMap<>();
+    private final LongAdder connectedClients = new LongAdder();
+    private final LongAdder connectionsReceived = new LongAdder();
+    private final LongAdder netInputBytes = new LongAdder();
+    private final LongAdder netOutputBytes = new LongAdder();
+    private final LongAdder unknownCommands = new LongAdder();
+
+    public Metrics(RedisCommands commands, Replication replication, PubSub pubsub, BlockingLists blockingLists,
+                   int port) {
+        this.commands = commands;
+        this.replication = replication;
+        this.pubsub = pubsub;
+        this.blockingLists = blockingLists;
+        this.port = port;
+    }
+
+    /**
+     * Envuelve un comando para medir cuánto tarda cada llamada (hasta dejar la respuesta
+     * en el buffer de salida) y contar las que terminan en error
+     */
+    public ClientCommand timed(String name, ClientCommand command) {
+        CommandStats stats = commandStats.computeIfAbsent(name.toLowerCase(), CommandStats::new);
+        return (client, args, out) -> {
+            long start = System.nanoTime();
+            boolean failed = true;
+            try {
+                command.execute(client, args, out);
+                failed = false;
+            } finally {
+                stats.record(System.nanoTime() - start, failed);
+            }
+        };
+    }
+
+    public void clientConnected() {
+        connectedClients.increment();
+        connectionsReceived.increment();
+    }
+
+    public void clientDisconnected() {
+        connectedClients.decrement();
+    }
+
+    public void bytesRead(long bytes) {
+        netInputBytes.add(bytes);
+    }
+
+    public void bytesWritten(long bytes) {
+        netOutputBytes.add(bytes);
+    }
+
+    public void unknownCommand() {
+        unknownCommands.increment();
+    }
+
+    /**
+     * CONFIG RESETSTAT: pone a cero los contadores acumulados (no los de estado actual)
+     */
+    public void resetStats() {
+        connectionsReceived.reset();
+        netInputBytes.reset();
+        netOutputBytes.reset();
+        unknownCommands.reset();
+        for (CommandStats stats : commandStats.values()) {
+            stats.reset();
+        }
+    }
+
+    /**
+     * Añade a CONFIG el subcomando RESETSTAT, que pone a cero las estadísticas
+     */
+    public ClientCommand handleResetStat(ClientCommand config) {
+        return (client, args, out) -> {
+            if (args.count() == 2 && args.equalsIgnoreCase(1, "RESETSTAT")) {
+                resetStats();
+                out.writeOk();
+            } else {
+                config.execute(client, args, out);
+            }
+        };
+    }
+
+    /**
+     * Comando INFO [sección ...] - sin argumentos o con default, las secciones generales;
+     * all y everything añaden commandstats y latencystats
+     */
+    public RedisCommand createInfoCommand() {
+        return (args, out) -> {
+            List<String> sections = new ArrayList<>();
+            for (int i = 1; i < args.count(); i++) {
+                sections.add(args.toString(i).toLowerCase());
+            }
+            if (sections.isEmpty()) {
+                sections.add("default");
+            }
+            out.writeBulk(info(sections));
+        };
+    }
+
+    /**
+     * Comando LATENCY HISTOGRAM [comando ...] - distribución acumulada de latencias en
+     * cubos de potencias de dos µs, con el mismo formato que Redis
+     */
+    public RedisCommand createLatencyCommand() {
+        return (args, out) -> {
+            if (!args.equalsIgnoreCase(1, "HISTOGRAM")) {
+                throw new CommandException("unknown subcommand '" + args.toString(1) + "' for 'latency'");
+            }
+            List<CommandStats> selected = new ArrayList<>();
+            List<long[]> histograms = new ArrayList<>();
+            for (CommandStats stats : commandStats.values()) {
+                if (args.count() > 2 && !isRequested(args, stats.getName())) {
+                    continue;
+                }
+                long[] histogram = stats.histogram();
+                if (CommandStats.calls(histogram) > 0) {
+                    selected.add(stats);
+                    histograms.add(histogram);
+                }
+            }
+            out.writeArrayHeader(selected.size() * 2);
+            for (int i = 0; i < selected.size(); i++) {
+                long[] histogram = histograms.get(i);
+                long calls = CommandStats.calls(histogram);
+                List<long[]> buckets = powerOfTwoBuckets(histogram, calls);
+                out.writeBulk(selected.get(i).getName());
+                out.writeArrayHeader(4);
+                out.writeBulk("calls");
+                out.writeInteger(calls);
+                out.writeBulk("histogram_usec");
+                out.writeArrayHeader(buckets.size() * 2);
+                for (long[] bucket : buckets) {
+                    out.writeInteger(bucket[0]);
+                    out.writeInteger(bucket[1]);
+                }
+            }
+        };
+    }
+
+    private static boolean isRequested(CommandArgs args, String name) {
+        for (int i = 2; i < args.count(); i++) {
+            if (args.equalsIgnoreCase(i, name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Pares (límite en µs, llamadas acumuladas hasta él) desde el primer cubo con
+     * llamadas hasta el que las incluye todas
+     */
+    private static List<long[]> powerOfTwoBuckets(long[] histogram, long calls) {
+        List<long[]> buckets = new ArrayList<>();
+        long cumulative = 0;
+        int next = 0;
+        for (long limit = 1; cumulative < calls; limit <<= 1) {
+            long limitNanos = limit * 1000 + 999;
+            while (next < histogram.length && LatencyHistogram.upperBound(next) <= limitNanos) {
+                cumulative += histogram[next++];
+            }
+            if (next == histogram.length) {
+                cumulative = calls;
+            }
+            if (cumulative > 0) {
+                buckets.add(new long[] {limit, cumulative});
+            }
+        }
+        return buckets;
+    }
+
+    private String info(List<String> sections) {
+        boolean all = sections.contains("all") || sections.contains("everything");
+        boolean defaults = all || sections.contains("default");
+        StringBuilder info = new StringBuilder();
+        if (defaults || sections.contains("server")) {
+            appendServer(info);
+        }
+        if (defaults || sections.contains("clients")) {
+            appendClients(info);
+        }
+        if (defaults || sections.contains("memory")) {
+            appendMemory(info);
+        }
+        if (defaults || sections.contains("persistence")) {
+            appendPersistence(info);
+        }
+        if (defaults || sections.contains("stats")) {
+            appendStats(info);
+        }
+        if (defaults || sections.contains("replication")) {
+            separate(info).append(replication.info());
+        }
+        if (all || sections.contains("commandstats")) {
+            appendCommandStats(info);
+        }
+        if (all || sections.contains("latencystats")) {
+            appendLatencyStats(info);
+        }
+        if (defaults || sections.contains("keyspace")) {
+            appendKeyspace(info);
+        }
+        return info.toString();
+    }
+
+    private void appendServer(StringBuilder info) {
+        long uptime = (System.currentTimeMillis() - startMillis) / 1000;
+        separate(info).append("# Server\r\n");
+        line(info, "redis_version", REDIS_VERSION);
+        line(info, "redis_mode", "standalone");
+        line(info, "arch_bits", "64");
+        line(info, "process_id", ProcessHandle.current().pid());
+        line(info, "tcp_port", port);
+        line(info, "uptime_in_seconds", uptime);
+        line(info, "uptime_in_days", uptime / 86400);
+        line(info, "loglevel", Log.getLevel().getName());
+    }
+
+    private void appendClients(StringBuilder info) {
+        separate(info).append("# Clients\r\n");
+        line(info, "connected_clients", connectedClients.sum());
+        line(info, "blocked_clients", blockingLists.blockedCount());
+    }
+
+    private void appendMemory(StringBuilder info) {
+        Eviction eviction = commands.getKeyspace().getEviction();
+        separate(info).append("# Memory\r\n");
+        line(info, "used_memory", commands.getKeyspace().usedMemory());
+        line(info, "used_memory_rss", Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory());
+        line(info, "maxmemory", eviction.getMaxmemory());
+        line(info, "maxmemory_policy", eviction.getPolicy().getName());
+    }
+
+    private void appendPersistence(StringBuilder info) {
+        AppendOnlyFile aof = commands.getLog().getAppendOnlyFile();
+        separate(info).append("# Persistence\r\n");
+        line(info, "loading", 0);
+        line(info, "rdb_last_save_time", commands.getLastSave());
+        line(info, "aof_enabled", aof != null ? 1 : 0);
+        if (aof != null) {
+            line(info, "aof_fsync", aof.getFsync().getName());
+        }
+    }
+
+    private void appendStats(StringBuilder info) {
+        long processed = 0;
+        for (CommandStats stats : commandStats.values()) {
+            processed += CommandStats.calls(stats.histogram());
+        }
+        Keyspace keyspace = commands.getKeyspace();
+        separate(info).append("# Stats\r\n");
+        line(info, "total_connections_received", connectionsReceived.sum());
+        line(info, "total_commands_processed", processed);
+        line(info, "total_net_input_bytes", netInputBytes.sum());
+        line(info, "total_net_output_bytes", netOutputBytes.sum());
+        line(info, "expired_keys", keyspace.getExpiredKeys());
+        line(info, "evicted_keys", keyspace.getEviction().getEvictedKeys());
+        line(info, "pubsub_channels", pubsub.channelCount());
+        line(info, "pubsub_patterns", pubsub.patternCount());
+        line(info, "client_output_buffer_limit_disconnections", pubsub.getOverflowDisconnections());
+        line(info, "unknown_commands", unknownCommands.sum());
+    }
+
+    private void appendCommandStats(StringBuilder info) {
+        separate(info).append("# Commandstats\r\n");
+        for (CommandStats stats : commandStats.values()) {
+            long calls = CommandStats.calls(stats.histogram());
+            if (calls == 0) {
+                continue;
+            }
+            long usec = stats.getTotalNanos() / 1000;
+            info.append("cmdstat_").append(stats.getName()).append(":calls=").append(calls)
+                    .append(",usec=").append(usec)
+                    .append(",usec_per_call=").append(String.format(Locale.ROOT, "%.2f", (double) usec / calls))
+                    .append(",rejected_calls=0,failed_calls=").append(stats.getFailedCalls()).append("\r\n");
+        }
+    }
+
+    private void appendLatencyStats(StringBuilder info) {
+        separate(info).append("# Latencystats\r\n");
+        for (CommandStats stats : commandStats.values()) {
+            long[] histogram = stats.histogram();
+            if (CommandStats.calls(histogram) == 0) {
+                continue;
+            }
+            info.append("latency_percentiles_usec_").append(stats.getName())
+                    .append(":p50=").append(micros(LatencyHistogram.percentile(histogram, 50)))
+                    .append(",p99=").append(micros(LatencyHistogram.percentile(histogram, 99)))
+                    .append(",p99.9=").append(micros(LatencyHistogram.percentile(histogram, 99.9))).append("\r\n");
+        }
+    }
+
+    private void appendKeyspace(StringBuilder info) {
+        Keyspace keyspace = commands.getKeyspace();
+        long keys = keyspace.size();
+        separate(info).append("# Keyspace\r\n");
+        if (keys > 0) {
+            info.append("db0:keys=").append(keys).append(",expires=").append(keyspace.expiresCount())
+                    .append(",avg_ttl=0\r\n");
+        }
+    }
+
+    /**
+     * Métricas en el formato de texto de Prometheus
+     */
+    public String prometheus() {
+        Keyspace keyspace = commands.getKeyspace();
+        StringBuilder text = new StringBuilder();
+        gauge(text, "redis_uptime_seconds", (System.currentTimeMillis() - startMillis) / 1000);
+        gauge(text, "redis_connected_clients", connectedClients.sum());
+        gauge(text, "redis_blocked_clients", blockingLists.blockedCount());
+        counter(text, "redis_connections_received_total", connectionsReceived.sum());
+        counter(text, "redis_net_input_bytes_total", netInputBytes.sum());
+        counter(text, "redis_net_output_bytes_total", netOutputBytes.sum());
+        gauge(text, "redis_memory_used_bytes", keyspace.usedMemory());
+        gauge(text, "redis_memory_max_bytes", keyspace.getEviction().getMaxmemory());
+        gauge(text, "redis_db_keys", keyspace.size());
+        gauge(text, "redis_db_keys_expiring", keyspace.expiresCount());
+        counter(text, "redis_expired_keys_total", keyspace.getExpiredKeys());
+        counter(text, "redis_evicted_keys_total", keyspace.getEviction().getEvictedKeys());
+        gauge(text, "redis_pubsub_channels", pubsub.channelCount());
+        gauge(text, "redis_pubsub_patterns", pubsub.patternCount());
+        counter(text, "redis_client_output_buffer_limit_disconnections_total", pubsub.getOverflowDisconnections());
+        gauge(text, "redis_master_repl_offset", replication.offset());
+
+        text.append("# TYPE redis_commands_failed_total counter\n");
+        List<long[]> histograms = new ArrayList<>();
+        for (CommandStats stats : commandStats.values()) {
+            long[] histogram = stats.histogram();
+            histograms.add(histogram);
+            if (CommandStats.calls(histogram) > 0) {
+                text.append("redis_commands_failed_total{cmd=\"").append(stats.getName()).append("\"} ")
+                        .append(stats.getFailedCalls()).append('\n');
+            }
+        }
+        text.append("# TYPE redis_command_duration_seconds histogram\n");
+        int index = 0;
+        for (CommandStats stats : commandStats.values()) {
+            long[] histogram = histograms.get(index++);
+            long calls = CommandStats.calls(histogram);
+            if (calls == 0) {
+                continue;
+            }
+            String label = "{cmd=\"" + stats.getName() + "\"";
+            long cumulative = 0;
+            int next = 0;
+            for (long limitMicros : PROMETHEUS_BUCKETS_MICROS) {
+                while (next < histogram.length && LatencyHistogram.upperBound(next) <= limitMicros * 1000) {
+                    cumulative += histogram[next++];
+                }
+                text.append("redis_command_duration_seconds_bucket").append(label).append(",le=\"")
+                        .append(limitMicros / 1e6).append("\"} ").append(cumulative).append('\n');
+            }
+            text.append("redis_command_duration_seconds_bucket").append(label).append(",le=\"+Inf\"} ")
+                    .append(calls).append('\n');
+            text.append("redis_command_duration_seconds_sum").append(label).append("} ")
+                    .append(stats.getTotalNanos() / 1e9).append('\n');
+            text.append("redis_command_duration_seconds_count").append(label).append("} ")
+                    .append(calls).append('\n');
+        }
+        return text.toString();
+    }
+
+    private static void gauge(StringBuilder text, String name, long value) {
+        text.append("# TYPE ").append(name).append(" gauge\n").append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void counter(StringBuilder text, String name, long value) {
+        text.append("# TYPE ").append(name).append(" counter\n").append(name).append(' ').append(value).append('\n');
+    }
+
+    private static StringBuilder separate(StringBuilder info) {
+        if (info.length() > 0) {
+            info.append("\r\n");
+        }
+        return info;
+    }
+
+    private static void line(StringBuilder info, String name, Object value) {
+        info.append(name).append(':').append(value).append("\r\n");
+    }
+
+    private static String micros(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1000.0);
+    }
+}
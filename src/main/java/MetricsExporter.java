@@ -0,0 +1,46 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+/**
+ * Endpoint HTTP opcional (--metrics-port) que sirve las métricas en /metrics con el
+ * formato de texto de Prometheus. Lo atiende un único hilo aparte, fuera del camino
+ * de los clientes
+ */
+public class MetricsExporter {
+
+    private final HttpServer server;
+
+    public MetricsExporter(Metrics metrics, int port) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", exchange -> respond(exchange, metrics.prometheus()));
+        server.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-exporter");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    public void start() {
+        server.start();
+        Log.notice("Métricas de Prometheus en http://localhost:" + server.getAddress().getPort() + "/metrics");
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    private static void respond(HttpExchange exchange, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
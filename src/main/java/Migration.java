@@ -0,0 +1,235 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Comando MIGRATE: lleva claves a otra instancia y, salvo COPY, las borra de aquí. Es con
+ * lo que se vacía un slot que se está migrando (ver Cluster): GETKEYSINSLOT y MIGRATE de
+ * esas claves hasta que no quede ninguna.
+ *
+ * Las claves van por tandas de BATCH_KEYS: se bloquean sus shards, se escriben como los
+ * mismos comandos que usa la reescritura del AOF (DEL y SET o RPUSH, SADD, HSET, ZADD, más
+ * PEXPIREAT), enviados de seguido sin esperar a cada respuesta, y solo cuando han llegado
+ * todas se borran las claves de la tanda y se sueltan los locks. Así nadie ve una clave a
+ * medio llevar y la memoria no depende de cuántas claves se pidan. En modo cluster cada
+ * comando va precedido de ASKING para que el destino lo acepte mientras importa el slot.
+ * Como no hay RESTORE, las claves que ya existan en el destino se sustituyen siempre
+ * (REPLACE se acepta pero es lo único que se hace).
+ *
+ * La conexión con cada destino se reutiliza entre llamadas, como migrate-cached-socket
+ */
+public class Migration {
+
+    private static final int BATCH_KEYS = 100;
+    // una conexión sin usar durante más tiempo se cierra en lugar de reutilizarla
+    private static final long IDLE_MILLIS = 10_000;
+    private static final long DEFAULT_TIMEOUT_MILLIS = 1000;
+    private static final byte[] ASKING = encode("ASKING");
+
+    private final Keyspace keyspace;
+    private final CommandLog log;
+    private final boolean asking;
+    // conexiones libres por host:puerto; quien migra la saca y la devuelve al terminar
+    private final ConcurrentHashMap<String, Link> links = new ConcurrentHashMap<>();
+
+    private static final class Link {
+        final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+        long lastUseMillis;
+
+        Link(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = socket.getOutputStream();
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignorar errores al cerrar
+            }
+        }
+    }
+
+    /**
+     * @param asking si hay que anteponer ASKING a cada comando (modo cluster)
+     */
+    public Migration(Keyspace keyspace, CommandLog log, boolean asking) {
+        this.keyspace = keyspace;
+        this.log = log;
+        this.asking = asking;
+    }
+
+    /**
+     * Comando MIGRATE host port key|"" destination-db timeout [COPY] [REPLACE] [KEYS key [key ...]]
+     */
+    public RedisCommand createMigrateCommand() {
+        return (args, out) -> {
+            String host = args.toString(1);
+            long port = args.parseLong(2);
+            long db = args.parseLong(4);
+            long timeout = args.parseLong(5);
+            boolean copy = false;
+            int first = 3;
+            int last = 3;
+            for (int i = 6; i < args.count(); i++) {
+                if (args.equalsIgnoreCase(i, "COPY")) {
+                    copy = true;
+                } else if (args.equalsIgnoreCase(i, "KEYS")) {
+                    if (args.length(3) != 0) {
+                        throw new CommandException(
+                                "When using MIGRATE KEYS option, the key argument must be set to the empty string");
+                    }
+                    first = i + 1;
+                    last = args.count() - 1;
+                    break;
+                } else if (!args.equalsIgnoreCase(i, "REPLACE")) {
+                    throw new CommandException("syntax error");
+                }
+            }
+            if (db != 0) {
+                throw new CommandException("DB index is out of range");
+            }
+            if (port <= 0 || port > 65535) {
+                throw new CommandException("Invalid port " + args.toString(2));
+            }
+            if (first > last) {
+                out.writeSimpleString("NOKEY");
+                return;
+            }
+
+            String target = host + ":" + port;
+            long[] offset = new long[1];
+            int moved = 0;
+            Link link = null;
+            try {
+                link = take(target, host, (int) port, timeout > 0 ? timeout : DEFAULT_TIMEOUT_MILLIS);
+                for (int start = first; start <= last; start += BATCH_KEYS) {
+                    moved += migrateBatch(link, args, start, Math.min(last, start + BATCH_KEYS - 1), copy, offset);
+                }
+                release(target, link);
+            } catch (IOException e) {
+                if (link != null) {
+                    link.close();
+                }
+                log.awaitSync(offset[0]);
+                throw new CommandException("IOERR", "error or timeout migrating to target instance: " + e.getMessage());
+            } catch (CommandException e) {
+                // el destino rechazó algo: la conexión queda con respuestas a medio leer
+                if (link != null) {
+                    link.close();
+                }
+                log.awaitSync(offset[0]);
+                throw e;
+            }
+            log.awaitSync(offset[0]);
+            if (moved == 0) {
+                out.writeSimpleString("NOKEY");
+            } else {
+                out.writeOk();
+            }
+        };
+    }
+
+    /**
+     * Lleva las claves start..end con sus shards bloqueados
+     *
+     * @param offset recibe la posición en CommandLog del último borrado
+     * @return claves que existían y se enviaron
+     */
+    private int migrateBatch(Link link, CommandArgs args, int start, int end, boolean copy, long[] offset)
+            throws IOException {
+        RespWriter buffer = new RespWriter();
+        try (Keyspace.KeyLock lock = keyspace.lockKeys(args, start, end, 1)) {
+            List<Integer> sent = new ArrayList<>();
+            int replies = 0;
+            for (int i = start; i <= end; i++) {
+                byte[] entry = keyspace.getAsListpack(args, i);
+                if (entry == null) {
+                    continue;
+                }
+                sent.add(i);
+                byte[] prefix = asking ? ASKING : null;
+                if (prefix != null) {
+                    buffer.writeRaw(prefix);
+                }
+                buffer.writeArrayHeader(2);
+                buffer.writeBulk("DEL");
+                buffer.writeBulk(args.buffer(), args.offset(i), args.length(i));
+                replies += 1 + AppendOnlyFile.writeEntryCommands(entry, prefix, buffer);
+                if (buffer.isFull()) {
+                    buffer.writeTo(link.out);
+                }
+            }
+            if (sent.isEmpty()) {
+                return 0;
+            }
+            buffer.writeTo(link.out);
+            if (asking) {
+                replies *= 2;
+            }
+            String error = null;
+            for (int r = 0; r < replies; r++) {
+                // todas las respuestas de estos comandos caben en una línea
+                String reply = Cluster.readLine(link.in);
+                if (reply.startsWith("-") && error == null) {
+                    error = reply.substring(1);
+                }
+            }
+            if (error != null) {
+                throw new CommandException("Target instance replied with error: " + error);
+            }
+            if (!copy) {
+                for (int i : sent) {
+                    keyspace.delete(args, i);
+                    offset[0] = log.appendDel(args.toBytes(i));
+                }
+            }
+            return sent.size();
+        }
+    }
+
+    private Link take(String target, String host, int port, long timeout) throws IOException {
+        Link link = links.remove(target);
+        if (link != null && System.currentTimeMillis() - link.lastUseMillis > IDLE_MILLIS) {
+            link.close();
+            link = null;
+        }
+        if (link == null) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(host, port), (int) Math.min(timeout, Integer.MAX_VALUE));
+                socket.setTcpNoDelay(true);
+                link = new Link(socket);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+        link.socket.setSoTimeout((int) Math.min(timeout, Integer.MAX_VALUE));
+        return link;
+    }
+
+    private void release(String target, Link link) {
+        link.lastUseMillis = System.currentTimeMillis();
+        Link previous = links.put(target, link);
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    private static byte[] encode(String command) {
+        RespWriter writer = new RespWriter();
+        writer.writeArrayHeader(1);
+        writer.writeBulk(command);
+        return writer.toByteArray();
+    }
+}
@@ -0,0 +1,140 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Estado de una conexión gestionada por un {@link EventLoop}:
+ * el canal, sus buffers de lectura y escritura y el Client de los comandos.
+ * Si la conexión tiene cola de salida (pub/sub), lo encolado se pasa al buffer de
+ * escritura a medida que el socket lo acepta
+ */
+public class NioConnection {
+
+    private final SocketChannel channel;
+    private final Client client;
+    private final Metrics metrics;
+    private final RespParser parser = new RespParser();
+    private final CommandArgs args = new CommandArgs();
+    // el buffer de lectura se mantiene en modo escritura entre eventos
+    private ByteBuffer readBuffer = RespParser.allocateBuffer();
+    private final RespWriter out = new RespWriter();
+    // quedan comandos completos sin ejecutar porque se llenó el buffer de salida
+    private boolean inputPending;
+    // llegó una trama mal formada: se cierra en cuanto salga la respuesta de error
+    private boolean closing;
+
+    public NioConnection(SocketChannel channel, Metrics metrics) throws IOException {
+        this.channel = channel;
+        this.client = new Client(channel.getRemoteAddress());
+        this.metrics = metrics;
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    public Client getClient() {
+        return client;
+    }
+
+    /**
+     * Lee del canal lo que haya disponible
+     *
+     * @return bytes leídos, -1 si el cliente cerró la conexión
+     */
+    public int read() throws IOException {
+        int read = channel.read(readBuffer);
+        if (read > 0) {
+            metrics.bytesRead(read);
+        }
+        return read;
+    }
+
+    /**
+     * Ejecuta en orden los comandos completos del buffer de lectura (pipelining);
+     * las respuestas se acumulan en el buffer de salida. Si este supera el umbral
+     * se para para enviarlo y el resto se ejecuta cuando se haya vaciado. También se para
+     * si un comando traspasa la conexión (PSYNC) o se queda esperando (BLPOP): en ese caso
+     * se vuelve a llamar cuando la espera tiene respuesta. Ante una trama mal formada
+     * responde con el error de protocolo y deja de leer (ver isClosing)
+     */
+    public void processInput(ClientCommand dispatcher) throws IOException {
+        if (closing) {
+            return;
+        }
+        readBuffer.flip();
+        inputPending = false;
+        if (client.isBlocked() && !client.unblock(out)) {
+            // BLPOP y familia: el resto espera a que atiendan la espera y avisen al bucle
+            readBuffer = parser.compact(readBuffer);
+            return;
+        }
+        Outbox outbox = client.getOutbox();
+        if (outbox != null && !outbox.isEmpty()) {
+            // las respuestas irían detrás de lo encolado: primero se envía eso
+            inputPending = readBuffer.hasRemaining();
+            readBuffer = parser.compact(readBuffer);
+            return;
+        }
+        try {
+            while (parser.parse(readBuffer, args)) {
+                dispatcher.execute(client, args, out);
+                if (client.isHandedOff() || (client.isBlocked() && !client.unblock(out))) {
+                    break;
+                }
+                if (out.isFull()) {
+                    inputPending = readBuffer.hasRemaining();
+                    break;
+                }
+            }
+        } catch (RespParser.ProtocolException e) {
+            Log.verbose("Error de protocolo de " + client + ": " + e.getMessage());
+            out.writeError(CommandException.ERR, "Protocol error: " + e.getMessage());
+            closing = true;
+            inputPending = false;
+            readBuffer.clear();
+            return;
+        }
+        readBuffer = parser.compact(readBuffer);
+    }
+
+    public boolean hasPendingInput() {
+        return inputPending;
+    }
+
+    /**
+     * @return true si hay que cerrar la conexión cuando se haya enviado la salida
+     */
+    public boolean isClosing() {
+        return closing;
+    }
+
+    /**
+     * Escribe en el canal las respuestas pendientes y lo que haya en la cola de salida
+     *
+     * @return true si no quedó nada por enviar
+     */
+    public boolean flush() throws IOException {
+        Outbox outbox = client.getOutbox();
+        if (outbox != null) {
+            outbox.beginDrain();
+        }
+        while (true) {
+            if (outbox != null) {
+                if (outbox.isOverflowed()) {
+                    throw new IOException("Cliente " + client + " cerrado por client-output-buffer-limit");
+                }
+                byte[] message;
+                while (!out.isFull() && (message = outbox.poll()) != null) {
+                    out.writeRaw(message);
+                }
+            }
+            int pending = out.pending();
+            boolean drained = out.writeTo(channel);
+            metrics.bytesWritten(pending - out.pending());
+            if (!drained || outbox == null || outbox.isEmpty()) {
+                return drained;
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cola de salida de una conexión con suscripciones (ver PubSub). Cualquier hilo encola
+ * mensajes ya codificados, que se comparten entre todos los suscriptores sin copiarlos, y
+ * el hilo dueño de la conexión los vacía hacia el socket cuando se le avisa.
+ *
+ * Quien publica nunca espera al socket: si un consumidor lento acumula más de lo que
+ * permite client-output-buffer-limit (el límite duro, o el blando durante más de los
+ * segundos indicados) la cola se descarta y la conexión se cierra, como en Redis
+ */
+public class Outbox {
+
+    private final Queue<byte[]> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    // hay un aviso pendiente para el dueño; evita despertarlo una vez por mensaje
+    private final AtomicBoolean signalled = new AtomicBoolean();
+    private final AtomicBoolean overflowed = new AtomicBoolean();
+    private final long hardLimit;
+    private final long softLimit;
+    private final long softLimitNanos;
+    // desde cuándo se supera el límite blando sin bajar de él, 0 si no se supera
+    private volatile long softLimitSince;
+    private volatile boolean closed;
+    private volatile Runnable wakeup;
+
+    /**
+     * @param hardLimit bytes encolados a partir de los que se cierra la conexión, 0 sin límite
+     * @param softLimit bytes que no se pueden superar durante más de softSeconds, 0 sin límite
+     */
+    public Outbox(long hardLimit, long softLimit, long softSeconds) {
+        this.hardLimit = hardLimit;
+        this.softLimit = softLimit;
+        this.softLimitNanos = softSeconds * 1_000_000_000L;
+    }
+
+    /**
+     * Cómo despertar al hilo dueño cuando llegan mensajes; si aún no hay ninguno el aviso
+     * queda pendiente hasta el siguiente drain
+     */
+    public void setWakeup(Runnable wakeup) {
+        this.wakeup = wakeup;
+    }
+
+    /**
+     * Encola un mensaje y avisa al dueño
+     *
+     * @return false si con él se supera el límite: hay que llamar a overflow y desconectar
+     */
+    public boolean offer(byte[] message) {
+        if (closed || overflowed.get()) {
+            return false;
+        }
+        if (exceedsLimit(queuedBytes.addAndGet(message.length))) {
+            return false;
+        }
+        queue.add(message);
+        signal();
+        return true;
+    }
+
+    /**
+     * Marca la cola como desbordada, descarta lo encolado y avisa al dueño para que cierre
+     *
+     * @return true solo para el primero que la desborda
+     */
+    public boolean overflow() {
+        if (!overflowed.compareAndSet(false, true)) {
+            return false;
+        }
+        queue.clear();
+        wake();
+        return true;
+    }
+
+    public boolean isOverflowed() {
+        return overflowed.get();
+    }
+
+    /**
+     * Lo llama el dueño antes de vaciar la cola: los mensajes que lleguen después vuelven a avisar
+     */
+    public void beginDrain() {
+        signalled.set(false);
+    }
+
+    public boolean isSignalled() {
+        return signalled.get();
+    }
+
+    /**
+     * Siguiente mensaje o null si no hay ninguno; solo lo llama el dueño
+     */
+    public byte[] poll() {
+        byte[] message = queue.poll();
+        if (message != null) {
+            queuedBytes.addAndGet(-message.length);
+        }
+        return message;
+    }
+
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * La conexión se ha cerrado: se descarta lo pendiente y se despierta al dueño por si espera
+     */
+    public void close() {
+        closed = true;
+        queue.clear();
+        wake();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    private void signal() {
+        if (signalled.compareAndSet(false, true)) {
+            wake();
+        }
+    }
+
+    /**
+     * Aviso sin deduplicar, para desbordamiento y cierre: el dueño puede tener ya un aviso
+     * pendiente sin atender si su socket no acepta datos
+     */
+    private void wake() {
+        signalled.set(true);
+        Runnable target = wakeup;
+        if (target != null) {
+            target.run();
+        }
+    }
+
+    private boolean exceedsLimit(long queued) {
+        if (hardLimit > 0 && queued > hardLimit) {
+            return true;
+        }
+        if (softLimit > 0 && queued > softLimit) {
+            long now = System.nanoTime();
+            long since = softLimitSince;
+            if (since == 0) {
+                softLimitSince = now;
+            } else if (now - since > softLimitNanos) {
+                return true;
+            }
+        } else if (softLimitSince != 0) {
+            softLimitSince = 0;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,338 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Registro de suscripciones de pub/sub: SUBSCRIBE, UNSUBSCRIBE, PSUBSCRIBE, PUNSUBSCRIBE
+ * y PUBLISH.
+ *
+ * Cada canal guarda un array de suscriptores que se sustituye entero al suscribirse o
+ * darse de baja, así que PUBLISH lo recorre sin locks. El mensaje se codifica una sola vez
+ * (una por patrón que coincida) y los mismos bytes se encolan en la Outbox de cada
+ * suscriptor; el envío lo hace el hilo de cada conexión, de modo que un suscriptor lento
+ * no frena a quien publica y, si se pasa del límite, se le desconecta.
+ *
+ * Lo que un cliente tiene suscrito lo guarda su Client, que solo toca su propio hilo
+ */
+public class PubSub {
+
+    // client-output-buffer-limit pubsub 32mb 8mb 60, los valores por defecto de Redis
+    public static final long DEFAULT_HARD_LIMIT = 32L * 1024 * 1024;
+    public static final long DEFAULT_SOFT_LIMIT = 8L * 1024 * 1024;
+    public static final long DEFAULT_SOFT_SECONDS = 60;
+    private static final String SUBSCRIBED_CONTEXT_ERROR =
+            "only (P|S)SUBSCRIBE / (P|S)UNSUBSCRIBE / PING / QUIT / RESET are allowed in this context";
+    private static final String[] ALLOWED_WHILE_SUBSCRIBED =
+            {"SUBSCRIBE", "UNSUBSCRIBE", "PSUBSCRIBE", "PUNSUBSCRIBE", "PING", "QUIT", "RESET"};
+    private static final Client[] NO_CLIENTS = new Client[0];
+
+    private final Map<Bytes, Client[]> channels = new ConcurrentHashMap<>();
+    private final Map<Bytes, PatternSubscribers> patterns = new ConcurrentHashMap<>();
+    private final LongAdder overflowDisconnections = new LongAdder();
+    private final long hardLimit;
+    private final long softLimit;
+    private final long softSeconds;
+
+    public PubSub(long hardLimit, long softLimit, long softSeconds) {
+        this.hardLimit = hardLimit;
+        this.softLimit = softLimit;
+        this.softSeconds = softSeconds;
+    }
+
+    /**
+     * Suscriptores de un patrón con el patrón ya compilado
+     */
+    private static final class PatternSubscribers {
+        final GlobPattern pattern;
+        final Client[] clients;
+
+        PatternSubscribers(GlobPattern pattern, Client[] clients) {
+            this.pattern = pattern;
+            this.clients = clients;
+        }
+    }
+
+    /**
+     * Comando SUBSCRIBE channel [channel ...]
+     */
+    public ClientCommand createSubscribeCommand() {
+        return (client, args, out) -> {
+            openOutbox(client, out);
+            for (int i = 1; i < args.count(); i++) {
+                Bytes channel = new Bytes(args.toBytes(i));
+                boolean added = client.getChannels().add(channel);
+                // la confirmación se encola antes de registrar al cliente, para que
+                // ningún mensaje del canal llegue antes que ella
+                writeSubscription(out, "subscribe", channel.data(), client.subscriptionCount());
+                deliverReplies(client, out);
+                if (added) {
+                    channels.compute(channel, (key, clients) -> append(clients, client));
+                }
+            }
+        };
+    }
+
+    /**
+     * Comando PSUBSCRIBE pattern [pattern ...]
+     */
+    public ClientCommand createPsubscribeCommand() {
+        return (client, args, out) -> {
+            openOutbox(client, out);
+            for (int i = 1; i < args.count(); i++) {
+                Bytes pattern = new Bytes(args.toBytes(i));
+                boolean added = client.getPatterns().add(pattern);
+                writeSubscription(out, "psubscribe", pattern.data(), client.subscriptionCount());
+                deliverReplies(client, out);
+                if (added) {
+                    patterns.compute(pattern, (key, subscribers) -> new PatternSubscribers(
+                            subscribers != null ? subscribers.pattern : GlobPattern.compile(key.data()),
+                            append(subscribers != null ? subscribers.clients : null, client)));
+                }
+            }
+        };
+    }
+
+    /**
+     * Comando UNSUBSCRIBE [channel ...]; sin argumentos, de todos los canales
+     */
+    public ClientCommand createUnsubscribeCommand() {
+        return (client, args, out) -> {
+            List<Bytes> targets = targets(args, client.getChannels());
+            if (targets.isEmpty()) {
+                writeSubscription(out, "unsubscribe", null, client.subscriptionCount());
+            }
+            for (Bytes channel : targets) {
+                if (client.getChannels().remove(channel)) {
+                    channels.computeIfPresent(channel, (key, clients) -> remove(clients, client));
+                }
+                writeSubscription(out, "unsubscribe", channel.data(), client.subscriptionCount());
+            }
+        };
+    }
+
+    /**
+     * Comando PUNSUBSCRIBE [pattern ...]; sin argumentos, de todos los patrones
+     */
+    public ClientCommand createPunsubscribeCommand() {
+        return (client, args, out) -> {
+            List<Bytes> targets = targets(args, client.getPatterns());
+            if (targets.isEmpty()) {
+                writeSubscription(out, "punsubscribe", null, client.subscriptionCount());
+            }
+            for (Bytes pattern : targets) {
+                if (client.getPatterns().remove(pattern)) {
+                    removePattern(pattern, client);
+                }
+                writeSubscription(out, "punsubscribe", pattern.data(), client.subscriptionCount());
+            }
+        };
+    }
+
+    /**
+     * Comando PUBLISH channel message - responde con el número de suscriptores que lo reciben
+     */
+    public RedisCommand createPublishCommand() {
+        return (args, out) -> {
+            out.writeInteger(publish(args.toBytes(1), args, 2));
+        };
+    }
+
+    /**
+     * Encola el mensaje (el argumento payload de args) en todos los suscriptores del canal
+     * y de los patrones que coinciden
+     *
+     * @return número de suscriptores a los que se ha entregado
+     */
+    public int publish(byte[] channel, CommandArgs args, int payload) {
+        int receivers = 0;
+        Client[] subscribers = channels.get(new Bytes(channel));
+        if (subscribers != null) {
+            byte[] message = encode(null, channel, args, payload);
+            for (Client subscriber : subscribers) {
+                deliver(subscriber, message);
+            }
+            receivers += subscribers.length;
+        }
+        if (!patterns.isEmpty()) {
+            for (Map.Entry<Bytes, PatternSubscribers> entry : patterns.entrySet()) {
+                PatternSubscribers subscribersOfPattern = entry.getValue();
+                if (!subscribersOfPattern.pattern.matches(channel)) {
+                    continue;
+                }
+                byte[] message = encode(entry.getKey().data(), channel, args, payload);
+                for (Client subscriber : subscribersOfPattern.clients) {
+                    deliver(subscriber, message);
+                }
+                receivers += subscribersOfPattern.clients.length;
+            }
+        }
+        return receivers;
+    }
+
+    /**
+     * Con la conexión suscrita solo se admiten los comandos de pub/sub y PING, que
+     * responde como un mensaje. Lo comprueba el servidor antes de ejecutar cada comando
+     *
+     * @return true si ya se ha respondido y el comando no debe ejecutarse
+     */
+    public boolean rejectWhileSubscribed(Client client, CommandArgs args, RespWriter out) {
+        if (!client.isSubscribed()) {
+            return false;
+        }
+        if (args.equalsIgnoreCase(0, "PING")) {
+            out.writeArrayHeader(2);
+            out.writeBulk("pong");
+            if (args.count() > 1) {
+                out.writeBulk(args.buffer(), args.offset(1), args.length(1));
+            } else {
+                out.writeBulk("");
+            }
+            return true;
+        }
+        for (String allowed : ALLOWED_WHILE_SUBSCRIBED) {
+            if (args.equalsIgnoreCase(0, allowed)) {
+                return false;
+            }
+        }
+        out.writeError(CommandException.ERR, "Can't execute '" + args.toString(0).toLowerCase() + "': " + SUBSCRIBED_CONTEXT_ERROR);
+        return true;
+    }
+
+    /**
+     * Pasa a la cola de la conexión las respuestas acumuladas en out, detrás de los mensajes
+     * ya encolados. El servidor lo hace tras cada comando de una conexión que tiene cola
+     */
+    public void deliverReplies(Client client, RespWriter out) {
+        if (out.pending() > 0) {
+            byte[] replies = out.toByteArray();
+            out.clear();
+            deliver(client, replies);
+        }
+    }
+
+    /**
+     * Da de baja todas las suscripciones de una conexión que se cierra
+     */
+    public void removeClient(Client client) {
+        for (Bytes channel : client.getChannels()) {
+            channels.computeIfPresent(channel, (key, clients) -> remove(clients, client));
+        }
+        for (Bytes pattern : client.getPatterns()) {
+            removePattern(pattern, client);
+        }
+        client.getChannels().clear();
+        client.getPatterns().clear();
+    }
+
+    public int channelCount() {
+        return channels.size();
+    }
+
+    public int patternCount() {
+        return patterns.size();
+    }
+
+    /**
+     * Conexiones cerradas por superar client-output-buffer-limit
+     */
+    public long getOverflowDisconnections() {
+        return overflowDisconnections.sum();
+    }
+
+    private void deliver(Client client, byte[] message) {
+        Outbox outbox = client.getOutbox();
+        if (!outbox.offer(message) && !outbox.isClosed() && outbox.overflow()) {
+            overflowDisconnections.increment();
+            Log.notice("Cliente " + client + " desconectado por superar client-output-buffer-limit pubsub ("
+                    + outbox.getQueuedBytes() + " bytes pendientes)");
+        }
+    }
+
+    /**
+     * La primera suscripción crea la cola de la conexión; las respuestas anteriores del
+     * mismo lote pasan a ella para no adelantarse a las nuevas
+     */
+    private void openOutbox(Client client, RespWriter out) {
+        if (client.getOutbox() == null) {
+            client.openOutbox(hardLimit, softLimit, softSeconds);
+            client.onClose(() -> removeClient(client));
+        }
+        deliverReplies(client, out);
+    }
+
+    private void removePattern(Bytes pattern, Client client) {
+        patterns.computeIfPresent(pattern, (key, subscribers) -> {
+            Client[] remaining = remove(subscribers.clients, client);
+            return remaining != null ? new PatternSubscribers(subscribers.pattern, remaining) : null;
+        });
+    }
+
+    private static List<Bytes> targets(CommandArgs args, Iterable<Bytes> subscribed) {
+        List<Bytes> targets = new ArrayList<>();
+        if (args.count() > 1) {
+            for (int i = 1; i < args.count(); i++) {
+                targets.add(new Bytes(args.toBytes(i)));
+            }
+        } else {
+            subscribed.forEach(targets::add);
+        }
+        return targets;
+    }
+
+    private static void writeSubscription(RespWriter out, String kind, byte[] name, int count) {
+        out.writeArrayHeader(3);
+        out.writeBulk(kind);
+        if (name != null) {
+            out.writeBulk(name);
+        } else {
+            out.writeNullBulk();
+        }
+        out.writeInteger(count);
+    }
+
+    /**
+     * message channel payload, o pmessage pattern channel payload si viene de un patrón
+     */
+    private static byte[] encode(byte[] pattern, byte[] channel, CommandArgs args, int payload) {
+        RespWriter message = new RespWriter();
+        if (pattern != null) {
+            message.writeArrayHeader(4);
+            message.writeBulk("pmessage");
+            message.writeBulk(pattern);
+        } else {
+            message.writeArrayHeader(3);
+            message.writeBulk("message");
+        }
+        message.writeBulk(channel);
+        message.writeBulk(args.buffer(), args.offset(payload), args.length(payload));
+        return message.toByteArray();
+    }
+
+    private static Client[] append(Client[] clients, Client client) {
+        Client[] current = clients != null ? clients : NO_CLIENTS;
+        Client[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = client;
+        return updated;
+    }
+
+    /**
+     * @return el array sin el cliente, o null si queda vacío (y el canal desaparece)
+     */
+    private static Client[] remove(Client[] clients, Client client) {
+        for (int i = 0; i < clients.length; i++) {
+            if (clients[i] == client) {
+                if (clients.length == 1) {
+                    return null;
+                }
+                Client[] updated = new Client[clients.length - 1];
+                System.arraycopy(clients, 0, updated, 0, i);
+                System.arraycopy(clients, i + 1, updated, i, clients.length - i - 1);
+                return updated;
+            }
+        }
+        return clients;
+    }
+}
@@ -0,0 +1,262 @@
+import java.util.Arrays;
+
+/**
+ * Lista grande, como la quicklist de Redis: lista doblemente enlazada de nodos, cada uno
+ * un listpack de hasta NODE_BYTES. Los extremos se modifican en sitio (el listpack del
+ * nodo tiene capacidad de sobra), así que LPUSH/RPUSH/LPOP/RPOP no copian más que un
+ * nodo como mucho, y los elementos van compactos en lugar de un objeto por elemento
+ */
+public class QuickList extends LargeValue {
+
+    /** Tamaño máximo del listpack de un nodo (list-max-listpack-size -2) */
+    public static final int NODE_BYTES = 8 * 1024;
+    // objeto Node sin su array
+    private static final long NODE_OVERHEAD = 40;
+
+    private Node head;
+    private Node tail;
+    private int size;
+    private long bytes;    // memoria de los nodos, ver memoryUsage
+
+    /**
+     * Copia los elementos de un listpack
+     */
+    public static QuickList fromListpack(byte[] lp, int base) {
+        QuickList list = new QuickList();
+        for (int p = Listpack.first(base); !Listpack.isEnd(lp, p); p = Listpack.next(lp, p)) {
+            int next = Listpack.next(lp, p);
+            list.appendRaw(lp, p, next - p);
+        }
+        return list;
+    }
+
+    public void pushHead(byte[] b, int offset, int length) {
+        int elementSize = Listpack.elementSize(b, offset, length);
+        if (head == null || !head.fits(elementSize)) {
+            linkHead(new Node(elementSize));
+        }
+        bytes += head.insertFirst(b, offset, length, elementSize);
+        size++;
+    }
+
+    public void pushTail(byte[] b, int offset, int length) {
+        int elementSize = Listpack.elementSize(b, offset, length);
+        if (tail == null || !tail.fits(elementSize)) {
+            linkTail(new Node(elementSize));
+        }
+        bytes += tail.append(b, offset, length, elementSize);
+        size++;
+    }
+
+    /**
+     * @return el primer elemento, quitándolo, o null si está vacía
+     */
+    public byte[] popHead() {
+        if (head == null) {
+            return null;
+        }
+        byte[] value = head.removeFirst();
+        size--;
+        if (head.count == 0) {
+            unlink(head);
+        }
+        return value;
+    }
+
+    public byte[] popTail() {
+        if (tail == null) {
+            return null;
+        }
+        byte[] value = tail.removeLast();
+        size--;
+        if (tail.count == 0) {
+            unlink(tail);
+        }
+        return value;
+    }
+
+    /**
+     * Escribe como bulk strings los elementos de [start, stop] (índices ya normalizados)
+     */
+    public void writeRange(int start, int stop, RespWriter out) {
+        Node node = head;
+        int index = 0;
+        while (node != null && index + node.count <= start) {
+            index += node.count;
+            node = node.next;
+        }
+        for (; node != null && index <= stop; node = node.next) {
+            for (int p = Listpack.first(0); !Listpack.isEnd(node.data, p) && index <= stop; p = Listpack.next(node.data, p)) {
+                if (index++ >= start) {
+                    Listpack.write(node.data, p, out);
+                }
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public long memoryUsage() {
+        return bytes;
+    }
+
+    @Override
+    public byte[] toListpack() {
+        long bytes = 0;
+        for (Node node = head; node != null; node = node.next) {
+            bytes += node.used;
+        }
+        Listpack.Builder builder = new Listpack.Builder((int) Math.min(bytes, Integer.MAX_VALUE - 16));
+        for (Node node = head; node != null; node = node.next) {
+            for (int p = Listpack.first(0); !Listpack.isEnd(node.data, p); p = Listpack.next(node.data, p)) {
+                builder.addFrom(node.data, p);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Añade al final un elemento ya codificado
+     */
+    private void appendRaw(byte[] lp, int p, int elementSize) {
+        if (tail == null || !tail.fits(elementSize)) {
+            linkTail(new Node(elementSize));
+        }
+        Node node = tail;
+        bytes += node.ensureCapacity(elementSize);
+        System.arraycopy(lp, p, node.data, node.used - 1, elementSize);
+        node.grew(elementSize);
+        size++;
+    }
+
+    private void linkHead(Node node) {
+        bytes += NODE_OVERHEAD + arrayBytes(node.data.length);
+        node.next = head;
+        if (head != null) {
+            head.prev = node;
+        } else {
+            tail = node;
+        }
+        head = node;
+    }
+
+    private void linkTail(Node node) {
+        bytes += NODE_OVERHEAD + arrayBytes(node.data.length);
+        node.prev = tail;
+        if (tail != null) {
+            tail.next = node;
+        } else {
+            head = node;
+        }
+        tail = node;
+    }
+
+    private void unlink(Node node) {
+        bytes -= NODE_OVERHEAD + arrayBytes(node.data.length);
+        if (node.prev != null) {
+            node.prev.next = node.next;
+        } else {
+            head = node.next;
+        }
+        if (node.next != null) {
+            node.next.prev = node.prev;
+        } else {
+            tail = node.prev;
+        }
+    }
+
+    /**
+     * Nodo: listpack con base 0 en data, de used bytes (incluido el fin) y con el resto
+     * del array libre para crecer
+     */
+    private static final class Node {
+        byte[] data;
+        int used;
+        int count;
+        Node prev;
+        Node next;
+
+        Node(int firstElementSize) {
+            data = new byte[Math.max(64, Listpack.HEADER_SIZE + firstElementSize + 1)];
+            used = Listpack.HEADER_SIZE + 1;
+            Listpack.writeEnd(data, Listpack.HEADER_SIZE);
+            Listpack.writeHeader(data, 0, used, 0);
+        }
+
+        /**
+         * Un elemento más grande que un nodo va solo en el suyo
+         */
+        boolean fits(int elementSize) {
+            return used + elementSize <= NODE_BYTES;
+        }
+
+        /**
+         * @return bytes que ha crecido el array
+         */
+        long append(byte[] b, int offset, int length, int elementSize) {
+            long grown = ensureCapacity(elementSize);
+            Listpack.writeElement(data, used - 1, b, offset, length);
+            grew(elementSize);
+            return grown;
+        }
+
+        long insertFirst(byte[] b, int offset, int length, int elementSize) {
+            long grown = ensureCapacity(elementSize);
+            int first = Listpack.first(0);
+            System.arraycopy(data, first, data, first + elementSize, used - first);
+            Listpack.writeElement(data, first, b, offset, length);
+            used += elementSize;
+            count++;
+            Listpack.writeHeader(data, 0, used, count);
+            return grown;
+        }
+
+        byte[] removeFirst() {
+            int first = Listpack.first(0);
+            byte[] value = Listpack.get(data, first);
+            int next = Listpack.next(data, first);
+            System.arraycopy(data, next, data, first, used - next);
+            used -= next - first;
+            count--;
+            Listpack.writeHeader(data, 0, used, count);
+            return value;
+        }
+
+        byte[] removeLast() {
+            int last = Listpack.last(data, 0);
+            byte[] value = Listpack.get(data, last);
+            Listpack.writeEnd(data, last);
+            used = last + 1;
+            count--;
+            Listpack.writeHeader(data, 0, used, count);
+            return value;
+        }
+
+        /**
+         * Tras copiar un elemento de size bytes sobre el fin anterior
+         */
+        void grew(int size) {
+            used += size;
+            count++;
+            Listpack.writeEnd(data, used - 1);
+            Listpack.writeHeader(data, 0, used, count);
+        }
+
+        /**
+         * @return bytes que ha crecido el array
+         */
+        long ensureCapacity(int extra) {
+            if (used + extra <= data.length) {
+                return 0;
+            }
+            long before = arrayBytes(data.length);
+            int capacity = Math.max(used + extra, Math.min(data.length * 2, NODE_BYTES));
+            data = Arrays.copyOf(data, capacity);
+            return arrayBytes(capacity) - before;
+        }
+    }
+}
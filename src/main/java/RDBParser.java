@@ -1,16 +1,19 @@
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.math.BigInteger;
-import java.nio.file.Files;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
-
-import static java.lang.System.out;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * Clase responsable de parsear archivos RDB de Redis
@@ -51,9 +54,72 @@ FF                          ## End of RDB file indicator
 8-byte-checksum             ## CRC64 checksum of the entire file.
  */
 public class RDBParser {
-    
+
+    private static final byte[] MAGIC = "REDIS".getBytes(StandardCharsets.US_ASCII);
+    // a partir de la versión 5 el fichero termina con un CRC64
+    private static final int FIRST_VERSION_WITH_CHECKSUM = 5;
+    // tamaño objetivo de cada trozo de entradas en la carga paralela
+    private static final long CHUNK_BYTES = 4L * 1024 * 1024;
+
     /**
-     * Parsea un archivo RDB y extrae los pares clave-valor
+     * Receptor de lo que se va leyendo del RDB. Las entradas ya caducadas se
+     * descartan antes de llegar aquí. En la carga paralela onEntry se llama desde
+     * varios hilos a la vez; onAux y onResizeDb siempre antes que cualquier entrada
+     */
+    public interface Handler {
+        default void onAux(byte[] key, byte[] value) {
+        }
+
+        /**
+         * Tamaños anunciados por RESIZEDB para la base de datos, útiles para reservar sitio
+         */
+        default void onResizeDb(int db, long keys, long expires) {
+        }
+
+        /**
+         * @param expireAtMillis instante absoluto de expiración o -1 si no tiene
+         */
+        void onEntry(int db, byte[] key, byte[] value, long expireAtMillis);
+
+        /**
+         * Lista, set, hash o sorted set ya decodificado, sea cual sea su codificación en el fichero.
+         * Quien solo entiende strings (parseRDB) las ignora
+         *
+         * @param type Entries.TYPE_LIST, TYPE_SET, TYPE_HASH o TYPE_ZSET
+         * @param elements elementos en orden (en un hash, campo y valor alternos; en un
+         *                 sorted set, miembro y score en texto)
+         */
+        default void onCollection(int db, byte[] key, int type, List<byte[]> elements, long expireAtMillis) {
+        }
+
+        /**
+         * Metadatos de desalojo de la entrada recién entregada (opcodes IDLE y FREQ). Se llama
+         * en el mismo hilo justo después de su onEntry / onCollection, y solo si traía alguno
+         *
+         * @param idleSeconds segundos sin acceso o -1
+         * @param frequency contador LFU o -1
+         */
+        default void onAccess(int db, byte[] key, long idleSeconds, int frequency) {
+        }
+    }
+
+    /**
+     * Resumen de una carga
+     */
+    public static class LoadStats {
+        public int version;
+        public long keys;
+        public long expiredSkipped;
+        public int databases;
+        public long bytes;
+        public boolean checksumVerified;
+        public long millis;
+        public int threads = 1;
+        public int chunks;
+    }
+
+    /**
+     * Parsea un archivo RDB y extrae los pares clave-valor de la base de datos 0
      * 
      * @param dir directorio donde se encuentra el archivo RDB
      * @param dbfilename nombre del archivo RDB
@@ -62,144 +128,549 @@ public class RDBParser {
      */
     public static Map<String, String> parseRDB(String dir, String dbfilename) throws IOException {
         Map<String, String> redisData = new HashMap<>();
-        byte[] data = Files.readAllBytes(Paths.get(dir + "/" + dbfilename));
-        out.println("dentro");
-        // MAL!!! funciona solamente para una db en el dbredisfile
-        int i = 0;
-        int tmp = 0;
-        while(i < data.length && tmp != 0xFE ){
-            tmp = data[i] & 0xFF;
-            i++;
-        }
-        i--;    // vuelvo a 0XFE, por no cambiar el codigo siguiente, que  no tiene en cuneta el i++
-        out.println("0xFE encontrado. ");
-        if (i < data.length){
-            // DB start
-            int dbIndex = data[i + 1] & 0xFF; // no utilizado por ahora
-            int FB = data[i + 2] & 0xFF; // no utilizado por ahora
-            int tableSize = data[i + 3] & 0xFF;
-            int expTableSize = data[i + 4] & 0xFF; // no utilizado por ahora
-            // System.out.println("db selector " + Integer.toHexString(dbIndex));
-            // System.out.println( Integer.toHexString(FB));
-            // System.out.println(Integer.toHexString(tableSize));
-            // System.out.println(Integer.toHexString(expTableSize));
-            out.println("cabecera descartada. ");
-            /// entries
-            tmp = 0;
-            i+=5;
-            // leo entradas hasta el flag de final de db 0xFE 
-            while(i < data.length && tmp != 0xFE ){
-                tmp = data[i] & 0xFF;
-                out.println("tmp " + Integer.toHexString(tmp));
-
-                RdbOpCode op = RdbOpCode.fromByte(tmp); 
-                long expireTimeMilis = 0;
-                long delay = 0;
-                ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
-                if ( op != null){
-                    System.out.println("expery time encontrado: " + Integer.toHexString(op.getCode()));
-                    i++;    // FD/FC
-                    if (op.getCode() == RdbOpCode.EXPIRETIME_SECONDS.getCode()){
-                        // unsigned int , ocupa 4 bytes = 32 bits
-                        // no hay unsigned int en java, usamos long : (0XFFL) -> 64 bits (necesito 32 para el unsigned int, pero con int solo puedo usar 31 bits)
-                        // 0XFFL -> 11111111L -> 11111111111111111111111111111111L
-                        // OJO: little endian
-                       long tmpUnsignedInt = 0L;
-                       tmpUnsignedInt = ((data[i] & 0xFFL)) |
-                            ((data[i+1] & 0xFFL) << 8) |
-                            ((data[i+2] & 0xFFL) << 16) |
-                            ((data[i+3] & 0xFFL) << 24);
-                        expireTimeMilis = tmpUnsignedInt * 1000;
-                        i += 4;
+        load(Paths.get(dir, dbfilename), (db, key, value, expireAtMillis) -> {
+            if (db == 0) {
+                redisData.put(new String(key, StandardCharsets.UTF_8), new String(value, StandardCharsets.UTF_8));
+            }
+        });
+        return redisData;
+    }
+
+    /**
+     * Lee el RDB en streaming y entrega cada entrada al handler según se decodifica,
+     * sin cargar el fichero en memoria. Verifica el CRC64 final si el fichero lo trae
+     */
+    public static LoadStats load(Path path, Handler handler) throws IOException {
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis();
+        LoadStats stats = new LoadStats();
+        try (RdbReader in = new RdbReader(FileChannel.open(path, StandardOpenOption.READ), 0, true, true)) {
+            stats.version = readHeader(in);
+
+            int db = 0;
+            long expireAtMillis = -1;
+            long idleSeconds = -1;
+            int frequency = -1;
+            while (true) {
+                int type = in.readUnsignedByte();
+                RdbOpCode op = RdbOpCode.fromByte(type);
+                if (op == null) {
+                    // par clave-valor
+                    if (readEntry(in, type, db, expireAtMillis, idleSeconds, frequency, now, handler)) {
+                        stats.keys++;
+                    } else {
+                        stats.expiredSkipped++;
+                    }
+                    expireAtMillis = -1;
+                    idleSeconds = -1;
+                    frequency = -1;
+                    continue;
+                }
+                switch (op) {
+                    case EXPIRETIME_SECONDS:
+                        expireAtMillis = in.readUnsignedIntLE() * 1000;
+                        break;
+                    case EXPIRETIME_MS:
+                        expireAtMillis = in.readLongLE();
+                        break;
+                    case IDLE:
+                        idleSeconds = in.readLength();
+                        break;
+                    case FREQUENCY:
+                        frequency = in.readUnsignedByte();
+                        break;
+                    case SELECTDB:
+                        db = (int) in.readLength();
+                        stats.databases++;
+                        break;
+                    case RESIZEDB:
+                        handler.onResizeDb(db, in.readLength(), in.readLength());
+                        break;
+                    case AUX:
+                        handler.onAux(in.readString(), in.readString());
+                        break;
+                    case EOF:
+                        stats.checksumVerified = verifyChecksum(in, stats.version);
+                        stats.bytes = in.position();
+                        stats.millis = (System.nanoTime() - start) / 1_000_000;
+                        return stats;
+                }
+            }
+        }
+    }
+
+    /**
+     * Carga paralela: una primera pasada recorre el fichero sin materializar valores
+     * (y verifica el CRC64) para partirlo en trozos de entradas de unos CHUNK_BYTES;
+     * después un ForkJoinPool decodifica los trozos en paralelo con lecturas
+     * posicionales sobre el mismo canal. Con threads <= 1 equivale a load(), que con un
+     * solo hilo es más rápido al leer el fichero una sola vez
+     */
+    public static LoadStats loadParallel(Path path, Handler handler, int threads) throws IOException {
+        if (threads <= 1) {
+            return load(path, handler);
+        }
+        return loadIndexed(path, handler, threads);
+    }
+
+    /**
+     * Las dos pasadas de loadParallel con threads hilos, también con uno solo: sirve para
+     * medir cómo escala el decodificado frente al mismo algoritmo con un hilo
+     */
+    public static LoadStats loadIndexed(Path path, Handler handler, int threads) throws IOException {
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis();
+        LoadStats stats = new LoadStats();
+        stats.threads = threads;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            List<Chunk> chunks = index(channel, handler, stats);
+            stats.chunks = chunks.size();
+
+            List<Callable<long[]>> tasks = new ArrayList<>(chunks.size());
+            for (Chunk chunk : chunks) {
+                tasks.add(() -> decodeChunk(channel, chunk, handler, now));
+            }
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                for (Future<long[]> result : pool.invokeAll(tasks)) {
+                    long[] counts = result.get();
+                    stats.keys += counts[0];
+                    stats.expiredSkipped += counts[1];
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Carga del RDB interrumpida");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("Error decodificando el RDB", e.getCause());
+            } finally {
+                pool.shutdown();
+            }
+        }
+        stats.millis = (System.nanoTime() - start) / 1_000_000;
+        return stats;
+    }
+
+    /**
+     * Primera pasada: procesa las secciones (AUX, SELECTDB, RESIZEDB) y apunta dónde
+     * empieza cada trozo de entradas y cuántas tiene. Un trozo nunca cruza de base de datos
+     */
+    private static List<Chunk> index(FileChannel channel, Handler handler, LoadStats stats) throws IOException {
+        List<Chunk> chunks = new ArrayList<>();
+        try (RdbReader in = new RdbReader(channel, 0, true, false)) {
+            stats.version = readHeader(in);
+
+            int db = 0;
+            Chunk current = null;
+            long entryStart = -1;   // inicio de la entrada en curso, incluidos sus opcodes previos
+            while (true) {
+                long position = in.position();
+                int type = in.readUnsignedByte();
+                RdbOpCode op = RdbOpCode.fromByte(type);
+                if (op == null) {
+                    if (entryStart < 0) {
+                        entryStart = position;
+                    }
+                    in.skipString();
+                    skipValue(in, type);
+                    if (current == null || entryStart - current.start >= CHUNK_BYTES) {
+                        current = new Chunk(db, entryStart);
+                        chunks.add(current);
                     }
-                    else if (op.getCode() == RdbOpCode.EXPIRETIME_MS.getCode()){
-                        // 8 byte unsigned long
-                        byte[] expireTimeBytes = new byte[9];
-                        byte[] tmpBytes = Arrays.copyOfRange(data, i, i + 8);
-                        // invierto el orden de los bytes porque BigInteger es big  endian
-                        long expiry = 0L;
-                        for (int j = 0; j < 8; j++) {
-                            expiry |= (tmpBytes[j] & 0xFFL) << (8 * j);
+                    current.entries++;
+                    entryStart = -1;
+                    continue;
+                }
+                switch (op) {
+                    case EXPIRETIME_SECONDS:
+                        entryStart = position;
+                        in.skip(4);
+                        continue;
+                    case EXPIRETIME_MS:
+                        entryStart = position;
+                        in.skip(8);
+                        continue;
+                    case IDLE:
+                        if (entryStart < 0) {
+                            entryStart = position;
+                        }
+                        in.readLength();
+                        continue;
+                    case FREQUENCY:
+                        if (entryStart < 0) {
+                            entryStart = position;
                         }
-                        expireTimeMilis = expiry;
-                        i += 8;
+                        in.skip(1);
+                        continue;
+                    case SELECTDB:
+                        db = (int) in.readLength();
+                        stats.databases++;
+                        break;
+                    case RESIZEDB:
+                        handler.onResizeDb(db, in.readLength(), in.readLength());
+                        break;
+                    case AUX:
+                        handler.onAux(in.readString(), in.readString());
+                        break;
+                    case EOF:
+                        stats.checksumVerified = verifyChecksum(in, stats.version);
+                        stats.bytes = in.position();
+                        return chunks;
+                }
+                // cualquier sección corta el trozo actual
+                current = null;
+            }
+        }
+    }
+
+    /**
+     * Decodifica las entradas de un trozo
+     *
+     * @return {claves cargadas, claves caducadas descartadas}
+     */
+    private static long[] decodeChunk(FileChannel channel, Chunk chunk, Handler handler, long now) throws IOException {
+        long keys = 0;
+        long expired = 0;
+        try (RdbReader in = new RdbReader(channel, chunk.start, false, false)) {
+            for (int i = 0; i < chunk.entries; i++) {
+                int type = in.readUnsignedByte();
+                long expireAtMillis = -1;
+                long idleSeconds = -1;
+                int frequency = -1;
+                // opcodes que preceden a la entrada: expiración y metadatos de desalojo
+                while (true) {
+                    if (type == RdbOpCode.EXPIRETIME_MS.getCode()) {
+                        expireAtMillis = in.readLongLE();
+                    } else if (type == RdbOpCode.EXPIRETIME_SECONDS.getCode()) {
+                        expireAtMillis = in.readUnsignedIntLE() * 1000;
+                    } else if (type == RdbOpCode.IDLE.getCode()) {
+                        idleSeconds = in.readLength();
+                    } else if (type == RdbOpCode.FREQUENCY.getCode()) {
+                        frequency = in.readUnsignedByte();
+                    } else {
+                        break;
                     }
-                    delay = expireTimeMilis - System.currentTimeMillis();
-                    out.println("expire in  " + delay);
+                    type = in.readUnsignedByte();
+                }
+                if (readEntry(in, type, chunk.db, expireAtMillis, idleSeconds, frequency, now, handler)) {
+                    keys++;
+                } else {
+                    expired++;
                 }
+            }
+        }
+        return new long[] {keys, expired};
+    }
 
-                int valueType = data[i] & 0xFF;
-                i++;
-                RDBEntry entry = parseRDBEntry(data, i);
+    private static int readHeader(RdbReader in) throws IOException {
+        for (byte expected : MAGIC) {
+            if (in.readUnsignedByte() != expected) {
+                throw new IOException("No es un fichero RDB: falta la cabecera REDIS");
+            }
+        }
+        int version = 0;
+        for (int i = 0; i < 4; i++) {
+            int digit = in.readUnsignedByte() - '0';
+            if (digit < 0 || digit > 9) {
+                throw new IOException("RDB inválido: versión no numérica");
+            }
+            version = version * 10 + digit;
+        }
+        return version;
+    }
 
+    /**
+     * Lee la clave y el valor de una entrada y se la pasa al handler si no ha caducado
+     *
+     * @return false si se descartó por caducada
+     */
+    private static boolean readEntry(RdbReader in, int type, int db, long expireAtMillis, long idleSeconds,
+                                     int frequency, long now, Handler handler) throws IOException {
+        RdbType rdbType = valueType(type);
+        byte[] key = in.readString();
+        boolean expired = expireAtMillis >= 0 && expireAtMillis <= now;
+        if (rdbType == RdbType.STRING) {
+            byte[] value = in.readString();
+            if (!expired) {
+                handler.onEntry(db, key, value, expireAtMillis);
+            }
+        } else {
+            List<byte[]> elements = new ArrayList<>();
+            int collectionType = readCollection(in, rdbType, elements);
+            if (!expired) {
+                handler.onCollection(db, key, collectionType, elements, expireAtMillis);
+            }
+        }
+        if (!expired && (idleSeconds >= 0 || frequency >= 0)) {
+            handler.onAccess(db, key, idleSeconds, frequency);
+        }
+        return !expired;
+    }
 
-                if (entry != null) {
-                    redisData.put(entry.key, entry.value);
-                    if (delay > 0 ) {
-                    scheduler.schedule(
-                        () -> redisData.remove(entry.key),
-                            delay, 
-                            TimeUnit.MILLISECONDS
-                        );
-                    }else if (delay <= 0 && op != null ){
-                        redisData.remove(entry.key);
+    /**
+     * Decodifica una lista, set, hash o sorted set en cualquiera de sus codificaciones
+     *
+     * @return su tipo (Entries.TYPE_*)
+     */
+    private static int readCollection(RdbReader in, RdbType type, List<byte[]> elements) throws IOException {
+        switch (type) {
+            case LIST:
+                readStrings(in, in.readLength(), elements);
+                return Entries.TYPE_LIST;
+            case SET:
+                readStrings(in, in.readLength(), elements);
+                return Entries.TYPE_SET;
+            case HASH:
+                readStrings(in, in.readLength() * 2, elements);
+                return Entries.TYPE_HASH;
+            case LIST_ZIPLIST:
+                decodeZiplist(in.readString(), elements);
+                return Entries.TYPE_LIST;
+            case SET_INTSET:
+                decodeIntset(in.readString(), elements);
+                return Entries.TYPE_SET;
+            case HASH_ZIPLIST:
+                decodeZiplist(in.readString(), elements);
+                return Entries.TYPE_HASH;
+            case LIST_QUICKLIST:
+                for (long nodes = in.readLength(); nodes > 0; nodes--) {
+                    decodeZiplist(in.readString(), elements);
+                }
+                return Entries.TYPE_LIST;
+            case HASH_LISTPACK:
+                decodeListpack(in.readString(), elements);
+                return Entries.TYPE_HASH;
+            case LIST_QUICKLIST_2:
+                for (long nodes = in.readLength(); nodes > 0; nodes--) {
+                    long container = in.readLength();
+                    if (container == RdbType.QUICKLIST_NODE_PLAIN) {
+                        elements.add(in.readString());
+                    } else {
+                        decodeListpack(in.readString(), elements);
+                    }
+                }
+                return Entries.TYPE_LIST;
+            case SET_LISTPACK:
+                decodeListpack(in.readString(), elements);
+                return Entries.TYPE_SET;
+            case ZSET:
+            case ZSET_2:
+                for (long n = in.readLength(); n > 0; n--) {
+                    elements.add(in.readString());
+                    double score = type == RdbType.ZSET ? in.readLegacyDouble() : Double.longBitsToDouble(in.readLongLE());
+                    if (Double.isNaN(score)) {
+                        throw new IOException("RDB inválido: score NaN en un sorted set");
                     }
+                    elements.add(SortedSets.formatScoreBytes(score));
+                }
+                return Entries.TYPE_ZSET;
+            case ZSET_ZIPLIST:
+                decodeZiplist(in.readString(), elements);
+                return Entries.TYPE_ZSET;
+            case ZSET_LISTPACK:
+                decodeListpack(in.readString(), elements);
+                return Entries.TYPE_ZSET;
+            default:
+                throw new IOException("Tipo de valor RDB no soportado: " + type);
+        }
+    }
+
+    private static void skipValue(RdbReader in, int type) throws IOException {
+        RdbType rdbType = valueType(type);
+        switch (rdbType) {
+            case LIST:
+            case SET:
+            case LIST_QUICKLIST:
+                for (long n = in.readLength(); n > 0; n--) {
+                    in.skipString();
+                }
+                break;
+            case HASH:
+                for (long n = in.readLength() * 2; n > 0; n--) {
+                    in.skipString();
+                }
+                break;
+            case LIST_QUICKLIST_2:
+                for (long n = in.readLength(); n > 0; n--) {
+                    in.readLength();
+                    in.skipString();
+                }
+                break;
+            case ZSET:
+                for (long n = in.readLength(); n > 0; n--) {
+                    in.skipString();
+                    in.skipLegacyDouble();
+                }
+                break;
+            case ZSET_2:
+                for (long n = in.readLength(); n > 0; n--) {
+                    in.skipString();
+                    in.skip(8);
+                }
+                break;
+            default:
+                // el resto es un único string (el valor o su ziplist/listpack/intset)
+                in.skipString();
+        }
+    }
+
+    private static RdbType valueType(int type) throws IOException {
+        RdbType rdbType = RdbType.fromByte(type);
+        if (rdbType == null) {
+            throw new IOException("Tipo de valor RDB no soportado: " + type);
+        }
+        return rdbType;
+    }
+
+    private static void readStrings(RdbReader in, long count, List<byte[]> out) throws IOException {
+        for (long i = 0; i < count; i++) {
+            out.add(in.readString());
+        }
+    }
 
-                    i = entry.currentByte;
+    /**
+     * Elementos de un listpack (ver Listpack)
+     */
+    private static void decodeListpack(byte[] lp, List<byte[]> out) throws IOException {
+        try {
+            if (Listpack.totalBytes(lp, 0) != lp.length) {
+                throw new IOException("RDB inválido: tamaño de listpack incorrecto");
+            }
+            for (int p = Listpack.first(0); !Listpack.isEnd(lp, p); p = Listpack.next(lp, p)) {
+                out.add(Listpack.get(lp, p));
+            }
+        } catch (IndexOutOfBoundsException | IllegalStateException e) {
+            throw new IOException("RDB inválido: listpack corrupto");
+        }
+    }
+
+    /**
+     * Elementos de un ziplist, la codificación anterior al listpack (RDB < 10):
+     * [zlbytes u32][zltail u32][zllen u16] y por elemento [prevlen][codificación][datos]
+     */
+    private static void decodeZiplist(byte[] zl, List<byte[]> out) throws IOException {
+        try {
+            int p = 10;
+            while ((zl[p] & 0xFF) != 0xFF) {
+                p += (zl[p] & 0xFF) == 0xFE ? 5 : 1;
+                int encoding = zl[p] & 0xFF;
+                switch (encoding >> 6) {
+                    case 0: {
+                        int length = encoding & 0x3F;
+                        out.add(Arrays.copyOfRange(zl, p + 1, p + 1 + length));
+                        p += 1 + length;
+                        continue;
+                    }
+                    case 1: {
+                        int length = (encoding & 0x3F) << 8 | (zl[p + 1] & 0xFF);
+                        out.add(Arrays.copyOfRange(zl, p + 2, p + 2 + length));
+                        p += 2 + length;
+                        continue;
+                    }
+                    case 2: {
+                        int length = (zl[p + 1] & 0xFF) << 24 | (zl[p + 2] & 0xFF) << 16
+                                | (zl[p + 3] & 0xFF) << 8 | (zl[p + 4] & 0xFF);
+                        out.add(Arrays.copyOfRange(zl, p + 5, p + 5 + length));
+                        p += 5 + length;
+                        continue;
+                    }
+                    default:
+                        break;
+                }
+                long value;
+                int size;
+                switch (encoding) {
+                    case 0xC0:
+                        size = 2;
+                        break;
+                    case 0xD0:
+                        size = 4;
+                        break;
+                    case 0xE0:
+                        size = 8;
+                        break;
+                    case 0xF0:
+                        size = 3;
+                        break;
+                    case 0xFE:
+                        size = 1;
+                        break;
+                    default:
+                        size = 0;
+                }
+                if (size == 0) {
+                    // entero inmediato de 4 bits: 1111xxxx con xxxx de 0001 a 1101
+                    value = (encoding & 0x0F) - 1;
+                } else {
+                    value = zl[p + size];
+                    for (int i = size - 1; i >= 1; i--) {
+                        value = (value << 8) | (zl[p + i] & 0xFF);
+                    }
                 }
+                out.add(Long.toString(value).getBytes(StandardCharsets.US_ASCII));
+                p += 1 + size;
             }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("RDB inválido: ziplist corrupto");
         }
-        // podria leer aqui los resize y hacer esto para inicializar el map :
-        // redisData = new HashMap<>(resize);
-        // read DB
-        return redisData;
     }
-    
+
     /**
-     * Parsea una entrada individual del archivo RDB
+     * Elementos de un intset: [codificación u32 (2, 4 u 8)][número u32][enteros LE]
      */
-    private static RDBEntry parseRDBEntry(byte[] data, int startIndex) {
+    private static void decodeIntset(byte[] intset, List<byte[]> out) throws IOException {
         try {
-            int i = startIndex;
-            int keyLength = data[i] & 0xFF;
-            out.println("keyLength " + keyLength);
-            i++;
-            byte[] subKey = Arrays.copyOfRange(data, i , i + keyLength);
-            i+= keyLength;
-            String key = new String(subKey, "UTF-8");
-            out.println("key " + key);
-            
-            int valueLength = data[i] & 0xFF;
-            out.println("valueLength " + valueLength);
-            i++;
-            byte[] subValue = Arrays.copyOfRange(data, i, 
-            i + valueLength);
-            String value = new String(subValue, "UTF-8");
-            out.println("value " + value);
-            
-            return new RDBEntry(key, value, i + valueLength );
-
-        } catch (Exception e) {
-            System.err.println("Error parseando entrada RDB: " + e.getMessage());
-            return null;
-        }
-    }
-
-
-
-    
+            int size = intset[0] & 0xFF;
+            int count = (intset[4] & 0xFF) | (intset[5] & 0xFF) << 8 | (intset[6] & 0xFF) << 16 | (intset[7] & 0xFF) << 24;
+            if ((size != 2 && size != 4 && size != 8) || 8 + (long) count * size != intset.length) {
+                throw new IOException("RDB inválido: intset corrupto");
+            }
+            for (int i = 0; i < count; i++) {
+                int p = 8 + i * size;
+                long value = intset[p + size - 1];
+                for (int j = size - 2; j >= 0; j--) {
+                    value = (value << 8) | (intset[p + j] & 0xFF);
+                }
+                out.add(Long.toString(value).getBytes(StandardCharsets.US_ASCII));
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("RDB inválido: intset corrupto");
+        }
+    }
+
     /**
-     * Clase interna para representar una entrada del RDB
+     * Compara el CRC64 calculado con el del final del fichero (0 = sin checksum)
+     *
+     * @return true si se verificó
      */
-    static class RDBEntry {
-        final String key;
-        final String value;
-        final int currentByte;
-        
-        RDBEntry(String key, String value, int currentByte ) {
-            this.key = key;
-            this.value = value;
-            this.currentByte = currentByte;
+    private static boolean verifyChecksum(RdbReader in, int version) throws IOException {
+        if (version < FIRST_VERSION_WITH_CHECKSUM) {
+            return false;
+        }
+        long computed = in.checksum();
+        long expected = in.readLongLE();
+        if (expected == 0) {
+            return false;
+        }
+        if (expected != computed) {
+            throw new IOException("RDB corrupto: el CRC64 no coincide");
+        }
+        return true;
+    }
+
+    /**
+     * Rango de entradas consecutivas de una misma base de datos
+     */
+    private static class Chunk {
+        final int db;
+        final long start;
+        int entries;
+
+        Chunk(int db, long start) {
+            this.db = db;
+            this.start = start;
         }
     }
 }
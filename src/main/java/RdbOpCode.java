@@ -1,11 +1,22 @@
 public enum RdbOpCode {
     EXPIRETIME_SECONDS(0xFD),
-    EXPIRETIME_MS(0xFC);
-    // FREQUENCY(0xF7),
-    // RESIZEDB(0xFB),
-    // EOF(0xFF);
+    EXPIRETIME_MS(0xFC),
+    FREQUENCY(0xF7),    // contador LFU de la entrada siguiente (1 byte)
+    IDLE(0xF8),         // segundos sin acceso de la entrada siguiente (longitud)
+    AUX(0xFA),
+    RESIZEDB(0xFB),
+    SELECTDB(0xFE),
+    EOF(0xFF);
 
     private final int code;
+    // tabla por byte para no recorrer values() (que copia el array) en cada entrada
+    private static final RdbOpCode[] BY_CODE = new RdbOpCode[256];
+
+    static {
+        for (RdbOpCode op : values()) {
+            BY_CODE[op.code] = op;
+        }
+    }
 
     RdbOpCode(int code) {
         this.code = code;
@@ -16,9 +27,6 @@ public enum RdbOpCode {
     }
 
     public static RdbOpCode fromByte(int b) {
-        for (RdbOpCode op : values()) {
-            if (op.code == b) return op;
-        }
-        return null; // si no matchea → es un value-type
+        return BY_CODE[b & 0xFF]; // si no matchea (null) → es un value-type
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,355 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Lector secuencial de un fichero RDB sobre un FileChannel con un buffer de tamaño fijo,
+ * de modo que la memoria extra no depende del tamaño del dump.
+ *
+ * Decodifica la codificación de longitudes de Redis (6, 14, 32 y 64 bits), los strings
+ * codificados como entero y los comprimidos con LZF, y va calculando el CRC64 de todo
+ * lo consumido. Usa lecturas posicionales, así que varios lectores pueden compartir canal
+ */
+public class RdbReader implements Closeable {
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private static final int ENC_INT8 = 0;
+    private static final int ENC_INT16 = 1;
+    private static final int ENC_INT32 = 2;
+    private static final int ENC_LZF = 3;
+
+    private final FileChannel channel;
+    private final boolean ownsChannel;
+    private final byte[] data = new byte[BUFFER_SIZE];
+    private final ByteBuffer window = ByteBuffer.wrap(data);
+    private long bufferStart;   // posición en el fichero de data[0]
+    private int pos;
+    private int limit;
+    private final Crc64 crc;
+    private int crcMark;        // hasta dónde de data[] está ya incluido en el CRC
+
+    /**
+     * @param channel canal del fichero
+     * @param position posición del fichero donde empezar a leer
+     * @param checksum si hay que calcular el CRC64 de lo leído
+     * @param ownsChannel si close() debe cerrar también el canal
+     */
+    public RdbReader(FileChannel channel, long position, boolean checksum, boolean ownsChannel) {
+        this.channel = channel;
+        this.bufferStart = position;
+        this.crc = checksum ? new Crc64() : null;
+        this.ownsChannel = ownsChannel;
+    }
+
+    /**
+     * Posición en el fichero del siguiente byte a leer
+     */
+    public long position() {
+        return bufferStart + pos;
+    }
+
+    public int readUnsignedByte() throws IOException {
+        ensure(1);
+        return data[pos++] & 0xFF;
+    }
+
+    public long readUnsignedIntLE() throws IOException {
+        ensure(4);
+        long value = (data[pos] & 0xFFL)
+                | ((data[pos + 1] & 0xFFL) << 8)
+                | ((data[pos + 2] & 0xFFL) << 16)
+                | ((data[pos + 3] & 0xFFL) << 24);
+        pos += 4;
+        return value;
+    }
+
+    public long readLongLE() throws IOException {
+        ensure(8);
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = (value << 8) | (data[pos + i] & 0xFF);
+        }
+        pos += 8;
+        return value;
+    }
+
+    /**
+     * Score de un ZSET de los RDB antiguos: un byte de longitud y el número en texto; las
+     * longitudes 253, 254 y 255 son NaN, +inf y -inf
+     */
+    public double readLegacyDouble() throws IOException {
+        int length = readUnsignedByte();
+        switch (length) {
+            case 253:
+                return Double.NaN;
+            case 254:
+                return Double.POSITIVE_INFINITY;
+            case 255:
+                return Double.NEGATIVE_INFINITY;
+            default:
+                try {
+                    return Double.parseDouble(new String(readBytes(length), StandardCharsets.US_ASCII));
+                } catch (NumberFormatException e) {
+                    throw new IOException("RDB inválido: score de sorted set incorrecto");
+                }
+        }
+    }
+
+    public void skipLegacyDouble() throws IOException {
+        int length = readUnsignedByte();
+        if (length < 253) {
+            skip(length);
+        }
+    }
+
+    /**
+     * Lee una longitud con la codificación de Redis
+     */
+    public long readLength() throws IOException {
+        int first = readUnsignedByte();
+        if ((first >> 6) == 3) {
+            throw new IOException("RDB inválido: se esperaba una longitud y llegó una codificación especial");
+        }
+        return lengthFrom(first);
+    }
+
+    /**
+     * Lee un string RDB: bytes en crudo, entero codificado o comprimido con LZF
+     */
+    public byte[] readString() throws IOException {
+        int first = readUnsignedByte();
+        if ((first >> 6) == 3) {
+            switch (first & 0x3F) {
+                case ENC_INT8:
+                    ensure(1);
+                    return decimal(data[pos++]);
+                case ENC_INT16:
+                    return decimal((short) readUnsignedIntLE16());
+                case ENC_INT32:
+                    return decimal((int) readUnsignedIntLE());
+                case ENC_LZF:
+                    int compressedLength = checkedLength(readLength());
+                    int length = checkedLength(readLength());
+                    return lzfDecompress(readBytes(compressedLength), length);
+                default:
+                    throw new IOException("RDB inválido: codificación de string " + (first & 0x3F));
+            }
+        }
+        return readBytes(checkedLength(lengthFrom(first)));
+    }
+
+    /**
+     * Salta un string sin materializarlo
+     */
+    public void skipString() throws IOException {
+        int first = readUnsignedByte();
+        if ((first >> 6) == 3) {
+            switch (first & 0x3F) {
+                case ENC_INT8:
+                    skip(1);
+                    return;
+                case ENC_INT16:
+                    skip(2);
+                    return;
+                case ENC_INT32:
+                    skip(4);
+                    return;
+                case ENC_LZF:
+                    long compressedLength = readLength();
+                    readLength();
+                    skip(compressedLength);
+                    return;
+                default:
+                    throw new IOException("RDB inválido: codificación de string " + (first & 0x3F));
+            }
+        }
+        skip(lengthFrom(first));
+    }
+
+    public void skip(long count) throws IOException {
+        while (count > 0) {
+            int chunk = (int) Math.min(count, data.length);
+            ensure(chunk);
+            pos += chunk;
+            count -= chunk;
+        }
+    }
+
+    /**
+     * CRC64 de todo lo leído hasta ahora
+     */
+    public long checksum() {
+        updateCrc();
+        return crc.getValue();
+    }
+
+    private long lengthFrom(int first) throws IOException {
+        switch (first >> 6) {
+            case 0:
+                return first & 0x3F;
+            case 1:
+                return ((first & 0x3F) << 8) | readUnsignedByte();
+            default:
+                if (first == 0x80) {
+                    return readUnsignedIntBE();
+                }
+                if (first == 0x81) {
+                    return readLongBE();
+                }
+                throw new IOException("RDB inválido: longitud 0x" + Integer.toHexString(first));
+        }
+    }
+
+    private int readUnsignedIntLE16() throws IOException {
+        ensure(2);
+        int value = (data[pos] & 0xFF) | ((data[pos + 1] & 0xFF) << 8);
+        pos += 2;
+        return value;
+    }
+
+    private long readUnsignedIntBE() throws IOException {
+        ensure(4);
+        long value = ((data[pos] & 0xFFL) << 24)
+                | ((data[pos + 1] & 0xFFL) << 16)
+                | ((data[pos + 2] & 0xFFL) << 8)
+                | (data[pos + 3] & 0xFFL);
+        pos += 4;
+        return value;
+    }
+
+    private long readLongBE() throws IOException {
+        ensure(8);
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (data[pos + i] & 0xFF);
+        }
+        pos += 8;
+        return value;
+    }
+
+    private byte[] readBytes(int length) throws IOException {
+        byte[] bytes = new byte[length];
+        if (length <= data.length) {
+            ensure(length);
+            System.arraycopy(data, pos, bytes, 0, length);
+            pos += length;
+            return bytes;
+        }
+        // valores más grandes que el buffer: se leen directamente al array destino
+        int buffered = limit - pos;
+        System.arraycopy(data, pos, bytes, 0, buffered);
+        pos = limit;
+        updateCrc();
+        bufferStart += limit;
+        pos = 0;
+        limit = 0;
+        crcMark = 0;
+        ByteBuffer target = ByteBuffer.wrap(bytes, buffered, length - buffered);
+        while (target.hasRemaining()) {
+            int read = channel.read(target, bufferStart);
+            if (read < 0) {
+                throw new EOFException("RDB truncado");
+            }
+            bufferStart += read;
+        }
+        if (crc != null) {
+            crc.update(bytes, buffered, length - buffered);
+        }
+        return bytes;
+    }
+
+    /**
+     * Garantiza que haya al menos n bytes en el buffer (n <= tamaño del buffer)
+     */
+    private void ensure(int n) throws IOException {
+        if (limit - pos >= n) {
+            return;
+        }
+        updateCrc();
+        int remaining = limit - pos;
+        System.arraycopy(data, pos, data, 0, remaining);
+        bufferStart += pos;
+        pos = 0;
+        limit = remaining;
+        crcMark = 0;
+        while (limit < n) {
+            window.limit(data.length).position(limit);
+            int read = channel.read(window, bufferStart + limit);
+            if (read < 0) {
+                throw new EOFException("RDB truncado");
+            }
+            limit += read;
+        }
+    }
+
+    private void updateCrc() {
+        if (crc != null && pos > crcMark) {
+            crc.update(data, crcMark, pos - crcMark);
+        }
+        crcMark = pos;
+    }
+
+    private static int checkedLength(long length) throws IOException {
+        if (length < 0 || length > Integer.MAX_VALUE - 8) {
+            throw new IOException("RDB inválido: string de " + length + " bytes");
+        }
+        return (int) length;
+    }
+
+    private static byte[] decimal(long value) {
+        return Long.toString(value).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Descompresor LZF (formato de liblzf usado por Redis)
+     */
+    static byte[] lzfDecompress(byte[] in, int expectedLength) throws IOException {
+        byte[] out = new byte[expectedLength];
+        int ip = 0;
+        int op = 0;
+        try {
+            while (ip < in.length) {
+                int ctrl = in[ip++] & 0xFF;
+                if (ctrl < 32) {
+                    // literal de ctrl + 1 bytes
+                    int length = ctrl + 1;
+                    System.arraycopy(in, ip, out, op, length);
+                    ip += length;
+                    op += length;
+                } else {
+                    // referencia hacia atrás; puede solaparse con lo que se está escribiendo
+                    int length = ctrl >> 5;
+                    int ref = op - ((ctrl & 0x1F) << 8) - 1;
+                    if (length == 7) {
+                        length += in[ip++] & 0xFF;
+                    }
+                    ref -= in[ip++] & 0xFF;
+                    length += 2;
+                    if (ref < 0) {
+                        throw new IOException("RDB inválido: referencia LZF fuera de rango");
+                    }
+                    for (int i = 0; i < length; i++) {
+                        out[op++] = out[ref++];
+                    }
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("RDB inválido: datos LZF corruptos");
+        }
+        if (op != expectedLength) {
+            throw new IOException("RDB inválido: longitud LZF " + op + " != " + expectedLength);
+        }
+        return out;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (ownsChannel) {
+            channel.close();
+        }
+    }
+}
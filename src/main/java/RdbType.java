@@ -0,0 +1,48 @@
+/**
+ * Tipos de valor del RDB: el byte que precede a la clave de cada entrada
+ */
+public enum RdbType {
+    STRING(0),
+    LIST(1),
+    SET(2),
+    ZSET(3),
+    HASH(4),
+    ZSET_2(5),
+    LIST_ZIPLIST(10),
+    SET_INTSET(11),
+    ZSET_ZIPLIST(12),
+    HASH_ZIPLIST(13),
+    LIST_QUICKLIST(14),
+    HASH_LISTPACK(16),
+    ZSET_LISTPACK(17),
+    LIST_QUICKLIST_2(18),
+    SET_LISTPACK(20);
+
+    /** Nodos de LIST_QUICKLIST_2: un elemento suelto o un listpack */
+    public static final int QUICKLIST_NODE_PLAIN = 1;
+    public static final int QUICKLIST_NODE_PACKED = 2;
+
+    private final int code;
+    private static final RdbType[] BY_CODE = new RdbType[256];
+
+    static {
+        for (RdbType type : values()) {
+            BY_CODE[type.code] = type;
+        }
+    }
+
+    RdbType(int code) {
+        this.code = code;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * @return el tipo o null si no está soportado
+     */
+    public static RdbType fromByte(int b) {
+        return BY_CODE[b & 0xFF];
+    }
+}
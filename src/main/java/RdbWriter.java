@@ -0,0 +1,301 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Escritor secuencial de ficheros RDB sobre un canal (el fichero o, en la sincronización
+ * de una réplica, su socket) con un buffer fijo. Va calculando el CRC64 de lo escrito
+ * para el trailer del fichero
+ */
+public class RdbWriter implements Closeable {
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int RDB_VERSION = 11;
+
+    private final WritableByteChannel channel;
+    private final byte[] data = new byte[BUFFER_SIZE];
+    private final ByteBuffer buffer = ByteBuffer.wrap(data);
+    private final Crc64 crc = new Crc64();
+    private long written;
+
+    public RdbWriter(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    public void writeHeader() throws IOException {
+        writeBytes(String.format("REDIS%04d", RDB_VERSION).getBytes(StandardCharsets.US_ASCII), 0, 9);
+    }
+
+    public void writeAux(String key, String value) throws IOException {
+        writeByte(RdbOpCode.AUX.getCode());
+        writeString(key.getBytes(StandardCharsets.UTF_8));
+        writeString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void writeSelectDb(int db) throws IOException {
+        writeByte(RdbOpCode.SELECTDB.getCode());
+        writeLength(db);
+    }
+
+    /**
+     * Pista de tamaño para que el lector pueda reservar sitio
+     */
+    public void writeResizeDb(long keys, long expires) throws IOException {
+        writeByte(RdbOpCode.RESIZEDB.getCode());
+        writeLength(keys);
+        writeLength(expires);
+    }
+
+    /**
+     * Escribe un par clave-valor de tipo string
+     *
+     * @param expireAtMillis instante absoluto de expiración o -1 si no tiene
+     */
+    public void writeEntry(byte[] key, byte[] value, long expireAtMillis) throws IOException {
+        if (expireAtMillis >= 0) {
+            writeByte(RdbOpCode.EXPIRETIME_MS.getCode());
+            writeLongLE(expireAtMillis);
+        }
+        writeByte(RdbType.STRING.getCode());
+        writeString(key);
+        writeString(value);
+    }
+
+    /**
+     * Escribe una entrada del Keyspace (ver Entries). Los enteros que caben en 32 bits
+     * usan la codificación de entero de RDB. Las colecciones que caben en la codificación
+     * pequeña se vuelcan con su listpack tal cual, como hace Redis; las demás elemento a
+     * elemento con los tipos clásicos (LIST, SET, HASH y ZSET_2)
+     */
+    public void writeEntry(byte[] entry) throws IOException {
+        writeEntry(entry, -1, -1);
+    }
+
+    /**
+     * Como writeEntry(entry), precedida de los opcodes IDLE y FREQ con los metadatos de
+     * desalojo, como hace Redis con las políticas LRU y LFU
+     *
+     * @param idleSeconds segundos sin acceso o -1 para no escribirlo
+     * @param frequency contador LFU o -1 para no escribirlo
+     */
+    public void writeEntry(byte[] entry, long idleSeconds, int frequency) throws IOException {
+        long expireAt = Entries.expireAt(entry);
+        if (expireAt >= 0) {
+            writeByte(RdbOpCode.EXPIRETIME_MS.getCode());
+            writeLongLE(expireAt);
+        }
+        if (idleSeconds >= 0) {
+            writeByte(RdbOpCode.IDLE.getCode());
+            writeLength(idleSeconds);
+        }
+        if (frequency >= 0) {
+            writeByte(RdbOpCode.FREQUENCY.getCode());
+            writeByte(frequency);
+        }
+        int type = Entries.type(entry);
+        int valueOffset = Entries.valueOffset(entry);
+        if (type == Entries.TYPE_STRING) {
+            writeByte(RdbType.STRING.getCode());
+            writeKey(entry);
+            if (Entries.isInt(entry)) {
+                writeInteger(Entries.intValue(entry));
+            } else {
+                writeLength(entry.length - valueOffset);
+                writeBytes(entry, valueOffset, entry.length - valueOffset);
+            }
+            return;
+        }
+        int listpackBytes = Listpack.totalBytes(entry, valueOffset);
+        if (Keyspace.fitsListpack(type, entry, valueOffset)) {
+            switch (type) {
+                case Entries.TYPE_LIST:
+                    writeByte(RdbType.LIST_QUICKLIST_2.getCode());
+                    writeKey(entry);
+                    writeLength(1);
+                    writeLength(RdbType.QUICKLIST_NODE_PACKED);
+                    break;
+                case Entries.TYPE_SET:
+                    writeByte(RdbType.SET_LISTPACK.getCode());
+                    writeKey(entry);
+                    break;
+                case Entries.TYPE_ZSET:
+                    writeByte(RdbType.ZSET_LISTPACK.getCode());
+                    writeKey(entry);
+                    break;
+                default:
+                    writeByte(RdbType.HASH_LISTPACK.getCode());
+                    writeKey(entry);
+            }
+            writeLength(listpackBytes);
+            writeBytes(entry, valueOffset, listpackBytes);
+            return;
+        }
+        int count = Listpack.count(entry, valueOffset);
+        if (type == Entries.TYPE_ZSET) {
+            writeSortedSet(entry, valueOffset, count / 2);
+            return;
+        }
+        writeByte((type == Entries.TYPE_LIST ? RdbType.LIST : type == Entries.TYPE_SET ? RdbType.SET : RdbType.HASH).getCode());
+        writeKey(entry);
+        writeLength(type == Entries.TYPE_HASH ? count / 2 : count);
+        for (int p = Listpack.first(valueOffset); !Listpack.isEnd(entry, p); p = Listpack.next(entry, p)) {
+            if (Listpack.isInt(entry, p)) {
+                writeInteger(Listpack.intValue(entry, p));
+            } else {
+                writeLength(Listpack.stringLength(entry, p));
+                writeBytes(entry, Listpack.stringOffset(entry, p), Listpack.stringLength(entry, p));
+            }
+        }
+    }
+
+    /**
+     * ZSET_2: miembro y score como double binario LE, a partir del listpack de la foto
+     */
+    private void writeSortedSet(byte[] entry, int valueOffset, int count) throws IOException {
+        writeByte(RdbType.ZSET_2.getCode());
+        writeKey(entry);
+        writeLength(count);
+        for (int p = Listpack.first(valueOffset); !Listpack.isEnd(entry, p); ) {
+            int score = Listpack.next(entry, p);
+            if (Listpack.isInt(entry, p)) {
+                writeInteger(Listpack.intValue(entry, p));
+            } else {
+                writeLength(Listpack.stringLength(entry, p));
+                writeBytes(entry, Listpack.stringOffset(entry, p), Listpack.stringLength(entry, p));
+            }
+            double value = Listpack.isInt(entry, score)
+                    ? Listpack.intValue(entry, score) : SortedSets.parseScore(Listpack.get(entry, score));
+            writeLongLE(Double.doubleToLongBits(value));
+            p = Listpack.next(entry, score);
+        }
+    }
+
+    private void writeKey(byte[] entry) throws IOException {
+        int keyLength = Entries.keyLength(entry);
+        writeLength(keyLength);
+        writeBytes(entry, Entries.keyOffset(entry), keyLength);
+    }
+
+    /**
+     * Escribe el fin de fichero con el CRC64 y, si es un fichero, fuerza los datos a disco
+     */
+    public void finish() throws IOException {
+        writeByte(RdbOpCode.EOF.getCode());
+        flushBuffer();
+        long checksum = crc.getValue();
+        for (int i = 0; i < 8; i++) {
+            buffer.put((byte) (checksum >>> (8 * i)));
+        }
+        written += 8;
+        drain();
+        if (channel instanceof FileChannel) {
+            ((FileChannel) channel).force(true);
+        }
+    }
+
+    /**
+     * Bytes escritos hasta ahora
+     */
+    public long bytesWritten() {
+        return written;
+    }
+
+    private void writeByte(int b) throws IOException {
+        if (!buffer.hasRemaining()) {
+            flushBuffer();
+        }
+        buffer.put((byte) b);
+        written++;
+    }
+
+    private void writeLongLE(long value) throws IOException {
+        for (int i = 0; i < 8; i++) {
+            writeByte((int) (value >>> (8 * i)));
+        }
+    }
+
+    /**
+     * Longitud con la codificación de Redis (6, 14, 32 o 64 bits)
+     */
+    private void writeLength(long length) throws IOException {
+        if (length < 1 << 6) {
+            writeByte((int) length);
+        } else if (length < 1 << 14) {
+            writeByte(0x40 | (int) (length >> 8));
+            writeByte((int) length);
+        } else if (length <= 0xFFFFFFFFL) {
+            writeByte(0x80);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                writeByte((int) (length >>> shift));
+            }
+        } else {
+            writeByte(0x81);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                writeByte((int) (length >>> shift));
+            }
+        }
+    }
+
+    /**
+     * String con codificación de entero (int8/16/32) o, si no cabe, en decimal
+     */
+    private void writeInteger(long value) throws IOException {
+        if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            writeByte(0xC0);
+            writeByte((int) value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            writeByte(0xC1);
+            writeByte((int) value);
+            writeByte((int) (value >> 8));
+        } else if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+            writeByte(0xC2);
+            for (int i = 0; i < 4; i++) {
+                writeByte((int) (value >> (8 * i)));
+            }
+        } else {
+            writeString(Long.toString(value).getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    private void writeString(byte[] bytes) throws IOException {
+        writeLength(bytes.length);
+        writeBytes(bytes, 0, bytes.length);
+    }
+
+    private void writeBytes(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (!buffer.hasRemaining()) {
+                flushBuffer();
+            }
+            int chunk = Math.min(length, buffer.remaining());
+            buffer.put(bytes, offset, chunk);
+            offset += chunk;
+            length -= chunk;
+            written += chunk;
+        }
+    }
+
+    /**
+     * Añade al CRC lo pendiente en el buffer y lo escribe en el canal
+     */
+    private void flushBuffer() throws IOException {
+        crc.update(data, 0, buffer.position());
+        drain();
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -1,10 +1,10 @@
 import java.io.IOException;
-import java.io.OutputStream;
 
 /**
- * Interfaz funcional para los comandos de Redis
+ * Interfaz funcional para los comandos de Redis que no dependen de la conexión que
+ * los envía; los que sí la necesitan son ClientCommand
  */
 @FunctionalInterface
 public interface RedisCommand {
-    void execute(String[] args, OutputStream out) throws IOException;
+    void execute(CommandArgs args, RespWriter out) throws IOException;
 }
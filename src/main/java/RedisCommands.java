@@ -1,90 +1,915 @@
 import java.io.IOException;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.Executors;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Clase que contiene la implementación de todos los comandos Redis
  */
 public class RedisCommands {
     
-    private final Map<String, String> dataStore = new ConcurrentHashMap<>();
-    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+    private final Keyspace keyspace;
     private final String dir;
     private final String dbfilename;
+    private static final String DEFAULT_DIR = ".";
+    private static final String DEFAULT_DBFILENAME = "dump.rdb";
+    private static final long DEFAULT_SCAN_COUNT = 10;
+    private static final String OOM_ERROR = "command not allowed when used memory > 'maxmemory'.";
+    // foto en curso de SAVE/BGSAVE, null si no hay ninguna
+    private volatile Snapshot snapshot;
+    // quien activa una foto; ReentrantLock y no synchronized porque dentro se espera al
+    // lockAll del almacén y un hilo virtual no debe quedar fijado a su portador
+    private final ReentrantLock snapshotLock = new ReentrantLock();
+    private volatile long lastSave = System.currentTimeMillis() / 1000;
+    // escrituras hacia el AOF y las réplicas
+    private final CommandLog log = new CommandLog();
     
     public RedisCommands(String dir, String dbfilename) {
+        this(dir, dbfilename, Keyspace.DEFAULT_SHARDS);
+    }
+
+    public RedisCommands(String dir, String dbfilename, int shards) {
         this.dir = dir;
         this.dbfilename = dbfilename;
+        this.keyspace = new Keyspace(shards);
+        // las claves desalojadas se registran como DEL, como las propaga Redis
+        keyspace.setEvictionListener(log::appendDel);
+    }
+
+    /**
+     * Política de desalojo; se fija antes de cargar los datos para que los metadatos
+     * IDLE / FREQ del RDB se interpreten con ella
+     */
+    public void setEvictionPolicy(EvictionPolicy policy, int samples) {
+        keyspace.getEviction().setPolicy(policy);
+        keyspace.getEviction().setSamples(samples);
+    }
+
+    /**
+     * Límite de memoria (0 sin límite); se fija una vez cargados los datos iniciales
+     * para que la carga no desaloje nada
+     */
+    public void setMaxmemory(long bytes) {
+        keyspace.getEviction().setMaxmemory(bytes);
+    }
+
+    /**
+     * Envuelve un comando que puede hacer crecer la memoria (denyoom en Redis): antes de
+     * ejecutarlo, y sin ningún lock tomado, desaloja claves si se ha pasado de maxmemory.
+     * Si no puede bajar del límite responde con el error OOM sin ejecutarlo
+     */
+    public ClientCommand denyOom(ClientCommand command) {
+        Eviction eviction = keyspace.getEviction();
+        return (client, args, out) -> {
+            // lo que llega del maestro se aplica siempre: es él quien desaloja
+            if (!client.isInternal() && !hasMemory(client, eviction)) {
+                throw new CommandException("OOM", OOM_ERROR);
+            }
+            command.execute(client, args, out);
+        };
+    }
+
+    /**
+     * Dentro de EXEC el Keyspace ya está bloqueado y no se puede desalojar: vale lo que
+     * EXEC comprobó antes de bloquearlo
+     */
+    private static boolean hasMemory(Client client, Eviction eviction) {
+        Transaction.State transaction = client.peekTransaction();
+        if (transaction != null && transaction.isExecuting()) {
+            return transaction.isMemoryAvailable();
+        }
+        return eviction.freeMemoryIfNeeded();
+    }
+
+    /**
+     * Arranca la expiración activa; se llama una vez cargados los datos iniciales
+     */
+    public void start() {
+        keyspace.start();
+    }
+    
+    public Keyspace getKeyspace() {
+        return keyspace;
+    }
+
+    public CommandLog getLog() {
+        return log;
+    }
+
+    /**
+     * Instante (s) del último volcado correcto del RDB
+     */
+    public long getLastSave() {
+        return lastSave;
+    }
+
+    /**
+     * Fichero del RDB: dir/dbfilename, con los valores por defecto de Redis si faltan
+     */
+    public Path getRdbPath() {
+        return Paths.get(dir != null ? dir : DEFAULT_DIR, dbfilename != null ? dbfilename : DEFAULT_DBFILENAME);
+    }
+    
+    /**
+     * Reserva sitio para el número de claves anunciado por el RDB y evita los
+     * rehash durante la carga
+     */
+    public void presize(long expectedKeys) {
+        keyspace.presize(expectedKeys);
+    }
+
+    /**
+     * Empieza a registrar las escrituras en el AOF; se llama después de cargar o
+     * reejecutar los datos iniciales para que la carga no se vuelva a registrar
+     */
+    public void enableAppendOnly(AppendOnlyFile aof) {
+        try (Keyspace.KeyLock lock = keyspace.lockAll()) {
+            log.setAppendOnlyFile(aof);
+        }
+    }
+
+    /**
+     * Espera el fsync de las escrituras que el hilo actual ha dejado pendientes
+     * (bucles de eventos con appendfsync always)
+     */
+    public void awaitDeferredSyncs() throws IOException {
+        log.awaitDeferred();
+    }
+
+    /**
+     * Inserta una entrada leída del RDB con su instante de expiración (-1 si no tiene)
+     */
+    public void loadEntry(byte[] key, byte[] value, long expireAtMillis) {
+        keyspace.load(key, value, expireAtMillis);
+    }
+
+    /**
+     * Inserta una lista, set o hash leído del RDB (ver Keyspace.loadCollection)
+     */
+    public void loadCollection(byte[] key, int type, List<byte[]> elements, long expireAtMillis) {
+        keyspace.loadCollection(key, type, elements, expireAtMillis);
     }
     
-    public Map<String, String> getDataStore() {
-        return dataStore;
+    /**
+     * Aplica los metadatos de desalojo del RDB a una clave recién cargada
+     */
+    public void loadAccess(byte[] key, long idleSeconds, int frequency) {
+        keyspace.loadAccess(key, idleSeconds, frequency);
+    }
+
+    /**
+     * Destino de la carga de un RDB en el almacén: solo se sirve la base de datos 0 y el
+     * resto se lee y se descarta
+     */
+    public RDBParser.Handler createRdbLoader() {
+        return new RDBParser.Handler() {
+            @Override
+            public void onResizeDb(int db, long keys, long expires) {
+                if (db == 0) {
+                    presize(keys);
+                }
+            }
+
+            @Override
+            public void onEntry(int db, byte[] key, byte[] value, long expireAtMillis) {
+                if (db == 0) {
+                    loadEntry(key, value, expireAtMillis);
+                }
+            }
+
+            @Override
+            public void onCollection(int db, byte[] key, int type, List<byte[]> elements, long expireAtMillis) {
+                if (db == 0) {
+                    loadCollection(key, type, elements, expireAtMillis);
+                }
+            }
+
+            @Override
+            public void onAccess(int db, byte[] key, long idleSeconds, int frequency) {
+                if (db == 0) {
+                    loadAccess(key, idleSeconds, frequency);
+                }
+            }
+        };
     }
     
     /**
      * Comando ECHO - devuelve el mensaje recibido
      */
     public static final RedisCommand ECHO = (args, out) -> {
-        System.out.println("xxx ECHO");
-        for (int i = 1; i < args.length; i++) {
-            out.write(("+" + args[i] + "\r\n").getBytes());
-        }
+        out.writeBulk(args.buffer(), args.offset(1), args.length(1));
     };
     
     /**
      * Comando PING - responde con PONG
      */
-    public static final RedisCommand PING = (_args, out) -> {
-        out.write("+PONG\r\n".getBytes());
+    public static final RedisCommand PING = (args, out) -> {
+        if (args.count() > 1) {
+            out.writeBulk(args.buffer(), args.offset(1), args.length(1));
+        } else {
+            out.writeRaw(RespWriter.PONG);
+        }
     };
     
     /**
      * Comando SET - establece un valor para una clave
+     * SET key value [NX | XX] [EX s | PX ms | EXAT ts | PXAT ms-ts | KEEPTTL]
      */
     public RedisCommand createSetCommand() {
         return (args, out) -> {
-            System.out.println("xxx SET");
-            dataStore.put(args[1], args[2]);
-            out.write("+OK\r\n".getBytes());
             
-            // Manejo de expiración si se proporciona
-            if (args.length > 3) {
-                handleExpiration(args);
+            // Opciones de expiración y condición
+            long deadline = -1;
+            boolean keepTtl = false;
+            int condition = Keyspace.SET_ALWAYS;
+            for (int i = 3; i < args.count(); i++) {
+                if (args.equalsIgnoreCase(i, "KEEPTTL") && deadline < 0) {
+                    keepTtl = true;
+                } else if (args.equalsIgnoreCase(i, "NX") && condition != Keyspace.SET_IF_PRESENT) {
+                    condition = Keyspace.SET_IF_ABSENT;
+                } else if (args.equalsIgnoreCase(i, "XX") && condition != Keyspace.SET_IF_ABSENT) {
+                    condition = Keyspace.SET_IF_PRESENT;
+                } else if (!keepTtl && deadline < 0 && i + 1 < args.count() && isExpireOption(args, i)) {
+                    deadline = parseExpireOption(args, i);
+                    i++;
+                } else {
+                    throw new CommandException("syntax error");
+                }
+            }
+            
+            boolean written;
+            long offset = 0;
+            try (Keyspace.KeyLock lock = keyspace.lockKeys(args, 1, 1, 1)) {
+                written = keyspace.set(args, 1, 2, deadline, keepTtl, condition);
+                if (written) {
+                    offset = log.appendSet(args, 1, 2, deadline, keepTtl);
+                }
+            }
+            log.awaitSync(offset);
+            if (written) {
+                out.writeOk();
+            } else {
+                out.writeNullBulk();
             }
         };
     }
+
+    /**
+     * Comando SETNX - SET solo si la clave no existe; responde 1 o 0
+     */
+    public RedisCommand createSetnxCommand() {
+        return (args, out) -> {
+            boolean written;
+            long offset = 0;
+            try (Keyspace.KeyLock lock = keyspace.lockKeys(args, 1, 1, 1)) {
+                written = keyspace.set(args, 1, 2, -1, false, Keyspace.SET_IF_ABSENT);
+                if (written) {
+                    offset = log.appendSet(args, 1, 2, -1, false);
+                }
+            }
+            log.awaitSync(offset);
+            out.writeInteger(written ? 1 : 0);
+        };
+    }
+
+    /**
+     * Comandos INCR / DECR / INCRBY / DECRBY. El contador se guarda como entero binario
+     * en la entrada y la respuesta se escribe dígito a dígito, sin Strings intermedios
+     *
+     * @param sign 1 para sumar, -1 para restar
+     * @param hasAmount si el incremento viene en el argumento 2 (INCRBY / DECRBY)
+     */
+    public RedisCommand createIncrCommand(int sign, boolean hasAmount) {
+        return (args, out) -> {
+            long delta = sign;
+            if (hasAmount) {
+                delta = args.parseLong(2);
+                if (sign < 0) {
+                    if (delta == Long.MIN_VALUE) {
+                        throw new CommandException("decrement would overflow");
+                    }
+                    delta = -delta;
+                }
+            }
+            long value;
+            long offset = 0;
+            try (Keyspace.KeyLock lock = keyspace.lockKeys(args, 1, 1, 1)) {
+                value = keyspace.incrBy(args, 1, delta);
+                offset = log.append(args);
+            }
+            log.awaitSync(offset);
+            out.writeInteger(value);
+        };
+    }
+
+    /**
+     * Comando INCRBYFLOAT - suma un decimal. En el AOF queda como SET del resultado,
+     * como hace Redis, para que al reejecutarlo no cambie el redondeo
+     */
+    public RedisCommand createIncrbyfloatCommand() {
+        return (args, out) -> {
+            double delta = Keyspace.parseDouble(args.toBytes(2));
+            byte[] value;
+            long offset = 0;
+            try (Keyspace.KeyLock lock = keyspace.lockKeys(args, 1, 1, 1)) {
+                value = keyspace.incrByFloat(args, 1, delta);
+                offset = log.appendSetKeepTtl(args, 1, value);
+            }
+            log.awaitSync(offset);
+            out.writeBulk(value);
+        };
+    }
+
+    /**
+     * Comando APPEND - añade al valor y responde con la nueva longitud
+     */
+    public RedisCommand createAppendCommand() {
+        return (args, out) -> {
+            long length;
+            long offset = 0;
+            try (Keyspace.KeyLock lock = keyspace.lockKeys(args, 1, 1, 1)) {
+                length = keyspace.append(args, 1, 2);
+                offset = log.append(args);
+            }
+            log.awaitSync(offset);
+            out.writeInteger(length);
+        };
+    }
+
+    /**
+     * Comando STRLEN - longitud del valor (0 si no existe)
+     */
+    public RedisCommand createStrlenCommand() {
+        return (args, out) -> {
+            byte[] entry = keyspace.getString(args, 1);
+            out.writeInteger(entry == null ? 0 : Entries.stringLength(entry));
+        };
+    }
+
+    /**
+     * Comando DEL - borra las claves, con sus shards bloqueados a la vez
+     */
+    public RedisCommand createDelCommand() {
+        return (args, out) -> {
+            int keys = args.count() - 1;
+            long deleted = 0;
+            long offset = 0;
+            try (Keyspace.KeyLock lock = keyspace.lockKeys(args, 1, keys, 1)) {
+                for (int i = 1; i <= keys; i++) {
+                    if (keyspace.delete(args, i)) {
+                        deleted++;
+                    }
+                }
+                if (deleted > 0) {
+                    offset = log.append(args);
+                }
+            }
+            log.awaitSync(offset);
+            out.writeInteger(deleted);
+        };
+    }
+
+    /**
+     * Comando GETDEL - devuelve el valor y borra la clave
+     */
+    public RedisCommand createGetdelCommand() {
+        return (args, out) -> {
+            byte[] entry;
+            long offset = 0;
+            try (Keyspace.KeyLock lock = keyspace.lockKeys(args, 1, 1, 1)) {
+                entry = keyspace.getDel(args, 1);
+                if (entry != null) {
+                    offset = log.append(args);
+                }
+            }
+            log.awaitSync(offset);
+            if (entry == null) {
+                out.writeNullBulk();
+            } else {
+                Entries.writeValue(entry, out);
+            }
+        };
+    }
+
+    /**
+     * Comando MGET - valores de varias claves en una sola pasada, con sus shards
+     * bloqueados para que la respuesta sea de un mismo instante
+     */
+    public RedisCommand createMgetCommand() {
+        return (args, out) -> {
+            int keys = args.count() - 1;
+            out.writeArrayHeader(keys);
+            try (Keyspace.KeyLock lock = keyspace.lockKeys(args, 1, keys, 1)) {
+                for (int i = 1; i <= keys; i++) {
+                    byte[] entry = keyspace.get(args, i);
+                    if (entry == null || Entries.type(entry) != Entries.TYPE_STRING) {
+                        out.writeNullBulk();
+                    } else {
+                        Entries.writeValue(entry, out);
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Comando MSET - escribe varias claves de forma atómica: bloquea sus shards
+     * (en orden) antes de la primera escritura
+     */
+    public RedisCommand createMsetCommand() {
+        return (args, out) -> {
+            if (args.count() % 2 == 0) {
+                throw CommandException.wrongArity("mset");
+            }
+            long offset = 0;
+            try (Keyspace.KeyLock lock = keyspace.lockKeys(args, 1, args.count() - 2, 2)) {
+                for (int i = 1; i < args.count(); i += 2) {
+                    keyspace.set(args, i, i + 1, -1, false);
+                }
+                offset = log.append(args);
+            }
+            log.awaitSync(offset);
+            out.writeOk();
+        };
+    }
     
     /**
      * Comando GET - obtiene el valor de una clave
      */
     public RedisCommand createGetCommand() {
         return (args, out) -> {
-            System.out.println("xxx GET " + args[1]);
-            String value = dataStore.get(args[1]);
-            System.out.println("xxx value " + value);
+            byte[] entry = keyspace.getString(args, 1);
             
-            if (value == null) {
-                out.write("$-1\r\n".getBytes());
+            if (entry == null) {
+                out.writeNullBulk();
             } else {
-                out.write(("$" + value.length() + "\r\n" + value + "\r\n").getBytes());
+                Entries.writeValue(entry, out);
             }
         };
     }
+
+    /**
+     * Comando TYPE - tipo del valor o none
+     */
+    public RedisCommand createTypeCommand() {
+        return (args, out) -> {
+            byte[] entry = keyspace.get(args, 1);
+            out.writeSimpleString(entry == null ? "none" : Entries.typeName(entry));
+        };
+    }
+
+    /**
+     * Comando HSET - HSET key field value [field value ...]; responde con los campos nuevos
+     */
+    public RedisCommand createHsetCommand() {
+        return (args, out) -> {
+            if (args.count() % 2 != 0) {
+                throw CommandException.wrongArity("hset");
+            }
+            long added;
+            long offset = 0;
+            try (Keyspace.KeyLock lock = keyspace.lockKeys(args, 1, 1, 1)) {
+                added = keyspace.hset(args, 1, 2);
+                offset = log.append(args);
+            }
+            log.awaitSync(offset);
+            out.writeInteger(added);
+        };
+    }
+
+    /**
+     * Comando HGET - valor de un campo o null
+     */
+    public RedisCommand createHgetCommand() {
+        return (args, out) -> {
+            keyspace.hget(args, 1, 2, out);
+        };
+    }
+
+    /**
+     * Comando HGETALL - campos y valores alternos
+     */
+    public RedisCommand createHgetallCommand() {
+        return (args, out) -> keyspace.hgetAll(args, 1, out);
+    }
+
+    /**
+     * Comando HDEL - borra campos y responde cuántos existían
+     */
+    public RedisCommand createHdelCommand() {
+        return (args, out) -> {
+            long removed;
+            long offset = 0;
+            try (Keyspace.KeyLock lock = keyspace.lockKeys(args, 1, 1, 1)) {
+                removed = keyspace.hdel(args, 1, 2);
+                if (removed > 0) {
+                    offset = log.append(args);
+                }
+            }
+            log.awaitSync(offset);
+            out.writeInteger(removed);
+        };
+    }
+
+    /**
+     * Comandos LPUSH / RPUSH - añaden por un extremo y responden con la nueva longitud
+     *
+     * @param head true para LPUSH
+     */
+    public RedisCommand createPushCommand(boolean head) {
+        return (args, out) -> {
+            long length;
+            long offset = 0;
+            try (Keyspace.KeyLock lock = keyspace.lockKeys(args, 1, 1, 1)) {
+                length = keyspace.push(args, 1, 2, head);
+                offset = log.append(args);
+            }
+            log.awaitSync(offset);
+            out.writeInteger(length);
+        };
+    }
+
+    /**
+     * Comandos LPOP / RPOP - LPOP key [count]. Sin count responde con un elemento o null;
+     * con count, con un array (null si la clave no existe)
+     *
+     * @param head true para LPOP
+     */
+    public RedisCommand createPopCommand(boolean head) {
+        return (args, out) -> {
+            boolean hasCount = args.count() == 3;
+            long count = 1;
+            if (hasCount) {
+                count = args.parseLong(2);
+                if (count < 0) {
+                    throw new CommandException("value is out of range, must be positive");
+                }
+            }
+            List<byte[]> popped;
+            long offset = 0;
+            try (Keyspace.KeyLock lock = keyspace.lockKeys(args, 1, 1, 1)) {
+                popped = keyspace.pop(args, 1, count, head);
+                if (popped != null && !popped.isEmpty()) {
+                    offset = log.append(args);
+                }
+            }
+            log.awaitSync(offset);
+            if (!hasCount) {
+                if (popped == null || popped.isEmpty()) {
+                    out.writeNullBulk();
+                } else {
+                    out.writeBulk(popped.get(0));
+                }
+            } else if (popped == null) {
+                out.writeRaw(RespWriter.NULL_ARRAY);
+            } else {
+                out.writeArrayHeader(popped.size());
+                for (byte[] element : popped) {
+                    out.writeBulk(element);
+                }
+            }
+        };
+    }
+
+    /**
+     * Comando LLEN
+     */
+    public RedisCommand createLlenCommand() {
+        return (args, out) -> {
+            out.writeInteger(keyspace.llen(args, 1));
+        };
+    }
+
+    /**
+     * Comando LMOVE - LMOVE source destination LEFT|RIGHT LEFT|RIGHT
+     */
+    public RedisCommand createLmoveCommand() {
+        return (args, out) -> {
+            boolean fromHead = parseSide(args, 3);
+            boolean toHead = parseSide(args, 4);
+            byte[] element;
+            long offset = 0;
+            try (Keyspace.KeyLock lock = keyspace.lockKeys(args, 1, 2, 1)) {
+                element = keyspace.move(args, 1, 2, fromHead, toHead);
+                if (element != null) {
+                    offset = log.append(args);
+                }
+            }
+            log.awaitSync(offset);
+            if (element == null) {
+                out.writeNullBulk();
+            } else {
+                out.writeBulk(element);
+            }
+        };
+    }
+
+    /**
+     * LEFT o RIGHT de LMOVE y BLMOVE
+     *
+     * @return true para LEFT (la cabeza de la lista)
+     */
+    static boolean parseSide(CommandArgs args, int i) {
+        if (args.equalsIgnoreCase(i, "LEFT")) {
+            return true;
+        }
+        if (args.equalsIgnoreCase(i, "RIGHT")) {
+            return false;
+        }
+        throw new CommandException("syntax error");
+    }
+
+    /**
+     * Comando LRANGE - LRANGE key start stop
+     */
+    public RedisCommand createLrangeCommand() {
+        return (args, out) -> {
+            keyspace.lrange(args, 1, args.parseLong(2), args.parseLong(3), out);
+        };
+    }
+
+    /**
+     * Comando SADD - añade miembros y responde cuántos eran nuevos
+     */
+    public RedisCommand createSaddCommand() {
+        return (args, out) -> {
+            long added;
+            long offset = 0;
+            try (Keyspace.KeyLock lock = keyspace.lockKeys(args, 1, 1, 1)) {
+                added = keyspace.sadd(args, 1, 2);
+                if (added > 0) {
+                    offset = log.append(args);
+                }
+            }
+            log.awaitSync(offset);
+            out.writeInteger(added);
+        };
+    }
+
+    /**
+     * Comando SMEMBERS
+     */
+    public RedisCommand createSmembersCommand() {
+        return (args, out) -> keyspace.smembers(args, 1, out);
+    }
+
+    /**
+     * Comando SISMEMBER - 1 si el miembro está en el set
+     */
+    public RedisCommand createSismemberCommand() {
+        return (args, out) -> {
+            out.writeInteger(keyspace.sismember(args, 1, 2) ? 1 : 0);
+        };
+    }
+
+    /**
+     * Comando ZADD - ZADD key [NX | XX] [GT | LT] [CH] [INCR] score member [score member ...].
+     * Todos los scores se validan antes de tocar el sorted set
+     */
+    public RedisCommand createZaddCommand() {
+        return (args, out) -> {
+            int flags = 0;
+            boolean incr = false;
+            int first = 2;
+            for (; first < args.count(); first++) {
+                if (args.equalsIgnoreCase(first, "NX")) {
+                    flags |= SortedSets.ADD_NX;
+                } else if (args.equalsIgnoreCase(first, "XX")) {
+                    flags |= SortedSets.ADD_XX;
+                } else if (args.equalsIgnoreCase(first, "GT")) {
+                    flags |= SortedSets.ADD_GT;
+                } else if (args.equalsIgnoreCase(first, "LT")) {
+                    flags |= SortedSets.ADD_LT;
+                } else if (args.equalsIgnoreCase(first, "CH")) {
+                    flags |= SortedSets.ADD_CH;
+                } else if (args.equalsIgnoreCase(first, "INCR")) {
+                    incr = true;
+                } else {
+                    break;
+                }
+            }
+            int pairs = args.count() - first;
+            if (pairs == 0 || pairs % 2 != 0) {
+                throw new CommandException("syntax error");
+            }
+            if ((flags & SortedSets.ADD_NX) != 0 && (flags & SortedSets.ADD_XX) != 0) {
+                throw new CommandException("XX and NX options at the same time are not compatible");
+            }
+            int exclusive = flags & (SortedSets.ADD_NX | SortedSets.ADD_GT | SortedSets.ADD_LT);
+            if (Integer.bitCount(exclusive) > 1) {
+                throw new CommandException("GT, LT, and/or NX options at the same time are not compatible");
+            }
+            if (incr && pairs != 2) {
+                throw new CommandException("INCR option supports a single increment-element pair");
+            }
+            double[] scores = new double[pairs / 2];
+            for (int i = 0; i < scores.length; i++) {
+                scores[i] = SortedSets.parseScore(args.toBytes(first + i * 2));
+            }
+
+            SortedSets.AddResult result;
+            long offset = 0;
+            try (Keyspace.KeyLock lock = keyspace.lockKeys(args, 1, 1, 1)) {
+                if (incr) {
+                    result = keyspace.zincrBy(args, 1, first + 1, scores[0], flags);
+                } else {
+                    result = keyspace.zadd(args, 1, first, scores, flags);
+                }
+                if (result.isModified()) {
+                    offset = log.append(args);
+                }
+            }
+            log.awaitSync(offset);
+            if (!incr) {
+                out.writeInteger(result.reply(flags));
+            } else if (Double.isNaN(result.score)) {
+                out.writeNullBulk();
+            } else {
+                SortedSets.writeScore(result.score, out);
+            }
+        };
+    }
+
+    /**
+     * Comando ZINCRBY - ZINCRBY key increment member; responde con el nuevo score
+     */
+    public RedisCommand createZincrbyCommand() {
+        return (args, out) -> {
+            double increment = SortedSets.parseScore(args.toBytes(2));
+            SortedSets.AddResult result;
+            long offset = 0;
+            try (Keyspace.KeyLock lock = keyspace.lockKeys(args, 1, 1, 1)) {
+                result = keyspace.zincrBy(args, 1, 3, increment, 0);
+                if (result.isModified()) {
+                    offset = log.append(args);
+                }
+            }
+            log.awaitSync(offset);
+            SortedSets.writeScore(result.score, out);
+        };
+    }
+
+    /**
+     * Comando ZREM - borra miembros y responde cuántos existían
+     */
+    public RedisCommand createZremCommand() {
+        return (args, out) -> {
+            long removed;
+            long offset = 0;
+            try (Keyspace.KeyLock lock = keyspace.lockKeys(args, 1, 1, 1)) {
+                removed = keyspace.zrem(args, 1, 2);
+                if (removed > 0) {
+                    offset = log.append(args);
+                }
+            }
+            log.awaitSync(offset);
+            out.writeInteger(removed);
+        };
+    }
+
+    /**
+     * Comando ZSCORE - score de un miembro o null
+     */
+    public RedisCommand createZscoreCommand() {
+        return (args, out) -> {
+            double score = keyspace.zscore(args, 1, 2);
+            if (Double.isNaN(score)) {
+                out.writeNullBulk();
+            } else {
+                SortedSets.writeScore(score, out);
+            }
+        };
+    }
+
+    /**
+     * Comando ZCARD
+     */
+    public RedisCommand createZcardCommand() {
+        return (args, out) -> out.writeInteger(keyspace.zcard(args, 1));
+    }
+
+    /**
+     * Comandos ZRANK / ZREVRANK - posición del miembro o null
+     */
+    public RedisCommand createZrankCommand(boolean reverse) {
+        return (args, out) -> {
+            long rank = keyspace.zrank(args, 1, 2, reverse);
+            if (rank < 0) {
+                out.writeNullBulk();
+            } else {
+                out.writeInteger(rank);
+            }
+        };
+    }
+
+    /**
+     * Comandos ZRANGE / ZREVRANGE por posición - ZRANGE key start stop [REV] [WITHSCORES]
+     *
+     * @param reverse true para ZREVRANGE
+     */
+    public RedisCommand createZrangeCommand(boolean reverse) {
+        return (args, out) -> {
+            boolean rev = reverse;
+            boolean withScores = false;
+            for (int i = 4; i < args.count(); i++) {
+                if (args.equalsIgnoreCase(i, "WITHSCORES")) {
+                    withScores = true;
+                } else if (!reverse && args.equalsIgnoreCase(i, "REV")) {
+                    rev = true;
+                } else {
+                    throw new CommandException("syntax error");
+                }
+            }
+            keyspace.zrange(args, 1, args.parseLong(2), args.parseLong(3), rev, withScores, out);
+        };
+    }
+
+    /**
+     * Comando ZRANGEBYSCORE - ZRANGEBYSCORE key min max [WITHSCORES] [LIMIT offset count];
+     * los extremos admiten ( para excluirlos y -inf / +inf
+     */
+    public RedisCommand createZrangebyscoreCommand() {
+        return (args, out) -> {
+            boolean[] exclusive = new boolean[1];
+            double min = SortedSets.parseBound(args.toBytes(2), exclusive);
+            boolean minExclusive = exclusive[0];
+            double max = SortedSets.parseBound(args.toBytes(3), exclusive);
+            boolean maxExclusive = exclusive[0];
+            boolean withScores = false;
+            long limitOffset = 0;
+            long limitCount = -1;
+            for (int i = 4; i < args.count(); i++) {
+                if (args.equalsIgnoreCase(i, "WITHSCORES")) {
+                    withScores = true;
+                } else if (args.equalsIgnoreCase(i, "LIMIT") && i + 2 < args.count()) {
+                    limitOffset = args.parseLong(i + 1);
+                    limitCount = args.parseLong(i + 2);
+                    i += 2;
+                } else {
+                    throw new CommandException("syntax error");
+                }
+            }
+            keyspace.zrangeByScore(args, 1, min, minExclusive, max, maxExclusive, limitOffset, limitCount, withScores, out);
+        };
+    }
     
     /**
-     * Comando CONFIG - maneja la configuración
+     * Comando CONFIG - maneja la configuración. Con SET solo se pueden cambiar los
+     * parámetros de maxmemory y loglevel
      */
     public RedisCommand createConfigCommand() {
         return (args, out) -> {
-            if (args[1].equals("GET")) {
-                if (args[2].equals("dir")) {
-                    out.write(("*2\r\n$3\r\ndir\r\n$" + dir.length() + "\r\n" + dir + "\r\n").getBytes());
-                } else if (args[2].equals("dbfilename")) {
-                    out.write(("*2\r\n$10\r\ndbfilename\r\n$" + dbfilename.length() + "\r\n" + dbfilename + "\r\n").getBytes());
+            Eviction eviction = keyspace.getEviction();
+            if (args.equalsIgnoreCase(1, "GET")) {
+                CommandTable.checkArity(args, 3, 3, "config|get");
+                if (args.equalsIgnoreCase(2, "dir")) {
+                    writeConfigValue(out, "dir", dir);
+                } else if (args.equalsIgnoreCase(2, "dbfilename")) {
+                    writeConfigValue(out, "dbfilename", dbfilename);
+                } else if (args.equalsIgnoreCase(2, "maxmemory")) {
+                    writeConfigValue(out, "maxmemory", String.valueOf(eviction.getMaxmemory()));
+                } else if (args.equalsIgnoreCase(2, "maxmemory-policy")) {
+                    writeConfigValue(out, "maxmemory-policy", eviction.getPolicy().getName());
+                } else if (args.equalsIgnoreCase(2, "maxmemory-samples")) {
+                    writeConfigValue(out, "maxmemory-samples", String.valueOf(eviction.getSamples()));
+                } else if (args.equalsIgnoreCase(2, "loglevel")) {
+                    writeConfigValue(out, "loglevel", Log.getLevel().getName());
+                } else {
+                    out.writeRaw(RespWriter.EMPTY_ARRAY);
+                }
+            } else if (args.equalsIgnoreCase(1, "SET")) {
+                CommandTable.checkArity(args, 4, 4, "config|set");
+                String name = args.toString(2).toLowerCase();
+                String value = args.toString(3);
+                try {
+                    switch (name) {
+                        case "maxmemory":
+                            eviction.setMaxmemory(CommandLineArgs.parseMemory(value));
+                            break;
+                        case "maxmemory-policy":
+                            eviction.setPolicy(EvictionPolicy.fromName(value));
+                            break;
+                        case "maxmemory-samples":
+                            eviction.setSamples(Integer.parseInt(value));
+                            break;
+                        case "loglevel":
+                            Log.setLevel(LogLevel.fromName(value));
+                            break;
+                        default:
+                            out.writeError(CommandException.ERR,
+                                    "Unknown option or number of arguments for CONFIG SET - '" + name + "'");
+                            return;
+                    }
+                } catch (IllegalArgumentException e) {
+                    throw new CommandException("CONFIG SET failed (possibly related to argument '"
+                            + name + "') - invalid value '" + value + "'");
                 }
+                out.writeOk();
+            } else {
+                throw new CommandException("unknown subcommand '" + args.toString(1) + "' for 'config'");
             }
         };
     }
@@ -93,53 +918,341 @@ public class RedisCommands {
      * Comando KEYS - lista las claves que coinciden con un patrón
      */
     public RedisCommand createKeysCommand() {
-        return (_args, out) -> {
+        return (args, out) -> {
+            GlobPattern pattern = GlobPattern.compile(args.toBytes(1));
+            List<byte[]> matches;
+            if (pattern.exactKey() != null) {
+                // sin comodines es una búsqueda directa
+                matches = new ArrayList<>();
+                byte[] key = pattern.exactKey();
+                if (keyspace.get(key, 0, key.length) != null) {
+                    matches.add(key);
+                }
+            } else {
+                matches = keyspace.keys(pattern);
+            }
+            out.writeArrayHeader(matches.size());
+            for (byte[] key : matches) {
+                out.writeBulk(key);
+            }
+        };
+    }
+
+    /**
+     * Comando SCAN - recorre el almacén por tramos
+     * SCAN cursor [MATCH pattern] [COUNT count]
+     *
+     * El cursor es la posición en la tabla (ver KeyTable.scan), así que el servidor no
+     * guarda estado entre llamadas. COUNT es orientativo, como en Redis (ver Keyspace.scan)
+     */
+    public RedisCommand createScanCommand() {
+        return (args, out) -> {
+            long cursor = parseCursor(args);
+            GlobPattern pattern = null;
+            long count = DEFAULT_SCAN_COUNT;
+            for (int i = 2; i < args.count(); i += 2) {
+                if (i + 1 >= args.count()) {
+                    throw new CommandException("syntax error");
+                }
+                if (args.equalsIgnoreCase(i, "MATCH")) {
+                    pattern = GlobPattern.compile(args.toBytes(i + 1));
+                } else if (args.equalsIgnoreCase(i, "COUNT")) {
+                    count = args.parseLong(i + 1);
+                    if (count < 1) {
+                        throw new CommandException("syntax error");
+                    }
+                } else {
+                    throw new CommandException("syntax error");
+                }
+            }
+
+            List<byte[]> matches = new ArrayList<>();
+            long next = keyspace.scan(cursor, (int) Math.min(count, Integer.MAX_VALUE), pattern, matches);
+
+            out.writeArrayHeader(2);
+            out.writeBulk(next);
+            out.writeArrayHeader(matches.size());
+            for (byte[] key : matches) {
+                out.writeBulk(key);
+            }
+        };
+    }
+
+    private static long parseCursor(CommandArgs args) {
+        try {
+            long cursor = args.parseLong(1);
+            if (cursor < 0) {
+                throw new CommandException("invalid cursor");
+            }
+            return cursor;
+        } catch (CommandException e) {
+            throw new CommandException("invalid cursor");
+        }
+    }
+    
+    private static void writeConfigValue(RespWriter out, String name, String value) {
+        out.writeArrayHeader(2);
+        out.writeBulk(name);
+        if (value == null) {
+            out.writeNullBulk();
+        } else {
+            out.writeBulk(value);
+        }
+    }
+    
+    /**
+     * Comandos TTL / PTTL - tiempo de vida restante en segundos o milisegundos
+     * (-2 si la clave no existe, -1 si no tiene TTL)
+     */
+    public RedisCommand createTtlCommand(TimeUnit unit) {
+        return (args, out) -> {
+            long deadline = keyspace.getExpire(args, 1);
+            if (deadline < 0) {
+                out.writeInteger(deadline);
+                return;
+            }
+            long remaining = Math.max(0, deadline - System.currentTimeMillis());
+            out.writeInteger(unit == TimeUnit.SECONDS ? (remaining + 500) / 1000 : remaining);
+        };
+    }
+    
+    /**
+     * Comando PERSIST - quita el TTL de una clave
+     */
+    public RedisCommand createPersistCommand() {
+        return (args, out) -> {
+            boolean persisted;
+            long offset = 0;
+            try (Keyspace.KeyLock lock = keyspace.lockKeys(args, 1, 1, 1)) {
+                persisted = keyspace.persist(args, 1);
+                if (persisted) {
+                    offset = log.append(args);
+                }
+            }
+            log.awaitSync(offset);
+            out.writeInteger(persisted ? 1 : 0);
+        };
+    }
+    
+    /**
+     * Comandos EXPIRE / PEXPIRE / EXPIREAT / PEXPIREAT - fijan el TTL de una clave existente.
+     * Un plazo ya vencido borra la clave
+     */
+    public RedisCommand createExpireCommand(TimeUnit unit, boolean absolute) {
+        return (args, out) -> {
+            long deadline = toDeadline(args.parseLong(2), unit, absolute, args);
+            boolean existed;
+            long offset = 0;
+            try (Keyspace.KeyLock lock = keyspace.lockKeys(args, 1, 1, 1)) {
+                existed = keyspace.setExpire(args, 1, deadline);
+                if (existed) {
+                    offset = log.appendPexpireat(args, 1, deadline);
+                }
+            }
+            log.awaitSync(offset);
+            out.writeInteger(existed ? 1 : 0);
+        };
+    }
+    
+    /**
+     * Comando SAVE - vuelca el almacén a dir/dbfilename en el hilo del cliente
+     */
+    public RedisCommand createSaveCommand() {
+        return (args, out) -> {
             try {
-                Map<String, String> rdbData = RDBParser.parseRDB(dir, dbfilename);
-                dataStore.putAll(rdbData);
-                
-                StringBuilder sb = new StringBuilder();
-                sb.append("*").append(rdbData.size()).append("\r\n");
-                
-                for (String key : rdbData.keySet()) {
-                    sb.append("$").append(key.length()).append("\r\n").append(key).append("\r\n");
-                }
-                
-                out.write(sb.toString().getBytes());
+                save(createSnapshot());
+                out.writeOk();
             } catch (IOException e) {
-                System.err.println("Error leyendo archivo RDB: " + dir + "/" + dbfilename);
-                out.write("*0\r\n".getBytes());
+                Log.warning("Error en SAVE: " + e.getMessage());
+                out.writeError(CommandException.ERR, "error saving the RDB: " + e.getMessage());
             }
         };
     }
-    
+
     /**
-     * Maneja la expiración de claves
+     * Comando BGSAVE - vuelca el almacén en un hilo aparte sin bloquear a los clientes
      */
-    private void handleExpiration(String[] args) {
-        System.out.println("xxx SET con EX");
+    public RedisCommand createBgsaveCommand() {
+        return (args, out) -> {
+            Snapshot started = createSnapshot();
+            Thread thread = new Thread(() -> {
+                try {
+                    save(started);
+                } catch (IOException e) {
+                    Log.warning("Error en BGSAVE: " + e.getMessage());
+                }
+            }, "bgsave");
+            thread.setDaemon(true);
+            thread.start();
+            out.writeSimpleString("Background saving started");
+        };
+    }
 
-        // junta en un string todos los elementos del array args
-        String argsString = String.join(" ", args);
-        
-        if (!args[3].equalsIgnoreCase("px")) {
-            throw new IllegalArgumentException("Argumento inválido: " + args[3] + " - " + argsString);
+    /**
+     * Comando LASTSAVE - instante (s) del último volcado correcto
+     */
+    public RedisCommand createLastsaveCommand() {
+        return (args, out) -> out.writeInteger(lastSave);
+    }
+
+    /**
+     * Comando BGREWRITEAOF - compacta el AOF a partir del almacén en un hilo aparte
+     */
+    public RedisCommand createBgrewriteaofCommand() {
+        return (args, out) -> {
+            AppendOnlyFile current = log.getAppendOnlyFile();
+            if (current == null) {
+                throw new CommandException("append only file is disabled");
+            }
+            Snapshot started = createRewriteSnapshot(current);
+            Thread thread = new Thread(() -> {
+                try {
+                    rewrite(current, started);
+                } catch (IOException e) {
+                    Log.warning("Error en BGREWRITEAOF: " + e.getMessage());
+                }
+            }, "bgrewriteaof");
+            thread.setDaemon(true);
+            thread.start();
+            out.writeSimpleString("Background append only file rewriting started");
+        };
+    }
+
+    /**
+     * Reescribe el AOF en el hilo que llama (al arrancar sin AOF previo)
+     */
+    public void rewriteAppendOnlyFile() throws IOException {
+        AppendOnlyFile current = log.getAppendOnlyFile();
+        rewrite(current, createRewriteSnapshot(current));
+    }
+
+    /**
+     * Activa una foto; solo puede haber una en curso
+     */
+    private Snapshot createSnapshot() {
+        snapshotLock.lock();
+        try {
+            if (snapshot != null) {
+                throw new CommandException("Background save already in progress");
+            }
+            snapshot = new Snapshot(keyspace);
+            return snapshot;
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    /**
+     * Foto para la sincronización completa de una réplica: se activa con todo el almacén
+     * bloqueado, en el mismo instante en que atStart lee la posición del flujo de replicación
+     *
+     * @return la foto o null si ya hay otra en curso
+     */
+    public Snapshot trySnapshot(Runnable atStart) {
+        snapshotLock.lock();
+        try {
+            if (snapshot != null) {
+                return null;
+            }
+            try (Keyspace.KeyLock lock = keyspace.lockAll()) {
+                snapshot = new Snapshot(keyspace);
+                atStart.run();
+            }
+            return snapshot;
+        } finally {
+            snapshotLock.unlock();
         }
-        
-        long expirationTime = Long.parseLong(args[4]);
-        String key = args[1];
-        
-        // Programa la eliminación de la clave usando ScheduledExecutorService
-        scheduler.schedule(() -> {
-            dataStore.remove(key);
-            System.out.println("expire key " + key);
-        }, expirationTime, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Deja sitio para otra foto cuando termina la de una sincronización
+     */
+    public void releaseSnapshot() {
+        snapshot = null;
+    }
+
+    /**
+     * Foto para reescribir el AOF: empieza a la vez que el AOF guarda aparte lo que
+     * llega, con todo el almacén bloqueado, para que entre los dos no falte ni sobre nada
+     */
+    private Snapshot createRewriteSnapshot(AppendOnlyFile aof) {
+        snapshotLock.lock();
+        try {
+            if (snapshot != null) {
+                throw new CommandException("Background append only file rewriting already in progress");
+            }
+            try (Keyspace.KeyLock lock = keyspace.lockAll()) {
+                snapshot = new Snapshot(keyspace);
+                aof.startRewrite();
+            }
+            return snapshot;
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    private void rewrite(AppendOnlyFile aof, Snapshot current) throws IOException {
+        try {
+            long start = System.nanoTime();
+            long keys = aof.rewrite(current);
+            Log.notice("AOF reescrito en " + aof.getPath() + ": " + keys + " claves en "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } finally {
+            snapshot = null;
+        }
+    }
+
+    private void save(Snapshot current) throws IOException {
+        try {
+            Path target = getRdbPath();
+            Snapshot.Result result = current.writeTo(target);
+            lastSave = System.currentTimeMillis() / 1000;
+            Log.notice("RDB guardado en " + target + ": " + result.keys + " claves, "
+                    + result.bytes + " bytes en " + result.millis + " ms");
+        } finally {
+            snapshot = null;
+        }
+    }
+
+    private static boolean isExpireOption(CommandArgs args, int i) {
+        return args.equalsIgnoreCase(i, "EX") || args.equalsIgnoreCase(i, "PX")
+                || args.equalsIgnoreCase(i, "EXAT") || args.equalsIgnoreCase(i, "PXAT");
     }
     
     /**
-     * Cierra el scheduler cuando ya no se necesite
+     * Convierte una opción EX/PX/EXAT/PXAT de SET y su valor en un plazo absoluto en ms
+     */
+    private static long parseExpireOption(CommandArgs args, int i) {
+        long amount = args.parseLong(i + 1);
+        if (amount <= 0) {
+            throw new CommandException("invalid expire time in 'set' command");
+        }
+        boolean seconds = args.equalsIgnoreCase(i, "EX") || args.equalsIgnoreCase(i, "EXAT");
+        boolean absolute = args.equalsIgnoreCase(i, "EXAT") || args.equalsIgnoreCase(i, "PXAT");
+        return toDeadline(amount, seconds ? TimeUnit.SECONDS : TimeUnit.MILLISECONDS, absolute, args);
+    }
+    
+    private static long toDeadline(long amount, TimeUnit unit, boolean absolute, CommandArgs args) {
+        try {
+            long millis = unit == TimeUnit.SECONDS ? Math.multiplyExact(amount, 1000L) : amount;
+            return absolute ? millis : Math.addExact(System.currentTimeMillis(), millis);
+        } catch (ArithmeticException e) {
+            throw new CommandException("invalid expire time in '" + args.toString(0).toLowerCase() + "' command");
+        }
+    }
+    
+    /**
+     * Detiene la expiración activa y vacía el AOF cuando ya no se necesite
      */
     public void shutdown() {
-        scheduler.shutdown();
+        keyspace.shutdown();
+        AppendOnlyFile current = log.getAppendOnlyFile();
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                Log.warning("Error cerrando el AOF: " + e.getMessage());
+            }
+        }
     }
 }
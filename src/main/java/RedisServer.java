@@ -1,12 +1,26 @@
-import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Servidor Redis que maneja las conexiones de clientes y procesa comandos
@@ -14,69 +28,409 @@ import java.util.concurrent.atomic.AtomicBoolean;
 public class RedisServer {
     
     private static final int DEFAULT_PORT = 6379;
+    // cola de conexiones pendientes de accept, como tcp-backlog de Redis
+    private static final int ACCEPT_BACKLOG = 511;
     private final AtomicBoolean running = new AtomicBoolean(true);
     private final RedisCommands redisCommands;
-    private final Map<String, RedisCommand> commandMap;
+    private final Replication replication;
+    private final PubSub pubsub;
+    private final Transaction transaction;
+    private final BlockingLists blockingLists;
+    private final Cluster cluster;
+    private final Migration migration;
+    private final Metrics metrics;
+    private final int metricsPort;
+    private final Map<String, CommandSpec> commandMap;
+    private final CommandTable<CommandSpec> commandTable;
     private final int port;
+    private final IoMode ioMode;
+    private final int ioThreads;
+    private final int poolSize;
+    private final int loadThreads;
+    // métricas de arranque
+    private final long createdAtNanos = System.nanoTime();
+    private volatile RDBParser.LoadStats loadStats;
+    private volatile long startupMillis = -1;
 
 
-    public RedisServer(String dir, String dbfilename, int port) {
-        this.redisCommands = new RedisCommands(dir, dbfilename);
+    /**
+     * Comando de la tabla del servidor: su implementación y cuántos argumentos admite,
+     * contando el nombre, que se comprueba antes de ejecutarlo (o de encolarlo en MULTI)
+     */
+    static final class CommandSpec {
+        final String name;
+        final int minArgs;
+        final int maxArgs;
+        final ClientCommand command;
+
+        CommandSpec(String name, int minArgs, int maxArgs, ClientCommand command) {
+            // en minúsculas, como lo nombra Redis en sus errores
+            this.name = name.toLowerCase();
+            this.minArgs = minArgs;
+            this.maxArgs = maxArgs;
+            this.command = command;
+        }
+    }
+
+    public RedisServer(CommandLineArgs args) {
+        this.redisCommands = new RedisCommands(args.getDir(), args.getDbfilename(), args.getShards());
+        this.loadThreads = args.getLoadThreads();
+        this.replication = new Replication(redisCommands, args.getPort(), args.getReplBacklogSize(), loadThreads);
+        this.pubsub = new PubSub(args.getPubsubHardLimit(), args.getPubsubSoftLimit(), args.getPubsubSoftSeconds());
+        this.blockingLists = new BlockingLists(redisCommands.getKeyspace(), redisCommands.getLog());
+        this.transaction = new Transaction(redisCommands.getKeyspace(), redisCommands.getLog(), blockingLists);
+        this.cluster = new Cluster(redisCommands.getKeyspace(), args.isClusterEnabled(),
+                args.getClusterAnnounceIp(), args.getPort(), args.getClusterNodes(),
+                Paths.get(args.getDir() != null ? args.getDir() : ".", args.getClusterConfigFile()));
+        this.migration = new Migration(redisCommands.getKeyspace(), redisCommands.getLog(), cluster.isEnabled());
+        this.metrics = new Metrics(redisCommands, replication, pubsub, blockingLists, args.getPort());
+        this.metricsPort = args.getMetricsPort();
         this.commandMap = createCommandMap();
+        this.commandTable = new CommandTable<>(commandMap);
         
-        // Cargar datos del archivo RDB si existe
-        loadInitialData(dir, dbfilename);
-        this.port = port;
+        // Cargar datos del AOF o del archivo RDB si existe
+        redisCommands.setEvictionPolicy(args.getMaxmemoryPolicy(), args.getMaxmemorySamples());
+        loadInitialData(args);
+        redisCommands.setMaxmemory(args.getMaxmemory());
+        redisCommands.start();
+        cluster.start();
+        replication.setDispatcher(this::executeCommand);
+        if (args.getReplicaofHost() != null) {
+            replication.replicaOf(args.getReplicaofHost(), args.getReplicaofPort());
+        }
+        this.port = args.getPort();
+        this.ioMode = args.getIoMode();
+        this.ioThreads = args.getIoThreads();
+        this.poolSize = args.getPoolSize();
     }
     
     /**
-     * Crea el mapa de comandos disponibles
+     * Crea la tabla de comandos disponibles con cuántos argumentos admite cada uno,
+     * contando el nombre (ver CommandSpec). Los que pueden hacer crecer la memoria van
+     * envueltos en denyOom para que respeten maxmemory, y todos los que escriben en write
+     * para que una réplica los rechace. Por fuera, todos se miden (ver Metrics). Los que
+     * no usan la conexión se adaptan con ClientCommand.of
      */
-    private Map<String, RedisCommand> createCommandMap() {
-        Map<String, RedisCommand> commands = new HashMap<>();
-        commands.put("ECHO", RedisCommands.ECHO);
-        commands.put("PING", RedisCommands.PING);
-        commands.put("SET", redisCommands.createSetCommand());
-        commands.put("GET", redisCommands.createGetCommand());
-        commands.put("CONFIG", redisCommands.createConfigCommand());
-        commands.put("KEYS", redisCommands.createKeysCommand());
+    private Map<String, CommandSpec> createCommandMap() {
+        Map<String, CommandSpec> commands = new HashMap<>();
+        register(commands, "ECHO", 2, 2, ClientCommand.of(RedisCommands.ECHO));
+        register(commands, "PING", 1, 2, ClientCommand.of(RedisCommands.PING));
+        register(commands, "SET", 3, CommandTable.VARIADIC, write(redisCommands.denyOom(
+                ClientCommand.of(redisCommands.createSetCommand()))));
+        register(commands, "GET", 2, 2, ClientCommand.of(redisCommands.createGetCommand()));
+        register(commands, "SETNX", 3, 3, write(redisCommands.denyOom(
+                ClientCommand.of(redisCommands.createSetnxCommand()))));
+        register(commands, "GETDEL", 2, 2, write(ClientCommand.of(redisCommands.createGetdelCommand())));
+        register(commands, "DEL", 2, CommandTable.VARIADIC, write(
+                ClientCommand.of(redisCommands.createDelCommand())));
+        register(commands, "MGET", 2, CommandTable.VARIADIC,
+                ClientCommand.of(redisCommands.createMgetCommand()));
+        register(commands, "MSET", 3, CommandTable.VARIADIC, write(redisCommands.denyOom(
+                ClientCommand.of(redisCommands.createMsetCommand()))));
+        register(commands, "INCR", 2, 2, write(redisCommands.denyOom(
+                ClientCommand.of(redisCommands.createIncrCommand(1, false)))));
+        register(commands, "DECR", 2, 2, write(redisCommands.denyOom(
+                ClientCommand.of(redisCommands.createIncrCommand(-1, false)))));
+        register(commands, "INCRBY", 3, 3, write(redisCommands.denyOom(
+                ClientCommand.of(redisCommands.createIncrCommand(1, true)))));
+        register(commands, "DECRBY", 3, 3, write(redisCommands.denyOom(
+                ClientCommand.of(redisCommands.createIncrCommand(-1, true)))));
+        register(commands, "INCRBYFLOAT", 3, 3, write(redisCommands.denyOom(
+                ClientCommand.of(redisCommands.createIncrbyfloatCommand()))));
+        register(commands, "APPEND", 3, 3, write(redisCommands.denyOom(
+                ClientCommand.of(redisCommands.createAppendCommand()))));
+        register(commands, "STRLEN", 2, 2, ClientCommand.of(redisCommands.createStrlenCommand()));
+        register(commands, "TYPE", 2, 2, ClientCommand.of(redisCommands.createTypeCommand()));
+        register(commands, "HSET", 4, CommandTable.VARIADIC, write(redisCommands.denyOom(
+                ClientCommand.of(redisCommands.createHsetCommand()))));
+        register(commands, "HGET", 3, 3, ClientCommand.of(redisCommands.createHgetCommand()));
+        register(commands, "HGETALL", 2, 2, ClientCommand.of(redisCommands.createHgetallCommand()));
+        register(commands, "HDEL", 3, CommandTable.VARIADIC, write(
+                ClientCommand.of(redisCommands.createHdelCommand())));
+        register(commands, "LPUSH", 3, CommandTable.VARIADIC, write(redisCommands.denyOom(
+                blockingLists.servingWaiters(ClientCommand.of(redisCommands.createPushCommand(true)), 1))));
+        register(commands, "RPUSH", 3, CommandTable.VARIADIC, write(redisCommands.denyOom(
+                blockingLists.servingWaiters(ClientCommand.of(redisCommands.createPushCommand(false)), 1))));
+        register(commands, "LPOP", 2, 3, write(ClientCommand.of(redisCommands.createPopCommand(true))));
+        register(commands, "RPOP", 2, 3, write(ClientCommand.of(redisCommands.createPopCommand(false))));
+        register(commands, "LMOVE", 5, 5, write(redisCommands.denyOom(
+                blockingLists.servingWaiters(ClientCommand.of(redisCommands.createLmoveCommand()), 2))));
+        register(commands, "BLPOP", 3, CommandTable.VARIADIC, write(
+                blockingLists.createBlockingPopCommand(true)));
+        register(commands, "BRPOP", 3, CommandTable.VARIADIC, write(
+                blockingLists.createBlockingPopCommand(false)));
+        register(commands, "BLMOVE", 6, 6, write(redisCommands.denyOom(blockingLists.createBlmoveCommand())));
+        register(commands, "LLEN", 2, 2, ClientCommand.of(redisCommands.createLlenCommand()));
+        register(commands, "LRANGE", 4, 4, ClientCommand.of(redisCommands.createLrangeCommand()));
+        register(commands, "SADD", 3, CommandTable.VARIADIC, write(redisCommands.denyOom(
+                ClientCommand.of(redisCommands.createSaddCommand()))));
+        register(commands, "SMEMBERS", 2, 2, ClientCommand.of(redisCommands.createSmembersCommand()));
+        register(commands, "SISMEMBER", 3, 3, ClientCommand.of(redisCommands.createSismemberCommand()));
+        register(commands, "ZADD", 4, CommandTable.VARIADIC, write(redisCommands.denyOom(
+                ClientCommand.of(redisCommands.createZaddCommand()))));
+        register(commands, "ZINCRBY", 4, 4, write(redisCommands.denyOom(
+                ClientCommand.of(redisCommands.createZincrbyCommand()))));
+        register(commands, "ZREM", 3, CommandTable.VARIADIC, write(
+                ClientCommand.of(redisCommands.createZremCommand())));
+        register(commands, "ZSCORE", 3, 3, ClientCommand.of(redisCommands.createZscoreCommand()));
+        register(commands, "ZCARD", 2, 2, ClientCommand.of(redisCommands.createZcardCommand()));
+        register(commands, "ZRANK", 3, 3, ClientCommand.of(redisCommands.createZrankCommand(false)));
+        register(commands, "ZREVRANK", 3, 3, ClientCommand.of(redisCommands.createZrankCommand(true)));
+        register(commands, "ZRANGE", 4, CommandTable.VARIADIC,
+                ClientCommand.of(redisCommands.createZrangeCommand(false)));
+        register(commands, "ZREVRANGE", 4, CommandTable.VARIADIC,
+                ClientCommand.of(redisCommands.createZrangeCommand(true)));
+        register(commands, "ZRANGEBYSCORE", 4, CommandTable.VARIADIC,
+                ClientCommand.of(redisCommands.createZrangebyscoreCommand()));
+        register(commands, "TTL", 2, 2, ClientCommand.of(redisCommands.createTtlCommand(TimeUnit.SECONDS)));
+        register(commands, "PTTL", 2, 2,
+                ClientCommand.of(redisCommands.createTtlCommand(TimeUnit.MILLISECONDS)));
+        register(commands, "PERSIST", 2, 2, write(ClientCommand.of(redisCommands.createPersistCommand())));
+        register(commands, "EXPIRE", 3, 3, write(
+                ClientCommand.of(redisCommands.createExpireCommand(TimeUnit.SECONDS, false))));
+        register(commands, "PEXPIRE", 3, 3, write(
+                ClientCommand.of(redisCommands.createExpireCommand(TimeUnit.MILLISECONDS, false))));
+        register(commands, "EXPIREAT", 3, 3, write(
+                ClientCommand.of(redisCommands.createExpireCommand(TimeUnit.SECONDS, true))));
+        register(commands, "PEXPIREAT", 3, 3, write(
+                ClientCommand.of(redisCommands.createExpireCommand(TimeUnit.MILLISECONDS, true))));
+        register(commands, "CONFIG", 2, CommandTable.VARIADIC, metrics.handleResetStat(
+                ClientCommand.of(redisCommands.createConfigCommand())));
+        register(commands, "KEYS", 2, 2, ClientCommand.of(redisCommands.createKeysCommand()));
+        register(commands, "SCAN", 2, CommandTable.VARIADIC,
+                ClientCommand.of(redisCommands.createScanCommand()));
+        register(commands, "SAVE", 1, 1, ClientCommand.of(redisCommands.createSaveCommand()));
+        register(commands, "BGSAVE", 1, 2, ClientCommand.of(redisCommands.createBgsaveCommand()));
+        register(commands, "LASTSAVE", 1, 1, ClientCommand.of(redisCommands.createLastsaveCommand()));
+        register(commands, "BGREWRITEAOF", 1, 1, ClientCommand.of(redisCommands.createBgrewriteaofCommand()));
+        register(commands, "INFO", 1, CommandTable.VARIADIC, ClientCommand.of(metrics.createInfoCommand()));
+        register(commands, "LATENCY", 2, CommandTable.VARIADIC,
+                ClientCommand.of(metrics.createLatencyCommand()));
+        register(commands, "PSYNC", 3, 3, replication.createPsyncCommand());
+        register(commands, "REPLCONF", 1, CommandTable.VARIADIC, replication.createReplconfCommand());
+        ClientCommand replicaof = replication.createReplicaofCommand();
+        register(commands, "REPLICAOF", 3, 3, replicaof);
+        register(commands, "SLAVEOF", 3, 3, replicaof);
+        register(commands, "SUBSCRIBE", 2, CommandTable.VARIADIC, pubsub.createSubscribeCommand());
+        register(commands, "UNSUBSCRIBE", 1, CommandTable.VARIADIC, pubsub.createUnsubscribeCommand());
+        register(commands, "PSUBSCRIBE", 2, CommandTable.VARIADIC, pubsub.createPsubscribeCommand());
+        register(commands, "PUNSUBSCRIBE", 1, CommandTable.VARIADIC, pubsub.createPunsubscribeCommand());
+        register(commands, "PUBLISH", 3, 3, ClientCommand.of(pubsub.createPublishCommand()));
+        register(commands, "MULTI", 1, 1, transaction.createMultiCommand());
+        register(commands, "EXEC", 1, 1, transaction.createExecCommand());
+        register(commands, "DISCARD", 1, 1, transaction.createDiscardCommand());
+        register(commands, "WATCH", 2, CommandTable.VARIADIC, transaction.createWatchCommand());
+        register(commands, "UNWATCH", 1, 1, transaction.createUnwatchCommand());
+        register(commands, "CLUSTER", 2, CommandTable.VARIADIC,
+                ClientCommand.of(cluster.createClusterCommand()));
+        register(commands, "ASKING", 1, 1, cluster.createAskingCommand());
+        register(commands, "MIGRATE", 6, CommandTable.VARIADIC, write(
+                ClientCommand.of(migration.createMigrateCommand())));
         return commands;
     }
+
+    private void register(Map<String, CommandSpec> commands, String name, int minArgs, int maxArgs,
+                          ClientCommand command) {
+        commands.put(name, new CommandSpec(name, minArgs, maxArgs, metrics.timed(name, command)));
+    }
+
+    private ClientCommand write(ClientCommand command) {
+        return replication.rejectOnReplica(command);
+    }
+    
+    /**
+     * Carga los datos iniciales. Con appendonly el AOF manda, como en Redis: si existe se
+     * reejecuta y el RDB se ignora; si no, se carga el RDB y se escribe un AOF con él.
+     * Después se empiezan a registrar las escrituras
+     */
+    private void loadInitialData(CommandLineArgs args) {
+        if (!args.isAppendOnly()) {
+            loadRdb();
+            return;
+        }
+        Path aofPath = Paths.get(args.getDir() != null ? args.getDir() : ".", args.getAppendFilename());
+        try {
+            boolean replayed = Files.exists(aofPath) && Files.size(aofPath) > 0;
+            if (replayed) {
+                replayAof(aofPath);
+            } else {
+                loadRdb();
+            }
+            redisCommands.enableAppendOnly(new AppendOnlyFile(aofPath, args.getAppendFsync()));
+            if (!replayed && redisCommands.getKeyspace().size() > 0) {
+                redisCommands.rewriteAppendOnlyFile();
+            }
+        } catch (IOException e) {
+            // sin AOF no hay durabilidad: mejor no arrancar que perder escrituras sin avisar
+            throw new IllegalStateException("No se pudo preparar el AOF " + aofPath + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Reejecuta el AOF con los mismos comandos que usan los clientes
+     */
+    private void replayAof(Path path) throws IOException {
+        long start = System.nanoTime();
+        RespWriter discarded = new RespWriter();
+        Client aof = Client.internal("aof");
+        long commands = AppendOnlyFile.replay(path, args -> {
+            executeCommand(aof, args, discarded);
+            discarded.clear();
+        });
+        Log.notice("AOF reejecutado desde " + path + ": " + commands + " comandos en "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    /**
+     * Carga los datos iniciales del archivo RDB: el mismo fichero en el que escriben SAVE y
+     * BGSAVE, con los valores por defecto de Redis si faltan --dir o --dbfilename
+     */
+    private void loadRdb() {
+        Path path = redisCommands.getRdbPath();
+        if (!Files.exists(path)) {
+            Log.notice("No existe " + path + ", se arranca con el almacén vacío");
+            return;
+        }
+        try {
+            RDBParser.LoadStats stats = RDBParser.loadParallel(path, redisCommands.createRdbLoader(), loadThreads);
+            loadStats = stats;
+            Log.notice("Datos cargados desde RDB v" + stats.version + ": " + stats.keys + " claves, "
+                    + stats.expiredSkipped + " caducadas descartadas, " + stats.bytes + " bytes en "
+                    + stats.millis + " ms con " + stats.threads + " hilos" + (stats.checksumVerified ? " (CRC64 verificado)" : ""));
+        } catch (IOException e) {
+            Log.warning("Error cargando datos iniciales del RDB: " + e.getMessage());
+        }
+    }
     
     /**
-     * Carga los datos iniciales del archivo RDB
+     * Registra el tiempo de arranque: desde que se crea el servidor (incluida la
+     * carga del RDB) hasta que acepta conexiones
      */
-    private void loadInitialData(String dir, String dbfilename) {
-        if (dir != null && dbfilename != null) {
+    private void markStarted() {
+        if (metricsPort > 0) {
             try {
-                Map<String, String> rdbData = RDBParser.parseRDB(dir, dbfilename);
-                redisCommands.getDataStore().putAll(rdbData);
-                System.out.println("Datos cargados desde RDB: " + rdbData.size() + " claves");
+                new MetricsExporter(metrics, metricsPort).start();
             } catch (IOException e) {
-                System.err.println("Error cargando datos iniciales del RDB: " + e.getMessage());
+                Log.warning("No se pudo abrir el puerto de métricas " + metricsPort + ": " + e.getMessage());
             }
         }
+        startupMillis = (System.nanoTime() - createdAtNanos) / 1_000_000;
+        Log.notice("Arranque completado en " + startupMillis + " ms");
     }
-    
+
+    /**
+     * @return estadísticas de la carga del RDB o null si no se cargó ninguno
+     */
+    public RDBParser.LoadStats getLoadStats() {
+        return loadStats;
+    }
+
     /**
-     * Inicia el servidor en el puerto especificado
+     * @return ms hasta aceptar conexiones o -1 si aún no ha arrancado
+     */
+    public long getStartupMillis() {
+        return startupMillis;
+    }
+
+    /**
+     * Inicia el servidor en el puerto especificado con el modo de I/O configurado
      */
     public void start(int port) {
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
+        if (ioMode == IoMode.NIO) {
+            startNio(port);
+        } else {
+            startBlocking(port);
+        }
+    }
+
+    /**
+     * Modos con I/O bloqueante: cada cliente se atiende en una tarea del
+     * executor correspondiente al modo (hilo de plataforma, pool o hilo virtual)
+     */
+    private void startBlocking(int port) {
+        ExecutorService clientExecutor = createClientExecutor();
+        try (ServerSocket serverSocket = new ServerSocket(port, ACCEPT_BACKLOG)) {
             setupShutdownHook(serverSocket);
             serverSocket.setReuseAddress(true);
             
-            System.out.println("Servidor Redis iniciado en puerto " + port);
+            Log.notice("Servidor Redis iniciado en puerto " + port + " (" + ioMode.getName() + ")");
+            markStarted();
             
             while (running.get() && !serverSocket.isClosed()) {
                 Socket clientSocket = serverSocket.accept();
-                Thread clientThread = new Thread(() -> handleClient(clientSocket));
-                clientThread.start();
+                clientSocket.setTcpNoDelay(true);
+                clientExecutor.execute(new BlockingConnection(clientSocket, clientExecutor));
             }
             
         } catch (IOException e) {
-            System.err.println("Error en el servidor: " + e.getMessage());
+            // al apagar, el hook cierra el socket y accept falla: no es un error
+            if (running.get()) {
+                Log.warning("Error en el servidor: " + e.getMessage());
+            }
+        } finally {
+            clientExecutor.shutdownNow();
+            replication.shutdown();
+            cluster.shutdown();
+            redisCommands.shutdown();
+        }
+    }
+
+    /**
+     * Crea el executor que atiende a los clientes en los modos bloqueantes.
+     * En el modo pool cada hilo queda ocupado durante toda la vida de una conexión (salvo
+     * mientras espera un BLPOP, ver BlockingConnection), así que poolSize limita los
+     * clientes atendidos a la vez (el resto espera en cola)
+     */
+    private ExecutorService createClientExecutor() {
+        switch (ioMode) {
+            case POOL:
+                return Executors.newFixedThreadPool(poolSize, Thread.ofPlatform().name("client-", 0).factory());
+            case VIRTUAL:
+                return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("client-", 0).factory());
+            default:
+                return Executors.newThreadPerTaskExecutor(Thread.ofPlatform().name("client-", 0).factory());
+        }
+    }
+    
+    /**
+     * Modo no bloqueante: el hilo principal acepta conexiones y las reparte
+     * en round-robin entre ioThreads bucles de eventos
+     */
+    private void startNio(int port) {
+        EventLoop[] loops = new EventLoop[ioThreads];
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+            setupShutdownHook(serverChannel);
+
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop("io-loop-" + i, this::executeCommand, redisCommands::awaitDeferredSyncs, metrics);
+                loops[i].start();
+            }
+            Log.notice("Servidor Redis iniciado en puerto " + port + " (nio, " + loops.length + " bucles)");
+            markStarted();
+
+            int next = 0;
+            while (running.get() && serverChannel.isOpen()) {
+                SocketChannel clientChannel = serverChannel.accept();
+                clientChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                loops[next].register(clientChannel);
+                next = (next + 1) % loops.length;
+            }
+
+        } catch (IOException e) {
+            // al apagar, el hook cierra el socket y accept falla: no es un error
+            if (running.get()) {
+                Log.warning("Error en el servidor: " + e.getMessage());
+            }
         } finally {
+            for (EventLoop loop : loops) {
+                if (loop != null) {
+                    loop.shutdown();
+                }
+            }
+            replication.shutdown();
+            cluster.shutdown();
             redisCommands.shutdown();
         }
     }
@@ -91,7 +445,7 @@ public class RedisServer {
     /**
      * Configura el hook de shutdown para cerrar graciosamente
      */
-    private void setupShutdownHook(ServerSocket serverSocket) {
+    private void setupShutdownHook(Closeable serverSocket) {
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             running.set(false);
             try {
@@ -103,53 +457,288 @@ public class RedisServer {
     }
     
     /**
-     * Maneja un cliente individual
+     * Una conexión en los modos bloqueantes, atendida como tarea del executor de clientes.
+     * Puede ejecutarse en un hilo virtual: todo el camino de los comandos evita
+     * synchronized para no fijar (pin) el hilo portador mientras se bloquea en el socket.
+     * Si un comando traspasa la conexión (PSYNC) se envían las respuestas pendientes y el
+     * socket queda en manos de quien lo pidió, sin cerrarlo. Cuando la conexión se suscribe
+     * a algo, a partir de ahí escribe en el socket solo el hilo de su cola (ver writeOutbox).
+     * Mientras un BLPOP/BRPOP/BLMOVE espera, la tarea termina y deja libre el hilo (en el
+     * modo pool, otro cliente puede ser quien haga el push); cuando la espera tiene
+     * respuesta, Client.wake() la vuelve a encolar y sigue con el resto de la lectura
      */
-    private void handleClient(Socket clientSocket) {
-        try (OutputStream out = clientSocket.getOutputStream();
-             BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()))) {
-            
-            String line;
-            while ((line = in.readLine()) != null) {
-                processCommand(line, in, out);
+    private final class BlockingConnection implements Runnable {
+
+        private final Socket clientSocket;
+        private final ExecutorService executor;
+        private final RespWriter out = new RespWriter();
+        private final RespParser parser = new RespParser();
+        private final CommandArgs args = new CommandArgs();
+        // true mientras la tarea está fuera del executor esperando a que wake() la reenvíe
+        private final AtomicBoolean suspended = new AtomicBoolean();
+        private Client client;
+        private InputStream in;
+        private OutputStream socketOut;
+        private ByteBuffer buffer;
+        private boolean outboxWriter;
+
+        BlockingConnection(Socket clientSocket, ExecutorService executor) {
+            this.clientSocket = clientSocket;
+            this.executor = executor;
+        }
+
+        @Override
+        public void run() {
+            // al suspenderse, otra ejecución de la tarea puede estar ya en marcha: no se toca nada
+            boolean detached = false;
+            try {
+                if (client == null) {
+                    open();
+                } else {
+                    // sigue con lo que quedaba en el buffer cuando se suspendió
+                    if (awaitReply() || processBuffer()) {
+                        detached = true;
+                        return;
+                    }
+                    if (client.isHandedOff()) {
+                        return;
+                    }
+                    flush();
+                }
+                int read;
+                while ((read = in.read(buffer.array(), buffer.position(), buffer.remaining())) >= 0) {
+                    metrics.bytesRead(read);
+                    buffer.position(buffer.position() + read);
+                    buffer.flip();
+                    if (processBuffer()) {
+                        detached = true;
+                        return;
+                    }
+                    if (client.isHandedOff()) {
+                        return;
+                    }
+                    flush();
+                }
+
+            } catch (RespParser.ProtocolException e) {
+                // junto con las respuestas pendientes; con cola de salida el socket es de su hilo
+                Log.verbose("Error de protocolo de " + client + ": " + e.getMessage());
+                if (client.getOutbox() == null) {
+                    out.writeError(CommandException.ERR, "Protocol error: " + e.getMessage());
+                    try {
+                        metrics.bytesWritten(out.pending());
+                        out.writeTo(clientSocket.getOutputStream());
+                    } catch (IOException writeError) {
+                        // Ignorar errores al escribir: el cliente ya no está
+                    }
+                }
+            } catch (IOException e) {
+                Log.warning("Error manejando cliente: " + e.getMessage());
+            } finally {
+                if (!detached) {
+                    close();
+                }
+            }
+        }
+
+        private void open() throws IOException {
+            metrics.clientConnected();
+            socketOut = clientSocket.getOutputStream();
+            in = clientSocket.getInputStream();
+            client = new Client(clientSocket.getRemoteSocketAddress());
+            client.setWakeup(this::wake);
+            // buffer inicial pequeño: con miles de clientes inactivos pesa más la memoria que las lecturas
+            buffer = RespParser.allocateBuffer();
+        }
+
+        /**
+         * Envía las respuestas de lo leído y deja el buffer listo para la siguiente lectura
+         */
+        private void flush() throws IOException {
+            metrics.bytesWritten(out.pending());
+            out.writeTo(socketOut);
+            buffer = parser.compact(buffer);
+        }
+
+        /**
+         * Ejecuta los comandos completos del buffer (pipelining: se responde con una sola
+         * escritura). Si la conexión se traspasa, entrega el socket y para
+         *
+         * @return true si la tarea se ha suspendido esperando una respuesta
+         */
+        private boolean processBuffer() throws IOException {
+            while (parser.parse(buffer, args)) {
+                executeCommand(client, args, out);
+                if (client.isBlocked()) {
+                    // lo anterior sale ya; la respuesta de la espera va detrás
+                    metrics.bytesWritten(out.pending());
+                    out.writeTo(socketOut);
+                    if (awaitReply()) {
+                        return true;
+                    }
+                }
+                if (!outboxWriter && client.getOutbox() != null) {
+                    Client subscriber = client;
+                    Thread.ofVirtual().name("outbox-" + client).start(() -> writeOutbox(subscriber, clientSocket));
+                    outboxWriter = true;
+                }
+                if (client.isHandedOff()) {
+                    metrics.bytesWritten(out.pending());
+                    out.writeTo(socketOut);
+                    client.getHandoff().accept(clientSocket);
+                    return false;
+                }
+                if (out.isFull()) {
+                    metrics.bytesWritten(out.pending());
+                    out.writeTo(socketOut);
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Escribe la respuesta de la espera si ya la tiene o, si no, marca la tarea como
+         * suspendida. La respuesta puede llegar justo al marcarla: gana quien cambie
+         * suspended, o este hilo (que sigue) o wake() (que reenvía la tarea)
+         *
+         * @return true si la tarea debe terminar sin cerrar la conexión
+         */
+        private boolean awaitReply() {
+            while (!client.unblock(out)) {
+                suspended.set(true);
+                if (!client.hasReply() || !suspended.compareAndSet(true, false)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void wake() {
+            if (!suspended.compareAndSet(true, false)) {
+                return;
+            }
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                // el servidor se está apagando
+                closeQuietly(clientSocket);
+            }
+        }
+
+        private void close() {
+            metrics.clientDisconnected();
+            if (client == null || !client.isHandedOff()) {
+                closeQuietly(clientSocket);
+                if (client != null) {
+                    client.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Vacía hacia el socket la cola de salida de una conexión suscrita en los modos
+     * bloqueantes, donde el hilo del cliente pasa casi todo el tiempo parado en read.
+     * Duerme hasta que alguien encola algo y termina al cerrarse la conexión. Si la cola
+     * se desborda, quien lo detecta cierra el socket: así sale también de un write que
+     * el consumidor lento tenga bloqueado y despierta al hilo lector
+     */
+    private void writeOutbox(Client client, Socket clientSocket) {
+        Outbox outbox = client.getOutbox();
+        Thread writer = Thread.currentThread();
+        outbox.setWakeup(() -> {
+            if (outbox.isOverflowed()) {
+                closeQuietly(clientSocket);
+            }
+            LockSupport.unpark(writer);
+        });
+        RespWriter out = new RespWriter();
+        try {
+            OutputStream socketOut = clientSocket.getOutputStream();
+            while (!outbox.isClosed() && !outbox.isOverflowed()) {
+                outbox.beginDrain();
+                byte[] message;
+                while ((message = outbox.poll()) != null) {
+                    out.writeRaw(message);
+                    if (out.isFull()) {
+                        metrics.bytesWritten(out.pending());
+                        out.writeTo(socketOut);
+                    }
+                }
+                metrics.bytesWritten(out.pending());
+                out.writeTo(socketOut);
+                if (!outbox.isSignalled()) {
+                    LockSupport.park(outbox);
+                }
             }
-            
         } catch (IOException e) {
-            System.err.println("Error manejando cliente: " + e.getMessage());
+            Log.warning("Error enviando a " + client + ": " + e.getMessage());
         } finally {
-            try {
-                clientSocket.close();
-            } catch (IOException e) {
-                // Ignorar errores al cerrar
+            if (!outbox.isClosed()) {
+                closeQuietly(clientSocket);
             }
         }
     }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Ignorar errores al cerrar
+        }
+    }
     
     /**
-     * Procesa un comando recibido del cliente
+     * Ejecuta un comando ya decodificado; común a todos los modos de I/O. Si la conexión
+     * tiene cola de salida (pub/sub), la respuesta se encola detrás de los mensajes
      */
-    private void processCommand(String line, BufferedReader in, OutputStream out) throws IOException {
-        System.out.println("xxx empezamos: ");
-        int numArgs = Integer.parseInt(line.substring(1));
-        System.out.println("numArgs " + numArgs);
-        
-        String[] args = new String[numArgs];
-        
-        // Leer los argumentos del comando
-        for (int i = 0; i < numArgs; i++) {
-            String lengthLine = in.readLine(); // línea con $N
-            Integer.parseInt(lengthLine.substring(1)); // validar formato
-            String value = in.readLine(); // valor real
-            args[i] = value;
+    private void executeCommand(Client client, CommandArgs args, RespWriter out) throws IOException {
+        dispatch(client, args, out);
+        if (client.getOutbox() != null) {
+            pubsub.deliverReplies(client, out);
         }
-        
-        // Ejecutar el comando si existe
-        RedisCommand command = commandMap.get(args[0]);
-        if (command != null) {
-            command.execute(args, out);
-            out.flush();
-        } else {
-            System.err.println("Comando no reconocido: " + args[0]);
+    }
+
+    private void dispatch(Client client, CommandArgs args, RespWriter out) throws IOException {
+        if (args.count() == 0) {
+            return;
+        }
+        // Ejecutar el comando si existe y trae los argumentos que admite
+        CommandSpec spec = commandTable.get(args);
+        if (spec == null) {
+            metrics.unknownCommand();
+            if (Log.isEnabled(LogLevel.DEBUG)) {
+                Log.debug("Comando no reconocido: " + args.toString(0));
+            }
+            transaction.failIfQueuing(client);
+            out.writeError(CommandException.ERR, "unknown command '" + args.toString(0) + "'");
+            return;
+        }
+        if (args.count() < spec.minArgs || args.count() > spec.maxArgs) {
+            transaction.failIfQueuing(client);
+            out.writeError(CommandException.wrongArity(spec.name));
+            return;
+        }
+        if (pubsub.rejectWhileSubscribed(client, args, out)) {
+            return;
+        }
+        // en modo cluster, claves de otro nodo: MOVED / ASK (y dentro de MULTI, EXECABORT)
+        if (cluster.redirect(client, args, out)) {
+            transaction.failIfQueuing(client);
+            return;
+        }
+        if (transaction.queue(client, spec.command, args, out)) {
+            return;
+        }
+        try {
+            spec.command.execute(client, args, out);
+        } catch (CommandException e) {
+            // argumentos inválidos: se responde con un error y la conexión sigue abierta
+            out.writeError(e);
+        } catch (RuntimeException e) {
+            // un fallo del servidor y no del cliente: se registra con su traza
+            Log.warning("Error interno ejecutando '" + spec.name + "' de " + client, e);
+            out.writeError(CommandException.ERR, "internal error executing '" + spec.name + "'");
         }
     }
 }
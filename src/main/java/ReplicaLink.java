@@ -0,0 +1,195 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Enlace del maestro con una réplica, a partir del socket que PSYNC traspasa.
+ *
+ * Un hilo envía: primero la respuesta a PSYNC (y la foto si hay sincronización completa)
+ * y después el flujo leyendo del backlog desde la posición de la réplica, en bloques.
+ * Otro hilo lee los REPLCONF ACK con los que la réplica confirma lo que ha procesado.
+ * Si la réplica se queda tan atrás que su posición sale del backlog, o deja de
+ * confirmar, se cierra la conexión y tendrá que resincronizarse
+ */
+public class ReplicaLink {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final long READ_TIMEOUT_MILLIS = 1000;
+    // como repl-timeout
+    private static final int ACK_TIMEOUT_MILLIS = 60_000;
+    private static final byte[] KEEPALIVE = {'\n'};
+
+    private final Replication replication;
+    private final Client client;
+    private final Socket socket;
+    private volatile String state = "wait_bgsave";
+    private volatile long ackOffset;
+    private volatile long lastAckMillis = System.currentTimeMillis();
+    private volatile boolean closed;
+
+    public ReplicaLink(Replication replication, Client client, Socket socket) {
+        this.replication = replication;
+        this.client = client;
+        this.socket = socket;
+    }
+
+    /**
+     * Arranca los hilos del enlace
+     *
+     * @param position bytes del flujo que la réplica dice tener
+     */
+    public void start(String requestedId, long position) {
+        Thread sender = new Thread(() -> send(requestedId, position), "replica-" + client + "-send");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    private void send(String requestedId, long position) {
+        try {
+            socket.setSoTimeout(ACK_TIMEOUT_MILLIS);
+            OutputStream out = socket.getOutputStream();
+            ReplicationBacklog backlog = replication.continueFrom(requestedId, position);
+            if (backlog != null) {
+                writeLine(out, "+CONTINUE " + replication.getReplid());
+                Log.notice("Resync parcial con la réplica " + client + " desde " + position);
+            } else {
+                Replication.FullSync sync = fullSync(out);
+                if (sync == null) {
+                    return;
+                }
+                backlog = sync.backlog;
+                position = sync.offset;
+            }
+            state = "online";
+            Thread receiver = new Thread(this::receiveAcks, "replica-" + client + "-ack");
+            receiver.setDaemon(true);
+            receiver.start();
+            stream(out, backlog, position);
+        } catch (IOException e) {
+            if (!closed) {
+                Log.warning("Error en el enlace con la réplica " + client + ": " + e.getMessage());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Envía +FULLRESYNC y la foto en formato EOF de Redis ($EOF:marca, RDB, marca), que
+     * no necesita conocer el tamaño antes de empezar. Mientras otra foto esté en curso
+     * se espera mandando saltos de línea, que la réplica ignora
+     */
+    private Replication.FullSync fullSync(OutputStream out) throws IOException, InterruptedException {
+        Replication.FullSync sync;
+        while ((sync = replication.beginFullSync()) == null) {
+            if (closed) {
+                return null;
+            }
+            out.write(KEEPALIVE);
+            Thread.sleep(READ_TIMEOUT_MILLIS);
+        }
+        try {
+            state = "send_bulk";
+            String mark = Replication.randomId();
+            try {
+                writeLine(out, "+FULLRESYNC " + sync.replid + " " + sync.offset);
+                writeLine(out, "$EOF:" + mark);
+            } catch (IOException e) {
+                sync.snapshot.abort();
+                throw e;
+            }
+            Snapshot.Result result = sync.snapshot.writeTo(Channels.newChannel(out));
+            out.write(mark.getBytes(StandardCharsets.US_ASCII));
+            Log.notice("Sincronización completa con la réplica " + client + ": " + result.keys
+                    + " claves, " + result.bytes + " bytes en " + result.millis + " ms");
+            return sync;
+        } finally {
+            replication.endFullSync();
+        }
+    }
+
+    private void stream(OutputStream out, ReplicationBacklog backlog, long position) throws IOException,
+            InterruptedException {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        while (!closed) {
+            int read = backlog.read(position, chunk, READ_TIMEOUT_MILLIS);
+            if (read < 0) {
+                Log.warning("La réplica " + client + " se quedó fuera del backlog en " + position);
+                return;
+            }
+            if (read > 0) {
+                out.write(chunk, 0, read);
+                position += read;
+            }
+        }
+    }
+
+    /**
+     * Lee los REPLCONF ACK offset de la réplica; cualquier otra cosa se ignora
+     */
+    private void receiveAcks() {
+        try {
+            InputStream in = socket.getInputStream();
+            ByteBuffer buffer = RespParser.allocateBuffer();
+            RespParser parser = new RespParser();
+            CommandArgs args = new CommandArgs();
+            int read;
+            while ((read = in.read(buffer.array(), buffer.position(), buffer.remaining())) >= 0) {
+                buffer.position(buffer.position() + read);
+                buffer.flip();
+                while (parser.parse(buffer, args)) {
+                    if (args.count() >= 3 && args.equalsIgnoreCase(0, "REPLCONF") && args.equalsIgnoreCase(1, "ACK")) {
+                        ackOffset = args.parseLong(2);
+                        lastAckMillis = System.currentTimeMillis();
+                    }
+                }
+                buffer = parser.compact(buffer);
+            }
+        } catch (SocketTimeoutException e) {
+            Log.warning("La réplica " + client + " no confirma desde hace "
+                    + ACK_TIMEOUT_MILLIS / 1000 + " s");
+        } catch (IOException | CommandException e) {
+            if (!closed) {
+                Log.warning("Error leyendo de la réplica " + client + ": " + e.getMessage());
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Cierra la conexión; los dos hilos terminan al fallar su siguiente operación
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        replication.removeReplica(this);
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Ignorar errores al cerrar
+        }
+    }
+
+    /**
+     * Línea slaveN de INFO replication
+     */
+    public String describe() {
+        int port = client.getListeningPort() > 0 ? client.getListeningPort() : client.getPort();
+        long lag = (System.currentTimeMillis() - lastAckMillis) / 1000;
+        return "ip=" + client.getIp() + ",port=" + port + ",state=" + state + ",offset=" + ackOffset + ",lag=" + lag;
+    }
+
+    private static void writeLine(OutputStream out, String line) throws IOException {
+        out.write((line + "\r\n").getBytes(StandardCharsets.US_ASCII));
+    }
+}
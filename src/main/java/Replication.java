@@ -0,0 +1,436 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Replicación maestro-réplica al estilo de Redis (PSYNC2).
+ *
+ * El maestro no guarda nada por réplica: sus escrituras llegan al backlog a través de
+ * CommandLog y cada ReplicaLink las envía desde allí. Una réplica nueva recibe primero una
+ * foto del almacén en formato RDB directamente por el socket (sincronización completa sin
+ * disco) y luego el flujo desde la posición en que se tomó la foto; una que se reconecta
+ * con el mismo historial (replid) sigue donde lo dejó si su posición aún está en el backlog.
+ *
+ * En una réplica el MasterLink aplica el flujo del maestro y lo copia tal cual a su propio
+ * backlog, así que puede a su vez tener réplicas y, si se promociona (REPLICAOF NO ONE),
+ * las que ya la seguían continúan con un resync parcial gracias a replid2
+ */
+public class Replication {
+
+    public static final int DEFAULT_BACKLOG_SIZE = 1024 * 1024;
+    private static final String NO_REPLID = "0000000000000000000000000000000000000000";
+    // como repl-ping-replica-period: PING periódico para que las réplicas detecten un maestro caído
+    private static final long PING_PERIOD_SECONDS = 10;
+    private static final byte[] PING = "*1\r\n$4\r\nPING\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final RedisCommands commands;
+    private final int port;
+    private final int backlogSize;
+    private final int loadThreads;
+    // cambios de rol (REPLICAOF) y de historial
+    private final ReentrantLock roleLock = new ReentrantLock();
+    // en una réplica, lo toma el MasterLink por cada lote del flujo y al cargar la foto;
+    // así una sincronización de sus réplicas ve el almacén y el backlog en el mismo punto
+    private final ReentrantLock applyLock = new ReentrantLock();
+    private final List<ReplicaLink> replicas = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService cron;
+    private volatile String replid = randomId();
+    private volatile String replid2 = NO_REPLID;
+    private volatile long secondOffset = -1;
+    // se crea con la primera réplica; después se conserva aunque cambie el rol
+    private volatile ReplicationBacklog backlog;
+    // null si somos maestro
+    private volatile MasterLink master;
+    private volatile ClientCommand dispatcher;
+
+    public Replication(RedisCommands commands, int port, int backlogSize, int loadThreads) {
+        this.commands = commands;
+        this.port = port;
+        this.backlogSize = backlogSize;
+        this.loadThreads = loadThreads;
+        this.cron = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "replication-cron");
+            thread.setDaemon(true);
+            return thread;
+        });
+        cron.scheduleAtFixedRate(this::pingReplicas, PING_PERIOD_SECONDS, PING_PERIOD_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Ejecutor de los comandos que llegan del maestro (el mismo que usan los clientes)
+     */
+    public void setDispatcher(ClientCommand dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * Envuelve un comando de escritura: en una réplica solo se aceptan los del maestro
+     */
+    public ClientCommand rejectOnReplica(ClientCommand command) {
+        return (client, args, out) -> {
+            if (master != null && !client.isInternal()) {
+                throw new CommandException("READONLY", "You can't write against a read only replica.");
+            }
+            command.execute(client, args, out);
+        };
+    }
+
+    /**
+     * Comando PSYNC replid offset - la conexión pasa a ser el enlace con una réplica
+     */
+    public ClientCommand createPsyncCommand() {
+        return (client, args, out) -> {
+            MasterLink current = master;
+            if (current != null && !current.isUp()) {
+                throw new CommandException("NOMASTERLINK", "Can't SYNC while not connected with my master");
+            }
+            String requestedId = args.toString(1);
+            long requestedOffset = args.parseLong(2);
+            // offset es el siguiente byte que quiere la réplica; las posiciones del backlog
+            // cuentan los bytes ya recibidos
+            client.handOff(socket -> {
+                ReplicaLink link = new ReplicaLink(this, client, socket);
+                replicas.add(link);
+                link.start(requestedId, requestedOffset - 1);
+            });
+        };
+    }
+
+    /**
+     * Comando REPLCONF - opciones que anuncia la réplica y confirmaciones (ACK) del flujo
+     */
+    public ClientCommand createReplconfCommand() {
+        return (client, args, out) -> {
+            if (args.count() % 2 == 0) {
+                throw CommandException.wrongArity("replconf");
+            }
+            for (int i = 1; i < args.count(); i += 2) {
+                if (args.equalsIgnoreCase(i, "listening-port")) {
+                    client.setListeningPort((int) args.parseLong(i + 1));
+                } else if (args.equalsIgnoreCase(i, "ACK")) {
+                    // los ACK de las réplicas enlazadas los lee su ReplicaLink; aquí no se responde
+                    return;
+                } else if (!args.equalsIgnoreCase(i, "capa") && !args.equalsIgnoreCase(i, "ip-address")
+                        && !args.equalsIgnoreCase(i, "GETACK")) {
+                    throw new CommandException("Unrecognized REPLCONF option: " + args.toString(i));
+                }
+            }
+            out.writeOk();
+        };
+    }
+
+    /**
+     * Comando REPLICAOF host port | NO ONE (y su alias SLAVEOF)
+     */
+    public ClientCommand createReplicaofCommand() {
+        return (client, args, out) -> {
+            if (args.equalsIgnoreCase(1, "NO") && args.equalsIgnoreCase(2, "ONE")) {
+                promote();
+                out.writeOk();
+                return;
+            }
+            long masterPort = args.parseLong(2);
+            if (masterPort <= 0 || masterPort > 65535) {
+                throw new CommandException("Invalid master port");
+            }
+            if (replicaOf(args.toString(1), (int) masterPort)) {
+                out.writeOk();
+            } else {
+                out.writeSimpleString("OK Already connected to specified master");
+            }
+        };
+    }
+
+    /**
+     * Pasa a ser réplica de host:port; deja de propagar sus propias escrituras y
+     * desconecta a sus réplicas, que se resincronizarán con el nuevo historial
+     *
+     * @return false si ya era réplica de ese maestro
+     */
+    public boolean replicaOf(String host, int masterPort) {
+        roleLock.lock();
+        try {
+            MasterLink current = master;
+            if (current != null) {
+                if (current.getHost().equals(host) && current.getPort() == masterPort) {
+                    return false;
+                }
+                current.stop();
+            }
+            try (Keyspace.KeyLock lock = commands.getKeyspace().lockAll()) {
+                commands.getLog().setBacklog(null);
+            }
+            disconnectReplicas();
+            master = new MasterLink(this, host, masterPort);
+            master.start();
+            Log.notice("Réplica de " + host + ":" + masterPort);
+            return true;
+        } finally {
+            roleLock.unlock();
+        }
+    }
+
+    /**
+     * REPLICAOF NO ONE: la réplica pasa a maestro con un historial nuevo, recordando el
+     * anterior (replid2) para que sus réplicas puedan seguir con un resync parcial
+     */
+    public void promote() {
+        roleLock.lock();
+        try {
+            MasterLink current = master;
+            if (current == null) {
+                return;
+            }
+            current.stop();
+            applyLock.lock();
+            try (Keyspace.KeyLock lock = commands.getKeyspace().lockAll()) {
+                master = null;
+                shiftReplicationId(randomId());
+                commands.getLog().setBacklog(backlog);
+            } finally {
+                applyLock.unlock();
+            }
+            disconnectReplicas();
+            Log.notice("Réplica promocionada a maestro, replid " + replid);
+        } finally {
+            roleLock.unlock();
+        }
+    }
+
+    /**
+     * Activa la foto de una sincronización completa junto con la posición del flujo en
+     * ese instante (y el backlog, si es la primera réplica)
+     *
+     * @return la foto y la posición, o null si hay otra foto en curso
+     */
+    public FullSync beginFullSync() {
+        applyLock.lock();
+        try {
+            FullSync[] started = new FullSync[1];
+            Snapshot snapshot = commands.trySnapshot(() -> {
+                if (backlog == null) {
+                    backlog = new ReplicationBacklog(backlogSize, 0);
+                }
+                if (master == null) {
+                    commands.getLog().setBacklog(backlog);
+                }
+                started[0] = new FullSync(replid, backlog, backlog.offset());
+            });
+            if (snapshot == null) {
+                return null;
+            }
+            started[0].snapshot = snapshot;
+            return started[0];
+        } finally {
+            applyLock.unlock();
+        }
+    }
+
+    public void endFullSync() {
+        commands.releaseSnapshot();
+    }
+
+    /**
+     * Backlog desde el que puede seguir una réplica que pide continuar el historial
+     * requestedId en position, o null si necesita una sincronización completa
+     */
+    public ReplicationBacklog continueFrom(String requestedId, long position) {
+        ReplicationBacklog current = backlog;
+        if (current == null) {
+            return null;
+        }
+        boolean sameHistory = requestedId.equals(replid)
+                || (requestedId.equals(replid2) && position <= secondOffset);
+        return sameHistory && current.contains(position) ? current : null;
+    }
+
+    /**
+     * La réplica ha cargado la foto del maestro: adopta su historial desde offset.
+     * Se llama con applyLock tomado
+     */
+    public void completeFullSync(String masterReplid, long offset) {
+        replid = masterReplid;
+        replid2 = NO_REPLID;
+        secondOffset = -1;
+        backlog = new ReplicationBacklog(backlogSize, offset);
+        disconnectReplicas();
+    }
+
+    /**
+     * Resync parcial aceptado; si el maestro cambió de historial (lo promocionaron)
+     * se adopta el nuevo y se avisa a las réplicas propias
+     */
+    public void continueSync(String masterReplid) {
+        if (masterReplid == null || masterReplid.equals(replid)) {
+            return;
+        }
+        applyLock.lock();
+        try {
+            shiftReplicationId(masterReplid);
+        } finally {
+            applyLock.unlock();
+        }
+        disconnectReplicas();
+    }
+
+    /**
+     * Argumentos de PSYNC: el historial propio si hay backlog (quizá el maestro lo
+     * conoce) o ? -1 para pedir una sincronización completa
+     */
+    public String[] psyncRequest() {
+        ReplicationBacklog current = backlog;
+        if (current == null) {
+            return new String[] {"?", "-1"};
+        }
+        return new String[] {replid, String.valueOf(current.offset() + 1)};
+    }
+
+    public ReentrantLock getApplyLock() {
+        return applyLock;
+    }
+
+    public ReplicationBacklog getBacklog() {
+        return backlog;
+    }
+
+    public ClientCommand getDispatcher() {
+        return dispatcher;
+    }
+
+    public RedisCommands getCommands() {
+        return commands;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getLoadThreads() {
+        return loadThreads;
+    }
+
+    public String getReplid() {
+        return replid;
+    }
+
+    void removeReplica(ReplicaLink link) {
+        replicas.remove(link);
+    }
+
+    /**
+     * Posición del final del flujo (master_repl_offset)
+     */
+    public long offset() {
+        ReplicationBacklog current = backlog;
+        return current != null ? current.offset() : 0;
+    }
+
+    /**
+     * Sección replication de INFO
+     */
+    public String info() {
+        StringBuilder info = new StringBuilder("# Replication\r\n");
+        MasterLink current = master;
+        ReplicationBacklog currentBacklog = backlog;
+        if (current == null) {
+            info.append("role:master\r\n");
+        } else {
+            info.append("role:slave\r\n");
+            info.append("master_host:").append(current.getHost()).append("\r\n");
+            info.append("master_port:").append(current.getPort()).append("\r\n");
+            info.append("master_link_status:").append(current.isUp() ? "up" : "down").append("\r\n");
+            info.append("master_last_io_seconds_ago:").append(current.lastIoSecondsAgo()).append("\r\n");
+            info.append("master_sync_in_progress:").append(current.isSyncInProgress() ? 1 : 0).append("\r\n");
+            info.append("slave_repl_offset:").append(offset()).append("\r\n");
+            info.append("slave_read_only:1\r\n");
+        }
+        info.append("connected_slaves:").append(replicas.size()).append("\r\n");
+        int index = 0;
+        for (ReplicaLink link : replicas) {
+            info.append("slave").append(index++).append(':').append(link.describe()).append("\r\n");
+        }
+        info.append("master_replid:").append(replid).append("\r\n");
+        info.append("master_replid2:").append(replid2).append("\r\n");
+        info.append("master_repl_offset:").append(offset()).append("\r\n");
+        // como en Redis, second_repl_offset es la posición del primer byte del historial nuevo
+        info.append("second_repl_offset:").append(secondOffset < 0 ? -1 : secondOffset + 1).append("\r\n");
+        info.append("repl_backlog_active:").append(currentBacklog != null ? 1 : 0).append("\r\n");
+        info.append("repl_backlog_size:").append(currentBacklog != null ? currentBacklog.size() : backlogSize).append("\r\n");
+        info.append("repl_backlog_first_byte_offset:")
+                .append(currentBacklog != null ? currentBacklog.firstOffset() + 1 : 0).append("\r\n");
+        info.append("repl_backlog_histlen:")
+                .append(currentBacklog != null ? currentBacklog.offset() - currentBacklog.firstOffset() : 0).append("\r\n");
+        return info.toString();
+    }
+
+    /**
+     * Detiene el enlace con el maestro y cierra las réplicas
+     */
+    public void shutdown() {
+        cron.shutdownNow();
+        MasterLink current = master;
+        if (current != null) {
+            current.stop();
+        }
+        disconnectReplicas();
+    }
+
+    private void shiftReplicationId(String newReplid) {
+        replid2 = replid;
+        secondOffset = offset();
+        replid = newReplid;
+    }
+
+    private void disconnectReplicas() {
+        for (ReplicaLink link : replicas) {
+            link.close();
+        }
+    }
+
+    private void pingReplicas() {
+        roleLock.lock();
+        try {
+            ReplicationBacklog current = backlog;
+            if (master == null && current != null && !replicas.isEmpty()) {
+                current.feed(ByteBuffer.wrap(PING));
+            }
+        } finally {
+            roleLock.unlock();
+        }
+    }
+
+    /**
+     * 40 caracteres hexadecimales aleatorios (replid y marca de fin del RDB sin disco)
+     */
+    static String randomId() {
+        byte[] bytes = new byte[20];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder id = new StringBuilder(40);
+        for (byte b : bytes) {
+            id.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return id.toString();
+    }
+
+    /**
+     * Sincronización completa en curso: la foto y el punto del flujo en que empieza
+     */
+    public static class FullSync {
+        public final String replid;
+        public final ReplicationBacklog backlog;
+        public final long offset;
+        public Snapshot snapshot;
+
+        FullSync(String replid, ReplicationBacklog backlog, long offset) {
+            this.replid = replid;
+            this.backlog = backlog;
+            this.offset = offset;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Backlog de replicación: buffer circular con los últimos bytes del flujo de comandos que
+ * se envía a las réplicas (repl-backlog-size de Redis).
+ *
+ * Cada byte del flujo tiene su posición (master_repl_offset cuenta los bytes escritos
+ * desde que empezó el historial). Las réplicas no tienen buffer propio: cada una lee del
+ * backlog a partir de su posición, así que enviar un comando a varias réplicas no lo
+ * copia varias veces. Una réplica que se reconecta puede seguir donde lo dejó (resync
+ * parcial) mientras su posición siga dentro del backlog; si se queda atrás más de lo que
+ * cabe pierde la conexión y tendrá que hacer una sincronización completa
+ */
+public class ReplicationBacklog {
+
+    private final byte[] ring;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition dataAvailable = lock.newCondition();
+    // protegidos por lock: posición del primer byte guardado y del siguiente por escribir
+    private long start;
+    private long end;
+
+    /**
+     * @param size bytes de historial
+     * @param offset posición en la que empieza el flujo
+     */
+    public ReplicationBacklog(int size, long offset) {
+        this.ring = new byte[size];
+        this.start = offset;
+        this.end = offset;
+    }
+
+    public int size() {
+        return ring.length;
+    }
+
+    /**
+     * Posición del final del flujo (master_repl_offset)
+     */
+    public long offset() {
+        lock.lock();
+        try {
+            return end;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Posición del byte más antiguo que se conserva
+     */
+    public long firstOffset() {
+        lock.lock();
+        try {
+            return start;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Añade un registro completo al flujo y despierta a las réplicas que esperan
+     */
+    public void feed(ByteBuffer record) {
+        lock.lock();
+        try {
+            int length = record.remaining();
+            if (length > ring.length) {
+                // de un registro mayor que el backlog solo cabe el final
+                record.position(record.position() + length - ring.length);
+                end += length - ring.length;
+                length = ring.length;
+            }
+            int at = index(end);
+            int first = Math.min(length, ring.length - at);
+            record.get(ring, at, first);
+            record.get(ring, 0, length - first);
+            end += length;
+            start = Math.max(start, end - ring.length);
+            dataAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * true si se puede enviar el flujo desde position (resync parcial)
+     */
+    public boolean contains(long position) {
+        lock.lock();
+        try {
+            return position >= start && position <= end;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copia en out los bytes del flujo desde position; si aún no hay ninguno espera como
+     * mucho timeoutMillis a que lleguen
+     *
+     * @return bytes copiados (0 si venció la espera) o -1 si position ya salió del backlog
+     */
+    public int read(long position, byte[] out, long timeoutMillis) throws InterruptedException {
+        lock.lock();
+        try {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (position == end && nanos > 0) {
+                nanos = dataAvailable.awaitNanos(nanos);
+            }
+            if (position < start || position > end) {
+                return -1;
+            }
+            int length = (int) Math.min(out.length, end - position);
+            int at = index(position);
+            int first = Math.min(length, ring.length - at);
+            System.arraycopy(ring, at, out, 0, first);
+            System.arraycopy(ring, 0, out, first, length - first);
+            return length;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int index(long position) {
+        return (int) Math.floorMod(position, (long) ring.length);
+    }
+}
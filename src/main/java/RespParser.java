@@ -0,0 +1,222 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodificador RESP2 incremental que trabaja directamente sobre los bytes del buffer.
+ *
+ * Acepta arrays de bulk strings (*N\r\n$len\r\n...) respetando las longitudes,
+ * de modo que los valores binarios con \r\n viajan intactos, y comandos inline
+ * (PING\r\n) como hace Redis. Si una trama llega partida entre lecturas guarda
+ * por dónde iba, relativo al inicio de la trama, y continúa en la siguiente
+ * llamada sin volver a recorrer los argumentos ya decodificados.
+ *
+ * Una trama mal formada lanza ProtocolException con el motivo que da Redis, para que la
+ * conexión responda -ERR Protocol error antes de cerrarse
+ */
+public class RespParser {
+
+    private static final int MAX_ARGS = 1024 * 1024;
+    private static final int MAX_BULK_LENGTH = 512 * 1024 * 1024;
+    private static final int MAX_INLINE_LENGTH = 64 * 1024;
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+    // por encima de este tamaño un buffer vacío se reduce para no retener memoria en clientes inactivos
+    private static final int SHRINK_THRESHOLD = 64 * 1024;
+
+    // estado de la trama en curso; los offsets son relativos a su inicio
+    private int expectedArgs = -1;
+    private int bulkLength = -1;
+    private int cursor;
+
+    /**
+     * Trama RESP mal formada; el mensaje es el motivo que se envía al cliente
+     */
+    public static class ProtocolException extends IOException {
+        public ProtocolException(String reason) {
+            super(reason);
+        }
+    }
+
+    public static ByteBuffer allocateBuffer() {
+        return ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    }
+
+    /**
+     * Intenta decodificar el siguiente comando a partir de la posición del buffer
+     * (en modo lectura). Si la trama está completa rellena args, avanza la posición
+     * y devuelve true; si no, devuelve false sin consumir nada
+     */
+    public boolean parse(ByteBuffer buffer, CommandArgs args) throws IOException {
+        byte[] data = buffer.array();
+        int start = buffer.arrayOffset() + buffer.position();
+        int limit = buffer.arrayOffset() + buffer.limit();
+
+        while (true) {
+            int pos = start + cursor;
+            if (expectedArgs < 0) {
+                if (pos >= limit) {
+                    return false;
+                }
+                args.reset();
+                if (data[pos] != '*') {
+                    return parseInline(buffer, data, start, limit, args);
+                }
+                int lineEnd = findCrlf(data, pos + 1, limit);
+                if (lineEnd < 0) {
+                    checkLineLength(limit - pos, "too big mbulk count string");
+                    return false;
+                }
+                int numArgs = parseLength(data, pos + 1, lineEnd, "invalid multibulk length");
+                if (numArgs > MAX_ARGS) {
+                    throw new ProtocolException("invalid multibulk length");
+                }
+                cursor = lineEnd + 2 - start;
+                if (numArgs <= 0) {
+                    // *0 o *-1: trama vacía, se descarta y se sigue con la siguiente
+                    buffer.position(buffer.position() + cursor);
+                    start += cursor;
+                    cursor = 0;
+                    continue;
+                }
+                expectedArgs = numArgs;
+                pos = start + cursor;
+            }
+
+            while (args.count() < expectedArgs) {
+                if (bulkLength < 0) {
+                    if (pos >= limit) {
+                        return false;
+                    }
+                    if (data[pos] != '$') {
+                        throw new ProtocolException("expected '$', got '" + (char) data[pos] + "'");
+                    }
+                    int lineEnd = findCrlf(data, pos + 1, limit);
+                    if (lineEnd < 0) {
+                        checkLineLength(limit - pos, "too big bulk count string");
+                        return false;
+                    }
+                    bulkLength = parseLength(data, pos + 1, lineEnd, "invalid bulk length");
+                    if (bulkLength < 0 || bulkLength > MAX_BULK_LENGTH) {
+                        throw new ProtocolException("invalid bulk length");
+                    }
+                    pos = lineEnd + 2;
+                    cursor = pos - start;
+                }
+                if (limit - pos < bulkLength + 2) {
+                    return false;
+                }
+                if (data[pos + bulkLength] != '\r' || data[pos + bulkLength + 1] != '\n') {
+                    throw new ProtocolException("expected CRLF after bulk string");
+                }
+                args.add(pos - start, bulkLength);
+                pos += bulkLength + 2;
+                cursor = pos - start;
+                bulkLength = -1;
+            }
+
+            args.bind(data, start);
+            buffer.position(pos - buffer.arrayOffset());
+            expectedArgs = -1;
+            cursor = 0;
+            return true;
+        }
+    }
+
+    /**
+     * Bytes que necesita como mínimo la trama en curso para poder completarse
+     */
+    public int requiredCapacity() {
+        return cursor + (bulkLength >= 0 ? bulkLength + 2 : 0);
+    }
+
+    /**
+     * Compacta el buffer tras consumir las tramas completas y lo prepara para la
+     * siguiente lectura, ampliándolo si la trama pendiente no cabe o reduciéndolo
+     * si quedó vacío tras un comando grande
+     */
+    public ByteBuffer compact(ByteBuffer buffer) {
+        buffer.compact();
+        if (buffer.position() == 0 && buffer.capacity() > SHRINK_THRESHOLD) {
+            return allocateBuffer();
+        }
+        int required = Math.max(requiredCapacity(), buffer.position() + 1);
+        if (required > buffer.capacity() || !buffer.hasRemaining()) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(required, buffer.capacity() * 2));
+            buffer.flip();
+            bigger.put(buffer);
+            return bigger;
+        }
+        return buffer;
+    }
+
+    /**
+     * Comando inline: una línea con los argumentos separados por espacios
+     */
+    private boolean parseInline(ByteBuffer buffer, byte[] data, int start, int limit, CommandArgs args)
+            throws IOException {
+        int lineEnd = findLf(data, start, limit);
+        if (lineEnd < 0) {
+            checkLineLength(limit - start, "too big inline request");
+            return false;
+        }
+        int end = (lineEnd > start && data[lineEnd - 1] == '\r') ? lineEnd - 1 : lineEnd;
+        int i = start;
+        while (i < end) {
+            while (i < end && data[i] == ' ') {
+                i++;
+            }
+            int argStart = i;
+            while (i < end && data[i] != ' ') {
+                i++;
+            }
+            if (i > argStart) {
+                args.add(argStart - start, i - argStart);
+            }
+        }
+        args.bind(data, start);
+        buffer.position(lineEnd + 1 - buffer.arrayOffset());
+        return true;
+    }
+
+    private static void checkLineLength(int length, String reason) throws IOException {
+        if (length > MAX_INLINE_LENGTH) {
+            throw new ProtocolException(reason);
+        }
+    }
+
+    private static int findCrlf(byte[] data, int from, int limit) {
+        for (int i = from; i < limit - 1; i++) {
+            if (data[i] == '\r' && data[i + 1] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int findLf(byte[] data, int from, int limit) {
+        for (int i = from; i < limit; i++) {
+            if (data[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int parseLength(byte[] data, int from, int to, String reason) throws IOException {
+        if (from >= to || to - from > 10) {
+            throw new ProtocolException(reason);
+        }
+        boolean negative = data[from] == '-';
+        long value = 0;
+        for (int i = negative ? from + 1 : from; i < to; i++) {
+            int digit = data[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new ProtocolException(reason);
+            }
+            value = value * 10 + digit;
+        }
+        if (value > Integer.MAX_VALUE) {
+            throw new ProtocolException(reason);
+        }
+        return negative ? (int) -value : (int) value;
+    }
+}
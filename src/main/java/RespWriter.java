@@ -0,0 +1,275 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Codificador de respuestas RESP y buffer de salida de una conexión.
+ *
+ * Cada conexión reutiliza el suyo: las respuestas fijas se copian desde arrays
+ * estáticos, los enteros y longitudes se escriben dígito a dígito en el buffer
+ * y los bulk strings se copian desde los bytes guardados, sin crear Strings
+ * intermedios. Las respuestas de todos los comandos de una misma lectura se
+ * acumulan aquí y se envían con una sola escritura
+ */
+public class RespWriter {
+
+    public static final byte[] OK = ascii("+OK\r\n");
+    public static final byte[] PONG = ascii("+PONG\r\n");
+    public static final byte[] NULL_BULK = ascii("$-1\r\n");
+    public static final byte[] NULL_ARRAY = ascii("*-1\r\n");
+    public static final byte[] EMPTY_ARRAY = ascii("*0\r\n");
+    public static final byte[] QUEUED = ascii("+QUEUED\r\n");
+    private static final byte[] CRLF = ascii("\r\n");
+    private static final byte[] MIN_LONG = ascii("-9223372036854775808");
+
+    // a partir de este tamaño se vacía el buffer aunque queden comandos por ejecutar
+    public static final int FLUSH_THRESHOLD = 64 * 1024;
+    private static final int INITIAL_SIZE = 1024;
+
+    private byte[] buffer = new byte[INITIAL_SIZE];
+    private ByteBuffer view = ByteBuffer.wrap(buffer);
+    private int count;      // bytes escritos
+    private int flushed;    // bytes ya enviados en escrituras parciales (NIO)
+
+    public void writeOk() {
+        writeRaw(OK);
+    }
+
+    public void writeNullBulk() {
+        writeRaw(NULL_BULK);
+    }
+
+    /**
+     * Respuesta ya codificada en RESP, normalmente una constante
+     */
+    public void writeRaw(byte[] encoded) {
+        write(encoded, 0, encoded.length);
+    }
+
+    /**
+     * Bytes ya codificados en RESP que vienen de otro buffer (registros del AOF y del backlog)
+     */
+    public void writeRaw(ByteBuffer encoded) {
+        int length = encoded.remaining();
+        ensureCapacity(length);
+        encoded.get(buffer, count, length);
+        count += length;
+    }
+
+    public void writeSimpleString(String value) {
+        writeByte('+');
+        writeAscii(value);
+        writeRaw(CRLF);
+    }
+
+    /**
+     * Error RESP con su código (ERR, WRONGTYPE, MOVED...) y el mensaje
+     */
+    public void writeError(String code, String message) {
+        writeByte('-');
+        writeAscii(code);
+        writeByte(' ');
+        byte[] bytes = message.replace('\r', ' ').replace('\n', ' ').getBytes(StandardCharsets.UTF_8);
+        write(bytes, 0, bytes.length);
+        writeRaw(CRLF);
+    }
+
+    public void writeError(CommandException error) {
+        writeError(error.getCode(), error.getMessage());
+    }
+
+    public void writeInteger(long value) {
+        writeByte(':');
+        writeDecimal(value);
+        writeRaw(CRLF);
+    }
+
+    public void writeArrayHeader(int length) {
+        writeByte('*');
+        writeDecimal(length);
+        writeRaw(CRLF);
+    }
+
+    public void writeBulk(byte[] value) {
+        writeBulk(value, 0, value.length);
+    }
+
+    public void writeBulk(byte[] value, int offset, int length) {
+        writeByte('$');
+        writeDecimal(length);
+        writeRaw(CRLF);
+        write(value, offset, length);
+        writeRaw(CRLF);
+    }
+
+    /**
+     * Bulk string a partir de un String: la longitud es la de su codificación UTF-8
+     */
+    public void writeBulk(String value) {
+        writeBulk(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Bulk string con la representación decimal de un entero
+     */
+    public void writeBulk(long value) {
+        int digits = decimalLength(value);
+        writeByte('$');
+        writeDecimal(digits);
+        writeRaw(CRLF);
+        writeDecimal(value);
+        writeRaw(CRLF);
+    }
+
+    /**
+     * Bytes pendientes de enviar
+     */
+    public int pending() {
+        return count - flushed;
+    }
+
+    public boolean isFull() {
+        return pending() >= FLUSH_THRESHOLD;
+    }
+
+    /**
+     * Envía todo lo pendiente a un stream bloqueante
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        if (pending() > 0) {
+            out.write(buffer, flushed, pending());
+            out.flush();
+        }
+        reset();
+    }
+
+    /**
+     * Envía lo que acepte un canal no bloqueante
+     *
+     * @return true si no queda nada pendiente
+     */
+    public boolean writeTo(WritableByteChannel channel) throws IOException {
+        if (pending() > 0) {
+            view.limit(count).position(flushed);
+            channel.write(view);
+            flushed = view.position();
+            if (pending() > 0) {
+                return false;
+            }
+        }
+        reset();
+        return true;
+    }
+
+    /**
+     * Bytes pendientes sin consumirlos, como vista de solo lectura del buffer interno.
+     * Deja de ser válida al escribir de nuevo en este RespWriter
+     */
+    public ByteBuffer pendingBuffer() {
+        return ByteBuffer.wrap(buffer, flushed, pending()).asReadOnlyBuffer();
+    }
+
+    /**
+     * Copia de los bytes pendientes, sin consumirlos
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOfRange(buffer, flushed, count);
+    }
+
+    /**
+     * Descarta lo pendiente (tras enviarlo por otro camino, ver pendingBuffer)
+     */
+    public void clear() {
+        reset();
+    }
+
+    private void writeByte(int b) {
+        ensureCapacity(1);
+        buffer[count++] = (byte) b;
+    }
+
+    private void write(byte[] b, int off, int len) {
+        ensureCapacity(len);
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+    }
+
+    private void writeAscii(String value) {
+        int length = value.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            buffer[count++] = (byte) value.charAt(i);
+        }
+    }
+
+    /**
+     * Escribe los dígitos de un entero directamente en el buffer
+     */
+    private void writeDecimal(long value) {
+        if (value == Long.MIN_VALUE) {
+            writeRaw(MIN_LONG);
+            return;
+        }
+        int length = decimalLength(value);
+        ensureCapacity(length);
+        int end = count + length;
+        long remaining = Math.abs(value);
+        int pos = end;
+        do {
+            buffer[--pos] = (byte) ('0' + remaining % 10);
+            remaining /= 10;
+        } while (remaining != 0);
+        if (value < 0) {
+            buffer[--pos] = '-';
+        }
+        count = end;
+    }
+
+    private static int decimalLength(long value) {
+        if (value == Long.MIN_VALUE) {
+            return MIN_LONG.length;
+        }
+        int length = value < 0 ? 2 : 1;
+        long remaining = Math.abs(value);
+        while (remaining >= 10) {
+            remaining /= 10;
+            length++;
+        }
+        return length;
+    }
+
+    private void reset() {
+        count = 0;
+        flushed = 0;
+        if (buffer.length > FLUSH_THRESHOLD * 2) {
+            buffer = new byte[INITIAL_SIZE];
+            view = ByteBuffer.wrap(buffer);
+        }
+    }
+
+    private void ensureCapacity(int extra) {
+        if (count + extra <= buffer.length) {
+            return;
+        }
+        if (flushed > 0) {
+            // descartamos lo ya enviado antes de crecer
+            System.arraycopy(buffer, flushed, buffer, 0, count - flushed);
+            count -= flushed;
+            flushed = 0;
+            if (count + extra <= buffer.length) {
+                return;
+            }
+        }
+        byte[] bigger = new byte[Math.max(count + extra, buffer.length * 2)];
+        System.arraycopy(buffer, 0, bigger, 0, count);
+        buffer = bigger;
+        view = ByteBuffer.wrap(buffer);
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Operaciones de los sets sobre la ranura de su clave, con el lock del shard ya tomado
+ * (ver Keyspace). Un set pequeño es un listpack de miembros dentro de la propia entrada;
+ * al pasar de MAX_LISTPACK_ENTRIES miembros o tener uno de más de MAX_LISTPACK_VALUE
+ * bytes se convierte en un LargeSet, como set-max-listpack-entries / -value de Redis
+ */
+public final class Sets {
+
+    static final int MAX_LISTPACK_ENTRIES = 128;
+    static final int MAX_LISTPACK_VALUE = 64;
+
+    private Sets() {
+    }
+
+    /**
+     * SADD key member [member ...]
+     *
+     * @return miembros nuevos
+     */
+    static long add(KeyTable table, int slot, int hash, CommandArgs args, int keyIndex, int first) {
+        byte[] buffer = args.buffer();
+        byte[] entry = slot < 0 ? null : table.entryAt(slot);
+        LargeSet large = null;
+        if (entry != null && Entries.isObject(entry)) {
+            large = (LargeSet) table.valueAt(slot);
+            table.beforeMutate(slot);
+        } else {
+            byte[] lp = entry == null ? Listpack.EMPTY : entry;
+            int base = entry == null ? 0 : Entries.valueOffset(entry);
+            Listpack.Builder insert = new Listpack.Builder();
+            boolean fits = true;
+            for (int i = first; i < args.count() && fits; i++) {
+                fits = args.length(i) <= MAX_LISTPACK_VALUE
+                        && Listpack.count(lp, base) + insert.count() <= MAX_LISTPACK_ENTRIES;
+                if (fits && Listpack.find(lp, base, buffer, args.offset(i), args.length(i), 1) < 0
+                        && !insert.contains(buffer, args.offset(i), args.length(i))) {
+                    insert.add(buffer, args.offset(i), args.length(i));
+                }
+            }
+            if (fits && Listpack.count(lp, base) + insert.count() <= MAX_LISTPACK_ENTRIES) {
+                if (insert.count() > 0) {
+                    int end = Listpack.end(lp, base);
+                    Keyspace.storeListpack(table, slot, hash, args, keyIndex, Entries.TYPE_SET,
+                            Listpack.splice(lp, base, end, end, 0, insert.build()));
+                }
+                return insert.count();
+            }
+            large = LargeSet.fromListpack(lp, base);
+            Keyspace.storeObject(table, slot, hash, args, keyIndex, Entries.TYPE_SET, large);
+        }
+        long added = 0;
+        for (int i = first; i < args.count(); i++) {
+            if (large.add(buffer, args.offset(i), args.length(i))) {
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * SMEMBERS
+     */
+    static void members(byte[] entry, LargeValue value, RespWriter out) {
+        if (entry == null) {
+            out.writeRaw(RespWriter.EMPTY_ARRAY);
+        } else if (value != null) {
+            out.writeArrayHeader(value.size());
+            for (Bytes member : ((LargeSet) value).members()) {
+                out.writeBulk(member.data());
+            }
+        } else {
+            Listpack.writeAll(entry, Entries.valueOffset(entry), out);
+        }
+    }
+
+    /**
+     * SISMEMBER
+     */
+    static boolean isMember(byte[] entry, LargeValue value, CommandArgs args, int memberIndex) {
+        if (entry == null) {
+            return false;
+        }
+        if (value != null) {
+            return ((LargeSet) value).contains(args.buffer(), args.offset(memberIndex), args.length(memberIndex));
+        }
+        return Listpack.find(entry, Entries.valueOffset(entry), args.buffer(),
+                args.offset(memberIndex), args.length(memberIndex), 1) >= 0;
+    }
+
+    static boolean fitsListpack(byte[] lp, int base) {
+        return Listpack.count(lp, base) <= MAX_LISTPACK_ENTRIES && Keyspace.elementsFit(lp, base, MAX_LISTPACK_VALUE);
+    }
+}
@@ -0,0 +1,68 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Claves de cada hash slot de una KeyTable, solo en modo cluster, para que
+ * CLUSTER COUNTKEYSINSLOT y GETKEYSINSLOT (y con ellos la migración de un slot) no
+ * tengan que recorrer toda la tabla; es el slot_to_keys de Redis.
+ * Lo mantiene la tabla al insertar y borrar claves, así que lo protege el mismo lock
+ */
+public class SlotIndex {
+
+    // una posición por slot, null mientras no tenga claves en la tabla
+    private final List<Set<Bytes>> keys = new ArrayList<>(Collections.nCopies(Cluster.SLOTS, null));
+
+    public void add(byte[] entry) {
+        int slot = slotOf(entry);
+        Set<Bytes> slotKeys = keys.get(slot);
+        if (slotKeys == null) {
+            slotKeys = new HashSet<>();
+            keys.set(slot, slotKeys);
+        }
+        slotKeys.add(keyOf(entry));
+    }
+
+    public void remove(byte[] entry) {
+        int slot = slotOf(entry);
+        Set<Bytes> slotKeys = keys.get(slot);
+        if (slotKeys != null && slotKeys.remove(keyOf(entry)) && slotKeys.isEmpty()) {
+            keys.set(slot, null);
+        }
+    }
+
+    public void clear() {
+        Collections.fill(keys, null);
+    }
+
+    public int count(int slot) {
+        Set<Bytes> slotKeys = keys.get(slot);
+        return slotKeys == null ? 0 : slotKeys.size();
+    }
+
+    /**
+     * Añade a out claves del slot hasta que tenga max
+     */
+    public void collect(int slot, int max, List<byte[]> out) {
+        Set<Bytes> slotKeys = keys.get(slot);
+        if (slotKeys == null) {
+            return;
+        }
+        for (Bytes key : slotKeys) {
+            if (out.size() >= max) {
+                return;
+            }
+            out.add(key.data());
+        }
+    }
+
+    private static int slotOf(byte[] entry) {
+        return Cluster.keySlot(entry, Entries.keyOffset(entry), Entries.keyLength(entry));
+    }
+
+    private static Bytes keyOf(byte[] entry) {
+        return Bytes.copyOf(entry, Entries.keyOffset(entry), Entries.keyLength(entry));
+    }
+}
@@ -0,0 +1,150 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Foto de un instante del almacén para SAVE/BGSAVE, BGREWRITEAOF y la sincronización de las
+ * réplicas, sin copiar el mapa ni bloquear a los clientes.
+ *
+ * Se activa al crearla, en todos los shards a la vez. Después recorre la tabla de cada
+ * shard por tramos escribiendo las entradas que existían al activarse; las que un cliente
+ * sustituye o borra antes de que lleguemos a ellas las guarda la propia tabla (copia en escritura, ver KeyTable) y se escriben
+ * al final. Como un borrado o un resize puede mover entradas ya pasadas por el recorrido,
+ * se repiten vueltas hasta que no queda ninguna entrada de la foto sin escribir
+ */
+public class Snapshot {
+
+    // ranuras por cada toma del lock
+    private static final int CHUNK_SLOTS = 4096;
+
+    private final Keyspace keyspace;
+
+    public Snapshot(Keyspace keyspace) {
+        this.keyspace = keyspace;
+        keyspace.beginSnapshot();
+    }
+
+    /**
+     * Escribe la foto en un fichero temporal junto al destino y lo renombra
+     * atómicamente al terminar
+     */
+    public Result writeTo(Path target) throws IOException {
+        long start = System.nanoTime();
+        Path temp = target.resolveSibling("temp-" + ProcessHandle.current().pid() + ".rdb");
+        Result result;
+        try (RdbWriter writer = new RdbWriter(FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))) {
+            result = write(writer, start);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return result;
+    }
+
+    /**
+     * Envía la foto en formato RDB por un canal sin pasar por disco (sincronización
+     * completa de una réplica). El canal no se cierra
+     */
+    public Result writeTo(WritableByteChannel channel) throws IOException {
+        return write(new RdbWriter(channel), System.nanoTime());
+    }
+
+    private Result write(RdbWriter writer, long start) throws IOException {
+        writer.writeHeader();
+        writer.writeAux("redis-ver", "7.2.0");
+        writer.writeAux("redis-bits", "64");
+        writer.writeAux("ctime", String.valueOf(System.currentTimeMillis() / 1000));
+        writer.writeSelectDb(0);
+        writer.writeResizeDb(keyspace.size(), keyspace.expiresCount());
+        // IDLE / FREQ según la política de desalojo, para que sobrevivan al reinicio
+        Eviction eviction = keyspace.getEviction();
+        long count = visit((entry, access) ->
+                writer.writeEntry(entry, eviction.idleSeconds(access), eviction.frequency(access)));
+        writer.finish();
+        return new Result(count, writer.bytesWritten(), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Pasa cada entrada de la foto a sink, una sola vez, y la termina. Si sink falla
+     * se termina igualmente de marcar la foto para que la siguiente empiece limpia
+     *
+     * @return entradas visitadas
+     */
+    public long visit(EntrySink sink) throws IOException {
+        long count = 0;
+        try {
+            List<byte[]> batch = new ArrayList<>();
+            int[] access = new int[CHUNK_SLOTS];
+            while (keyspace.snapshotRemaining() > 0) {
+                for (int shard = 0; shard < keyspace.shardCount(); shard++) {
+                    for (int slot = 0; slot >= 0; ) {
+                        batch.clear();
+                        slot = keyspace.snapshotChunk(shard, slot, CHUNK_SLOTS, batch, access);
+                        for (int i = 0; i < batch.size(); i++) {
+                            sink.accept(batch.get(i), access[i]);
+                        }
+                        count += batch.size();
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            abort();
+            throw e;
+        }
+        // de las sustituidas o borradas durante la foto no se conserva el acceso
+        for (byte[] entry : keyspace.endSnapshot()) {
+            sink.accept(entry, Eviction.NO_ACCESS);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Termina de marcar la foto sin escribirla
+     */
+    public void abort() {
+        List<byte[]> discarded = new ArrayList<>();
+        int[] access = new int[CHUNK_SLOTS];
+        while (keyspace.snapshotRemaining() > 0) {
+            for (int shard = 0; shard < keyspace.shardCount(); shard++) {
+                for (int slot = 0; slot >= 0; ) {
+                    discarded.clear();
+                    slot = keyspace.snapshotChunk(shard, slot, CHUNK_SLOTS, discarded, access);
+                }
+            }
+        }
+        keyspace.endSnapshot();
+    }
+
+    /**
+     * Destino de las entradas de la foto (RDB o reescritura del AOF), con el acceso de
+     * cada una para el desalojo o Eviction.NO_ACCESS
+     */
+    @FunctionalInterface
+    public interface EntrySink {
+        void accept(byte[] entry, int access) throws IOException;
+    }
+
+    /**
+     * Resumen de un volcado
+     */
+    public static class Result {
+        public final long keys;
+        public final long bytes;
+        public final long millis;
+
+        Result(long keys, long bytes, long millis) {
+            this.keys = keys;
+            this.bytes = bytes;
+            this.millis = millis;
+        }
+    }
+}
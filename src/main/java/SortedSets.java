@@ -0,0 +1,305 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Operaciones de los sorted sets sobre la ranura de su clave, con el lock del shard ya
+ * tomado (ver Keyspace). Siempre van en un ZSet (skiplist más índice por miembro); el
+ * listpack solo aparece en las fotos y en el RDB, donde los pequeños se guardan como
+ * ZSET_LISTPACK igual que en Redis (zset-max-listpack-entries / -value)
+ */
+public final class SortedSets {
+
+    static final int MAX_LISTPACK_ENTRIES = 128;
+    static final int MAX_LISTPACK_VALUE = 64;
+
+    // opciones de ZADD
+    public static final int ADD_NX = 1;
+    public static final int ADD_XX = 2;
+    public static final int ADD_GT = 4;
+    public static final int ADD_LT = 8;
+    public static final int ADD_CH = 16;
+
+    private static final String NOT_A_FLOAT = "value is not a valid float";
+
+    private SortedSets() {
+    }
+
+    /**
+     * Lo que ha hecho un ZADD o un ZINCRBY. Solo se propaga (AOF y réplicas) si ha cambiado
+     * algo: XX sobre una clave que no existe, NX sobre un miembro que ya está, GT/LT que no
+     * se cumplen o un score igual al que había no tocan el sorted set
+     */
+    static final class AddResult {
+        long added;
+        long changed;
+        // ZINCRBY: el score del miembro, o NaN si las opciones impiden el cambio
+        double score = Double.NaN;
+
+        boolean isModified() {
+            return added + changed > 0;
+        }
+
+        /**
+         * @return respuesta de ZADD: miembros nuevos (más los cambiados con ADD_CH)
+         */
+        long reply(int flags) {
+            return (flags & ADD_CH) != 0 ? added + changed : added;
+        }
+    }
+
+    /**
+     * ZADD key [opciones] score member [score member ...]
+     *
+     * @param scores scores ya validados, uno por par
+     * @return miembros nuevos y miembros que cambian de score
+     */
+    static AddResult add(KeyTable table, int slot, int hash, CommandArgs args, int keyIndex, int first,
+                    double[] scores, int flags) {
+        AddResult result = new AddResult();
+        ZSet zset;
+        if (slot >= 0) {
+            zset = (ZSet) table.valueAt(slot);
+            table.beforeMutate(slot);
+        } else if ((flags & ADD_XX) != 0) {
+            return result;
+        } else {
+            zset = new ZSet();
+        }
+        for (int i = first, k = 0; i < args.count(); i += 2, k++) {
+            Bytes member = Bytes.copyOf(args.buffer(), args.offset(i + 1), args.length(i + 1));
+            double current = zset.score(member);
+            if (Double.isNaN(current)) {
+                if ((flags & ADD_XX) == 0) {
+                    zset.put(member, scores[k]);
+                    result.added++;
+                }
+            } else if (allowsUpdate(flags, current, scores[k]) && current != scores[k]) {
+                zset.put(member, scores[k]);
+                result.changed++;
+            }
+        }
+        if (slot < 0 && zset.size() > 0) {
+            Keyspace.storeObject(table, slot, hash, args, keyIndex, Entries.TYPE_ZSET, zset);
+        }
+        return result;
+    }
+
+    /**
+     * ZINCRBY (y ZADD INCR) sobre un miembro
+     *
+     * @return el nuevo score (NaN si las opciones impiden el cambio) y si el miembro es
+     *         nuevo o ha cambiado de score
+     */
+    static AddResult incrBy(KeyTable table, int slot, int hash, CommandArgs args, int keyIndex, int memberIndex,
+                         double increment, int flags) {
+        AddResult result = new AddResult();
+        ZSet zset;
+        if (slot >= 0) {
+            zset = (ZSet) table.valueAt(slot);
+        } else if ((flags & ADD_XX) != 0) {
+            return result;
+        } else {
+            zset = new ZSet();
+        }
+        Bytes member = Bytes.copyOf(args.buffer(), args.offset(memberIndex), args.length(memberIndex));
+        double current = zset.score(member);
+        double score;
+        if (Double.isNaN(current)) {
+            if ((flags & ADD_XX) != 0) {
+                return result;
+            }
+            score = increment;
+            result.added = 1;
+        } else {
+            score = current + increment;
+            if (Double.isNaN(score)) {
+                throw new CommandException("resulting score is not a number (NaN)");
+            }
+            if (!allowsUpdate(flags, current, score)) {
+                return result;
+            }
+            if (score == current) {
+                result.score = score;
+                return result;
+            }
+            result.changed = 1;
+        }
+        result.score = score;
+        if (slot >= 0) {
+            table.beforeMutate(slot);
+        }
+        zset.put(member, score);
+        if (slot < 0) {
+            Keyspace.storeObject(table, slot, hash, args, keyIndex, Entries.TYPE_ZSET, zset);
+        }
+        return result;
+    }
+
+    /**
+     * ZREM key member [member ...]; borra la clave si se queda vacío
+     *
+     * @return miembros borrados
+     */
+    static long remove(KeyTable table, int slot, CommandArgs args, int first) {
+        if (slot < 0) {
+            return 0;
+        }
+        ZSet zset = (ZSet) table.valueAt(slot);
+        table.beforeMutate(slot);
+        long removed = 0;
+        for (int i = first; i < args.count(); i++) {
+            if (zset.remove(Bytes.copyOf(args.buffer(), args.offset(i), args.length(i)))) {
+                removed++;
+            }
+        }
+        if (zset.size() == 0) {
+            table.removeAt(slot);
+        }
+        return removed;
+    }
+
+    /**
+     * ZRANGE / ZREVRANGE por posición: de start a stop (inclusive, negativos desde el
+     * final). Los miembros se escriben recorriendo la skiplist, sin lista intermedia
+     */
+    static void range(LargeValue value, long start, long stop, boolean reverse, boolean withScores, RespWriter out) {
+        int size = value == null ? 0 : value.size();
+        if (start < 0) {
+            start += size;
+        }
+        if (stop < 0) {
+            stop += size;
+        }
+        start = Math.max(start, 0);
+        stop = Math.min(stop, size - 1);
+        if (start > stop) {
+            out.writeRaw(RespWriter.EMPTY_ARRAY);
+            return;
+        }
+        int count = (int) (stop - start + 1);
+        out.writeArrayHeader(withScores ? count * 2 : count);
+        ((ZSet) value).writeRange((int) start, (int) stop, reverse, withScores, out);
+    }
+
+    /**
+     * ZRANGEBYSCORE: el número de miembros del intervalo sale de las posiciones de sus
+     * extremos (dos descensos por la skiplist), así que la cabecera se escribe antes de
+     * recorrerlos
+     *
+     * @param limit máximo de miembros, negativo para todos
+     */
+    static void rangeByScore(LargeValue value, double min, boolean minExclusive, double max, boolean maxExclusive,
+                             long offset, long limit, boolean withScores, RespWriter out) {
+        if (value == null || offset < 0) {
+            out.writeRaw(RespWriter.EMPTY_ARRAY);
+            return;
+        }
+        ZSet zset = (ZSet) value;
+        int first = zset.countBelow(min, minExclusive);
+        int end = zset.countBelow(max, !maxExclusive);
+        long start = first + offset;
+        long count = end - start;
+        if (limit >= 0) {
+            count = Math.min(count, limit);
+        }
+        if (count <= 0) {
+            out.writeRaw(RespWriter.EMPTY_ARRAY);
+            return;
+        }
+        out.writeArrayHeader((int) (withScores ? count * 2 : count));
+        zset.writeRange((int) start, (int) (start + count - 1), false, withScores, out);
+    }
+
+    static boolean fitsListpack(byte[] lp, int base) {
+        return Listpack.count(lp, base) / 2 <= MAX_LISTPACK_ENTRIES && Keyspace.elementsFit(lp, base, MAX_LISTPACK_VALUE);
+    }
+
+    /**
+     * Score de ZADD / ZINCRBY: un double o inf, +inf, -inf
+     */
+    static double parseScore(byte[] value) {
+        if (isInfinity(value, 0)) {
+            return Double.POSITIVE_INFINITY;
+        }
+        if (value.length > 0 && value[0] == '+' && isInfinity(value, 1)) {
+            return Double.POSITIVE_INFINITY;
+        }
+        if (value.length > 0 && value[0] == '-' && isInfinity(value, 1)) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        try {
+            return Keyspace.parseDouble(value);
+        } catch (CommandException e) {
+            throw new CommandException(NOT_A_FLOAT);
+        }
+    }
+
+    /**
+     * Extremo de un intervalo de ZRANGEBYSCORE: un score, precedido de ( si es exclusivo
+     *
+     * @return el score; exclusive[0] dice si llevaba (
+     */
+    static double parseBound(byte[] value, boolean[] exclusive) {
+        exclusive[0] = value.length > 0 && value[0] == '(';
+        byte[] score = exclusive[0] ? Arrays.copyOfRange(value, 1, value.length) : value;
+        try {
+            return parseScore(score);
+        } catch (CommandException e) {
+            throw new CommandException("min or max is not a float");
+        }
+    }
+
+    /**
+     * Texto de un score como lo responde Redis: entero sin decimales si lo es, inf / -inf,
+     * y si no la representación más corta que vuelve al mismo double
+     */
+    static String formatScore(double score) {
+        if (Double.isInfinite(score)) {
+            return score > 0 ? "inf" : "-inf";
+        }
+        if (score == Math.rint(score) && Math.abs(score) < 1e17) {
+            return Long.toString((long) score);
+        }
+        String text = Double.toString(score);
+        int exponent = text.indexOf('E');
+        if (exponent < 0) {
+            return text;
+        }
+        String mantissa = text.substring(0, exponent);
+        if (mantissa.endsWith(".0")) {
+            mantissa = mantissa.substring(0, mantissa.length() - 2);
+        }
+        int power = Integer.parseInt(text.substring(exponent + 1));
+        return mantissa + (power < 0 ? "e-" : "e+") + (Math.abs(power) < 10 ? "0" : "") + Math.abs(power);
+    }
+
+    /**
+     * Escribe un score como bulk string; los enteros sin pasar por un String
+     */
+    static void writeScore(double score, RespWriter out) {
+        if (score == Math.rint(score) && Math.abs(score) < 1e17) {
+            out.writeBulk((long) score);
+        } else {
+            out.writeBulk(formatScore(score));
+        }
+    }
+
+    static byte[] formatScoreBytes(double score) {
+        return formatScore(score).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static boolean allowsUpdate(int flags, double current, double score) {
+        if ((flags & ADD_NX) != 0) {
+            return false;
+        }
+        if ((flags & ADD_GT) != 0 && score <= current) {
+            return false;
+        }
+        return (flags & ADD_LT) == 0 || score < current;
+    }
+
+    private static boolean isInfinity(byte[] value, int offset) {
+        return value.length - offset == 3
+                && (value[offset] | 0x20) == 'i' && (value[offset + 1] | 0x20) == 'n' && (value[offset + 2] | 0x20) == 'f';
+    }
+}
@@ -0,0 +1,264 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Transacciones: MULTI, EXEC, DISCARD, WATCH y UNWATCH.
+ *
+ * Tras MULTI cada comando se resuelve una sola vez en la tabla de comandos, que también
+ * comprueba cuántos argumentos trae, y se encola con una copia de ellos ya decodificados;
+ * EXEC los ejecuta seguidos con todo el Keyspace bloqueado, sin volver a buscarlos ni
+ * enviar nada entre uno y otro, y responde con un único array. Sus escrituras se
+ * registran entre MULTI y EXEC (ver CommandLog).
+ *
+ * WATCH es optimista: no bloquea nada, solo anota la versión de cada clave (ver
+ * Keyspace.version) y EXEC, ya con el Keyspace bloqueado, aborta si alguna ha cambiado.
+ *
+ * Quien espera en BLPOP / BRPOP / BLMOVE una lista a la que la transacción añade algo se
+ * atiende al terminar EXEC, con la lista ya como la dejó el último comando, y no a mitad.
+ *
+ * El estado de cada conexión (State) lo guarda su Client y solo lo toca su hilo
+ */
+public class Transaction {
+
+    private static final String NOT_ALLOWED = "Command not allowed inside a transaction";
+    // comandos que no se pueden encolar porque traspasan la conexión
+    private static final String[] NOT_QUEUED = {"PSYNC"};
+
+    private final Keyspace keyspace;
+    private final CommandLog log;
+    private final BlockingLists blockingLists;
+
+    public Transaction(Keyspace keyspace, CommandLog log, BlockingLists blockingLists) {
+        this.keyspace = keyspace;
+        this.log = log;
+        this.blockingLists = blockingLists;
+    }
+
+    /**
+     * Estado de la transacción de una conexión
+     */
+    public static final class State {
+        // null fuera de MULTI
+        private List<ClientCommand> commands;
+        private List<CommandArgs> args;
+        // algún comando no se pudo encolar: EXEC responderá EXECABORT
+        private boolean failed;
+        private final List<byte[]> watchedKeys = new ArrayList<>();
+        private final List<Long> watchedVersions = new ArrayList<>();
+        // dentro de EXEC, y si había memoria al empezar (ver isMemoryAvailable)
+        private boolean executing;
+        private boolean memoryAvailable;
+        // listas a las que EXEC ha añadido elementos y tienen esperas, a atender al terminar
+        private final Set<Bytes> readyKeys = new LinkedHashSet<>();
+
+        public boolean isInMulti() {
+            return commands != null;
+        }
+
+        public boolean isExecuting() {
+            return executing;
+        }
+
+        /**
+         * Lo consulta denyOom dentro de EXEC: con el Keyspace bloqueado no se puede
+         * desalojar, así que vale la comprobación que EXEC hizo antes de bloquearlo
+         */
+        public boolean isMemoryAvailable() {
+            return memoryAvailable;
+        }
+
+        /**
+         * Dentro de EXEC: la clave tiene elementos nuevos y puede haber quien espere en ella
+         */
+        public void addReadyKey(byte[] key) {
+            readyKeys.add(new Bytes(key));
+        }
+
+        private List<byte[]> takeReadyKeys() {
+            List<byte[]> keys = new ArrayList<>(readyKeys.size());
+            for (Bytes key : readyKeys) {
+                keys.add(key.data());
+            }
+            readyKeys.clear();
+            return keys;
+        }
+
+        private void unwatch() {
+            watchedKeys.clear();
+            watchedVersions.clear();
+        }
+
+        private void endMulti() {
+            commands = null;
+            args = null;
+            failed = false;
+            unwatch();
+        }
+    }
+
+    /**
+     * Comando MULTI
+     */
+    public ClientCommand createMultiCommand() {
+        return (client, args, out) -> {
+            State state = client.getTransaction();
+            if (state.isInMulti()) {
+                throw new CommandException("MULTI calls can not be nested");
+            }
+            state.commands = new ArrayList<>();
+            state.args = new ArrayList<>();
+            out.writeOk();
+        };
+    }
+
+    /**
+     * Comando EXEC - responde con un array con la respuesta de cada comando encolado, o
+     * con un array nulo si alguna clave vigilada cambió
+     */
+    public ClientCommand createExecCommand() {
+        return (client, args, out) -> {
+            State state = client.getTransaction();
+            if (!state.isInMulti()) {
+                throw new CommandException("EXEC without MULTI");
+            }
+            List<ClientCommand> commands = state.commands;
+            List<CommandArgs> queued = state.args;
+            boolean failed = state.failed;
+            List<byte[]> watchedKeys = new ArrayList<>(state.watchedKeys);
+            List<Long> watchedVersions = new ArrayList<>(state.watchedVersions);
+            state.endMulti();
+            if (failed) {
+                throw new CommandException("EXECABORT", "Transaction discarded because of previous errors.");
+            }
+
+            // se desaloja antes de bloquear: Eviction bloquea los shards uno a uno
+            state.memoryAvailable = client.isInternal() || keyspace.getEviction().freeMemoryIfNeeded();
+            state.executing = true;
+            long offset = 0;
+            try (Keyspace.KeyLock lock = keyspace.lockAll()) {
+                for (int i = 0; i < watchedKeys.size(); i++) {
+                    if (keyspace.version(watchedKeys.get(i)) != watchedVersions.get(i)) {
+                        out.writeRaw(RespWriter.NULL_ARRAY);
+                        return;
+                    }
+                }
+                log.beginTransaction();
+                try {
+                    out.writeArrayHeader(commands.size());
+                    for (int i = 0; i < commands.size(); i++) {
+                        execute(commands.get(i), client, queued.get(i), out);
+                    }
+                } finally {
+                    offset = log.endTransaction();
+                }
+            } finally {
+                state.executing = false;
+            }
+            log.awaitSync(offset);
+            blockingLists.serve(state.takeReadyKeys());
+        };
+    }
+
+    /**
+     * Comando DISCARD
+     */
+    public ClientCommand createDiscardCommand() {
+        return (client, args, out) -> {
+            State state = client.getTransaction();
+            if (!state.isInMulti()) {
+                throw new CommandException("DISCARD without MULTI");
+            }
+            state.endMulti();
+            out.writeOk();
+        };
+    }
+
+    /**
+     * Comando WATCH key [key ...]
+     */
+    public ClientCommand createWatchCommand() {
+        return (client, args, out) -> {
+            State state = client.getTransaction();
+            if (state.isInMulti()) {
+                throw new CommandException("WATCH inside MULTI is not allowed");
+            }
+            for (int i = 1; i < args.count(); i++) {
+                byte[] key = args.toBytes(i);
+                state.watchedKeys.add(key);
+                state.watchedVersions.add(keyspace.version(key));
+            }
+            out.writeOk();
+        };
+    }
+
+    /**
+     * Comando UNWATCH
+     */
+    public ClientCommand createUnwatchCommand() {
+        return (client, args, out) -> {
+            client.getTransaction().unwatch();
+            out.writeOk();
+        };
+    }
+
+    /**
+     * Dentro de MULTI encola el comando ya resuelto en lugar de ejecutarlo. Lo comprueba
+     * el servidor antes de ejecutar cada comando
+     *
+     * @return true si ya se ha respondido y el comando no debe ejecutarse
+     */
+    public boolean queue(Client client, ClientCommand command, CommandArgs args, RespWriter out) {
+        State state = client.peekTransaction();
+        if (state == null || !state.isInMulti()) {
+            return false;
+        }
+        if (args.equalsIgnoreCase(0, "EXEC") || args.equalsIgnoreCase(0, "DISCARD")
+                || args.equalsIgnoreCase(0, "MULTI") || args.equalsIgnoreCase(0, "WATCH")) {
+            return false;
+        }
+        for (String name : NOT_QUEUED) {
+            if (args.equalsIgnoreCase(0, name)) {
+                state.failed = true;
+                out.writeError(CommandException.ERR, NOT_ALLOWED);
+                return true;
+            }
+        }
+        state.commands.add(command);
+        state.args.add(args.copy());
+        out.writeRaw(RespWriter.QUEUED);
+        return true;
+    }
+
+    /**
+     * Un comando desconocido o con un número de argumentos que no admite dentro de MULTI
+     * hace que EXEC falle con EXECABORT, como en Redis: se rechaza al encolarlo y no al
+     * ejecutar la transacción
+     */
+    public void failIfQueuing(Client client) {
+        State state = client.peekTransaction();
+        if (state != null && state.isInMulti()) {
+            state.failed = true;
+        }
+    }
+
+    /**
+     * Los errores de un comando encolado van en su posición del array, como en Redis,
+     * y no detienen a los siguientes
+     */
+    private static void execute(ClientCommand command, Client client, CommandArgs args, RespWriter out)
+            throws IOException {
+        try {
+            command.execute(client, args, out);
+        } catch (CommandException e) {
+            out.writeError(e);
+        } catch (RuntimeException e) {
+            // un fallo del servidor: como fuera de MULTI, se registra y el resto sigue
+            String name = args.toString(0).toLowerCase();
+            Log.warning("Error interno ejecutando '" + name + "' en EXEC de " + client, e);
+            out.writeError(CommandException.ERR, "internal error executing '" + name + "'");
+        }
+    }
+}
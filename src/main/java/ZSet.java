@@ -0,0 +1,295 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Sorted set, como el de Redis: skiplist ordenada por (score, miembro) que guarda en cada
+ * enlace cuántos nodos salta (span), para calcular la posición de un nodo o llegar a una
+ * posición en O(log n), más un HashMap de miembro a nodo para ZSCORE y para localizar el
+ * nodo al actualizar o borrar. Los miembros con el mismo score se ordenan por sus bytes
+ */
+public class ZSet extends LargeValue {
+
+    private static final int MAX_LEVEL = 32;
+    // probabilidad de que un nodo suba un nivel (ZSKIPLIST_P)
+    private static final double LEVEL_PROBABILITY = 0.25;
+    // por miembro: nodo del HashMap, Bytes y ranura de la tabla, más el Node de la skiplist
+    // y las cabeceras de sus dos arrays; cada nivel suma una referencia y un span
+    private static final long NODE_OVERHEAD = 32 + 24 + 8 + 40 + 16 + 16;
+    private static final long LEVEL_BYTES = 4 + 4;
+
+    private final Node header = new Node(null, 0, MAX_LEVEL);
+    private final HashMap<Bytes, Node> members = new HashMap<>();
+    private int level = 1;
+    private int length;
+    private long bytes;
+
+    /**
+     * Copia los pares miembro-score de un listpack (el formato de un zset en el RDB)
+     */
+    public static ZSet fromListpack(byte[] lp, int base) {
+        ZSet zset = new ZSet();
+        for (int p = Listpack.first(base); !Listpack.isEnd(lp, p); ) {
+            int score = Listpack.next(lp, p);
+            zset.put(new Bytes(Listpack.get(lp, p)), Listpack.isInt(lp, score)
+                    ? Listpack.intValue(lp, score) : SortedSets.parseScore(Listpack.get(lp, score)));
+            p = Listpack.next(lp, score);
+        }
+        return zset;
+    }
+
+    /**
+     * @return el score del miembro o NaN si no está (un score nunca es NaN)
+     */
+    public double score(Bytes member) {
+        Node node = members.get(member);
+        return node == null ? Double.NaN : node.score;
+    }
+
+    /**
+     * Añade el miembro o le cambia el score
+     */
+    public void put(Bytes member, double score) {
+        Node node = members.get(member);
+        if (node == null) {
+            members.put(member, insert(member.data(), score));
+        } else if (node.score != score) {
+            members.put(member, updateScore(node, score));
+        }
+    }
+
+    /**
+     * @return true si el miembro estaba
+     */
+    public boolean remove(Bytes member) {
+        Node node = members.remove(member);
+        if (node == null) {
+            return false;
+        }
+        Node[] update = new Node[MAX_LEVEL];
+        findPredecessors(node.score, node.member, update);
+        unlink(node, update);
+        return true;
+    }
+
+    /**
+     * @return la posición del miembro (0 el de menor score, o el de mayor si reverse),
+     *         o -1 si no está
+     */
+    public long rank(Bytes member, boolean reverse) {
+        Node node = members.get(member);
+        if (node == null) {
+            return -1;
+        }
+        long rank = 0;
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward[i] != null && !after(x.forward[i], node.score, node.member)) {
+                rank += x.span[i];
+                x = x.forward[i];
+            }
+            if (x == node) {
+                break;
+            }
+        }
+        return reverse ? length - rank : rank - 1;
+    }
+
+    /**
+     * Número de miembros con score menor que el dado (o menor o igual si inclusive):
+     * la posición del primero que no lo es
+     */
+    public int countBelow(double score, boolean inclusive) {
+        int rank = 0;
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward[i] != null
+                    && (x.forward[i].score < score || (inclusive && x.forward[i].score == score))) {
+                rank += x.span[i];
+                x = x.forward[i];
+            }
+        }
+        return rank;
+    }
+
+    /**
+     * Escribe los miembros de las posiciones [start, stop] (ya normalizadas, contadas desde
+     * el final si reverse), con su score detrás si withScores. La cabecera del array la
+     * escribe quien llama
+     */
+    public void writeRange(int start, int stop, boolean reverse, boolean withScores, RespWriter out) {
+        Node x = nodeAt(reverse ? length - start : start + 1);
+        for (int i = start; i <= stop; i++) {
+            out.writeBulk(x.member);
+            if (withScores) {
+                SortedSets.writeScore(x.score, out);
+            }
+            x = reverse ? x.backward : x.forward[0];
+        }
+    }
+
+    @Override
+    public int size() {
+        return length;
+    }
+
+    @Override
+    public byte[] toListpack() {
+        Listpack.Builder builder = new Listpack.Builder(length * 16);
+        for (Node x = header.forward[0]; x != null; x = x.forward[0]) {
+            builder.add(x.member).add(SortedSets.formatScoreBytes(x.score));
+        }
+        return builder.build();
+    }
+
+    @Override
+    public long memoryUsage() {
+        return bytes;
+    }
+
+    /**
+     * Nodo de la posición rank, contando desde 1
+     */
+    private Node nodeAt(long rank) {
+        long traversed = 0;
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward[i] != null && traversed + x.span[i] <= rank) {
+                traversed += x.span[i];
+                x = x.forward[i];
+            }
+            if (traversed == rank) {
+                return x;
+            }
+        }
+        throw new IndexOutOfBoundsException("Posición fuera del sorted set: " + rank);
+    }
+
+    private Node insert(byte[] member, double score) {
+        Node[] update = new Node[MAX_LEVEL];
+        int[] rank = new int[MAX_LEVEL];
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            rank[i] = i == level - 1 ? 0 : rank[i + 1];
+            while (x.forward[i] != null && before(x.forward[i], score, member)) {
+                rank[i] += x.span[i];
+                x = x.forward[i];
+            }
+            update[i] = x;
+        }
+        int nodeLevel = randomLevel();
+        if (nodeLevel > level) {
+            for (int i = level; i < nodeLevel; i++) {
+                rank[i] = 0;
+                update[i] = header;
+                header.span[i] = length;
+            }
+            level = nodeLevel;
+        }
+        x = new Node(member, score, nodeLevel);
+        for (int i = 0; i < nodeLevel; i++) {
+            x.forward[i] = update[i].forward[i];
+            update[i].forward[i] = x;
+            x.span[i] = update[i].span[i] - (rank[0] - rank[i]);
+            update[i].span[i] = rank[0] - rank[i] + 1;
+        }
+        for (int i = nodeLevel; i < level; i++) {
+            update[i].span[i]++;
+        }
+        x.backward = update[0] == header ? null : update[0];
+        if (x.forward[0] != null) {
+            x.forward[0].backward = x;
+        }
+        length++;
+        bytes += NODE_OVERHEAD + LEVEL_BYTES * nodeLevel + arrayBytes(member.length);
+        return x;
+    }
+
+    /**
+     * Cambia el score sin mover el nodo si sigue en su sitio; si no, lo reinserta
+     */
+    private Node updateScore(Node node, double score) {
+        Node previous = node.backward;
+        Node next = node.forward[0];
+        if ((previous == null || before(previous, score, node.member))
+                && (next == null || after(next, score, node.member))) {
+            node.score = score;
+            return node;
+        }
+        Node[] update = new Node[MAX_LEVEL];
+        findPredecessors(node.score, node.member, update);
+        unlink(node, update);
+        return insert(node.member, score);
+    }
+
+    /**
+     * Último nodo de cada nivel anterior a (score, member)
+     */
+    private void findPredecessors(double score, byte[] member, Node[] update) {
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward[i] != null && before(x.forward[i], score, member)) {
+                x = x.forward[i];
+            }
+            update[i] = x;
+        }
+    }
+
+    private void unlink(Node node, Node[] update) {
+        for (int i = 0; i < level; i++) {
+            if (update[i].forward[i] == node) {
+                update[i].span[i] += node.span[i] - 1;
+                update[i].forward[i] = node.forward[i];
+            } else {
+                update[i].span[i]--;
+            }
+        }
+        if (node.forward[0] != null) {
+            node.forward[0].backward = node.backward;
+        }
+        while (level > 1 && header.forward[level - 1] == null) {
+            level--;
+        }
+        length--;
+        bytes -= NODE_OVERHEAD + LEVEL_BYTES * node.forward.length + arrayBytes(node.member.length);
+    }
+
+    /**
+     * true si node va antes que (score, member)
+     */
+    private static boolean before(Node node, double score, byte[] member) {
+        return node.score < score || (node.score == score && Arrays.compareUnsigned(node.member, member) < 0);
+    }
+
+    private static boolean after(Node node, double score, byte[] member) {
+        return node.score > score || (node.score == score && Arrays.compareUnsigned(node.member, member) > 0);
+    }
+
+    private static int randomLevel() {
+        int level = 1;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (level < MAX_LEVEL && random.nextDouble() < LEVEL_PROBABILITY) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Nodo de la skiplist: forward[i] es el siguiente en el nivel i y span[i] cuántas
+     * posiciones avanza ese enlace
+     */
+    private static final class Node {
+        final byte[] member;
+        double score;
+        Node backward;
+        final Node[] forward;
+        final int[] span;
+
+        Node(byte[] member, double score, int level) {
+            this.member = member;
+            this.score = score;
+            this.forward = new Node[level];
+            this.span = new int[level];
+        }
+    }
+}